@@ -644,6 +644,14 @@ public class Artifact
         }
       };
 
+  public static final Function<Artifact, String> EXEC_PATH_STRING =
+      new Function<Artifact, String>() {
+        @Override
+        public String apply(Artifact artifact) {
+          return artifact.getExecPathString();
+        }
+      };
+
   public static final Function<Artifact, String> ABSOLUTE_PATH_STRING =
       new Function<Artifact, String>() {
         @Override
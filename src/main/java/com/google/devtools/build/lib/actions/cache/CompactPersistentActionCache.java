@@ -43,7 +43,8 @@ import java.util.logging.Logger;
 /**
  * An implementation of the ActionCache interface that uses
  * {@link CompactStringIndexer} to reduce memory footprint and saves
- * cached actions using the {@link PersistentMap}.
+ * cached actions using the {@link PersistentMap}. Updates are appended to the cache file, which
+ * is only compacted once most of its records are stale.
  *
  * <p>This cache is not fully correct: as hashes are xor'd together, a permutation of input
  * file contents will erroneously be considered up to date.
@@ -104,14 +105,10 @@ public class CompactPersistentActionCache implements ActionCache {
     }
 
     @Override
-    protected boolean keepJournal() {
-      // We must first flush the journal to get an accurate measure of its size.
-      forceFlush();
-      try {
-        return journalSize() * 100 < cacheSize();
-      } catch (IOException e) {
-        return false;
-      }
+    protected boolean appendToMapFile() {
+      // Rewriting millions of entries at the end of every build is much more expensive than
+      // appending the few that changed.
+      return true;
     }
 
     @Override
@@ -13,16 +13,20 @@
 // limitations under the License.
 package com.google.devtools.build.lib.actions.cache;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.io.BaseEncoding;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.LoggingUtil;
 import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.IOException;
 import java.util.Objects;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 
 import javax.annotation.Nullable;
@@ -31,12 +35,95 @@ import javax.annotation.Nullable;
  * Utility class for getting md5 digests of files.
  */
 public class DigestUtils {
-  // Object to synchronize on when serializing large file reads.
-  private static final Object MD5_LOCK = new Object();
+  // Permits to read a large file for computing its digest. A single permit serializes large file
+  // reads.
+  private static volatile Semaphore largeFileReadPermits = new Semaphore(1, /*fair=*/true);
+  // The number of permits largeFileReadPermits was created with.
+  private static int maxConcurrentLargeFileReads = 1;
+
+  // Digests computed by reading files, or null if not cached.
+  @Nullable
+  private static volatile Cache<CacheKey, byte[]> digestCache = null;
+  // The maximum size digestCache was created with.
+  private static long digestCacheSize = 0;
+
+  /**
+   * Key of {@link #digestCache}. A file is assumed to be unchanged, and its digest still valid, as
+   * long as its inode, size and modification times are.
+   */
+  private static final class CacheKey {
+    private final Path path;
+    private final long nodeId;
+    private final long size;
+    private final long modifiedTime;
+    private final long changeTime;
+
+    CacheKey(Path path, FileStatus status) throws IOException {
+      this.path = path;
+      this.nodeId = status.getNodeId();
+      this.size = status.getSize();
+      this.modifiedTime = status.getLastModifiedTime();
+      this.changeTime = status.getLastChangeTime();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof CacheKey)) {
+        return false;
+      }
+      CacheKey that = (CacheKey) o;
+      return path.equals(that.path) && nodeId == that.nodeId && size == that.size
+          && modifiedTime == that.modifiedTime && changeTime == that.changeTime;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, nodeId, size, modifiedTime, changeTime);
+    }
+  }
 
   /** Private constructor to prevent instantiation of utility class. */
   private DigestUtils() {}
 
+  /**
+   * Sets how many large files may be read at the same time to compute their digests. One, the
+   * default, avoids excessive disk seeks on rotating drives; solid state drives usually benefit
+   * from a higher number.
+   *
+   * <p>The permits are only replaced if the number changes, so that reads in progress release
+   * their permits to the semaphore that later reads acquire from.
+   */
+  public static synchronized void setMaxConcurrentLargeFileReads(int maxConcurrentReads) {
+    Preconditions.checkArgument(maxConcurrentReads > 0, maxConcurrentReads);
+    if (maxConcurrentReads != maxConcurrentLargeFileReads) {
+      maxConcurrentLargeFileReads = maxConcurrentReads;
+      largeFileReadPermits = new Semaphore(maxConcurrentReads, /*fair=*/true);
+    }
+  }
+
+  /**
+   * Keeps up to {@code maximumSize} digests computed by reading files in memory, so that they need
+   * not be computed again while the files are unchanged. Zero disables the cache.
+   *
+   * <p>Called for every build; the cached digests are only dropped if the size changes, so that
+   * they are kept across builds, for example after Skyframe dropped its file values.
+   */
+  public static synchronized void configureCache(long maximumSize) {
+    Preconditions.checkArgument(maximumSize >= 0, maximumSize);
+    if (maximumSize == digestCacheSize) {
+      return;
+    }
+    digestCacheSize = maximumSize;
+    if (maximumSize == 0) {
+      digestCache = null;
+    } else {
+      digestCache = CacheBuilder.newBuilder()
+          .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+          .maximumSize(maximumSize)
+          .build();
+    }
+  }
+
   /**
    * Returns true iff using MD5 digests is appropriate for an artifact.
    *
@@ -49,16 +136,20 @@ public class DigestUtils {
   }
 
   /**
-   * Obtain file's MD5 metadata using synchronized method, ensuring that system
-   * is not overloaded in case when multiple threads are requesting MD5
-   * calculations and underlying file system cannot provide it via extended
+   * Obtain file's MD5 metadata while holding a large file read permit, ensuring
+   * that system is not overloaded in case when multiple threads are requesting
+   * MD5 calculations and underlying file system cannot provide it via extended
    * attribute.
    */
   private static byte[] getDigestInExclusiveMode(Path path) throws IOException {
     long startTime = BlazeClock.nanoTime();
-    synchronized (MD5_LOCK) {
+    Semaphore permits = largeFileReadPermits;
+    permits.acquireUninterruptibly();
+    try {
       Profiler.instance().logSimpleTask(startTime, ProfilerTask.WAIT, path.getPathString());
       return getDigestInternal(path);
+    } finally {
+      permits.release();
     }
   }
 
@@ -113,7 +204,22 @@ public class DigestUtils {
     }
     if (md5bin != null) {
       return md5bin;
-    } else if (fileSize > 4096) {
+    }
+    Cache<CacheKey, byte[]> cache = digestCache;
+    if (cache == null) {
+      return computeDigest(path, fileSize);
+    }
+    CacheKey key = new CacheKey(path, path.stat());
+    md5bin = cache.getIfPresent(key);
+    if (md5bin == null) {
+      md5bin = computeDigest(path, fileSize);
+      cache.put(key, md5bin);
+    }
+    return md5bin;
+  }
+
+  private static byte[] computeDigest(Path path, long fileSize) throws IOException {
+    if (fileSize > 4096) {
       // We'll have to read file content in order to calculate the digest. In that case
       // it would be beneficial to serialize those calculations since there is a high
       // probability that MD5 will be requested for multiple output files simultaneously.
@@ -159,6 +159,9 @@ public final class BuildTool {
         // Initialize the execution tool early if we need it. This hides the latency of setting up
         // the execution backends.
         executionTool.init();
+        // Load the action cache while the loading and analysis phases run. With --nobuild the
+        // cache is never used, so it is not loaded either.
+        env.prefetchPersistentActionCache();
       }
 
       // Loading phase.
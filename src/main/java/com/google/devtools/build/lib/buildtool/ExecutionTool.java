@@ -49,6 +49,7 @@ import com.google.devtools.build.lib.actions.SimpleActionContextProvider;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.actions.TestExecException;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
+import com.google.devtools.build.lib.actions.cache.DigestUtils;
 import com.google.devtools.build.lib.analysis.BuildView;
 import com.google.devtools.build.lib.analysis.BuildView.AnalysisResult;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
@@ -78,6 +79,7 @@ import com.google.devtools.build.lib.rules.test.TestActionContext;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.shell.Command;
 import com.google.devtools.build.lib.skyframe.AspectValue;
 import com.google.devtools.build.lib.skyframe.Builder;
 import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
@@ -316,6 +318,10 @@ public class ExecutionTool {
 
   void init() throws ExecutorInitException {
     getExecutor();
+    ExecutionOptions options = request.getOptions(ExecutionOptions.class);
+    DigestUtils.setMaxConcurrentLargeFileReads(Math.max(1, options.concurrentLargeFileDigests));
+    DigestUtils.configureCache(Math.max(0, options.digestCacheSize));
+    Command.setOutputPollers(Math.max(0, options.commandOutputPollers));
   }
 
   void shutdown() {
@@ -32,17 +32,34 @@ final class CompileOrderExpander<E> implements NestedSetExpander<E> {
   @Override
   public void expandInto(NestedSet<E> set, Uniqueifier uniqueifier,
       ImmutableCollection.Builder<E> builder) {
-    for (NestedSet<E> subset : set.transitiveSets()) {
-      if (!subset.isEmpty() && uniqueifier.isUnique(subset)) {
-        expandInto(subset, uniqueifier, builder);
+    // Iterative, but calls the uniqueifier in the same order as a recursive expansion would, which
+    // its memos depend on.
+    ExpansionStack stack = new ExpansionStack();
+    stack.push(set, 0);
+    while (!stack.isEmpty()) {
+      NestedSet<E> current = stack.top();
+      NestedSet<?>[] transitiveSets = current.transitiveSets();
+      NestedSet<E> child = null;
+      int i = stack.nextSubset();
+      while (child == null && i < transitiveSets.length) {
+        NestedSet<E> subset = (NestedSet<E>) transitiveSets[i++];
+        if (!subset.isEmpty() && uniqueifier.isUnique(subset)) {
+          child = subset;
+        }
+      }
+      if (child != null) {
+        stack.setNextSubset(i);
+        stack.push(child, 0);
+        continue;
       }
-    }
 
-    // This switch is here to compress the memo used by the uniqueifier
-    for (Object e : set.directMembers()) {
-      if (uniqueifier.isUnique(e)) {
-        builder.add((E) e);
+      // This switch is here to compress the memo used by the uniqueifier
+      for (Object e : current.directMembers()) {
+        if (uniqueifier.isUnique(e)) {
+          builder.add((E) e);
+        }
       }
+      stack.pop();
     }
   }
 }
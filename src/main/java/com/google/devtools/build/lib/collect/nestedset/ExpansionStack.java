@@ -0,0 +1,61 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import java.util.Arrays;
+
+/**
+ * The state of an iterative depth-first expansion of a nested set: the sets from the root down to
+ * the one being expanded, each with the index of the next subset to look at.
+ *
+ * <p>Used by the expanders instead of recursion, so that deep nested sets, like the transitive
+ * inputs of long dependency chains, do not overflow the Java stack.
+ */
+final class ExpansionStack {
+
+  private NestedSet<?>[] sets = new NestedSet<?>[16];
+  private int[] nextSubsets = new int[16];
+  private int depth = -1;
+
+  void push(NestedSet<?> set, int nextSubset) {
+    depth++;
+    if (depth == sets.length) {
+      sets = Arrays.copyOf(sets, depth * 2);
+      nextSubsets = Arrays.copyOf(nextSubsets, depth * 2);
+    }
+    sets[depth] = set;
+    nextSubsets[depth] = nextSubset;
+  }
+
+  boolean isEmpty() {
+    return depth < 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  <E> NestedSet<E> top() {
+    return (NestedSet<E>) sets[depth];
+  }
+
+  int nextSubset() {
+    return nextSubsets[depth];
+  }
+
+  void setNextSubset(int nextSubset) {
+    nextSubsets[depth] = nextSubset;
+  }
+
+  void pop() {
+    sets[depth--] = null;
+  }
+}
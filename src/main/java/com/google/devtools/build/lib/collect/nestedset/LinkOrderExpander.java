@@ -14,7 +14,9 @@
 package com.google.devtools.build.lib.collect.nestedset;
 
 import com.google.common.collect.ImmutableCollection;
-import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * A nested set expander that implements a variation of left-to-right preordering.
@@ -73,33 +75,46 @@ import com.google.common.collect.ImmutableList;
  */
 
 final class LinkOrderExpander<E> implements NestedSetExpander<E> {
-  @Override
-  public void expandInto(NestedSet<E> nestedSet, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder) {
-    ImmutableList.Builder<E> result = ImmutableList.builder();
-    internalEnumerate(nestedSet, uniqueifier, result);
-    builder.addAll(result.build().reverse());
-  }
-
   // We suppress unchecked warning so that we can access the internal raw structure of the
   // NestedSet.
   @SuppressWarnings("unchecked")
-  private void internalEnumerate(NestedSet<E> set, Uniqueifier uniqueifier,
+  @Override
+  public void expandInto(NestedSet<E> nestedSet, Uniqueifier uniqueifier,
       ImmutableCollection.Builder<E> builder) {
-    NestedSet[] transitiveSets = set.transitiveSets();
-    for (int i = transitiveSets.length - 1; i >= 0; i--) {
-      NestedSet<E> subset = transitiveSets[i];
-      if (!subset.isEmpty() && uniqueifier.isUnique(subset)) {
-        internalEnumerate(subset, uniqueifier, builder);
+    // The right-to-left postorder, collected in an array list so that it can be reversed in place
+    // and added to the builder at once.
+    ArrayList<E> result = new ArrayList<>();
+    // Iterative, but calls the uniqueifier in the same order as a recursive expansion would, which
+    // its memos depend on.
+    ExpansionStack stack = new ExpansionStack();
+    stack.push(nestedSet, nestedSet.transitiveSets().length - 1);
+    while (!stack.isEmpty()) {
+      NestedSet<E> current = stack.top();
+      NestedSet<?>[] transitiveSets = current.transitiveSets();
+      NestedSet<E> child = null;
+      int i = stack.nextSubset();
+      while (child == null && i >= 0) {
+        NestedSet<E> subset = (NestedSet<E>) transitiveSets[i--];
+        if (!subset.isEmpty() && uniqueifier.isUnique(subset)) {
+          child = subset;
+        }
+      }
+      if (child != null) {
+        stack.setNextSubset(i);
+        stack.push(child, child.transitiveSets().length - 1);
+        continue;
       }
-    }
 
-    Object[] directMembers = set.directMembers();
-    for (int i = directMembers.length - 1; i >= 0; i--) {
-      Object e = directMembers[i];
-      if (uniqueifier.isUnique(e)) {
-        builder.add((E) e);
+      Object[] directMembers = current.directMembers();
+      for (int j = directMembers.length - 1; j >= 0; j--) {
+        Object e = directMembers[j];
+        if (uniqueifier.isUnique(e)) {
+          result.add((E) e);
+        }
       }
+      stack.pop();
     }
+    Collections.reverse(result);
+    builder.addAll(result);
   }
 }
@@ -38,17 +38,38 @@ final class NaiveLinkOrderExpander<E> implements NestedSetExpander<E> {
   @Override
   public void expandInto(NestedSet<E> set, Uniqueifier uniqueifier,
       ImmutableCollection.Builder<E> builder) {
+    // Iterative, but calls the uniqueifier in the same order as a recursive expansion would, which
+    // its memos depend on.
+    ExpansionStack stack = new ExpansionStack();
+    addDirectMembers(set, uniqueifier, builder);
+    stack.push(set, 0);
+    while (!stack.isEmpty()) {
+      NestedSet<?>[] transitiveSets = stack.top().transitiveSets();
+      NestedSet<E> child = null;
+      int i = stack.nextSubset();
+      while (child == null && i < transitiveSets.length) {
+        NestedSet<E> subset = (NestedSet<E>) transitiveSets[i++];
+        if (!subset.isEmpty() && uniqueifier.isUnique(subset)) {
+          child = subset;
+        }
+      }
+      if (child == null) {
+        stack.pop();
+      } else {
+        stack.setNextSubset(i);
+        addDirectMembers(child, uniqueifier, builder);
+        stack.push(child, 0);
+      }
+    }
+  }
 
+  @SuppressWarnings("unchecked")
+  private void addDirectMembers(NestedSet<E> set, Uniqueifier uniqueifier,
+      ImmutableCollection.Builder<E> builder) {
     for (Object e : set.directMembers()) {
       if (uniqueifier.isUnique(e)) {
         builder.add((E) e);
       }
     }
-
-    for (NestedSet<E> subset : set.transitiveSets()) {
-      if (!subset.isEmpty() && uniqueifier.isUnique(subset)) {
-        expandInto(subset, uniqueifier, builder);
-      }
-    }
   }
 }
@@ -0,0 +1,119 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes digests of nested sets for use in action keys, remembering the digest of every set it
+ * has seen. The digest of a set is computed from its order, its direct members and the digests of
+ * its subsets, so a set that is shared by many actions, like the transitive headers of a library,
+ * is only hashed once, instead of once for every action that includes its flattened contents.
+ *
+ * <p>The digest depends on the structure of the set and not only on its elements: two sets with
+ * the same elements may have different digests, but sets with different elements do not have the
+ * same digest. This is all an action key needs.
+ *
+ * <p>Sets are compared by identity and only weakly referenced, so the digests are dropped together
+ * with their sets.
+ *
+ * @param <E> the element type
+ */
+public final class NestedSetFingerprintCache<E> {
+
+  private final Function<? super E, String> toString;
+  private final Cache<NestedSet<?>, byte[]> digests =
+      CacheBuilder.newBuilder().weakKeys().build();
+
+  /**
+   * Creates a cache that represents each element by the string {@code toString} returns for it.
+   * It should be stateless, since the digests computed with it are remembered.
+   */
+  public NestedSetFingerprintCache(Function<? super E, String> toString) {
+    this.toString = Preconditions.checkNotNull(toString);
+  }
+
+  /** Returns the MD5 digest of {@code set}. */
+  public byte[] digest(NestedSet<? extends E> set) {
+    byte[] digest = digests.getIfPresent(set);
+    if (digest != null) {
+      return digest;
+    }
+    MessageDigest md = newMessageDigest();
+    // Subsets are digested before their parents, iteratively, so that deep sets do not overflow
+    // the Java stack.
+    ExpansionStack stack = new ExpansionStack();
+    stack.push(set, 0);
+    while (!stack.isEmpty()) {
+      NestedSet<E> current = stack.top();
+      NestedSet<?>[] transitiveSets = current.transitiveSets();
+      int i = stack.nextSubset();
+      while (i < transitiveSets.length && digests.getIfPresent(transitiveSets[i]) != null) {
+        i++;
+      }
+      if (i < transitiveSets.length) {
+        stack.setNextSubset(i);
+        stack.push(transitiveSets[i], 0);
+        continue;
+      }
+      digest = computeDigest(md, current);
+      digests.put(current, digest);
+      stack.pop();
+    }
+    return digest;
+  }
+
+  @SuppressWarnings("unchecked")
+  private byte[] computeDigest(MessageDigest md, NestedSet<E> set) {
+    Object[] directMembers = set.directMembers();
+    NestedSet<?>[] transitiveSets = set.transitiveSets();
+    update(md, set.getOrder().ordinal());
+    update(md, directMembers.length);
+    for (Object member : directMembers) {
+      byte[] bytes = toString.apply((E) member).getBytes(StandardCharsets.UTF_8);
+      update(md, bytes.length);
+      md.update(bytes);
+    }
+    update(md, transitiveSets.length);
+    for (NestedSet<?> subset : transitiveSets) {
+      byte[] subsetDigest = digests.getIfPresent(subset);
+      // Cached entries are only dropped once the set is unreachable, and the parent refers to it.
+      Preconditions.checkState(subsetDigest != null, subset);
+      md.update(subsetDigest);
+    }
+    return md.digest();
+  }
+
+  private static void update(MessageDigest md, int value) {
+    md.update((byte) (value >>> 24));
+    md.update((byte) (value >>> 16));
+    md.update((byte) (value >>> 8));
+    md.update((byte) value);
+  }
+
+  private static MessageDigest newMessageDigest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 not available", e);
+    }
+  }
+}
@@ -65,13 +65,32 @@ public final class NestedSetVisitor<E> {
       return;
     }
 
-    for (NestedSet<E> subset : nestedSet.transitiveSets()) {
-      visit(subset);
-    }
-    for (Object member : nestedSet.directMembers()) {
-      if (visited.add((E) member)) {
-        callback.accept((E) member);
+    // Iterative, so that deep nested sets do not overflow the Java stack. Members are received in
+    // the same order as a recursive visitation would, subsets first.
+    ExpansionStack stack = new ExpansionStack();
+    stack.push(nestedSet, 0);
+    while (!stack.isEmpty()) {
+      NestedSet<E> current = stack.top();
+      NestedSet<?>[] transitiveSets = current.transitiveSets();
+      NestedSet<E> child = null;
+      int i = stack.nextSubset();
+      while (child == null && i < transitiveSets.length) {
+        NestedSet<E> subset = (NestedSet<E>) transitiveSets[i++];
+        if (visited.add(subset)) {
+          child = subset;
+        }
+      }
+      if (child != null) {
+        stack.setNextSubset(i);
+        stack.push(child, 0);
+        continue;
+      }
+      for (Object member : current.directMembers()) {
+        if (visited.add((E) member)) {
+          callback.accept((E) member);
+        }
       }
+      stack.pop();
     }
   }
 
@@ -59,6 +59,25 @@ public class AbstractQueueVisitor implements QuiescingExecutor {
         }
       };
 
+  /**
+   * Like {@link #EXECUTOR_FACTORY}, but ignores {@link ExecutorParams#getWorkQueue} and instead
+   * uses a work queue that starts pending {@link PrioritizedRunnable}s in order of decreasing
+   * priority. Runnables of equal priority are started in LIFO order, as with the default queue.
+   */
+  public static final Function<ExecutorParams, ThreadPoolExecutor> PRIORITY_EXECUTOR_FACTORY =
+      new Function<ExecutorParams, ThreadPoolExecutor>() {
+        @Override
+        public ThreadPoolExecutor apply(ExecutorParams p) {
+          return new ThreadPoolExecutor(
+              /*corePoolSize=*/ p.getParallelism(),
+              /*maximumPoolSize=*/ p.getParallelism(),
+              p.getKeepAliveTime(),
+              p.getUnits(),
+              new PriorityBlockingStack(),
+              new ThreadFactoryBuilder().setNameFormat(p.getPoolName() + " %d").build());
+        }
+      };
+
   /**
    * The first unhandled exception thrown by a worker thread.  We save it and re-throw it from
    * the main thread to detect bugs faster; otherwise worker threads just quietly die.
@@ -489,7 +508,7 @@ public class AbstractQueueVisitor implements QuiescingExecutor {
    *   <li>And, lastly, calls {@link #decrementRemainingTasks}.
    * </ul>
    */
-  private final class WrappedRunnable implements Runnable {
+  private final class WrappedRunnable implements PrioritizedRunnable {
     private final Runnable originalRunnable;
     private volatile boolean ran;
 
@@ -497,6 +516,13 @@ public class AbstractQueueVisitor implements QuiescingExecutor {
       this.originalRunnable = originalRunnable;
     }
 
+    @Override
+    public int getPriority() {
+      return originalRunnable instanceof PrioritizedRunnable
+          ? ((PrioritizedRunnable) originalRunnable).getPriority()
+          : 0;
+    }
+
     @Override
     public void run() {
       ran = true;
@@ -0,0 +1,24 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+/**
+ * A {@link Runnable} that should be started before pending runnables of lower priority, when run
+ * by an executor whose work queue supports it, such as one created by {@link
+ * AbstractQueueVisitor#PRIORITY_EXECUTOR_FACTORY}. Other executors ignore the priority.
+ */
+public interface PrioritizedRunnable extends Runnable {
+  /** Returns the priority of this runnable. Higher priorities are started first. */
+  int getPriority();
+}
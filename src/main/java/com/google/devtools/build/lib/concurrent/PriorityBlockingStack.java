@@ -0,0 +1,151 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.concurrent;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link BlockingQueue} that hands out {@link PrioritizedRunnable}s with the highest priority
+ * first. Runnables of the same priority, including all runnables that are not {@link
+ * PrioritizedRunnable}s (which have priority 0), are handed out with LIFO ordering, like {@link
+ * BlockingStack}.
+ */
+class PriorityBlockingStack extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+  private static final Comparator<Entry> ORDERING =
+      new Comparator<Entry>() {
+        @Override
+        public int compare(Entry first, Entry second) {
+          if (first.priority != second.priority) {
+            return first.priority > second.priority ? -1 : 1;
+          }
+          // Newer entries first.
+          return Long.compare(second.sequenceNumber, first.sequenceNumber);
+        }
+      };
+
+  private static final Function<Entry, Runnable> UNWRAP =
+      new Function<Entry, Runnable>() {
+        @Override
+        public Runnable apply(Entry entry) {
+          return entry.runnable;
+        }
+      };
+
+  private final PriorityBlockingQueue<Entry> queue = new PriorityBlockingQueue<>(11, ORDERING);
+  private final AtomicLong sequenceNumber = new AtomicLong();
+
+  private static final class Entry {
+    private final Runnable runnable;
+    private final int priority;
+    private final long sequenceNumber;
+
+    private Entry(Runnable runnable, long sequenceNumber) {
+      this.runnable = runnable;
+      this.priority =
+          runnable instanceof PrioritizedRunnable
+              ? ((PrioritizedRunnable) runnable).getPriority()
+              : 0;
+      this.sequenceNumber = sequenceNumber;
+    }
+  }
+
+  private Entry wrap(Runnable runnable) {
+    return new Entry(runnable, sequenceNumber.getAndIncrement());
+  }
+
+  @Nullable
+  private static Runnable unwrap(@Nullable Entry entry) {
+    return entry == null ? null : entry.runnable;
+  }
+
+  @Override
+  public Iterator<Runnable> iterator() {
+    return Iterators.transform(queue.iterator(), UNWRAP);
+  }
+
+  @Override
+  public int size() {
+    return queue.size();
+  }
+
+  @Override
+  public void put(Runnable runnable) {
+    queue.put(wrap(runnable));
+  }
+
+  @Override
+  public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+    return queue.offer(wrap(runnable), timeout, unit);
+  }
+
+  @Override
+  public Runnable take() throws InterruptedException {
+    return queue.take().runnable;
+  }
+
+  @Override
+  public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+    return unwrap(queue.poll(timeout, unit));
+  }
+
+  @Override
+  public int remainingCapacity() {
+    return queue.remainingCapacity();
+  }
+
+  @Override
+  public int drainTo(Collection<? super Runnable> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super Runnable> c, int maxElements) {
+    List<Entry> entries = new ArrayList<>();
+    int drained = queue.drainTo(entries, maxElements);
+    for (Entry entry : entries) {
+      c.add(entry.runnable);
+    }
+    return drained;
+  }
+
+  @Override
+  public boolean offer(Runnable runnable) {
+    return queue.offer(wrap(runnable));
+  }
+
+  @Override
+  public Runnable poll() {
+    return unwrap(queue.poll());
+  }
+
+  @Override
+  public Runnable peek() {
+    return unwrap(queue.peek());
+  }
+}
@@ -196,6 +196,34 @@ public class ExecutionOptions extends OptionsBase {
   )
   public int localTestJobs;
 
+  @Option(name = "experimental_concurrent_large_file_digests",
+      defaultValue = "1",
+      category = "strategy",
+      help = "The max number of files larger than 4KB whose digests Blaze computes concurrently, "
+          + "when the file system cannot provide them directly. The default of 1 avoids thrashing "
+          + "rotating disks; a higher value speeds up builds with many large outputs on solid "
+          + "state drives."
+  )
+  public int concurrentLargeFileDigests;
+
+  @Option(name = "experimental_digest_cache_size",
+      defaultValue = "0",
+      category = "strategy",
+      help = "The number of file digests Blaze keeps in memory so that they need not be "
+          + "recomputed while the files are unchanged. 0 disables the cache."
+  )
+  public long digestCacheSize;
+
+  @Option(name = "experimental_command_output_pollers",
+      defaultValue = "0",
+      category = "strategy",
+      help = "The number of threads that read the output of all running local commands. "
+          + "0 reads each output stream of each command on its own thread. A few pollers save "
+          + "two threads per concurrent command, at the cost of some output being copied up to "
+          + "16 ms later while the command runs."
+  )
+  public int commandOutputPollers;
+
   public boolean usingLocalTestJobs() {
     return localTestJobs != 0;
   }
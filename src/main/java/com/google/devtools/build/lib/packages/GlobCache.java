@@ -19,6 +19,7 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
@@ -31,7 +32,9 @@ import com.google.devtools.build.lib.vfs.UnixGlob;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -128,12 +131,32 @@ public class GlobCache {
    */
   Future<List<Path>> getGlobAsync(String pattern, boolean excludeDirs)
       throws BadGlobException {
-    Future<List<Path>> cached = globCache.get(Pair.of(pattern, excludeDirs));
-    if (cached == null) {
-      cached = safeGlob(pattern, excludeDirs);
-      setGlobPaths(pattern, excludeDirs, cached);
+    getGlobsAsync(Collections.singleton(pattern), excludeDirs);
+    return globCache.get(Pair.of(pattern, excludeDirs));
+  }
+
+  /**
+   * Starts evaluating all of {@code patterns} that are not in the cache yet, using one file system
+   * traversal for all of them.
+   *
+   * @throws BadGlobException if any of the globs was syntactically invalid, or
+   *  contained uplevel references. No glob is started in that case.
+   */
+  void getGlobsAsync(Iterable<String> patterns, boolean excludeDirs) throws BadGlobException {
+    Set<String> missing = new LinkedHashSet<>();
+    for (String pattern : patterns) {
+      if (!globCache.containsKey(Pair.of(pattern, excludeDirs))) {
+        checkGlobPattern(pattern);
+        missing.add(pattern);
+      }
+    }
+    if (missing.isEmpty()) {
+      return;
+    }
+    Iterator<ListenableFuture<List<Path>>> results = startGlobs(missing, excludeDirs).iterator();
+    for (String pattern : missing) {
+      setGlobPaths(pattern, excludeDirs, results.next());
     }
-    return cached;
   }
 
   @VisibleForTesting
@@ -182,6 +205,11 @@ public class GlobCache {
    */
   @VisibleForTesting
   Future<List<Path>> safeGlob(String pattern, boolean excludeDirs) throws BadGlobException {
+    checkGlobPattern(pattern);
+    return startGlobs(Collections.singleton(pattern), excludeDirs).get(0);
+  }
+
+  private static void checkGlobPattern(String pattern) throws BadGlobException {
     // Forbidden patterns:
     if (pattern.indexOf('?') != -1) {
       throw new BadGlobException("glob pattern '" + pattern + "' contains forbidden '?' wildcard");
@@ -191,13 +219,21 @@ public class GlobCache {
     if (error != null) {
       throw new BadGlobException(error + " (in glob pattern '" + pattern + "')");
     }
+  }
+
+  /**
+   * Matches all of {@code patterns} against the filesystem in a single traversal, returning one
+   * future per pattern.
+   */
+  private List<ListenableFuture<List<Path>>> startGlobs(Collection<String> patterns,
+      boolean excludeDirs) {
     return UnixGlob.forPath(packageDirectory)
-        .addPattern(pattern)
+        .addPatterns(patterns)
         .setExcludeDirectories(excludeDirs)
         .setDirectoryFilter(childDirectoryPredicate)
         .setThreadPool(globExecutor)
         .setFilesystemCalls(syscalls)
-        .globAsync(true);
+        .globAsyncByPattern(true);
   }
 
   /**
@@ -262,12 +298,10 @@ public class GlobCache {
    */
   public List<String> glob(List<String> includes, List<String> excludes, boolean excludeDirs)
       throws IOException, BadGlobException, InterruptedException {
-    // Start globbing all patterns in parallel. The getGlob() calls below will
-    // block on an individual pattern's results, but the other globs can
-    // continue in the background.
-    for (String pattern : Iterables.concat(includes, excludes)) {
-      getGlobAsync(pattern, excludeDirs);
-    }
+    // Start all patterns first, together in a single traversal. The getGlob()
+    // calls below will block on an individual pattern's results, but the other
+    // globs can continue in the background.
+    getGlobsAsync(Iterables.concat(includes, excludes), excludeDirs);
 
     LinkedHashSet<String> results = Sets.newLinkedHashSetWithExpectedSize(includes.size());
     for (String pattern : includes) {
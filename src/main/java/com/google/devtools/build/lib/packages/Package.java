@@ -15,6 +15,7 @@
 package com.google.devtools.build.lib.packages;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -23,6 +24,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
@@ -31,6 +33,7 @@ import com.google.devtools.build.lib.collect.ImmutableSortedKeyMap;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.StoredEventHandler;
 import com.google.devtools.build.lib.packages.AttributeMap.AcceptsLabelAttribute;
 import com.google.devtools.build.lib.packages.License.DistributionType;
 import com.google.devtools.build.lib.util.Preconditions;
@@ -46,6 +49,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 
@@ -707,6 +713,9 @@ public class Package {
   }
 
   public static class Builder {
+    // The number of rules scanned or checked by each task when beforeBuild runs in parallel.
+    private static final int RULES_PER_SCAN = 500;
+
     protected static Package newPackage(PackageIdentifier packageId, String runfilesPrefix) {
       return new Package(packageId, runfilesPrefix);
     }
@@ -759,6 +768,13 @@ public class Package {
 
     private boolean alreadyBuilt = false;
 
+    // Runs the per-rule work of beforeBuild for large packages; null to do it on this thread.
+    @Nullable private ExecutorService postProcessingExecutor;
+
+    // The rules whose validity checks are left to beforeBuild, in creation order; null if rules
+    // are checked as they are created.
+    @Nullable private List<Rule> rulesToCheck;
+
     private EventHandler builderEventHandler = new EventHandler() {
       @Override
       public void handle(Event event) {
@@ -866,6 +882,39 @@ public class Package {
       return this;
     }
 
+    /**
+     * Sets the executor used to scan the rules of large packages in parallel once all of them have
+     * been added. If null, which is the default, they are scanned on the calling thread.
+     */
+    public Builder setPostProcessingExecutor(@Nullable ExecutorService postProcessingExecutor) {
+      this.postProcessingExecutor = postProcessingExecutor;
+      return this;
+    }
+
+    /**
+     * Leaves the validity checks of {@link RuleClass#checkRule} to {@link #build}, where they run
+     * along with the scan of the rules. Their errors are then added to the events of this builder,
+     * in rule order, instead of being reported on the event handler passed to the rule.
+     */
+    public Builder deferRuleChecks() {
+      if (rulesToCheck == null) {
+        rulesToCheck = new ArrayList<>();
+      }
+      return this;
+    }
+
+    /**
+     * Returns true if {@code rule}, which was just created, is checked in {@link #build}. Otherwise
+     * the caller checks it right away.
+     */
+    boolean deferChecks(Rule rule) {
+      if (rulesToCheck == null) {
+        return false;
+      }
+      rulesToCheck.add(rule);
+      return true;
+    }
+
     /**
      * Returns whether the "package" function has been called yet
      */
@@ -1226,25 +1275,41 @@ public class Package {
       List<Rule> rules = Lists.newArrayList(getTargets(Rule.class));
 
       // All labels mentioned in a rule that refer to an unknown target in the
-      // current package are assumed to be InputFiles, so let's create them:
-      for (final Rule rule : rules) {
-        AggregatingAttributeMapper.of(rule).visitLabels(new AcceptsLabelAttribute() {
-          @Override
-          public void acceptLabelAttribute(Label label, Attribute attribute) {
-            createInputFileMaybe(label, rule.getAttributeLocation(attribute.getName()));
-          }
-        });
-      }
-
+      // current package are assumed to be InputFiles, so let's create them.
       // "test_suite" rules have the idiosyncratic semantics of implicitly
       // depending on all tests in the package, iff tests=[] and suites=[].
       // Note, we implement this here when the Package is fully constructed,
       // since clearly this information isn't available at Rule construction
       // time, as forward references are permitted.
+      //
+      // Scanning and checking the rules only reads them, so both are split into chunks that may run
+      // in parallel. The results are applied in rule order, so the package does not depend on the
+      // executor.
+      List<RuleScan> scans = new ArrayList<>();
+      List<RuleCheck> checks = new ArrayList<>();
+      for (List<Rule> chunk : partition(rules)) {
+        scans.add(new RuleScan(chunk));
+      }
+      if (rulesToCheck != null) {
+        for (List<Rule> chunk : partition(rulesToCheck)) {
+          checks.add(new RuleCheck(chunk));
+        }
+        // beforeBuild may run again if the package function restarts.
+        rulesToCheck = new ArrayList<>();
+      }
+      runAll(Iterables.concat(scans, checks));
+
       List<Label> allTests = new ArrayList<>();
-      for (Rule rule : rules) {
-        if (TargetUtils.isTestRule(rule) && !TargetUtils.hasManualTag(rule)) {
-          allTests.add(rule.getLabel());
+      for (RuleScan scan : scans) {
+        for (int i = 0; i < scan.labels.size(); i++) {
+          createInputFileMaybe(scan.labels.get(i), scan.locations.get(i));
+        }
+        allTests.addAll(scan.tests);
+      }
+      for (RuleCheck check : checks) {
+        addEvents(check.eventHandler.getEvents());
+        if (check.eventHandler.hasErrors()) {
+          setContainsErrors();
         }
       }
       Collections.sort(allTests);
@@ -1260,6 +1325,92 @@ public class Package {
       return this;
     }
 
+    /** The labels and tests found by scanning a contiguous range of the rules of a package. */
+    private static final class RuleScan implements Runnable {
+      private final List<Rule> rules;
+      // Labels of this package mentioned in the rules, and the locations that mention them.
+      private final List<Label> labels = new ArrayList<>();
+      private final List<Location> locations = new ArrayList<>();
+      private final List<Label> tests = new ArrayList<>();
+
+      private RuleScan(List<Rule> rules) {
+        this.rules = rules;
+      }
+
+      @Override
+      public void run() {
+        for (final Rule rule : rules) {
+          final PackageIdentifier packageId = rule.getLabel().getPackageIdentifier();
+          AggregatingAttributeMapper.of(rule).visitLabels(new AcceptsLabelAttribute() {
+            @Override
+            public void acceptLabelAttribute(Label label, Attribute attribute) {
+              if (label != null && label.getPackageIdentifier().equals(packageId)) {
+                labels.add(label);
+                locations.add(rule.getAttributeLocation(attribute.getName()));
+              }
+            }
+          });
+          if (TargetUtils.isTestRule(rule) && !TargetUtils.hasManualTag(rule)) {
+            tests.add(rule.getLabel());
+          }
+        }
+      }
+    }
+
+    /** The events of the deferred checks of a contiguous range of the rules of a package. */
+    private static final class RuleCheck implements Runnable {
+      private final List<Rule> rules;
+      private final StoredEventHandler eventHandler = new StoredEventHandler();
+
+      private RuleCheck(List<Rule> rules) {
+        this.rules = rules;
+      }
+
+      @Override
+      public void run() {
+        for (Rule rule : rules) {
+          RuleClass.checkRule(rule, eventHandler);
+        }
+      }
+    }
+
+    /**
+     * Splits {@code rules} into the chunks handled by each task: several if there are enough of
+     * them for running the tasks on {@link #postProcessingExecutor} to be worthwhile.
+     */
+    private List<List<Rule>> partition(List<Rule> rules) {
+      if (postProcessingExecutor == null || rules.size() < 2 * RULES_PER_SCAN) {
+        return ImmutableList.of(rules);
+      }
+      return Lists.partition(rules, RULES_PER_SCAN);
+    }
+
+    /**
+     * Runs {@code tasks} on {@link #postProcessingExecutor} if there are several of them, or on
+     * this thread otherwise, and returns once all of them are done.
+     */
+    private void runAll(Iterable<? extends Runnable> tasks) {
+      if (postProcessingExecutor == null || Iterables.size(tasks) < 2) {
+        for (Runnable task : tasks) {
+          task.run();
+        }
+        return;
+      }
+      List<Future<?>> futures = new ArrayList<>();
+      for (Runnable task : tasks) {
+        futures.add(postProcessingExecutor.submit(task));
+      }
+      for (Future<?> future : futures) {
+        try {
+          // The tasks are short and cannot block, so don't bother propagating interrupts here.
+          Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause());
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+    }
+
     /** Intended for use by {@link com.google.devtools.build.lib.skyframe.PackageFunction} only. */
     public Builder buildPartial() {
       if (alreadyBuilt) {
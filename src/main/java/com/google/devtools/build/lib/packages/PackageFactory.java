@@ -33,6 +33,8 @@ import com.google.devtools.build.lib.packages.Globber.BadGlobException;
 import com.google.devtools.build.lib.packages.License.DistributionType;
 import com.google.devtools.build.lib.packages.Preprocessor.AstAfterPreprocessing;
 import com.google.devtools.build.lib.packages.RuleFactory.BuildLangTypedAttributeValuesMap;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkSignature;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkSignature.Param;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkValue;
@@ -70,6 +72,7 @@ import com.google.devtools.build.lib.vfs.UnixGlob;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -284,9 +287,7 @@ public final class PackageFactory {
     @Override
     public Token runAsync(List<String> includes, List<String> excludes, boolean excludeDirs)
         throws BadGlobException {
-      for (String pattern : Iterables.concat(includes, excludes)) {
-        globCache.getGlobAsync(pattern, excludeDirs);
-      }
+      globCache.getGlobsAsync(Iterables.concat(includes, excludes), excludeDirs);
       return new Token(includes, excludes, excludeDirs);
     }
 
@@ -312,6 +313,100 @@ public final class PackageFactory {
     }
   }
 
+  /**
+   * A {@link Globber} that only records the globs requested while prefetching a BUILD file, and
+   * then starts them all with one {@link Globber#runAsync} call per value of excludeDirs. With a
+   * {@link LegacyGlobber}, all patterns then share a single file system traversal, which later
+   * glob() calls reuse through the {@link GlobCache}.
+   */
+  @VisibleForTesting
+  static class PrefetchGlobber implements Globber {
+    private final Globber delegate;
+    // The patterns requested so far, by excludeDirs.
+    private final Map<Boolean, Set<String>> patterns = new TreeMap<>();
+    // The requests themselves, to start them one by one if a batch contains a bad pattern.
+    private final List<Token> requests = new ArrayList<>();
+
+    PrefetchGlobber(Globber delegate) {
+      this.delegate = delegate;
+    }
+
+    private static class Token extends Globber.Token {
+      final List<String> includes;
+      final List<String> excludes;
+      final boolean excludeDirs;
+
+      Token(List<String> includes, List<String> excludes, boolean excludeDirs) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.excludeDirs = excludeDirs;
+      }
+    }
+
+    @Override
+    public Token runAsync(List<String> includes, List<String> excludes, boolean excludeDirs) {
+      Set<String> batch = patterns.get(excludeDirs);
+      if (batch == null) {
+        batch = new LinkedHashSet<>();
+        patterns.put(excludeDirs, batch);
+      }
+      Iterables.addAll(batch, Iterables.concat(includes, excludes));
+      Token token = new Token(includes, excludes, excludeDirs);
+      requests.add(token);
+      return token;
+    }
+
+    /** Starts all globs recorded so far. */
+    void startRecordedGlobs() {
+      for (Map.Entry<Boolean, Set<String>> batch : patterns.entrySet()) {
+        try {
+          delegate.runAsync(
+              new ArrayList<>(batch.getValue()), ImmutableList.<String>of(), batch.getKey());
+        } catch (BadGlobException e) {
+          // No pattern of the batch was started. Start the valid requests by themselves; errors
+          // will appear during the actual evaluation of the package.
+          for (Token request : requests) {
+            if (request.excludeDirs == batch.getKey()) {
+              try {
+                delegate.runAsync(request.includes, request.excludes, request.excludeDirs);
+              } catch (BadGlobException e2) {
+                // Ignored, as above.
+              }
+            }
+          }
+        }
+      }
+      patterns.clear();
+      requests.clear();
+    }
+
+    /**
+     * Only needed if Skylark code calls native.glob() while prefetching, which needs the result
+     * right away.
+     */
+    @Override
+    public List<String> fetch(Globber.Token token) throws IOException, InterruptedException {
+      startRecordedGlobs();
+      Token request = (Token) token;
+      try {
+        return delegate.fetch(
+            delegate.runAsync(request.includes, request.excludes, request.excludeDirs));
+      } catch (BadGlobException e) {
+        throw new IOException(e.getMessage());
+      }
+    }
+
+    @Override
+    public void onInterrupt() {
+      delegate.onInterrupt();
+    }
+
+    @Override
+    public void onCompletion() {
+      delegate.onCompletion();
+    }
+  }
+
   private static final Logger LOG = Logger.getLogger(PackageFactory.class.getName());
 
   private final RuleFactory ruleFactory;
@@ -321,6 +416,8 @@ public final class PackageFactory {
   private Preprocessor.Factory preprocessorFactory = Preprocessor.Factory.NullFactory.INSTANCE;
 
   private final ThreadPoolExecutor threadPool;
+  private final ThreadPoolExecutor postProcessingThreadPool;
+  private boolean parallelPostProcessing = false;
   private Map<String, String> platformSetRegexps;
 
   private final ImmutableList<EnvironmentExtension> environmentExtensions;
@@ -362,6 +459,10 @@ public final class PackageFactory {
         new ThreadFactoryBuilder().setNameFormat("Legacy globber %d").build());
     // Do not consume threads when not in use.
     threadPool.allowCoreThreadTimeOut(true);
+    postProcessingThreadPool = new ThreadPoolExecutor(1, 1, 15L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setNameFormat("Package post-processing %d").build());
+    postProcessingThreadPool.allowCoreThreadTimeOut(true);
     this.environmentExtensions = ImmutableList.copyOf(environmentExtensions);
     this.packageArguments = createPackageArguments();
     this.nativeModule = newNativeModule();
@@ -390,6 +491,24 @@ public final class PackageFactory {
     threadPool.setMaximumPoolSize(globbingThreads);
   }
 
+  /**
+   * Sets the max number of threads to use for the per-rule work done once all rules of a large
+   * package have been created. With one thread, that work is done by the loading thread itself.
+   */
+  public void setPostProcessingThreads(int postProcessingThreads) {
+    parallelPostProcessing = postProcessingThreads > 1;
+    if (parallelPostProcessing) {
+      // Grow the maximum first, since it may never be below the core size.
+      if (postProcessingThreads > postProcessingThreadPool.getMaximumPoolSize()) {
+        postProcessingThreadPool.setMaximumPoolSize(postProcessingThreads);
+        postProcessingThreadPool.setCorePoolSize(postProcessingThreads);
+      } else {
+        postProcessingThreadPool.setCorePoolSize(postProcessingThreads);
+        postProcessingThreadPool.setMaximumPoolSize(postProcessingThreads);
+      }
+    }
+  }
+
 
   /**
    * Returns the immutable, unordered set of names of all the known rule
@@ -1516,7 +1635,9 @@ public final class PackageFactory {
           // set default_visibility once, be reseting the PackageBuilder.defaultVisibilitySet flag.
           .setDefaultVisibilitySet(false)
           .setSkylarkFileDependencies(skylarkFileDependencies)
-          .setWorkspaceName(externalPkg.getWorkspaceName());
+          .setWorkspaceName(externalPkg.getWorkspaceName())
+          .setPostProcessingExecutor(parallelPostProcessing ? postProcessingThreadPool : null)
+          .deferRuleChecks();
 
       Event.replayEventsOn(eventHandler, pastEvents);
 
@@ -1547,8 +1668,13 @@ public final class PackageFactory {
       // as containing errors" is strewn all over this class.  Refactor to use an
       // event sensor--and see if we can simplify the calling code in
       // createPackage().
-      if (!buildFileAST.exec(pkgEnv, eventHandler)) {
-        pkgBuilder.setContainsErrors();
+      Profiler.instance().startTask(ProfilerTask.BUILD_FILE_EVALUATION, packageId.toString());
+      try {
+        if (!buildFileAST.exec(pkgEnv, eventHandler)) {
+          pkgBuilder.setContainsErrors();
+        }
+      } finally {
+        Profiler.instance().completeTask(ProfilerTask.BUILD_FILE_EVALUATION);
       }
     }
 
@@ -1593,7 +1719,9 @@ public final class PackageFactory {
           .setDefaultVisibilitySet(false);
 
       // Stuff that closes over the package context:
-      PackageContext context = new PackageContext(pkgBuilder, globber, NullEventHandler.INSTANCE);
+      PrefetchGlobber prefetchGlobber = new PrefetchGlobber(globber);
+      PackageContext context =
+          new PackageContext(pkgBuilder, prefetchGlobber, NullEventHandler.INSTANCE);
       buildPkgEnv(pkgEnv, context, ruleFactory);
       try {
         pkgEnv.update("glob", newGlobFunction.apply(context, /*async=*/true));
@@ -1604,6 +1732,7 @@ public final class PackageFactory {
         throw new AssertionError(e);
       }
       buildFileAST.exec(pkgEnv, NullEventHandler.INSTANCE);
+      prefetchGlobber.startRecordedGlobs();
     }
   }
 
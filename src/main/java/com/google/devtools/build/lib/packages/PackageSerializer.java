@@ -0,0 +1,824 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventKind;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.Location.LineAndColumn;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.packages.BuildType.Selector;
+import com.google.devtools.build.lib.packages.BuildType.SelectorList;
+import com.google.devtools.build.lib.packages.License.DistributionType;
+import com.google.devtools.build.lib.packages.License.LicenseType;
+import com.google.devtools.build.lib.packages.MakeEnvironment.Binding;
+import com.google.devtools.build.lib.packages.Package.NameConflictException;
+import com.google.devtools.build.lib.packages.RuleFactory.AttributeValuesMap;
+import com.google.devtools.build.lib.syntax.GlobCriteria;
+import com.google.devtools.build.lib.syntax.GlobList;
+import com.google.devtools.build.lib.syntax.Runtime;
+import com.google.devtools.build.lib.syntax.Type;
+import com.google.devtools.build.lib.syntax.Type.ConversionException;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Writes loaded {@link Package}s in a compact, versioned binary format and restores them without
+ * evaluating their BUILD files.
+ *
+ * <p>Only packages without errors or subincludes whose targets are rules of native rule classes,
+ * input files, package groups and environment groups can be written. Rules are restored through
+ * {@link RuleClass#createRule} from the natively typed attribute values the BUILD file specified,
+ * so their output files and default attribute values are computed exactly as on a regular load.
+ * The locations of individual attribute values are not kept; errors about them are reported at the
+ * location of the rule.
+ *
+ * <p>Strings, and therefore labels, are written once per package and referred to by index
+ * afterwards.
+ */
+public final class PackageSerializer {
+
+  private static final int MAGIC = 0x504B4753;
+  private static final int FORMAT_VERSION = 1;
+
+  private static final int TARGET_INPUT_FILE = 0;
+  private static final int TARGET_PACKAGE_GROUP = 1;
+  private static final int TARGET_ENVIRONMENT_GROUP = 2;
+  private static final int TARGET_RULE = 3;
+
+  private static final int VALUE_NULL = 0;
+  private static final int VALUE_NONE = 1;
+  private static final int VALUE_STRING = 2;
+  private static final int VALUE_INTEGER = 3;
+  private static final int VALUE_TRUE = 4;
+  private static final int VALUE_FALSE = 5;
+  private static final int VALUE_LABEL = 6;
+  private static final int VALUE_TRISTATE = 7;
+  private static final int VALUE_LICENSE = 8;
+  private static final int VALUE_DISTRIBUTIONS = 9;
+  private static final int VALUE_LIST = 10;
+  private static final int VALUE_GLOB_LIST = 11;
+  private static final int VALUE_MAP = 12;
+  private static final int VALUE_SELECTOR_LIST = 13;
+
+  private PackageSerializer() {}
+
+  /**
+   * Writes {@code pkg} to {@code out}.
+   *
+   * @throws NotSerializableException if the package cannot be written, in which case {@code out}
+   *     may contain a partial package
+   */
+  public static void serialize(Package pkg, RuleClassProvider ruleClassProvider, OutputStream out)
+      throws IOException {
+    if (pkg.containsErrors()) {
+      throw new NotSerializableException("package " + pkg.getName() + " contains errors");
+    }
+    if (!pkg.getSubincludeLabels().isEmpty()) {
+      throw new NotSerializableException("package " + pkg.getName() + " uses subinclude()");
+    }
+    Writer writer = new Writer(out);
+    writer.out.writeInt(MAGIC);
+    writer.out.writeInt(FORMAT_VERSION);
+    writer.writeString(pkg.getWorkspaceName());
+
+    Map<String, ImmutableList<Binding>> makeVariables = pkg.getMakeEnvironment().getBindings();
+    writer.writeInt(makeVariables.size());
+    for (Map.Entry<String, ImmutableList<Binding>> variable : makeVariables.entrySet()) {
+      writer.writeString(variable.getKey());
+      writer.writeInt(variable.getValue().size());
+      for (Binding binding : variable.getValue()) {
+        writer.writeString(binding.getValue());
+        writer.writeString(binding.getPlatformSetRegexp());
+      }
+    }
+
+    writer.writeLabels(pkg.getDefaultVisibility().getDeclaredLabels());
+    writer.out.writeBoolean(pkg.isDefaultVisibilitySet());
+    writer.out.writeBoolean(pkg.getDefaultTestOnly());
+    writer.writeString(pkg.getDefaultDeprecation());
+    writer.writeString(pkg.isDefaultHdrsCheckSet() ? pkg.getDefaultHdrsCheck() : null);
+    writer.writeStrings(pkg.getDefaultCopts());
+    writer.writeStrings(pkg.getFeatures());
+    writer.writeLicense(pkg.getDefaultLicense());
+    writer.writeDistributions(pkg.getDefaultDistribs());
+    writer.writeLabels(pkg.getDefaultCompatibleWith());
+    writer.writeLabels(pkg.getDefaultRestrictedTo());
+    writer.writeLabels(pkg.getSkylarkFileDependencies());
+
+    writer.writeInt(pkg.getEvents().size());
+    for (Event event : pkg.getEvents()) {
+      writer.writeString(event.getKind().name());
+      writer.writeLocation(event.getLocation());
+      writer.writeString(event.getMessage());
+    }
+
+    // Output files are recreated by their rules. Everything else is written in name order so that
+    // equal packages have equal serializations.
+    Map<String, Target> targets = new TreeMap<>();
+    for (Target target : pkg.getTargets()) {
+      if (!(target instanceof OutputFile)) {
+        targets.put(target.getName(), target);
+      }
+    }
+    writer.writeInt(targets.size());
+    for (Target target : targets.values()) {
+      if (target instanceof InputFile) {
+        writeInputFile(writer, (InputFile) target);
+      } else if (target instanceof PackageGroup) {
+        writePackageGroup(writer, (PackageGroup) target);
+      } else if (target instanceof EnvironmentGroup) {
+        writeEnvironmentGroup(writer, (EnvironmentGroup) target);
+      } else if (target instanceof Rule) {
+        writeRule(writer, (Rule) target, ruleClassProvider);
+      } else {
+        throw new NotSerializableException(target.getTargetKind() + " " + target.getLabel());
+      }
+    }
+    writer.out.flush();
+  }
+
+  private static void writeInputFile(Writer writer, InputFile inputFile) throws IOException {
+    writer.writeInt(TARGET_INPUT_FILE);
+    writer.writeString(inputFile.getName());
+    writer.writeLocation(inputFile.getLocation());
+    writer.out.writeBoolean(inputFile.isVisibilitySpecified());
+    if (inputFile.isVisibilitySpecified()) {
+      writer.writeLabels(inputFile.getVisibility().getDeclaredLabels());
+      writer.writeLicense(inputFile.isLicenseSpecified() ? inputFile.getLicense() : null);
+    }
+  }
+
+  private static void writePackageGroup(Writer writer, PackageGroup group) throws IOException {
+    writer.writeInt(TARGET_PACKAGE_GROUP);
+    writer.writeString(group.getName());
+    writer.writeLocation(group.getLocation());
+    List<String> packages = new ArrayList<>();
+    for (String containedPackage : group.getContainedPackages()) {
+      // PackageSpecification#toString omits the leading "//" that PackageGroup expects and prints
+      // the repository, which is always that of the group.
+      int start = containedPackage.indexOf("//");
+      packages.add(start >= 0 ? containedPackage.substring(start) : "//" + containedPackage);
+    }
+    writer.writeStrings(packages);
+    writer.writeLabels(group.getIncludes());
+  }
+
+  private static void writeEnvironmentGroup(Writer writer, EnvironmentGroup group)
+      throws IOException {
+    writer.writeInt(TARGET_ENVIRONMENT_GROUP);
+    writer.writeString(group.getName());
+    writer.writeLocation(group.getLocation());
+    writer.writeLabels(group.getEnvironments());
+    writer.writeLabels(group.getDefaults());
+  }
+
+  private static void writeRule(Writer writer, Rule rule, RuleClassProvider ruleClassProvider)
+      throws IOException {
+    RuleClass ruleClass = rule.getRuleClassObject();
+    if (ruleClassProvider.getRuleClassMap().get(ruleClass.getName()) != ruleClass) {
+      throw new NotSerializableException("rule class " + ruleClass.getName() + " of "
+          + rule.getLabel() + " is not a native rule class");
+    }
+    // The defaults of "licenses" and "distribs" depend on the licenses() and distribs() calls that
+    // preceded the rule, so they are written even when they were not explicitly specified.
+    List<Attribute> attributes = new ArrayList<>();
+    for (Attribute attr : ruleClass.getAttributes()) {
+      String name = attr.getName();
+      if (!name.equals("name")
+          && (rule.isAttributeValueExplicitlySpecified(attr)
+              || name.equals("licenses") || name.equals("distribs"))) {
+        attributes.add(attr);
+      }
+    }
+    writer.writeInt(TARGET_RULE);
+    writer.writeString(rule.getName());
+    writer.writeLocation(rule.getLocation());
+    writer.writeString(ruleClass.getName());
+    writer.writeInt(attributes.size());
+    for (Attribute attr : attributes) {
+      writer.writeString(attr.getName());
+      writer.out.writeBoolean(rule.isAttributeValueExplicitlySpecified(attr));
+      writer.writeValue(rule.getAttributeContainer().getAttr(attr));
+    }
+  }
+
+  /**
+   * Reads a package written by {@link #serialize} into a new builder, on which the caller is
+   * expected to call {@link Package.Builder#buildPartial} and {@link Package.Builder#finishBuild}.
+   *
+   * @throws IOException if the input is not a package written by {@link #serialize} with the same
+   *     rule classes
+   */
+  public static Package.LegacyBuilder deserialize(InputStream in, PackageIdentifier packageId,
+      Path buildFile, RuleClassProvider ruleClassProvider)
+      throws IOException, InterruptedException {
+    Reader reader = new Reader(in);
+    if (reader.in.readInt() != MAGIC) {
+      throw new IOException("Not a serialized package");
+    }
+    int formatVersion = reader.in.readInt();
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IOException("Unsupported serialized package version " + formatVersion);
+    }
+    Package.LegacyBuilder pkgBuilder =
+        new Package.LegacyBuilder(packageId, ruleClassProvider.getRunfilesPrefix());
+    try {
+      readPackage(reader, pkgBuilder, buildFile, ruleClassProvider);
+    } catch (LabelSyntaxException | NameConflictException | ConversionException
+        | IllegalArgumentException e) {
+      throw new IOException("Corrupt serialized package " + packageId, e);
+    }
+    return pkgBuilder;
+  }
+
+  private static void readPackage(Reader reader, Package.LegacyBuilder pkgBuilder, Path buildFile,
+      RuleClassProvider ruleClassProvider)
+      throws IOException, InterruptedException, LabelSyntaxException, NameConflictException,
+          ConversionException {
+    pkgBuilder.setFilename(buildFile);
+    Label buildFileLabel = pkgBuilder.getBuildFileLabel();
+    pkgBuilder.setWorkspaceName(reader.readString());
+
+    MakeEnvironment.Builder makeEnv = new MakeEnvironment.Builder();
+    int numMakeVariables = reader.readInt();
+    for (int i = 0; i < numMakeVariables; i++) {
+      String name = reader.readString();
+      int numBindings = reader.readInt();
+      List<String[]> bindings = new ArrayList<>(numBindings);
+      for (int j = 0; j < numBindings; j++) {
+        bindings.add(new String[] {reader.readString(), reader.readString()});
+      }
+      // Bindings are written most recent first, and update() prepends.
+      for (String[] binding : Lists.reverse(bindings)) {
+        makeEnv.update(name, binding[0], binding[1]);
+      }
+    }
+    pkgBuilder.setMakeEnv(makeEnv);
+
+    pkgBuilder.setDefaultVisibility(
+        PackageFactory.getVisibility(buildFileLabel, reader.readLabels()));
+    pkgBuilder.setDefaultVisibilitySet(reader.in.readBoolean());
+    pkgBuilder.setDefaultTestonly(reader.in.readBoolean());
+    String deprecation = reader.readString();
+    if (deprecation != null) {
+      pkgBuilder.setDefaultDeprecation(deprecation);
+    }
+    String hdrsCheck = reader.readString();
+    if (hdrsCheck != null) {
+      pkgBuilder.setDefaultHdrsCheck(hdrsCheck);
+    }
+    pkgBuilder.setDefaultCopts(reader.readStrings());
+    pkgBuilder.addFeatures(reader.readStrings());
+    pkgBuilder.setDefaultLicense(reader.readLicense());
+    pkgBuilder.setDefaultDistribs(reader.readDistributions());
+    Location buildFileLocation = Location.fromFile(buildFile);
+    List<Label> compatibleWith = reader.readLabels();
+    if (!compatibleWith.isEmpty()) {
+      pkgBuilder.setDefaultCompatibleWith(
+          compatibleWith, Package.DEFAULT_COMPATIBLE_WITH_ATTRIBUTE, buildFileLocation);
+    }
+    List<Label> restrictedTo = reader.readLabels();
+    if (!restrictedTo.isEmpty()) {
+      pkgBuilder.setDefaultRestrictedTo(
+          restrictedTo, Package.DEFAULT_RESTRICTED_TO_ATTRIBUTE, buildFileLocation);
+    }
+    pkgBuilder.setSkylarkFileDependencies(ImmutableList.copyOf(reader.readLabels()));
+
+    int numEvents = reader.readInt();
+    for (int i = 0; i < numEvents; i++) {
+      EventKind kind = EventKind.valueOf(reader.readString());
+      pkgBuilder.addEvent(Event.of(kind, reader.readLocation(), reader.readString()));
+    }
+
+    // Anything reported while recreating the targets was already reported, and recorded above,
+    // when the package was first loaded. An error means that the rule classes have changed.
+    StoredEventHandler eventHandler = new StoredEventHandler();
+    int numTargets = reader.readInt();
+    for (int i = 0; i < numTargets; i++) {
+      int kind = reader.readInt();
+      String name = reader.readString();
+      Location location = reader.readLocation();
+      switch (kind) {
+        case TARGET_INPUT_FILE:
+          readInputFile(reader, pkgBuilder, name, location);
+          break;
+        case TARGET_PACKAGE_GROUP:
+          pkgBuilder.addPackageGroup(
+              name, reader.readStrings(), reader.readLabels(), eventHandler, location);
+          break;
+        case TARGET_ENVIRONMENT_GROUP:
+          pkgBuilder.addEnvironmentGroup(
+              name, reader.readLabels(), reader.readLabels(), eventHandler, location);
+          break;
+        case TARGET_RULE:
+          readRule(reader, pkgBuilder, name, location, ruleClassProvider, eventHandler);
+          break;
+        default:
+          throw new IOException("Corrupt serialized target kind " + kind);
+      }
+    }
+    if (eventHandler.hasErrors() || pkgBuilder.containsErrors()) {
+      throw new IOException("Serialized package " + pkgBuilder.getPackageIdentifier()
+          + " could not be restored without errors");
+    }
+  }
+
+  private static void readInputFile(Reader reader, Package.Builder pkgBuilder, String name,
+      Location location) throws IOException, LabelSyntaxException, NameConflictException {
+    InputFile inputFile = pkgBuilder.createInputFile(name, location);
+    if (reader.in.readBoolean()) {
+      RuleVisibility visibility =
+          PackageFactory.getVisibility(pkgBuilder.createLabel(name), reader.readLabels());
+      License license = reader.readLicense();
+      pkgBuilder.setVisibilityAndLicense(inputFile, visibility, license);
+    }
+  }
+
+  private static void readRule(Reader reader, Package.Builder pkgBuilder, String name,
+      Location location, RuleClassProvider ruleClassProvider, StoredEventHandler eventHandler)
+      throws IOException, InterruptedException, LabelSyntaxException, NameConflictException,
+          ConversionException {
+    String ruleClassName = reader.readString();
+    RuleClass ruleClass = ruleClassProvider.getRuleClassMap().get(ruleClassName);
+    if (ruleClass == null) {
+      throw new IOException("Unknown rule class " + ruleClassName);
+    }
+    Label label = pkgBuilder.createLabel(name);
+    int numAttributes = reader.readInt();
+    Map<String, Object> values = new LinkedHashMap<>();
+    Set<String> explicitAttributes = new HashSet<>();
+    for (int i = 0; i < numAttributes; i++) {
+      String attrName = reader.readString();
+      if (reader.in.readBoolean()) {
+        explicitAttributes.add(attrName);
+      }
+      Attribute attr = ruleClass.getAttributeByNameMaybe(attrName);
+      if (attr == null) {
+        throw new IOException("Unknown attribute " + attrName + " of rule class " + ruleClassName);
+      }
+      values.put(attrName, reader.readAttributeValue(attr, label));
+    }
+    Rule rule = ruleClass.createRule(pkgBuilder, label,
+        new NativeAttributeValuesMap(values, explicitAttributes), eventHandler, /*ast=*/null,
+        location, new AttributeContainer(ruleClass));
+    pkgBuilder.addRule(rule);
+  }
+
+  /** An {@link AttributeValuesMap} of natively typed values, some of them not explicit. */
+  private static final class NativeAttributeValuesMap implements AttributeValuesMap {
+    private final Map<String, Object> values;
+    private final Set<String> explicitAttributes;
+
+    private NativeAttributeValuesMap(Map<String, Object> values, Set<String> explicitAttributes) {
+      this.values = values;
+      this.explicitAttributes = explicitAttributes;
+    }
+
+    @Override
+    public boolean valuesAreBuildLanguageTyped() {
+      return false;
+    }
+
+    @Override
+    public Iterable<String> getAttributeNames() {
+      return values.keySet();
+    }
+
+    @Override
+    public Object getAttributeValue(String attributeName) {
+      return values.get(attributeName);
+    }
+
+    @Override
+    public boolean isAttributeExplicitlySpecified(String attributeName) {
+      return explicitAttributes.contains(attributeName);
+    }
+  }
+
+  private static final class Writer {
+    private final DataOutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    private Writer(OutputStream out) {
+      this.out = new DataOutputStream(out);
+    }
+
+    /** Writes a non-negative int in as few bytes as possible. */
+    private void writeInt(int value) throws IOException {
+      while ((value & ~0x7F) != 0) {
+        out.writeByte((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.writeByte(value);
+    }
+
+    /**
+     * Writes 0 for null, 1 followed by the string for its first occurrence, and two plus its index
+     * for later occurrences.
+     */
+    private void writeString(@Nullable String value) throws IOException {
+      if (value == null) {
+        writeInt(0);
+        return;
+      }
+      Integer index = strings.get(value);
+      if (index != null) {
+        writeInt(index + 2);
+        return;
+      }
+      strings.put(value, strings.size());
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeInt(1);
+      writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    private void writeStrings(Collection<String> values) throws IOException {
+      writeInt(values.size());
+      for (String value : values) {
+        writeString(value);
+      }
+    }
+
+    private void writeLabels(Collection<Label> labels) throws IOException {
+      writeInt(labels.size());
+      for (Label label : labels) {
+        writeString(label.toString());
+      }
+    }
+
+    private void writeLocation(@Nullable Location location) throws IOException {
+      out.writeBoolean(location != null);
+      if (location == null) {
+        return;
+      }
+      PathFragment path = location.getPath();
+      writeString(path == null ? null : path.getPathString());
+      writeInt(location.getStartOffset());
+      writeInt(location.getEndOffset());
+      LineAndColumn lineAndColumn = location.getStartLineAndColumn();
+      out.writeBoolean(lineAndColumn != null);
+      if (lineAndColumn != null) {
+        writeInt(lineAndColumn.getLine());
+        writeInt(lineAndColumn.getColumn());
+      }
+    }
+
+    private void writeLicense(@Nullable License license) throws IOException {
+      out.writeBoolean(license != null);
+      if (license == null) {
+        return;
+      }
+      writeInt(license.getLicenseTypes().size());
+      for (LicenseType type : license.getLicenseTypes()) {
+        writeString(type.name());
+      }
+      writeLabels(license.getExceptions());
+    }
+
+    private void writeDistributions(Set<DistributionType> distributions) throws IOException {
+      writeInt(distributions.size());
+      for (DistributionType distribution : distributions) {
+        writeString(distribution.name());
+      }
+    }
+
+    private void writeValue(@Nullable Object value) throws IOException {
+      if (value == null) {
+        writeInt(VALUE_NULL);
+      } else if (value == Runtime.NONE) {
+        writeInt(VALUE_NONE);
+      } else if (value instanceof String) {
+        writeInt(VALUE_STRING);
+        writeString((String) value);
+      } else if (value instanceof Integer) {
+        writeInt(VALUE_INTEGER);
+        out.writeInt((Integer) value);
+      } else if (value instanceof Boolean) {
+        writeInt((Boolean) value ? VALUE_TRUE : VALUE_FALSE);
+      } else if (value instanceof Label) {
+        writeInt(VALUE_LABEL);
+        writeString(value.toString());
+      } else if (value instanceof TriState) {
+        writeInt(VALUE_TRISTATE);
+        writeString(((TriState) value).name());
+      } else if (value instanceof License) {
+        writeInt(VALUE_LICENSE);
+        writeLicense((License) value);
+      } else if (value instanceof GlobList<?>) {
+        GlobList<?> globList = (GlobList<?>) value;
+        writeInt(VALUE_GLOB_LIST);
+        writeInt(globList.getCriteria().size());
+        for (GlobCriteria criteria : globList.getCriteria()) {
+          out.writeBoolean(criteria.isGlob());
+          writeStrings(criteria.getIncludePatterns());
+          writeStrings(criteria.getExcludePatterns());
+        }
+        writeElements(globList);
+      } else if (value instanceof List<?>) {
+        writeInt(VALUE_LIST);
+        writeElements((List<?>) value);
+      } else if (value instanceof Map<?, ?>) {
+        Map<?, ?> map = (Map<?, ?>) value;
+        writeInt(VALUE_MAP);
+        writeInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+          writeValue(entry.getKey());
+          writeValue(entry.getValue());
+        }
+      } else if (value instanceof Set<?> && isDistributionSet((Set<?>) value)) {
+        @SuppressWarnings("unchecked")
+        Set<DistributionType> distributions = (Set<DistributionType>) value;
+        writeInt(VALUE_DISTRIBUTIONS);
+        writeDistributions(distributions);
+      } else if (value instanceof SelectorList<?>) {
+        writeSelectorList((SelectorList<?>) value);
+      } else {
+        throw new NotSerializableException(value.getClass().getName());
+      }
+    }
+
+    private void writeElements(List<?> elements) throws IOException {
+      writeInt(elements.size());
+      for (Object element : elements) {
+        writeValue(element);
+      }
+    }
+
+    private void writeSelectorList(SelectorList<?> selectorList) throws IOException {
+      Type<?> type = selectorList.getOriginalType();
+      // Selectors are restored by converting their values again, which these types do not support
+      // for natively typed values.
+      if (type == BuildType.LICENSE || type == BuildType.DISTRIBUTIONS
+          || type == BuildType.FILESET_ENTRY_LIST) {
+        throw new NotSerializableException("select() of type " + type);
+      }
+      writeInt(VALUE_SELECTOR_LIST);
+      writeInt(selectorList.getSelectors().size());
+      for (Selector<?> selector : selectorList.getSelectors()) {
+        writeString(selector.getNoMatchError());
+        writeInt(selector.getEntries().size());
+        for (Map.Entry<Label, ?> entry : selector.getEntries().entrySet()) {
+          writeString(entry.getKey().toString());
+          writeValue(selector.isValueSet(entry.getKey()) ? entry.getValue() : Runtime.NONE);
+        }
+      }
+    }
+
+    private static boolean isDistributionSet(Set<?> set) {
+      for (Object element : set) {
+        if (!(element instanceof DistributionType)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static final class Reader {
+    private final DataInputStream in;
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Label> labels = new HashMap<>();
+
+    private Reader(InputStream in) {
+      this.in = new DataInputStream(in);
+    }
+
+    private int readInt() throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        int b = in.readUnsignedByte();
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          if (value < 0) {
+            break;
+          }
+          return value;
+        }
+      }
+      throw new IOException("Corrupt serialized package: malformed integer");
+    }
+
+    @Nullable
+    private String readString() throws IOException {
+      int index = readInt();
+      if (index == 0) {
+        return null;
+      } else if (index == 1) {
+        byte[] bytes = new byte[readInt()];
+        in.readFully(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        strings.add(value);
+        return value;
+      } else if (index - 2 < strings.size()) {
+        return strings.get(index - 2);
+      }
+      throw new IOException("Corrupt serialized package: string index " + index);
+    }
+
+    private String readNonNullString() throws IOException {
+      String value = readString();
+      if (value == null) {
+        throw new IOException("Corrupt serialized package: unexpected null");
+      }
+      return value;
+    }
+
+    private List<String> readStrings() throws IOException {
+      int size = readInt();
+      List<String> values = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        values.add(readNonNullString());
+      }
+      return values;
+    }
+
+    private Label readLabel() throws IOException {
+      String name = readNonNullString();
+      Label label = labels.get(name);
+      if (label == null) {
+        try {
+          label = Label.parseAbsolute(name);
+        } catch (LabelSyntaxException e) {
+          throw new IOException("Corrupt serialized package: label " + name, e);
+        }
+        labels.put(name, label);
+      }
+      return label;
+    }
+
+    private List<Label> readLabels() throws IOException {
+      int size = readInt();
+      List<Label> values = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        values.add(readLabel());
+      }
+      return values;
+    }
+
+    @Nullable
+    private Location readLocation() throws IOException {
+      if (!in.readBoolean()) {
+        return null;
+      }
+      String path = readString();
+      int startOffset = readInt();
+      int endOffset = readInt();
+      LineAndColumn lineAndColumn =
+          in.readBoolean() ? new LineAndColumn(readInt(), readInt()) : null;
+      return Location.fromPathAndStartColumn(
+          path == null ? null : new PathFragment(path), startOffset, endOffset, lineAndColumn);
+    }
+
+    @Nullable
+    private License readLicense() throws IOException {
+      if (!in.readBoolean()) {
+        return null;
+      }
+      int numTypes = readInt();
+      List<LicenseType> types = new ArrayList<>(numTypes);
+      for (int i = 0; i < numTypes; i++) {
+        types.add(LicenseType.valueOf(readNonNullString()));
+      }
+      return License.of(types, readLabels());
+    }
+
+    private Set<DistributionType> readDistributions() throws IOException {
+      int size = readInt();
+      Set<DistributionType> distributions = EnumSet.noneOf(DistributionType.class);
+      for (int i = 0; i < size; i++) {
+        distributions.add(DistributionType.valueOf(readNonNullString()));
+      }
+      return distributions;
+    }
+
+    /**
+     * Reads the value of {@code attr}. The attribute's type is needed to restore selects; all
+     * other values carry their own type.
+     */
+    private Object readAttributeValue(Attribute attr, Label ruleLabel)
+        throws IOException, ConversionException {
+      int tag = readInt();
+      if (tag == VALUE_SELECTOR_LIST) {
+        return readSelectorList(attr.getType(), attr.getName(), ruleLabel);
+      }
+      return readValue(tag);
+    }
+
+    private Object readValue() throws IOException {
+      return readValue(readInt());
+    }
+
+    private Object readValue(int tag) throws IOException {
+      switch (tag) {
+        case VALUE_NULL:
+          return null;
+        case VALUE_NONE:
+          return Runtime.NONE;
+        case VALUE_STRING:
+          return readNonNullString();
+        case VALUE_INTEGER:
+          return in.readInt();
+        case VALUE_TRUE:
+          return true;
+        case VALUE_FALSE:
+          return false;
+        case VALUE_LABEL:
+          return readLabel();
+        case VALUE_TRISTATE:
+          return TriState.valueOf(readNonNullString());
+        case VALUE_LICENSE:
+          return readLicense();
+        case VALUE_DISTRIBUTIONS:
+          return readDistributions();
+        case VALUE_LIST:
+          return readElements();
+        case VALUE_GLOB_LIST:
+          int numCriteria = readInt();
+          List<GlobCriteria> criteria = new ArrayList<>(numCriteria);
+          for (int i = 0; i < numCriteria; i++) {
+            boolean glob = in.readBoolean();
+            ImmutableList<String> includes = ImmutableList.copyOf(readStrings());
+            ImmutableList<String> excludes = ImmutableList.copyOf(readStrings());
+            criteria.add(glob
+                ? GlobCriteria.fromGlobCall(includes, excludes)
+                : GlobCriteria.fromList(includes));
+          }
+          return new GlobList<>(criteria, readElements());
+        case VALUE_MAP:
+          int size = readInt();
+          Map<Object, Object> map = new LinkedHashMap<>();
+          for (int i = 0; i < size; i++) {
+            map.put(readValue(), readValue());
+          }
+          return map;
+        default:
+          throw new IOException("Corrupt serialized package: value tag " + tag);
+      }
+    }
+
+    private List<Object> readElements() throws IOException {
+      int size = readInt();
+      List<Object> elements = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        elements.add(readValue());
+      }
+      return elements;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private SelectorList<?> readSelectorList(Type<?> type, String what, Label ruleLabel)
+        throws IOException, ConversionException {
+      int numSelectors = readInt();
+      List<Selector<?>> selectors = new ArrayList<>(numSelectors);
+      for (int i = 0; i < numSelectors; i++) {
+        String noMatchError = readNonNullString();
+        int numEntries = readInt();
+        ImmutableMap.Builder<Label, Object> entries = ImmutableMap.builder();
+        for (int j = 0; j < numEntries; j++) {
+          entries.put(readLabel(), readValue());
+        }
+        selectors.add(new Selector(entries.build(), what, ruleLabel, type, noMatchError));
+      }
+      return new SelectorList(selectors, type);
+    }
+  }
+}
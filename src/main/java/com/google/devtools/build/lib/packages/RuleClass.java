@@ -1330,7 +1330,8 @@ public final class RuleClass {
    * {@link RuleClass} and the values in {@code attributeValues}.
    *
    * <p>This performs several validity checks. Invalid output file labels result in a thrown {@link
-   * LabelSyntaxException}. All other errors are reported on {@code eventHandler}.
+   * LabelSyntaxException}. All other errors are reported on {@code eventHandler}, except those of
+   * {@link #checkRule} if {@code pkgBuilder} defers them.
    */
   Rule createRule(
       Package.Builder pkgBuilder,
@@ -1343,19 +1344,32 @@ public final class RuleClass {
       throws LabelSyntaxException, InterruptedException {
     Rule rule = pkgBuilder.createRule(ruleLabel, this, location, attributeContainer);
     populateRuleAttributeValues(rule, pkgBuilder, attributeValues, eventHandler);
-    checkAspectAllowedValues(rule, eventHandler);
     rule.populateOutputFiles(eventHandler, pkgBuilder);
     if (ast != null) {
       populateAttributeLocations(rule, ast);
     }
-    checkForDuplicateLabels(rule, eventHandler);
+    // The default license may still change, so this one is not deferred.
     checkThirdPartyRuleHasLicense(rule, pkgBuilder, eventHandler);
-    checkForValidSizeAndTimeoutValues(rule, eventHandler);
-    rule.checkForNullLabels();
     rule.checkValidityPredicate(eventHandler);
+    if (!pkgBuilder.deferChecks(rule)) {
+      checkRule(rule, eventHandler);
+    }
     return rule;
   }
 
+  /**
+   * Performs the validity checks of a created {@link Rule} that only depend on the rule itself.
+   * They only read the rule, so they may run on another thread once the rule is complete.
+   *
+   * <p>Errors are reported on {@code eventHandler}.
+   */
+  static void checkRule(Rule rule, EventHandler eventHandler) {
+    checkAspectAllowedValues(rule, eventHandler);
+    checkForDuplicateLabels(rule, eventHandler);
+    checkForValidSizeAndTimeoutValues(rule, eventHandler);
+    rule.checkForNullLabels();
+  }
+
   /**
    * Populates the attributes table of the new {@link Rule} with the values in the {@code
    * attributeValues} map and with default values provided by this {@link RuleClass} and the {@code
@@ -111,6 +111,33 @@ public class PackageCacheOptions extends OptionsBase {
       help = "Number of threads to use for glob evaluation.")
   public int globbingThreads;
 
+  @Option(name = "experimental_package_postprocessing_threads",
+      defaultValue = "1",
+      category = "undocumented",
+      help = "Number of threads to use for the per-rule work done once a package with thousands "
+          + "of rules has been evaluated, such as finding the input files its rules refer to.")
+  public int postProcessingThreads;
+
+  @Option(name = "experimental_skylark_compilation_threshold",
+      defaultValue = "-1",
+      category = "undocumented",
+      help = "If positive, Skylark functions are interpreted this many times, and then compiled "
+          + "to byte code if those calls ran at least 100 loop or comprehension iterations on "
+          + "average; the compiled versions of functions that loop less are no faster. 0 compiles "
+          + "every function when it is defined. Functions that cannot be compiled stay "
+          + "interpreted, which is recorded in the profile. A negative value disables the "
+          + "compiler. It is disabled by default since compiling a function takes milliseconds, "
+          + "which only pays off for functions called thousands of times.")
+  public int skylarkCompilationThreshold;
+
+  @Option(name = "experimental_parsed_file_cache_size_mb",
+      defaultValue = "0",
+      category = "undocumented",
+      help = "The total size in megabytes of the BUILD and Skylark files whose syntax trees are "
+          + "kept in memory, so that they are not parsed again while their contents do not change. "
+          + "Zero disables the cache.")
+  public int parsedFileCacheSizeMb;
+
   @Option(name = "min_pkg_count_for_ct_node_eviction",
       defaultValue = "3700",
       // Why is the default value 3700? As of December 2013, a medium target loads about this many
@@ -144,6 +171,31 @@ public class PackageCacheOptions extends OptionsBase {
             + "this flag to false to see the effect on incremental build times.")
   public boolean checkOutputFiles;
 
+  @Option(name = "experimental_keep_syscall_cache",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "Keep the results of the stat and readdir calls made while globbing across builds, "
+          + "dropping only those invalidated by the changes reported by the file system watcher. "
+          + "Only has an effect with --watchfs. Do not use it if the source tree contains "
+          + "symbolic links, since changes to their targets are not reported under the links.")
+  public boolean keepSyscallCache;
+
+  @Option(name = "experimental_persistent_package_cache",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "Store loaded packages in the output base, so that a new server can load a package "
+          + "whose BUILD file, Skylark imports and glob results did not change without evaluating "
+          + "it. Packages that use a prelude, preprocessing, subincludes or Skylark rules are not "
+          + "cached.")
+  public boolean persistentPackageCache;
+
+  @Option(name = "experimental_persistent_package_cache_size_mb",
+      defaultValue = "1024",
+      category = "undocumented",
+      help = "The size in megabytes above which the least recently used entries of the persistent "
+          + "package cache are deleted.")
+  public int persistentPackageCacheSizeMb;
+
   /**
    * A converter from strings containing comma-separated names of packages to lists of strings.
    */
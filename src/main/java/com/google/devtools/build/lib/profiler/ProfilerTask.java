@@ -90,6 +90,8 @@ public enum ProfilerTask {
   SKYLARK_USER_FN("Skylark user function call", -1, 0xCC0033, 0),
   SKYLARK_BUILTIN_FN("Skylark builtin function call", -1, 0x990033, 0),
   SKYLARK_USER_COMPILED_FN("Skylark compiled user function call", -1, 0xCC0033, 0),
+  BUILD_FILE_EVALUATION("BUILD file evaluation", -1, 0x6699FF, 30),
+  SKYLARK_COMPILER_FALLBACK("Skylark function not compiled", -1, 0xCC3366, 0),
   UNKNOWN("Unknown event", -1, 0x339966, 0);
 
   // Size of the ProfilerTask value space.
@@ -0,0 +1,177 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.LruDirectoryStore;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link ConcurrentMap} that stores its entries as files in a local directory, and evicts the
+ * least recently used entries once their total size exceeds a limit. Keys must be valid file names.
+ *
+ * <p>The directory may be shared by several servers, for instance for different workspaces; see
+ * {@link LruDirectoryStore} for how the limit is enforced then.
+ *
+ * <p>Entries cannot be enumerated or searched by value, since that would read the whole cache;
+ * those methods throw {@link UnsupportedOperationException}. {@link #put} does not return the
+ * previous value. Maps are only equal if they are the same instance.
+ */
+@ThreadSafe
+final class DiskCacheMap implements ConcurrentMap<String, byte[]> {
+  private final LruDirectoryStore store;
+
+  DiskCacheMap(Path root, long maxSizeBytes) throws IOException {
+    FileSystemUtils.createDirectoryAndParents(root);
+    store = new LruDirectoryStore(root, maxSizeBytes);
+    store.loadEntries();
+  }
+
+  @Override
+  public byte[] get(Object key) {
+    if (!(key instanceof String)) {
+      return null;
+    }
+    byte[] data;
+    try {
+      data = FileSystemUtils.readContent(store.getEntryFile((String) key));
+    } catch (IOException e) {
+      // Missing, or evicted while reading.
+      return null;
+    }
+    store.markUsed((String) key, data.length);
+    return data;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return key instanceof String && store.getEntryFile((String) key).exists();
+  }
+
+  @Override
+  public byte[] put(String key, byte[] value) {
+    Path temp = null;
+    try {
+      temp = store.createTempFile(key);
+      FileSystemUtils.writeContent(temp, value);
+      store.commit(temp, key, value.length);
+    } catch (IOException e) {
+      // Like any cache, this one may drop entries.
+      if (temp != null) {
+        store.discard(temp);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void putAll(Map<? extends String, ? extends byte[]> entries) {
+    for (Map.Entry<? extends String, ? extends byte[]> entry : entries.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public byte[] putIfAbsent(String key, byte[] value) {
+    byte[] previous = get(key);
+    if (previous == null) {
+      put(key, value);
+    }
+    return previous;
+  }
+
+  @Override
+  public byte[] remove(Object key) {
+    byte[] previous = get(key);
+    if (previous != null) {
+      store.delete((String) key);
+    }
+    return previous;
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    if (value instanceof byte[] && Arrays.equals(get(key), (byte[]) value)) {
+      store.delete((String) key);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean replace(String key, byte[] oldValue, byte[] newValue) {
+    if (Arrays.equals(get(key), oldValue)) {
+      put(key, newValue);
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public byte[] replace(String key, byte[] value) {
+    byte[] previous = get(key);
+    if (previous != null) {
+      put(key, value);
+    }
+    return previous;
+  }
+
+  @Override
+  public int size() {
+    return store.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  @Override
+  public boolean containsValue(Object value) {
+    throw new UnsupportedOperationException("A disk cache can only be searched by key");
+  }
+
+  @Override
+  public void clear() {
+    throw new UnsupportedOperationException("A disk cache cannot be cleared");
+  }
+
+  @Override
+  public Set<String> keySet() {
+    throw new UnsupportedOperationException("The keys of a disk cache cannot be enumerated");
+  }
+
+  @Override
+  public Collection<byte[]> values() {
+    throw new UnsupportedOperationException("The values of a disk cache cannot be enumerated");
+  }
+
+  @Override
+  public Set<Map.Entry<String, byte[]>> entrySet() {
+    throw new UnsupportedOperationException("The entries of a disk cache cannot be enumerated");
+  }
+
+  @Override
+  public String toString() {
+    return "DiskCacheMap(" + store.getDirectory() + ", " + size() + " entries)";
+  }
+}
@@ -30,7 +30,7 @@ final class HazelcastCacheFactory {
 
   private static final String CACHE_NAME = "hazelcast-build-cache";
 
-  static ConcurrentMap<String, byte[]> create(RemoteOptions options) {
+  static HazelcastCacheMap create(RemoteOptions options) {
     HazelcastInstance instance;
     if (options.hazelcastNode != null) {
       // If --hazelast_node is then create a client instance.
@@ -43,6 +43,6 @@ final class HazelcastCacheFactory {
       // -Dhazelcast.config=some-hazelcast.xml for configuration.
       instance = Hazelcast.newHazelcastInstance();
     }
-    return instance.getMap(CACHE_NAME);
+    return new HazelcastCacheMap(instance, instance.<String, byte[]>getMap(CACHE_NAME));
   }
 }
@@ -0,0 +1,66 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.collect.ForwardingConcurrentMap;
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.query.Predicates;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A distributed map in Hazelcast, together with the instance that connects to it.
+ */
+@ThreadSafe
+final class HazelcastCacheMap extends ForwardingConcurrentMap<String, byte[]>
+    implements MissingKeysFinder {
+  // The name under which Hazelcast queries match on the key of an entry.
+  private static final String KEY_ATTRIBUTE = "__key";
+
+  private final HazelcastInstance instance;
+  private final IMap<String, byte[]> map;
+
+  HazelcastCacheMap(HazelcastInstance instance, IMap<String, byte[]> map) {
+    this.instance = instance;
+    this.map = map;
+  }
+
+  @Override
+  protected ConcurrentMap<String, byte[]> delegate() {
+    return map;
+  }
+
+  /**
+   * Looks up all keys with a single query, which returns the keys present without their values.
+   */
+  @Override
+  public Set<String> findMissingKeys(Collection<String> keys) {
+    Set<String> present = map.keySet(Predicates.in(KEY_ATTRIBUTE, keys.toArray(new String[0])));
+    Set<String> missing = Sets.newHashSet(keys);
+    missing.removeAll(present);
+    return missing;
+  }
+
+  /**
+   * Disconnects from Hazelcast. The map must not be used afterwards.
+   */
+  void shutdown() {
+    instance.shutdown();
+  }
+}
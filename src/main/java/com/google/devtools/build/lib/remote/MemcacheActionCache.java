@@ -14,22 +14,49 @@
 
 package com.google.devtools.build.lib.remote;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.remote.RemoteProtocol.CacheEntry;
 import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
-import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.protobuf.ByteString;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A RemoteActionCache implementation that uses memcache as a distributed storage
@@ -43,8 +70,26 @@ final class MemcacheActionCache implements RemoteActionCache {
   private final Path execRoot;
   private final ConcurrentMap<String, byte[]> cache;
   private static final int MAX_MEMORY_KBYTES = 512 * 1024;
+  // Files larger than this are stored as a list of chunks of this size, which keeps the memory
+  // needed for a transfer bounded and stays below the default memcached item size limit.
+  @VisibleForTesting
+  static final int CHUNK_SIZE_BYTES = 512 * 1024;
+  private static final String DIRECTORY_KEY_PREFIX = "dir-";
   private final Semaphore uploadMemoryAvailable = new Semaphore(MAX_MEMORY_KBYTES, true);
 
+  private final ExecutorService transferService;
+  // Content keys known to be in the cache during the current build. The content stored under a key
+  // never changes, but the cache may evict it, so this is cleared after every command and a key
+  // that is not in it is looked up in the cache again.
+  private final Set<String> storedKeys = Sets.newConcurrentHashSet();
+
+  private final AtomicLong cacheHits = new AtomicLong();
+  private final AtomicLong cacheMisses = new AtomicLong();
+  private final AtomicLong knownKeys = new AtomicLong();
+  private final AtomicLong lookupRequests = new AtomicLong();
+  private final AtomicLong bytesUploaded = new AtomicLong();
+  private final AtomicLong uploadTimeNanos = new AtomicLong();
+
   /**
    * Construct an action cache using JCache API.
    */
@@ -52,48 +97,225 @@ final class MemcacheActionCache implements RemoteActionCache {
       Path execRoot, RemoteOptions options, ConcurrentMap<String, byte[]> cache) {
     this.execRoot = execRoot;
     this.cache = cache;
+    this.transferService = Executors.newFixedThreadPool(options.remoteCacheUploadThreads,
+        new ThreadFactoryBuilder()
+            .setNameFormat("remote-cache-transfer-%d")
+            .setDaemon(true)
+            .build());
   }
 
   @Override
   public String putFileIfNotExist(Path file) throws IOException {
-    String contentKey = HashCode.fromBytes(file.getMD5Digest()).toString();
-    if (containsFile(contentKey)) {
-      return contentKey;
-    }
-    putFile(contentKey, file);
-    return contentKey;
+    return putFilesIfNotExist(ImmutableList.of(file)).get(0);
   }
 
   @Override
   public String putFileIfNotExist(ActionInputFileCache cache, ActionInput file) throws IOException {
-    // PerActionFileCache already converted this to a lowercase ascii string.. it's not consistent!
-    String contentKey = new String(cache.getDigest(file).toByteArray());
-    if (containsFile(contentKey)) {
-      return contentKey;
+    return putFilesIfNotExist(cache, ImmutableList.of(file)).get(0);
+  }
+
+  @Override
+  public ImmutableList<String> putFilesIfNotExist(Collection<Path> files) throws IOException {
+    ImmutableList<Path> paths = ImmutableList.copyOf(files);
+    final String[] contentKeys = new String[paths.size()];
+    List<Callable<Void>> digests = new ArrayList<>(paths.size());
+    for (int i = 0; i < paths.size(); i++) {
+      final int index = i;
+      final Path file = paths.get(i);
+      digests.add(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          contentKeys[index] = HashCode.fromBytes(file.getMD5Digest()).toString();
+          return null;
+        }
+      });
     }
-    putFile(contentKey, execRoot.getRelative(file.getExecPathString()));
-    return contentKey;
+    runConcurrently(digests, ProfilerTask.UPLOAD_TIME,
+        "Computing digests of " + digests.size() + " files for remote cache");
+    return putFilesIfNotExist(ImmutableList.copyOf(contentKeys), paths);
   }
 
-  private void putFile(String key, Path file) throws IOException {
-    int fileSizeKBytes = (int) (file.getFileSize() / 1024);
-    Preconditions.checkArgument(fileSizeKBytes < MAX_MEMORY_KBYTES);
+  @Override
+  public ImmutableList<String> putFilesIfNotExist(
+      ActionInputFileCache cache, Collection<? extends ActionInput> files) throws IOException {
+    ImmutableList.Builder<String> contentKeys = ImmutableList.builder();
+    ImmutableList.Builder<Path> paths = ImmutableList.builder();
+    for (ActionInput file : files) {
+      // PerActionFileCache already converted this to a lowercase ascii string.. it's not
+      // consistent!
+      contentKeys.add(new String(cache.getDigest(file).toByteArray()));
+      paths.add(execRoot.getRelative(file.getExecPathString()));
+    }
+    return putFilesIfNotExist(contentKeys.build(), paths.build());
+  }
+
+  /**
+   * Puts the files to cache unless they are already in it. The keys not seen yet during this
+   * command are looked up in a single request, then the missing files are uploaded concurrently.
+   *
+   * @return {@code contentKeys}
+   */
+  private ImmutableList<String> putFilesIfNotExist(
+      ImmutableList<String> contentKeys, ImmutableList<Path> files) throws IOException {
+    long startNanos = System.nanoTime();
+    try {
+      // The files to look up, by key. Files with the same content are only uploaded once.
+      final Map<String, Path> unknownFiles = new LinkedHashMap<>();
+      for (int i = 0; i < files.size(); i++) {
+        String key = contentKeys.get(i);
+        if (storedKeys.contains(key)) {
+          knownKeys.incrementAndGet();
+        } else if (!unknownFiles.containsKey(key)) {
+          unknownFiles.put(key, files.get(i));
+        }
+      }
+      Set<String> missingKeys = findMissingKeys(unknownFiles.keySet());
+      cacheHits.addAndGet(unknownFiles.size() - missingKeys.size());
+      cacheMisses.addAndGet(missingKeys.size());
+      List<Callable<Void>> uploads = new ArrayList<>(missingKeys.size());
+      for (final String key : missingKeys) {
+        uploads.add(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            putFile(key, unknownFiles.get(key));
+            return null;
+          }
+        });
+      }
+      runConcurrently(uploads, ProfilerTask.UPLOAD_TIME,
+          "Uploading " + uploads.size() + " files to remote cache");
+      storedKeys.addAll(unknownFiles.keySet());
+      return contentKeys;
+    } finally {
+      uploadTimeNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * Returns the keys that are not in the cache, in a single request if the cache supports it.
+   */
+  private Set<String> findMissingKeys(Collection<String> keys) throws IOException {
+    if (keys.isEmpty()) {
+      return ImmutableSet.of();
+    }
+    lookupRequests.addAndGet(cache instanceof MissingKeysFinder ? 1 : keys.size());
+    return findMissingKeys(cache, keys);
+  }
+
+  /**
+   * Returns the keys that are not in the cache. A cache that is not a {@link MissingKeysFinder} is
+   * asked about each key in turn.
+   */
+  static Set<String> findMissingKeys(ConcurrentMap<String, byte[]> cache, Collection<String> keys)
+      throws IOException {
+    if (cache instanceof MissingKeysFinder) {
+      return ((MissingKeysFinder) cache).findMissingKeys(keys);
+    }
+    Set<String> missingKeys = new LinkedHashSet<>();
+    for (String key : keys) {
+      if (!cache.containsKey(key)) {
+        missingKeys.add(key);
+      }
+    }
+    return missingKeys;
+  }
+
+  /**
+   * Runs the transfers concurrently and waits for all of them. Runtime exceptions, like
+   * {@link CacheNotFoundException}, are propagated as is.
+   */
+  private void runConcurrently(
+      List<Callable<Void>> transfers, ProfilerTask profilerTask, String description)
+      throws IOException {
+    long startTime = Profiler.nanoTimeMaybe();
     try {
-      uploadMemoryAvailable.acquire(fileSizeKBytes);
-      // TODO(alpha): I should put the file content as chunks to avoid reading the entire
-      // file into memory.
-      try (InputStream stream = file.getInputStream()) {
-        cache.put(
-            key,
-            CacheEntry.newBuilder()
-                .setFileContent(ByteString.readFrom(stream))
-                .build()
-                .toByteArray());
+      for (Future<Void> transfer : transferService.invokeAll(transfers)) {
+        transfer.get();
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while transferring files to or from memory cache.", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      Profiler.instance().logSimpleTask(startTime, profilerTask, description);
+    }
+  }
+
+  /**
+   * Returns the statistics since the last call and resets them. Also forgets which keys were seen
+   * in the cache, since they may have been evicted by the time of the next build.
+   */
+  RemoteCacheStatistics getAndResetStatistics() {
+    storedKeys.clear();
+    return new RemoteCacheStatistics(
+        cacheHits.getAndSet(0),
+        cacheMisses.getAndSet(0),
+        knownKeys.getAndSet(0),
+        lookupRequests.getAndSet(0),
+        bytesUploaded.getAndSet(0),
+        TimeUnit.NANOSECONDS.toMillis(uploadTimeNanos.getAndSet(0)));
+  }
+
+  /**
+   * Stops the transfer threads. The cache must not be used afterwards.
+   */
+  void shutdown() {
+    transferService.shutdown();
+  }
+
+  private void putFile(String key, Path file) throws IOException {
+    long fileSize = file.getFileSize();
+    try (InputStream stream = file.getInputStream()) {
+      if (fileSize <= CHUNK_SIZE_BYTES) {
+        putChunk(key, stream, (int) fileSize);
+        return;
+      }
+      CacheEntry.Builder chunkList = CacheEntry.newBuilder();
+      for (long remaining = fileSize; remaining > 0; remaining -= CHUNK_SIZE_BYTES) {
+        chunkList.addChunkKeys(putChunk(null, stream, (int) Math.min(remaining, CHUNK_SIZE_BYTES)));
+      }
+      cache.put(key, chunkList.build().toByteArray());
+    }
+  }
+
+  /**
+   * Reads the next {@code size} bytes from the stream and puts them to cache, unless they are
+   * already stored. If {@code key} is null, the key is computed from the content.
+   *
+   * @return The key for fetching the chunk from cache.
+   */
+  private String putChunk(String key, InputStream stream, int size) throws IOException {
+    int sizeKBytes = (size + 1023) / 1024;
+    try {
+      uploadMemoryAvailable.acquire(sizeKBytes);
     } catch (InterruptedException e) {
       throw new IOException("Failed to put file to memory cache.", e);
+    }
+    try {
+      byte[] content = new byte[size];
+      ByteStreams.readFully(stream, content);
+      if (key == null) {
+        key = Hashing.md5().hashBytes(content).toString();
+        if (storedKeys.contains(key)) {
+          return key;
+        }
+        if (containsFile(key)) {
+          storedKeys.add(key);
+          return key;
+        }
+      }
+      cache.put(
+          key,
+          CacheEntry.newBuilder()
+              .setFileContent(ByteString.copyFrom(content))
+              .build()
+              .toByteArray());
+      bytesUploaded.addAndGet(size);
+      return key;
     } finally {
-      uploadMemoryAvailable.release(fileSizeKBytes);
+      uploadMemoryAvailable.release(sizeKBytes);
     }
   }
 
@@ -104,10 +326,23 @@ final class MemcacheActionCache implements RemoteActionCache {
     if (data == null) {
       throw new CacheNotFoundException("File content cannot be found with key: " + key);
     }
+    CacheEntry entry = CacheEntry.parseFrom(data);
     try (OutputStream stream = dest.getOutputStream()) {
-      CacheEntry.parseFrom(data).getFileContent().writeTo(stream);
-      dest.setExecutable(executable);
+      entry.getFileContent().writeTo(stream);
+      // Only one chunk is held in memory at a time.
+      for (String chunkKey : entry.getChunkKeysList()) {
+        byte[] chunk = cache.get(chunkKey);
+        if (chunk == null) {
+          throw new CacheNotFoundException("File chunk cannot be found with key: " + chunkKey);
+        }
+        CacheEntry.parseFrom(chunk).getFileContent().writeTo(stream);
+      }
+    } catch (IOException | CacheNotFoundException e) {
+      // Never leave a partial file behind, since it could be taken for the output.
+      dest.delete();
+      throw e;
     }
+    dest.setExecutable(executable);
   }
 
   private boolean containsFile(String key) {
@@ -121,49 +356,145 @@ final class MemcacheActionCache implements RemoteActionCache {
     if (data == null) {
       throw new CacheNotFoundException("Action output cannot be found with key: " + key);
     }
-    CacheEntry cacheEntry = CacheEntry.parseFrom(data);
-    for (FileEntry file : cacheEntry.getFilesList()) {
-      writeFile(file.getContentKey(), execRoot.getRelative(file.getPath()), file.getExecutable());
+    List<Callable<Void>> downloads = new ArrayList<>();
+    addDownloads(CacheEntry.parseFrom(data), execRoot, downloads);
+    runConcurrently(downloads, ProfilerTask.FETCH,
+        "Downloading " + downloads.size() + " files from remote cache");
+  }
+
+  /**
+   * Adds a download for every file listed in the entry, relative to {@code dir}. Whatever exists
+   * at a destination is deleted first, so that a restored directory only holds the cached files
+   * and no file is written through a stale symbolic link. Directories and symbolic links are
+   * created right away, and directory contents added recursively.
+   */
+  private void addDownloads(CacheEntry entry, Path dir, List<Callable<Void>> downloads)
+      throws IOException, CacheNotFoundException {
+    for (final FileEntry file : entry.getFilesList()) {
+      final Path dest = dir.getRelative(file.getPath());
+      FileSystemUtils.deleteTree(dest);
+      if (file.getDirectory()) {
+        byte[] data = cache.get(file.getContentKey());
+        if (data == null) {
+          throw new CacheNotFoundException(
+              "Directory listing cannot be found with key: " + file.getContentKey());
+        }
+        FileSystemUtils.createDirectoryAndParents(dest);
+        addDownloads(CacheEntry.parseFrom(data), dest, downloads);
+      } else if (!file.getSymlinkTarget().isEmpty()) {
+        FileSystemUtils.createDirectoryAndParents(dest.getParentDirectory());
+        dest.createSymbolicLink(new PathFragment(file.getSymlinkTarget()));
+      } else {
+        downloads.add(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            writeFile(file.getContentKey(), dest, file.getExecutable());
+            return null;
+          }
+        });
+      }
     }
   }
 
   @Override
   public void putActionOutput(String key, Collection<? extends ActionInput> outputs)
       throws IOException {
-    CacheEntry.Builder actionOutput = CacheEntry.newBuilder();
+    List<Path> files = new ArrayList<>(outputs.size());
+    List<String> execPathStrings = new ArrayList<>(outputs.size());
     for (ActionInput output : outputs) {
-      Path file = execRoot.getRelative(output.getExecPathString());
-      addToActionOutput(file, output.getExecPathString(), actionOutput);
+      files.add(execRoot.getRelative(output.getExecPathString()));
+      execPathStrings.add(output.getExecPathString());
     }
-    cache.put(key, actionOutput.build().toByteArray());
+    putActionOutput(key, files, execPathStrings);
   }
 
   @Override
   public void putActionOutput(String key, Path execRoot, Collection<Path> files)
       throws IOException {
-    CacheEntry.Builder actionOutput = CacheEntry.newBuilder();
+    List<String> execPathStrings = new ArrayList<>(files.size());
     for (Path file : files) {
-      addToActionOutput(file, file.relativeTo(execRoot).getPathString(), actionOutput);
+      execPathStrings.add(file.relativeTo(execRoot).getPathString());
     }
-    cache.put(key, actionOutput.build().toByteArray());
+    putActionOutput(key, new ArrayList<>(files), execPathStrings);
   }
 
   /**
-   * Add the file to action output cache entry. Put the file to cache if necessary.
+   * Puts the files to cache if necessary, then the action output cache entry listing them.
    */
-  private void addToActionOutput(Path file, String execPathString, CacheEntry.Builder actionOutput)
+  private void putActionOutput(String key, List<Path> files, List<String> execPathStrings)
       throws IOException {
-    if (file.isDirectory()) {
-      // TODO(alpha): Implement this for directory.
-      throw new UnsupportedOperationException("Storing a directory is not yet supported.");
-    }
-    // First put the file content to cache.
-    String contentKey = putFileIfNotExist(file);
-    // Add to protobuf.
-    actionOutput
-        .addFilesBuilder()
-        .setPath(execPathString)
-        .setContentKey(contentKey)
-        .setExecutable(file.isExecutable());
+    // First put the contents of all files, including those in output directories, to cache.
+    List<Path> regularFiles = new ArrayList<>();
+    for (Path file : files) {
+      addRegularFiles(file, regularFiles);
+    }
+    List<String> contentKeys = putFilesIfNotExist(regularFiles);
+    Map<Path, String> contentKeysByFile = new HashMap<>();
+    for (int i = 0; i < regularFiles.size(); i++) {
+      contentKeysByFile.put(regularFiles.get(i), contentKeys.get(i));
+    }
+    cache.put(key, createEntry(files, execPathStrings, contentKeysByFile).toByteArray());
+  }
+
+  /**
+   * Adds the file, or the regular files under it if it is a directory. Symbolic links are never
+   * followed, since they are stored as links.
+   */
+  private static void addRegularFiles(Path file, List<Path> regularFiles) throws IOException {
+    if (file.isDirectory(Symlinks.NOFOLLOW)) {
+      for (Path child : file.getDirectoryEntries()) {
+        addRegularFiles(child, regularFiles);
+      }
+    } else if (!file.isSymbolicLink()) {
+      regularFiles.add(file);
+    }
+  }
+
+  /**
+   * Creates a cache entry listing the files under the given paths. A directory is put to cache as
+   * an entry listing its contents, so that directories with the same contents share an entry.
+   * A symbolic link is stored with its target.
+   */
+  private CacheEntry createEntry(
+      List<Path> files, List<String> paths, Map<Path, String> contentKeysByFile)
+      throws IOException {
+    CacheEntry.Builder entry = CacheEntry.newBuilder();
+    for (int i = 0; i < files.size(); i++) {
+      Path file = files.get(i);
+      FileEntry.Builder fileEntry = entry.addFilesBuilder().setPath(paths.get(i));
+      if (file.isSymbolicLink()) {
+        fileEntry.setSymlinkTarget(file.readSymbolicLink().getPathString());
+      } else if (file.isDirectory(Symlinks.NOFOLLOW)) {
+        fileEntry.setContentKey(putDirectory(file, contentKeysByFile)).setDirectory(true);
+      } else {
+        fileEntry.setContentKey(contentKeysByFile.get(file)).setExecutable(file.isExecutable());
+      }
+    }
+    return entry.build();
+  }
+
+  /**
+   * Puts the listing of the directory to cache if necessary.
+   *
+   * @return The key for fetching the listing from cache.
+   */
+  private String putDirectory(Path dir, Map<Path, String> contentKeysByFile) throws IOException {
+    List<Path> children = new ArrayList<>(dir.getDirectoryEntries());
+    // Sorted, so that the key only depends on the contents.
+    Collections.sort(children);
+    List<String> names = new ArrayList<>(children.size());
+    for (Path child : children) {
+      names.add(child.getBaseName());
+    }
+    byte[] listing = createEntry(children, names, contentKeysByFile).toByteArray();
+    // Prefixed, so that a listing can never be mistaken for a file with the same content.
+    String key = DIRECTORY_KEY_PREFIX + Hashing.md5().hashBytes(listing);
+    if (!storedKeys.contains(key)) {
+      if (!containsFile(key)) {
+        cache.put(key, listing);
+      }
+      storedKeys.add(key);
+    }
+    return key;
   }
 }
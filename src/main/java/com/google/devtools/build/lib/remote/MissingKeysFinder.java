@@ -0,0 +1,32 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * A cache that can tell which of many keys it does not contain in a single request, instead of one
+ * {@link java.util.concurrent.ConcurrentMap#containsKey} round trip per key.
+ */
+@ThreadSafe
+interface MissingKeysFinder {
+  /**
+   * Returns the subset of {@code keys} that are not in the cache.
+   */
+  Set<String> findMissingKeys(Collection<String> keys) throws IOException;
+}
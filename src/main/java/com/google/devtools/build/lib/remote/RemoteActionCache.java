@@ -14,6 +14,7 @@
 
 package com.google.devtools.build.lib.remote;
 
+import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
@@ -42,6 +43,22 @@ interface RemoteActionCache {
    */
   String putFileIfNotExist(ActionInputFileCache cache, ActionInput file) throws IOException;
 
+  /**
+   * Same as {@link putFileIfNotExist(Path)} for many files at once. Checking for and uploading the
+   * files may happen concurrently, and files already known to be in cache are not checked again.
+   *
+   * @return The keys for fetching the files from cache, in the order of the files.
+   */
+  ImmutableList<String> putFilesIfNotExist(Collection<Path> files) throws IOException;
+
+  /**
+   * Same as {@link putFilesIfNotExist(Collection)} but this methods takes ActionInputs.
+   *
+   * @return The keys for fetching the files from cache, in the order of the files.
+   */
+  ImmutableList<String> putFilesIfNotExist(
+      ActionInputFileCache cache, Collection<? extends ActionInput> files) throws IOException;
+
   /**
    * Write the file in cache identified by key to the file system. The key must uniquely identify
    * the content of the file. Throws CacheNotFoundException if the file is not found in cache.
@@ -0,0 +1,77 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+/**
+ * Statistics about the files that had to be put to the remote action cache during a command.
+ * {@link RemoteModule} logs them and adds them to the profile after every command that used the
+ * cache.
+ */
+public final class RemoteCacheStatistics {
+  private final long cacheHits;
+  private final long cacheMisses;
+  private final long knownKeys;
+  private final long lookupRequests;
+  private final long bytesUploaded;
+  private final long uploadTimeMillis;
+
+  RemoteCacheStatistics(long cacheHits, long cacheMisses, long knownKeys,
+      long lookupRequests, long bytesUploaded, long uploadTimeMillis) {
+    this.cacheHits = cacheHits;
+    this.cacheMisses = cacheMisses;
+    this.knownKeys = knownKeys;
+    this.lookupRequests = lookupRequests;
+    this.bytesUploaded = bytesUploaded;
+    this.uploadTimeMillis = uploadTimeMillis;
+  }
+
+  /** Returns the number of files that were looked up and found in cache. */
+  public long getCacheHits() {
+    return cacheHits;
+  }
+
+  /** Returns the number of files that were looked up, not found in cache, and uploaded. */
+  public long getCacheMisses() {
+    return cacheMisses;
+  }
+
+  /** Returns the number of files not looked up, since they were already seen during the command. */
+  public long getKnownKeys() {
+    return knownKeys;
+  }
+
+  /**
+   * Returns the number of requests made to find out which files are missing from cache. With a
+   * cache that can look up many keys at once, this is one per batch of files instead of one per
+   * file.
+   */
+  public long getLookupRequests() {
+    return lookupRequests;
+  }
+
+  public long getBytesUploaded() {
+    return bytesUploaded;
+  }
+
+  public long getUploadTimeMillis() {
+    return uploadTimeMillis;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Remote cache: %d hits, %d misses, %d files already seen, "
+        + "%d lookup requests, %d bytes uploaded in %d ms", cacheHits, cacheMisses, knownKeys,
+        lookupRequests, bytesUploaded, uploadTimeMillis);
+  }
+}
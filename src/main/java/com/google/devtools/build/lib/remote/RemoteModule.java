@@ -14,26 +14,61 @@
 
 package com.google.devtools.build.lib.remote;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.Subscribe;
 import com.google.devtools.build.lib.actions.ActionContextProvider;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildStartingEvent;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsBase;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
 /**
  * RemoteModule provides distributed cache and remote execution for Bazel.
  */
 public final class RemoteModule extends BlazeModule {
+  private static final Logger LOG = Logger.getLogger(RemoteModule.class.getName());
+
   private CommandEnvironment env;
   private BuildRequest buildRequest;
-  private RemoteActionCache actionCache;
+  private MemcacheActionCache actionCache;
+  // The options actionCache was created with. It is recreated when they change between commands.
+  private List<Object> actionCacheConfig;
+  private final Function<RemoteOptions, HazelcastCacheMap> hazelcastConnector;
+  // The distributed cache is kept while --hazelcast_node stays the same, since connecting is slow.
+  private HazelcastCacheMap hazelcastCache;
+  private String hazelcastCacheNode;
   private RemoteWorkExecutor workExecutor;
 
-  public RemoteModule() {}
+  public RemoteModule() {
+    this(new Function<RemoteOptions, HazelcastCacheMap>() {
+      @Override
+      public HazelcastCacheMap apply(RemoteOptions options) {
+        return HazelcastCacheFactory.create(options);
+      }
+    });
+  }
+
+  @VisibleForTesting
+  RemoteModule(Function<RemoteOptions, HazelcastCacheMap> hazelcastConnector) {
+    this.hazelcastConnector = hazelcastConnector;
+  }
 
   @Override
   public Iterable<ActionContextProvider> getActionContextProviders() {
@@ -52,26 +87,85 @@ public final class RemoteModule extends BlazeModule {
 
   @Override
   public void afterCommand() {
+    if (actionCache != null) {
+      String statistics = actionCache.getAndResetStatistics().toString();
+      LOG.info(statistics);
+      Profiler.instance().logEvent(ProfilerTask.INFO, statistics);
+    }
     this.env = null;
     this.buildRequest = null;
   }
 
+  @Override
+  public void blazeShutdown() {
+    if (actionCache != null) {
+      actionCache.shutdown();
+      actionCache = null;
+      actionCacheConfig = null;
+    }
+    if (hazelcastCache != null) {
+      hazelcastCache.shutdown();
+      hazelcastCache = null;
+      hazelcastCacheNode = null;
+    }
+  }
+
   @Subscribe
   public void buildStarting(BuildStartingEvent event) {
     buildRequest = event.getRequest();
     RemoteOptions options = buildRequest.getOptions(RemoteOptions.class);
 
-    // Don't provide the remote spawn unless at least action cache is initialized.
-    if (actionCache == null && options.hazelcastNode != null) {
-      actionCache =
-          new MemcacheActionCache(
-              env.getExecRoot(),
-              options,
-              HazelcastCacheFactory.create(options));
+    Path localCacheDir = options.localCacheDir == null
+        ? null
+        : env.getWorkingDirectory().getRelative(options.localCacheDir);
+    List<Object> config = Arrays.<Object>asList(options.hazelcastNode, localCacheDir,
+        options.localCacheMaxSizeMb, options.remoteCacheUploadThreads);
+    if (actionCache != null && !config.equals(actionCacheConfig)) {
+      actionCache.shutdown();
+      actionCache = null;
+      actionCacheConfig = null;
+    }
+
+    if (actionCache == null) {
+      ConcurrentMap<String, byte[]> cache = connectHazelcastCache(options);
+      if (localCacheDir != null) {
+        try {
+          DiskCacheMap localCache =
+              new DiskCacheMap(localCacheDir, options.localCacheMaxSizeMb * 1024L * 1024L);
+          cache = cache == null ? localCache : new TieredCacheMap(localCache, cache);
+        } catch (IOException e) {
+          env.getReporter().handle(Event.warn(
+              "Cannot use local cache directory " + localCacheDir + ": " + e.getMessage()));
+        }
+      }
+      // Don't provide the remote spawn unless at least action cache is initialized.
+      if (cache != null) {
+        actionCache = new MemcacheActionCache(env.getExecRoot(), options, cache);
+        actionCacheConfig = config;
+      }
       // TODO(alpha): Initialize a RemoteWorkExecutor.
     }
   }
 
+  /**
+   * Returns the distributed cache for --hazelcast_node, or null if it is not set. A connection to
+   * a different node than the one requested is shut down.
+   */
+  @VisibleForTesting
+  @Nullable
+  HazelcastCacheMap connectHazelcastCache(RemoteOptions options) {
+    if (hazelcastCache != null && !Objects.equals(hazelcastCacheNode, options.hazelcastNode)) {
+      hazelcastCache.shutdown();
+      hazelcastCache = null;
+      hazelcastCacheNode = null;
+    }
+    if (hazelcastCache == null && options.hazelcastNode != null) {
+      hazelcastCache = hazelcastConnector.apply(options);
+      hazelcastCacheNode = options.hazelcastNode;
+    }
+    return hazelcastCache;
+  }
+
   @Override
   public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
     return command.builds()
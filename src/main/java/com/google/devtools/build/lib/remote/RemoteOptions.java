@@ -36,4 +36,31 @@ public final class RemoteOptions extends OptionsBase {
     help = "URL for the REST worker."
   )
   public String restWorkerUrl;
+
+  @Option(
+    name = "remote_cache_upload_threads",
+    defaultValue = "8",
+    category = "remote",
+    help = "The number of files to transfer to or from the distributed cache concurrently."
+  )
+  public int remoteCacheUploadThreads;
+
+  @Option(
+    name = "local_cache_dir",
+    defaultValue = "null",
+    category = "remote",
+    help = "A directory for a local disk cache of action outputs, which is consulted before the "
+        + "distributed cache and keeps what is downloaded from it. It can be shared between "
+        + "workspaces, and is used on its own if no distributed cache is configured."
+  )
+  public String localCacheDir;
+
+  @Option(
+    name = "local_cache_max_size_mb",
+    defaultValue = "10240",
+    category = "remote",
+    help = "The size in megabytes above which the least recently used entries of the local disk "
+        + "cache are evicted."
+  )
+  public int localCacheMaxSizeMb;
 }
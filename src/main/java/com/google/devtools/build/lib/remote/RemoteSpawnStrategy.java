@@ -182,6 +182,11 @@ final class RemoteSpawnStrategy implements SpawnActionContext {
     if (remoteWorkExecutor == null) {
       return false;
     }
+    if (remoteActionCache != null) {
+      // Upload the inputs in one batch, so that the work executor finds them already stored
+      // instead of checking for them one round trip at a time.
+      remoteActionCache.putFilesIfNotExist(actionCache, inputs);
+    }
     try {
       ListenableFuture<RemoteWorkExecutor.Response> future =
           remoteWorkExecutor.submit(
@@ -0,0 +1,75 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.collect.ForwardingConcurrentMap;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A distributed cache with a local cache in front of it. Values are looked up locally first, and
+ * values fetched from the distributed cache are kept locally. Values are always written to both.
+ *
+ * <p>All other operations only use the distributed cache. In particular {@link #containsKey} and
+ * {@link #findMissingKeys} do, since they are used to decide whether a value needs to be uploaded.
+ */
+@ThreadSafe
+final class TieredCacheMap extends ForwardingConcurrentMap<String, byte[]>
+    implements MissingKeysFinder {
+  private final ConcurrentMap<String, byte[]> local;
+  private final ConcurrentMap<String, byte[]> remote;
+
+  TieredCacheMap(ConcurrentMap<String, byte[]> local, ConcurrentMap<String, byte[]> remote) {
+    this.local = local;
+    this.remote = remote;
+  }
+
+  @Override
+  protected ConcurrentMap<String, byte[]> delegate() {
+    return remote;
+  }
+
+  @Override
+  public byte[] get(Object key) {
+    byte[] value = local.get(key);
+    if (value == null) {
+      value = remote.get(key);
+      if (value != null) {
+        local.put((String) key, value);
+      }
+    }
+    return value;
+  }
+
+  @Override
+  public Set<String> findMissingKeys(Collection<String> keys) throws IOException {
+    return MemcacheActionCache.findMissingKeys(remote, keys);
+  }
+
+  @Override
+  public byte[] put(String key, byte[] value) {
+    local.put(key, value);
+    return remote.put(key, value);
+  }
+
+  @Override
+  public byte[] remove(Object key) {
+    local.remove(key);
+    return remote.remove(key);
+  }
+}
@@ -25,6 +25,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.analysis.RuleContext;
 import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
 import com.google.devtools.build.lib.analysis.config.BuildOptions;
@@ -34,6 +35,7 @@ import com.google.devtools.build.lib.analysis.config.PerLabelOptions;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetFingerprintCache;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
@@ -335,6 +337,12 @@ public class CppConfiguration extends BuildConfiguration.Fragment {
    */
   private final boolean lipoContextCollector;
 
+  // The digests of the input sets of the compile actions in this configuration. Kept here rather
+  // than globally so that they go away with the configuration, for instance on "blaze clean" or
+  // when the options change.
+  private final NestedSetFingerprintCache<Artifact> inputSetFingerprints =
+      new NestedSetFingerprintCache<>(Artifact.EXEC_PATH_STRING);
+
   protected CppConfiguration(CppConfigurationParameters params)
       throws InvalidConfigurationException {
     CrosstoolConfig.CToolchain toolchain = params.toolchain;
@@ -1766,6 +1774,14 @@ public class CppConfiguration extends BuildConfiguration.Fragment {
     return lipoContextCollector;
   }
 
+  /**
+   * Returns the digests of the input sets of compile actions, by exec path, which many compile
+   * actions of this configuration share.
+   */
+  NestedSetFingerprintCache<Artifact> getInputSetFingerprints() {
+    return inputSetFingerprints;
+  }
+
   @Override
   public void reportInvalidOptions(EventHandler reporter, BuildOptions buildOptions) {
     CppOptions cppOptions = buildOptions.get(CppOptions.class);
@@ -17,6 +17,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.Constants;
 import com.google.devtools.build.lib.analysis.ConfiguredRuleClassProvider;
+import com.google.devtools.build.lib.skyframe.SkyframePriorityOptions;
 import com.google.devtools.build.lib.util.ResourceFileLoader;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.OptionsParser;
@@ -45,7 +46,8 @@ public class BlazeCommandUtils {
    * The set of option-classes that are common to all Blaze commands.
    */
   private static final Collection<Class<? extends OptionsBase>> COMMON_COMMAND_OPTIONS =
-      ImmutableList.of(CommonCommandOptions.class, BlazeCommandEventHandler.Options.class);
+      ImmutableList.of(CommonCommandOptions.class, BlazeCommandEventHandler.Options.class,
+          SkyframePriorityOptions.class);
 
 
   private BlazeCommandUtils() {}
@@ -248,6 +248,14 @@ public class BlazeServerStartupOptions extends OptionsBase {
           + "changes instead of scanning every file for a change.")
   public boolean watchFS;
 
+  @Option(name = "experimental_skyframe_graph_snapshot",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "Save the Skyframe graph in the output base when the server is shut down with the "
+          + "shutdown command, and load it in the first command of the next server. Files are "
+          + "checked for changes before the loaded graph is used.")
+  public boolean skyframeGraphSnapshot;
+
 
   @Option(name = "invocation_policy",
       defaultValue = "",
@@ -16,9 +16,11 @@ package com.google.devtools.build.lib.runtime;
 import static com.google.devtools.build.lib.profiler.AutoProfiler.profiledAndLogged;
 import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Range;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.SubscriberExceptionHandler;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache;
 import com.google.devtools.build.lib.actions.cache.NullActionCache;
@@ -26,7 +28,9 @@ import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
 import com.google.devtools.build.lib.analysis.config.BinTools;
 import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.events.StoredEventHandler;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
@@ -38,6 +42,9 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsProvider;
 
 import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,6 +72,15 @@ public final class BlazeWorkspace {
   private final SkyframeExecutor skyframeExecutor;
   /** The action cache is loaded lazily on the first build command. */
   private ActionCache actionCache;
+  /** Loads the action cache in the background; null unless a prefetch is in progress. */
+  @Nullable
+  private FutureTask<ActionCache> actionCacheLoader;
+  /**
+   * Events from the background load, replayed on the reporter of the command that first uses the
+   * loaded cache; null unless a prefetch is in progress.
+   */
+  @Nullable
+  private StoredEventHandler actionCacheLoaderEvents;
   /** The execution time range of the previous build command in this server, if any. */
   @Nullable
   private Range<Long> lastExecutionRange = null;
@@ -197,8 +213,18 @@ public final class BlazeWorkspace {
   /**
    * Removes in-memory caches.
    */
-  public void clearCaches() throws IOException {
+  public synchronized void clearCaches() throws IOException {
     skyframeExecutor.resetEvaluator();
+    if (actionCacheLoader != null) {
+      // Do not delete the cache files from under the loader.
+      try {
+        Uninterruptibles.getUninterruptibly(actionCacheLoader);
+      } catch (ExecutionException e) {
+        // The cache is about to be deleted anyway.
+      }
+      actionCacheLoader = null;
+      actionCacheLoaderEvents = null;
+    }
     actionCache = null;
     FileSystemUtils.deleteTree(getCacheDirectory());
   }
@@ -208,31 +234,71 @@ public final class BlazeWorkspace {
    * instance. Note, that method may recreate instance between different build
    * requests, so return value should not be cached.
    */
-  public ActionCache getPersistentActionCache(Reporter reporter) throws IOException {
+  public synchronized ActionCache getPersistentActionCache(Reporter reporter)
+      throws IOException {
     if (actionCache == null) {
-      if (OS.getCurrent() == OS.WINDOWS) {
-        // TODO(bazel-team): Add support for a persistent action cache on Windows.
-        actionCache = new NullActionCache();
-        return actionCache;
-      }
-      try (AutoProfiler p = profiledAndLogged("Loading action cache", ProfilerTask.INFO, LOG)) {
+      if (actionCacheLoader != null) {
         try {
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
-        } catch (IOException e) {
-          LOG.log(Level.WARNING, "Failed to load action cache: " + e.getMessage(), e);
-          LoggingUtil.logToRemote(Level.WARNING, "Failed to load action cache: "
-              + e.getMessage(), e);
-          reporter.handle(
-              Event.error("Error during action cache initialization: " + e.getMessage()
-              + ". Corrupted files were renamed to '" + getCacheDirectory() + "/*.bad'. "
-              + "Blaze will now reset action cache data, causing a full rebuild"));
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = Uninterruptibles.getUninterruptibly(actionCacheLoader);
+        } catch (ExecutionException e) {
+          Throwables.propagateIfPossible(e.getCause(), IOException.class);
+          throw new IllegalStateException(e.getCause());
+        } finally {
+          actionCacheLoader = null;
+          actionCacheLoaderEvents.replayOn(reporter);
+          actionCacheLoaderEvents = null;
         }
+      } else {
+        actionCache = loadActionCache(reporter);
       }
     }
     return actionCache;
   }
 
+  /**
+   * Starts loading the persistent action cache in a background thread, so that it is ready by the
+   * time {@link #getPersistentActionCache} is called. Does nothing if the action cache is already
+   * loaded or being loaded. Errors from the load are reported by the command that uses the
+   * cache.
+   */
+  public synchronized void prefetchPersistentActionCache() {
+    if (actionCache != null || actionCacheLoader != null) {
+      return;
+    }
+    final StoredEventHandler events = new StoredEventHandler();
+    actionCacheLoaderEvents = events;
+    actionCacheLoader = new FutureTask<>(new Callable<ActionCache>() {
+      @Override
+      public ActionCache call() throws IOException {
+        return loadActionCache(events);
+      }
+    });
+    Thread loaderThread = new Thread(actionCacheLoader, "action-cache-loader");
+    loaderThread.setDaemon(true);
+    loaderThread.start();
+  }
+
+  private ActionCache loadActionCache(EventHandler eventHandler) throws IOException {
+    if (OS.getCurrent() == OS.WINDOWS) {
+      // TODO(bazel-team): Add support for a persistent action cache on Windows.
+      return new NullActionCache();
+    }
+    try (AutoProfiler p = profiledAndLogged("Loading action cache", ProfilerTask.INFO, LOG)) {
+      try {
+        return new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Failed to load action cache: " + e.getMessage(), e);
+        LoggingUtil.logToRemote(Level.WARNING, "Failed to load action cache: "
+            + e.getMessage(), e);
+        eventHandler.handle(
+            Event.error("Error during action cache initialization: " + e.getMessage()
+            + ". Corrupted files were renamed to '" + getCacheDirectory() + "/*.bad'. "
+            + "Blaze will now reset action cache data, causing a full rebuild"));
+        return new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+      }
+    }
+  }
+
   /**
    * Generates a README file in the output base directory. This README file
    * contains the name of the workspace directory, so that users can figure out
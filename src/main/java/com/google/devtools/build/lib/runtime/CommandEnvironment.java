@@ -45,6 +45,7 @@ import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.skyframe.SkyframeBuildView;
 import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
+import com.google.devtools.build.lib.skyframe.SkyframePriorityOptions;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.Preconditions;
@@ -297,6 +298,15 @@ public final class CommandEnvironment {
     return workspace.getPersistentActionCache(reporter);
   }
 
+  /**
+   * Starts loading the persistent action cache in the background.
+   *
+   * @see BlazeWorkspace#prefetchPersistentActionCache
+   */
+  public void prefetchPersistentActionCache() {
+    workspace.prefetchPersistentActionCache();
+  }
+
   /**
    * An array of String values useful if Blaze crashes.
    * For now, just returns the size of the action cache and the build id.
@@ -462,9 +472,13 @@ public final class CommandEnvironment {
     // Fail fast in the case where a Blaze command forgets to install the package path correctly.
     skyframeExecutor.setActive(false);
     // Let skyframe figure out if it needs to store graph edges for this build.
+    BlazeServerStartupOptions startupOptions =
+        runtime.getStartupOptionsProvider().getOptions(BlazeServerStartupOptions.class);
     skyframeExecutor.decideKeepIncrementalState(
-        runtime.getStartupOptionsProvider().getOptions(BlazeServerStartupOptions.class).batch,
-        optionsParser.getOptions(BuildView.Options.class));
+        startupOptions.batch, optionsParser.getOptions(BuildView.Options.class));
+    skyframeExecutor.setGraphSnapshotEnabled(startupOptions.skyframeGraphSnapshot);
+    skyframeExecutor.setPriorityByComputeTime(
+        optionsParser.getOptions(SkyframePriorityOptions.class).priorityByComputeTime);
 
     // Start the performance and memory profilers.
     runtime.beforeCommand(this, options, execStartTimeNanos);
@@ -64,6 +64,7 @@ public final class ShutdownCommand implements BlazeCommand {
 
     if (limit == 0 ||
         Runtime.getRuntime().totalMemory() > limit * 1000L * 1000) {
+      env.getSkyframeExecutor().prepareForCleanShutdown(env.getReporter());
       throw new ShutdownBlazeServerException(0, ShutdownMethod.CLEAN);
     }
     return ExitCode.SUCCESS;
@@ -146,6 +146,14 @@ public final class Command {
 
   // Start of public API -----------------------------------------------------
 
+  /**
+   * Makes the output of commands started from now on be read by {@code numPollers} threads
+   * shared by all commands, or by one thread per stream if {@code numPollers} is 0.
+   */
+  public static void setOutputPollers(int numPollers) {
+    Consumers.setOutputPollers(numPollers);
+  }
+
   /**
    * Creates a new {@link Command} that will execute a command line that
    * is described by a {@link ProcessBuilder}. Command line elements,
@@ -674,9 +682,7 @@ public final class Command {
 
     outErrConsumers.logConsumptionStrategy();
 
-    outErrConsumers.registerInputs(process.getInputStream(),
-                                   process.getErrorStream(),
-                                   closeOutputStreams);
+    outErrConsumers.registerProcessOutputs(process, closeOutputStreams);
 
     processInput(stdinInput, process);
 
@@ -13,26 +13,40 @@
 // limitations under the License.
 package com.google.devtools.build.lib.shell;
 
+import com.google.common.util.concurrent.SettableFuture;
+
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 /**
  * This class provides convenience methods for consuming (actively reading)
  * output and error streams with different consumption policies:
  * discarding ({@link #createDiscardingConsumers()},
  * accumulating ({@link #createAccumulatingConsumers()},
  * and streaming ({@link #createStreamingConsumers(OutputStream, OutputStream)}).
+ *
+ * <p>By default, each stream is read by its own thread. After {@link #setOutputPollers} with a
+ * positive number, the output of running processes is instead read by that many
+ * {@link OutputPoller} threads, which is cheaper when many processes run at once. The rest of the
+ * output of an exited process is read by the thread that waits for it.
  */
 class Consumers {
 
@@ -44,6 +58,40 @@ class Consumers {
   private static final ExecutorService pool =
     Executors.newCachedThreadPool(new AccumulatorThreadFactory());
 
+  @Nullable private static volatile OutputPoller[] pollers;
+  private static final AtomicInteger nextPoller = new AtomicInteger();
+
+  /**
+   * Makes the output of processes started from now on be read by {@code numPollers} poller
+   * threads, or by one thread per stream if {@code numPollers} is 0.
+   */
+  static synchronized void setOutputPollers(int numPollers) {
+    OutputPoller[] oldPollers = pollers;
+    int oldNumPollers = oldPollers == null ? 0 : oldPollers.length;
+    if (Math.max(numPollers, 0) == oldNumPollers) {
+      return;
+    }
+    pollers = createPollers(numPollers);
+    if (oldPollers != null) {
+      // The replaced pollers finish the streams already registered with them, then exit.
+      for (OutputPoller poller : oldPollers) {
+        poller.shutDown();
+      }
+    }
+  }
+
+  @Nullable
+  private static OutputPoller[] createPollers(int numPollers) {
+    if (numPollers <= 0) {
+      return null;
+    }
+    OutputPoller[] newPollers = new OutputPoller[numPollers];
+    for (int i = 0; i < numPollers; i++) {
+      newPollers[i] = new OutputPoller("Command-Output-Poller-" + i);
+    }
+    return newPollers;
+  }
+
   static OutErrConsumers createDiscardingConsumers() {
     return new OutErrConsumers(new DiscardingConsumer(),
                                new DiscardingConsumer());
@@ -75,6 +123,23 @@ class Consumers {
       err.registerInput(errInput, closeStreams);
     }
 
+    /**
+     * Registers the output and error streams of {@code process}, which are polled while the
+     * process runs if output pollers are enabled.
+     */
+    void registerProcessOutputs(Process process, boolean closeStreams) {
+      OutputPoller[] currentPollers = pollers;
+      if (currentPollers == null) {
+        registerInputs(process.getInputStream(), process.getErrorStream(), closeStreams);
+        return;
+      }
+      int index = (nextPoller.getAndIncrement() & Integer.MAX_VALUE) % currentPollers.length;
+      out.registerPolledInput(process.getInputStream(), process, closeStreams,
+          currentPollers[index]);
+      err.registerPolledInput(process.getErrorStream(), process, closeStreams,
+          currentPollers[index]);
+    }
+
     void cancel() {
       out.cancel();
       err.cancel();
@@ -121,6 +186,9 @@ class Consumers {
 
     void registerInput(InputStream in, boolean closeConsumer);
 
+    void registerPolledInput(InputStream in, Process process, boolean closeConsumer,
+        OutputPoller poller);
+
     void cancel();
 
     void waitForCompletion() throws IOException;
@@ -147,8 +215,8 @@ class Consumers {
       log.finer("Output will be sent to streams provided by client");
     }
 
-    @Override protected Runnable createConsumingAndClosingSink(InputStream in,
-                                                               boolean closeConsumer) {
+    @Override protected ClosingSink createConsumingAndClosingSink(InputStream in,
+                                                                  boolean closeConsumer) {
       return new ClosingSink(in, out, closeConsumer);
     }
   }
@@ -172,7 +240,8 @@ class Consumers {
       log.finer("Output will be accumulated (promptly read off) and returned");
     }
 
-    @Override public Runnable createConsumingAndClosingSink(InputStream in, boolean closeConsumer) {
+    @Override public ClosingSink createConsumingAndClosingSink(InputStream in,
+                                                               boolean closeConsumer) {
       return new ClosingSink(in, out);
     }
   }
@@ -195,7 +264,8 @@ class Consumers {
       log.finer("Output will be ignored");
     }
 
-    @Override public Runnable createConsumingAndClosingSink(InputStream in, boolean closeConsumer) {
+    @Override public ClosingSink createConsumingAndClosingSink(InputStream in,
+                                                               boolean closeConsumer) {
       return new ClosingSink(in);
     }
   }
@@ -208,6 +278,8 @@ class Consumers {
   private abstract static class FutureConsumption implements OutputConsumer {
 
     private Future<?> future;
+    // The stream, if it is read by an output poller.
+    @Nullable private PolledInput polledInput;
 
     @Override
     public void registerInput(InputStream in, boolean closeConsumer){
@@ -215,7 +287,17 @@ class Consumers {
       future = pool.submit(sink);
     }
 
-    protected abstract Runnable createConsumingAndClosingSink(InputStream in, boolean close);
+    @Override
+    public void registerPolledInput(InputStream in, Process process, boolean closeConsumer,
+        OutputPoller poller) {
+      SettableFuture<Void> polledFuture = SettableFuture.create();
+      future = polledFuture;
+      polledInput = new PolledInput(createConsumingAndClosingSink(in, closeConsumer), process,
+          polledFuture);
+      poller.add(polledInput);
+    }
+
+    protected abstract ClosingSink createConsumingAndClosingSink(InputStream in, boolean close);
 
     @Override
     public void cancel() {
@@ -224,6 +306,10 @@ class Consumers {
 
     @Override
     public void waitForCompletion() throws IOException {
+      if (polledInput != null) {
+        // Don't wait for the poller to notice that the process has exited.
+        polledInput.drainIfNotReleased();
+      }
       boolean wasInterrupted = false;
       try {
         while (true) {
@@ -273,7 +359,7 @@ class Consumers {
    */
   private static class AccumulatorThreadFactory implements ThreadFactory {
 
-    private static final int THREAD_STACK_SIZE = 32 * 1024;
+    static final int THREAD_STACK_SIZE = 32 * 1024;
 
     private static AtomicInteger threadInitNumber = new AtomicInteger(0);
 
@@ -332,13 +418,211 @@ class Consumers {
       try {
         sink.run();
       } finally {
-        silentClose(in);
-        if (close && out != null) {
-          silentClose(out);
+        closeStreams();
+      }
+    }
+
+    void closeStreams() {
+      silentClose(in);
+      if (close && out != null) {
+        silentClose(out);
+      }
+    }
+
+  }
+
+  /** A stream of a running process that is read by an {@link OutputPoller}. */
+  private static final class PolledInput {
+    private final ClosingSink sink;
+    private final Process process;
+    private final SettableFuture<Void> future;
+
+    // Whether the poller no longer reads the stream. Guarded by this, which the poller holds
+    // while it reads.
+    private boolean released;
+
+    PolledInput(ClosingSink sink, Process process, SettableFuture<Void> future) {
+      this.sink = sink;
+      this.process = process;
+      this.future = future;
+    }
+
+    /**
+     * Reads the rest of the stream to end-of-file on the shared pool, then completes the future
+     * the way {@link FutureConsumption} expects.
+     */
+    void drainOnPool() {
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      });
+    }
+
+    /**
+     * Takes the stream from the poller, if it still has it, and reads it to end-of-file on the
+     * calling thread.
+     */
+    void drainIfNotReleased() {
+      synchronized (this) {
+        if (released) {
+          return;
         }
+        released = true;
+      }
+      drain();
+    }
+
+    private void drain() {
+      try {
+        sink.run();
+        future.set(null);
+      } catch (Throwable t) {
+        future.setException(t);
       }
     }
 
+    void fail(Throwable t) {
+      sink.closeStreams();
+      future.setException(t);
+    }
+  }
+
+  /**
+   * Copies the output of running processes for many streams on a single thread.
+   *
+   * <p>Process pipes are not selectable channels, so instead of blocking in a read, the poller
+   * asks each stream how many bytes it can read without blocking and reads at most that many,
+   * sleeping briefly when none of its streams had any. This bounds the data buffered per stream
+   * to one read buffer.
+   *
+   * <p>Once a process has exited, the thread waiting for its output takes its streams from the
+   * poller and reads them to end-of-file, so the sleeps do not delay the result. Streams that
+   * nobody waits for yet are read to end-of-file on the shared pool when the poller notices that
+   * their process has exited. That read normally returns at once, and only blocks if a descendant
+   * of the process still holds the pipe open.
+   */
+  static final class OutputPoller implements Runnable {
+    private static final int BUFFER_SIZE = 8192;
+    private static final long MAX_SLEEP_MILLIS = 16;
+
+    private final BlockingQueue<PolledInput> newInputs = new LinkedBlockingQueue<>();
+    private final List<PolledInput> inputs = new ArrayList<>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final Thread thread;
+
+    // Guarded by this.
+    private boolean shutDown;
+    private boolean exited;
+
+    private OutputPoller(String name) {
+      thread = new Thread(null, this, name, AccumulatorThreadFactory.THREAD_STACK_SIZE);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private synchronized void add(PolledInput input) {
+      if (exited) {
+        // A caller that picked this poller just before it was replaced; read it on the pool.
+        synchronized (input) {
+          input.released = true;
+        }
+        input.drainOnPool();
+      } else {
+        newInputs.add(input);
+      }
+    }
+
+    /**
+     * Makes the poller thread exit once it has no streams left to read. Streams registered
+     * afterwards are read on the shared pool.
+     */
+    private synchronized void shutDown() {
+      shutDown = true;
+      thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+      long sleepMillis = 1;
+      while (true) {
+        try {
+          if (inputs.isEmpty()) {
+            synchronized (this) {
+              if (shutDown && newInputs.isEmpty()) {
+                exited = true;
+                return;
+              }
+            }
+            inputs.add(newInputs.take());
+          }
+          newInputs.drainTo(inputs);
+          if (pollOnce()) {
+            sleepMillis = 1;
+          } else {
+            Thread.sleep(sleepMillis);
+            sleepMillis = Math.min(2 * sleepMillis, MAX_SLEEP_MILLIS);
+          }
+        } catch (InterruptedException e) {
+          // Interrupted by shutDown(); keep serving the registered streams until there are none.
+        }
+      }
+    }
+
+    /** Reads what is available from each stream. Returns whether any stream had data. */
+    private boolean pollOnce() {
+      boolean readAny = false;
+      for (Iterator<PolledInput> it = inputs.iterator(); it.hasNext(); ) {
+        PolledInput input = it.next();
+        synchronized (input) {
+          if (!input.released) {
+            readAny |= pollOnce(input);
+          }
+          if (input.released) {
+            it.remove();
+          }
+        }
+      }
+      return readAny;
+    }
+
+    /**
+     * Reads what is available from {@code input}, or releases it if it will not be polled
+     * anymore. Returns whether it had data.
+     */
+    private boolean pollOnce(PolledInput input) {
+      if (input.future.isDone()) {
+        // Cancelled.
+        input.sink.closeStreams();
+        input.released = true;
+        return false;
+      }
+      try {
+        int available = input.sink.in.available();
+        int bytesRead = available > 0
+            ? input.sink.in.read(buffer, 0, Math.min(available, BUFFER_SIZE))
+            : 0;
+        if (bytesRead > 0) {
+          if (input.sink.out != null) {
+            input.sink.out.write(buffer, 0, bytesRead);
+            input.sink.out.flush();
+          }
+          return true;
+        } else if (bytesRead < 0 || !input.process.isAlive()) {
+          input.released = true;
+          input.drainOnPool();
+        }
+      } catch (IOException e) {
+        // Tunnel the exception like InputStreamSink does.
+        input.released = true;
+        input.fail(new RuntimeException(e));
+      } catch (RuntimeException | Error e) {
+        input.released = true;
+        input.fail(e);
+      }
+      return false;
+    }
   }
 
   /**
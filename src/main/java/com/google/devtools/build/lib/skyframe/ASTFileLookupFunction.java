@@ -15,12 +15,16 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.StoredEventHandler;
 import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
 import com.google.devtools.build.lib.packages.RuleClassProvider;
 import com.google.devtools.build.lib.syntax.BuildFileAST;
 import com.google.devtools.build.lib.syntax.Mutability;
+import com.google.devtools.build.lib.syntax.ParserInputSource;
 import com.google.devtools.build.lib.syntax.Runtime;
 import com.google.devtools.build.lib.syntax.ValidationEnvironment;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
@@ -45,9 +49,20 @@ import javax.annotation.Nullable;
 public class ASTFileLookupFunction implements SkyFunction {
 
   private final RuleClassProvider ruleClassProvider;
+  private final ParsedFileCache parsedFileCache;
 
   public ASTFileLookupFunction(RuleClassProvider ruleClassProvider) {
+    this(ruleClassProvider, new ParsedFileCache());
+  }
+
+  /**
+   * Creates a function that reuses the syntax trees in {@code parsedFileCache} for files whose
+   * contents did not change, and adds the trees it parses to it.
+   */
+  public ASTFileLookupFunction(RuleClassProvider ruleClassProvider,
+      ParsedFileCache parsedFileCache) {
     this.ruleClassProvider = ruleClassProvider;
+    this.parsedFileCache = parsedFileCache;
   }
 
   @Override
@@ -109,9 +124,28 @@ public class ASTFileLookupFunction implements SkyFunction {
     boolean parseAsSkylark = filePathFragment.getPathString().endsWith(".bzl");
     try {
       long astFileSize = fileValue.getSize();
+      byte[] bytes = FileSystemUtils.readWithKnownFileSize(path, astFileSize);
+      // Skylark files need the digest for their content hash code, BUILD files only as cache key.
+      byte[] digest = parseAsSkylark || parsedFileCache.isEnabled()
+          ? ParsedFileCache.md5Digest(path, fileValue, bytes)
+          : null;
+      ParsedFileCache.Key cacheKey = null;
+      if (parsedFileCache.isEnabled()) {
+        cacheKey = new ParsedFileCache.Key(path, digest, parseAsSkylark, astFileSize);
+        ast = parsedFileCache.get(cacheKey);
+        if (ast != null) {
+          return ASTFileLookupValue.withFile(ast);
+        }
+      }
+      // When the result may be cached, collect the events to only cache files without any.
+      StoredEventHandler storedEventHandler = cacheKey == null ? null : new StoredEventHandler();
+      EventHandler eventHandler =
+          storedEventHandler == null ? env.getListener() : storedEventHandler;
+      ParserInputSource input =
+          ParserInputSource.create(FileSystemUtils.convertFromLatin1(bytes), path.asFragment());
       if (parseAsSkylark) {
         try (Mutability mutability = Mutability.create("validate")) {
-            ast = BuildFileAST.parseSkylarkFile(path, astFileSize, env.getListener(),
+            ast = BuildFileAST.parseSkylarkFile(input, digest, eventHandler,
                 new ValidationEnvironment(
                     ruleClassProvider.createSkylarkRuleClassEnvironment(
                         fileLabel,
@@ -124,7 +158,13 @@ public class ASTFileLookupFunction implements SkyFunction {
                     .setupDynamic(Runtime.REPOSITORY_NAME, Runtime.NONE)));
         }
       } else {
-        ast = BuildFileAST.parseBuildFile(path, astFileSize, env.getListener(), false);
+        ast = BuildFileAST.parseBuildFile(input, eventHandler, false);
+      }
+      if (storedEventHandler != null) {
+        storedEventHandler.replayOn(env.getListener());
+        if (storedEventHandler.isEmpty()) {
+          parsedFileCache.put(cacheKey, ast);
+        }
       }
     } catch (IOException e) {
       throw new ASTLookupFunctionException(new ErrorReadingSkylarkExtensionException(e),
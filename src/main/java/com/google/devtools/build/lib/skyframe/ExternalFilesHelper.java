@@ -122,6 +122,16 @@ public class ExternalFilesHelper {
     anyNonOutputExternalFilesSeen = externalFilesKnowledge.anyNonOutputExternalFilesSeen;
   }
 
+  /**
+   * Conservatively notes that files of every type may be in the graph, e.g. because the graph was
+   * populated without going through {@link #getAndNoteFileType}.
+   */
+  @ThreadCompatible
+  void noteAllFileTypesSeen() {
+    anyOutputFilesSeen = true;
+    anyNonOutputExternalFilesSeen = true;
+  }
+
   ExternalFilesHelper cloneWithFreshExternalFilesKnowledge() {
     return new ExternalFilesHelper(pkgLocator, externalFileAction, directories);
   }
@@ -41,6 +41,8 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.util.HashSet;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 /**
  * File system watcher for local filesystems. It's able to provide a list of changed
  * files between two consecutive calls. Uses the standard Java WatchService, which uses
@@ -119,9 +121,12 @@ public class LocalDiffAwareness implements DiffAwareness {
   private static class SequentialView implements DiffAwareness.View {
     private final LocalDiffAwareness owner;
     private final int position;
+    /** The paths modified since the previous view, or null if events were lost. */
+    @Nullable
     private final Set<Path> modifiedAbsolutePaths;
 
-    public SequentialView(LocalDiffAwareness owner, int position, Set<Path> modifiedAbsolutePaths) {
+    public SequentialView(LocalDiffAwareness owner, int position,
+        @Nullable Set<Path> modifiedAbsolutePaths) {
       this.owner = owner;
       this.position = position;
       this.modifiedAbsolutePaths = modifiedAbsolutePaths;
@@ -153,9 +158,6 @@ public class LocalDiffAwareness implements DiffAwareness {
     } else {
       try {
         modifiedAbsolutePaths = collectChanges();
-      } catch (BrokenDiffAwarenessException e) {
-        close();
-        throw e;
       } catch (IOException e) {
         close();
         throw new BrokenDiffAwarenessException(
@@ -179,7 +181,8 @@ public class LocalDiffAwareness implements DiffAwareness {
     } catch (ClassCastException e) {
       throw new IncompatibleViewException("Given views are not from LocalDiffAwareness");
     }
-    if (!SequentialView.areInSequence(oldSequentialView, newSequentialView)) {
+    if (!SequentialView.areInSequence(oldSequentialView, newSequentialView)
+        || newSequentialView.modifiedAbsolutePaths == null) {
       return ModifiedFileSet.EVERYTHING_MODIFIED;
     }
     return ModifiedFileSet.builder()
@@ -213,11 +216,16 @@ public class LocalDiffAwareness implements DiffAwareness {
     }
   };
 
-  /** Returns the changed files caught by the watch service. */
-  private Set<Path> collectChanges() throws BrokenDiffAwarenessException, IOException {
+  /**
+   * Returns the changed files caught by the watch service, or null if the watch service lost
+   * events.
+   */
+  @Nullable
+  private Set<Path> collectChanges() throws IOException {
     Set<Path> createdFilesAndDirectories = new HashSet<>();
     Set<Path> deletedOrModifiedFilesAndDirectories = new HashSet<>();
     Set<Path> deletedTrackedDirectories = new HashSet<>();
+    boolean overflow = false;
 
     WatchKey watchKey;
     while ((watchKey = watchService.poll()) != null) {
@@ -228,19 +236,14 @@ public class LocalDiffAwareness implements DiffAwareness {
       // construct the diff of this directory since the last #collectChanges call.
       for (WatchEvent<?> event : watchKey.pollEvents()) {
         Kind<?> kind = event.kind();
-        if (kind == StandardWatchEventKinds.OVERFLOW) {
-          // TODO(bazel-team): find out when an overflow might happen, and maybe handle it more
-          // gently.
-          throw new BrokenDiffAwarenessException("Overflow when watching local filesystem for "
-              + "changes");
-        }
-        if (event.context() == null) {
-          // The WatchService documentation mentions that WatchEvent#context may return null, but
-          // doesn't explain how/why it would do so. Looking at the implementation, it only
-          // happens on an overflow event. But we make no assumptions about that implementation
-          // detail here.
-          throw new BrokenDiffAwarenessException("Insufficient information from local file system "
-              + "watcher");
+        // An overflow happens when too many events pile up for a single directory between two
+        // calls, for instance when a tool writes hundreds of files at once. The WatchService
+        // documentation mentions that WatchEvent#context may also return null, but doesn't explain
+        // how/why it would do so; we treat it as lost events as well. In both cases we keep
+        // draining and resetting the keys so that the watcher stays usable for the next call.
+        if (kind == StandardWatchEventKinds.OVERFLOW || event.context() == null) {
+          overflow = true;
+          continue;
         }
         // For the events we've registered, the context given is a relative path.
         Path relativePath = (Path) event.context();
@@ -297,6 +300,12 @@ public class LocalDiffAwareness implements DiffAwareness {
       // No more directories to watch, something happened the root directory being watched.
       throw new IOException("Root directory " + watchRootPath + " became inaccessible.");
     }
+    if (overflow) {
+      // Directories created while events were lost are not watched yet. Walking the whole tree
+      // registers them; directories that are already registered keep their keys.
+      registerSubDirectoriesAndReturnContents(watchRootPath);
+      return null;
+    }
 
     Set<Path> changedPaths = new HashSet<>();
     for (Path path : createdFilesAndDirectories) {
@@ -353,7 +362,8 @@ public class LocalDiffAwareness implements DiffAwareness {
           StandardWatchEventKinds.ENTRY_DELETE);
       Preconditions.checkState(path.isAbsolute(), path);
       visitedAbsolutePaths.add(path);
-      watchKeyToDirBiMap.put(key, path);
+      // A directory that was deleted and re-created gets a new key.
+      watchKeyToDirBiMap.forcePut(key, path);
       return FileVisitResult.CONTINUE;
     }
   }
@@ -76,6 +76,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
 
@@ -91,6 +92,8 @@ public class PackageFunction implements SkyFunction {
   private final Cache<PackageIdentifier, CacheEntryWithGlobDeps<AstAfterPreprocessing>> astCache;
   private final AtomicBoolean showLoadingProgress;
   private final AtomicInteger numPackagesLoaded;
+  private final AtomicReference<PersistentPackageCache> persistentPackageCache;
+  private final ParsedFileCache parsedFileCache;
   private final Profiler profiler = Profiler.instance();
   private final Label preludeLabel;
 
@@ -107,6 +110,26 @@ public class PackageFunction implements SkyFunction {
       Cache<PackageIdentifier, CacheEntryWithGlobDeps<AstAfterPreprocessing>> astCache,
       AtomicInteger numPackagesLoaded,
       @Nullable SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining) {
+    this(packageFactory, pkgLocator, showLoadingProgress, packageFunctionCache, astCache,
+        numPackagesLoaded, skylarkImportLookupFunctionForInlining,
+        new AtomicReference<PersistentPackageCache>(), new ParsedFileCache());
+  }
+
+  /**
+   * Creates a package function that also looks up packages in, and adds them to, the persistent
+   * package cache currently held by {@code persistentPackageCache}, if any, and that reuses the
+   * syntax trees of unchanged BUILD files in {@code parsedFileCache}.
+   */
+  public PackageFunction(
+      PackageFactory packageFactory,
+      CachingPackageLocator pkgLocator,
+      AtomicBoolean showLoadingProgress,
+      Cache<PackageIdentifier, CacheEntryWithGlobDeps<Package.LegacyBuilder>> packageFunctionCache,
+      Cache<PackageIdentifier, CacheEntryWithGlobDeps<AstAfterPreprocessing>> astCache,
+      AtomicInteger numPackagesLoaded,
+      @Nullable SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining,
+      AtomicReference<PersistentPackageCache> persistentPackageCache,
+      ParsedFileCache parsedFileCache) {
     this.skylarkImportLookupFunctionForInlining = skylarkImportLookupFunctionForInlining;
     // Can be null in tests.
     this.preludeLabel = packageFactory == null
@@ -118,6 +141,8 @@ public class PackageFunction implements SkyFunction {
     this.packageFunctionCache = packageFunctionCache;
     this.astCache = astCache;
     this.numPackagesLoaded = numPackagesLoaded;
+    this.persistentPackageCache = persistentPackageCache;
+    this.parsedFileCache = parsedFileCache;
   }
 
   public void setSkylarkImportLookupFunctionForInliningForTesting(
@@ -131,12 +156,22 @@ public class PackageFunction implements SkyFunction {
     private final Set<SkyKey> globDepKeys;
     @Nullable
     private final Globber legacyGlobber;
+    // The key under which the package is stored in the persistent package cache, or null if it is
+    // not to be stored there.
+    @Nullable
+    private final PersistentPackageCache.Key persistentCacheKey;
 
     private CacheEntryWithGlobDeps(T value, Set<SkyKey> globDepKeys,
         @Nullable Globber legacyGlobber) {
+      this(value, globDepKeys, legacyGlobber, null);
+    }
+
+    private CacheEntryWithGlobDeps(T value, Set<SkyKey> globDepKeys,
+        @Nullable Globber legacyGlobber, @Nullable PersistentPackageCache.Key persistentCacheKey) {
       this.value = value;
       this.globDepKeys = globDepKeys;
       this.legacyGlobber = legacyGlobber;
+      this.persistentCacheKey = persistentCacheKey;
     }
   }
 
@@ -513,6 +548,9 @@ public class PackageFunction implements SkyFunction {
       legacyPkgBuilder.setContainsErrors();
     }
     Package pkg = legacyPkgBuilder.finishBuild();
+    if (packageBuilderAndGlobDeps.persistentCacheKey != null && !pkg.containsErrors()) {
+      maybeWriteToPersistentCache(packageBuilderAndGlobDeps.persistentCacheKey, globKeys, pkg, env);
+    }
 
     // We know this SkyFunction will not be called again, so we can remove the cache entry.
     packageFunctionCache.invalidate(packageId);
@@ -520,6 +558,80 @@ public class PackageFunction implements SkyFunction {
     return new PackageValue(pkg);
   }
 
+  /**
+   * Stores a freshly evaluated package in the persistent package cache, together with the results
+   * of the globs it requested. Does nothing if any of those globs failed.
+   */
+  private void maybeWriteToPersistentCache(PersistentPackageCache.Key key, Set<SkyKey> globKeys,
+      Package pkg, Environment env) {
+    PersistentPackageCache cache = persistentPackageCache.get();
+    if (cache == null) {
+      return;
+    }
+    Map<GlobDescriptor, GlobValue> globs = new HashMap<>();
+    for (Map.Entry<SkyKey, SkyValue> entry : env.getValues(globKeys).entrySet()) {
+      if (entry.getValue() == null) {
+        return;
+      }
+      globs.put((GlobDescriptor) entry.getKey().argument(), (GlobValue) entry.getValue());
+    }
+    cache.write(key, globs, pkg);
+  }
+
+  /**
+   * Returns the package stored in the persistent package cache under {@code key}, with the glob
+   * dependencies it was evaluated with, if its imports and the results of its globs are unchanged.
+   * Returns null if there is no such package, or if glob values are missing, which the caller must
+   * check with {@link Environment#valuesMissing}.
+   */
+  @Nullable
+  private CacheEntryWithGlobDeps<Package.LegacyBuilder> loadFromPersistentCache(
+      PersistentPackageCache cache, PersistentPackageCache.Key key, PackageIdentifier packageId,
+      Path buildFilePath, Path packageRoot, Map<String, Extension> importMap, Environment env)
+      throws InterruptedException {
+    PersistentPackageCache.Entry entry = cache.read(key);
+    if (entry == null || !entry.importsMatch(importMap)) {
+      return null;
+    }
+    Map<SkyKey, PersistentPackageCache.Glob> globsByKey = new HashMap<>();
+    for (PersistentPackageCache.Glob glob : entry.getGlobs()) {
+      try {
+        globsByKey.put(
+            GlobValue.key(packageId, packageRoot, glob.pattern, glob.excludeDirs, glob.subdir),
+            glob);
+      } catch (InvalidGlobPatternException e) {
+        return null;
+      }
+    }
+    Map<SkyKey, ValueOrException4<IOException, BuildFileNotFoundException,
+        FileSymlinkCycleException, InconsistentFilesystemException>> globValues =
+        env.getValuesOrThrow(globsByKey.keySet(), IOException.class,
+            BuildFileNotFoundException.class, FileSymlinkCycleException.class,
+            InconsistentFilesystemException.class);
+    for (Map.Entry<SkyKey, PersistentPackageCache.Glob> globEntry : globsByKey.entrySet()) {
+      GlobValue globValue;
+      try {
+        globValue = (GlobValue) globValues.get(globEntry.getKey()).get();
+      } catch (IOException | BuildFileNotFoundException | FileSymlinkCycleException
+          | InconsistentFilesystemException e) {
+        // Let a regular evaluation report the error.
+        return null;
+      }
+      if (globValue != null && !globEntry.getValue().matches(globValue)) {
+        return null;
+      }
+    }
+    if (env.valuesMissing()) {
+      return null;
+    }
+    Package.LegacyBuilder pkgBuilder = entry.restore(packageId, buildFilePath);
+    if (pkgBuilder == null) {
+      return null;
+    }
+    return new CacheEntryWithGlobDeps<>(
+        pkgBuilder, ImmutableSet.copyOf(globsByKey.keySet()), null);
+  }
+
   private FileValue getBuildFileValue(Environment env, RootedPath buildFileRootedPath) {
     FileValue buildFileValue;
     try {
@@ -1097,6 +1209,7 @@ public class PackageFunction implements SkyFunction {
     if (packageFunctionCacheEntry == null) {
       profiler.startTask(ProfilerTask.CREATE_PACKAGE, packageId.toString());
       try {
+        PersistentPackageCache persistentCache = persistentPackageCache.get();
         CacheEntryWithGlobDeps<AstAfterPreprocessing> astCacheEntry =
             astCache.getIfPresent(packageId);
         if (astCacheEntry == null) {
@@ -1108,6 +1221,8 @@ public class PackageFunction implements SkyFunction {
           SkyframeHybridGlobber skyframeGlobber = new SkyframeHybridGlobber(packageId, packageRoot,
               env, legacyGlobber);
           Preprocessor.Result preprocessingResult;
+          PersistentPackageCache.Key persistentCacheKey = null;
+          ParsedFileCache.Key parsedFileCacheKey = null;
           if (replacementContents == null) {
             Preconditions.checkNotNull(buildFileValue, packageId);
             byte[] buildFileBytes;
@@ -1129,14 +1244,46 @@ public class PackageFunction implements SkyFunction {
                   new BuildFileContainsErrorsException(
                       packageId, "preprocessing failed" + e.getMessage(), e), Transience.TRANSIENT);
             }
+            // Neither the prelude nor the preprocessor is part of the key, so packages that use
+            // them are never cached.
+            if (persistentCache != null && preludeStatements.isEmpty()
+                && !preprocessingResult.preprocessed) {
+              persistentCacheKey = persistentCache.key(packageId, buildFilePath, buildFileBytes,
+                  defaultVisibility, externalPkg.getWorkspaceName());
+            }
+            if (parsedFileCache.isEnabled() && !preprocessingResult.preprocessed) {
+              byte[] digest;
+              try {
+                digest = ParsedFileCache.md5Digest(buildFilePath, buildFileValue, buildFileBytes);
+              } catch (IOException e) {
+                throw new PackageFunctionException(new BuildFileContainsErrorsException(
+                    packageId, e.getMessage()), Transience.TRANSIENT);
+              }
+              parsedFileCacheKey = new ParsedFileCache.Key(buildFilePath, digest,
+                  /*skylark=*/false, buildFileBytes.length);
+            }
           } else {
             ParserInputSource replacementSource =
                 ParserInputSource.create(replacementContents, buildFilePath.asFragment());
             preprocessingResult = Preprocessor.Result.noPreprocessing(replacementSource);
           }
           StoredEventHandler astParsingEventHandler = new StoredEventHandler();
-          BuildFileAST ast = PackageFactory.parseBuildFile(packageId, preprocessingResult.result,
-              preludeStatements, astParsingEventHandler);
+          BuildFileAST ast;
+          if (parsedFileCacheKey != null) {
+            // The prelude is not part of the key, so the file is cached without it.
+            BuildFileAST fileAst = parsedFileCache.get(parsedFileCacheKey);
+            if (fileAst == null) {
+              fileAst = PackageFactory.parseBuildFile(packageId, preprocessingResult.result,
+                  ImmutableList.<Statement>of(), astParsingEventHandler);
+              if (astParsingEventHandler.isEmpty()) {
+                parsedFileCache.put(parsedFileCacheKey, fileAst);
+              }
+            }
+            ast = fileAst.withPreludeStatements(preludeStatements);
+          } else {
+            ast = PackageFactory.parseBuildFile(packageId, preprocessingResult.result,
+                preludeStatements, astParsingEventHandler);
+          }
           // If no globs were fetched during preprocessing, then there's no need to reuse the
           // legacy globber instance during BUILD file evaluation since the performance argument
           // below does not apply.
@@ -1144,7 +1291,7 @@ public class PackageFunction implements SkyFunction {
           Globber legacyGlobberToStore = globDepsRequested.isEmpty() ? null : legacyGlobber;
           astCacheEntry = new CacheEntryWithGlobDeps<>(
               new AstAfterPreprocessing(preprocessingResult, ast, astParsingEventHandler),
-              globDepsRequested, legacyGlobberToStore);
+              globDepsRequested, legacyGlobberToStore, persistentCacheKey);
           astCache.put(packageId, astCacheEntry);
         }
         AstAfterPreprocessing astAfterPreprocessing = astCacheEntry.value;
@@ -1163,6 +1310,21 @@ public class PackageFunction implements SkyFunction {
         if (importResult == null) {
           return null;
         }
+        PersistentPackageCache.Key persistentCacheKey = null;
+        if (astCacheEntry.persistentCacheKey != null && persistentCache != null) {
+          persistentCacheKey = astCacheEntry.persistentCacheKey.withImports(importResult.importMap);
+          packageFunctionCacheEntry = loadFromPersistentCache(persistentCache, persistentCacheKey,
+              packageId, buildFilePath, packageRoot, importResult.importMap, env);
+          if (packageFunctionCacheEntry != null) {
+            astCache.invalidate(packageId);
+            numPackagesLoaded.incrementAndGet();
+            packageFunctionCache.put(packageId, packageFunctionCacheEntry);
+            return packageFunctionCacheEntry;
+          }
+          if (env.valuesMissing()) {
+            return null;
+          }
+        }
         astCache.invalidate(packageId);
         // If a legacy globber was used to evaluate globs during preprocessing, it's important that
         // we reuse that globber during BUILD file evaluation for performance, in the case that
@@ -1181,7 +1343,7 @@ public class PackageFunction implements SkyFunction {
             .addAll(skyframeGlobber.getGlobDepsRequested())
             .build();
         packageFunctionCacheEntry =
-            new CacheEntryWithGlobDeps<>(pkgBuilder, globDepsRequested, null);
+            new CacheEntryWithGlobDeps<>(pkgBuilder, globDepsRequested, null, persistentCacheKey);
         numPackagesLoaded.incrementAndGet();
         packageFunctionCache.put(packageId, packageFunctionCacheEntry);
       } finally {
@@ -0,0 +1,142 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+import javax.annotation.Nullable;
+
+/**
+ * An in-memory cache of parsed BUILD and Skylark files, so that a file whose contents did not
+ * change is not parsed again when the Skyframe node that parsed it is re-evaluated, for example
+ * because a glob or a Skylark import of the package changed.
+ *
+ * <p>Entries are keyed by the path and the MD5 digest of the file. The path is part of the key
+ * because the locations in the syntax tree refer to it. Only files that parsed without any events
+ * are added, so there is nothing to replay on a hit. The cache is bounded by the total size of the
+ * cached files, and disabled until {@link #setCapacity} is called with a positive size.
+ */
+public final class ParsedFileCache {
+
+  /** Identifies a cached file. */
+  static final class Key {
+    private final Path path;
+    private final byte[] digest;
+    private final boolean skylark;
+    private final long size;
+
+    Key(Path path, byte[] digest, boolean skylark, long size) {
+      this.path = path;
+      this.digest = digest;
+      this.skylark = skylark;
+      this.size = size;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) other;
+      return path.equals(that.path) && Arrays.equals(digest, that.digest)
+          && skylark == that.skylark;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, Arrays.hashCode(digest), skylark);
+    }
+
+    @Override
+    public String toString() {
+      return path + "@" + HashCode.fromBytes(digest);
+    }
+  }
+
+  private static final Weigher<Key, BuildFileAST> FILE_SIZE_WEIGHER =
+      new Weigher<Key, BuildFileAST>() {
+        @Override
+        public int weigh(Key key, BuildFileAST ast) {
+          return (int) Math.min(key.size, Integer.MAX_VALUE);
+        }
+      };
+
+  private volatile long capacity = 0;
+  @Nullable private volatile Cache<Key, BuildFileAST> cache = null;
+
+  /**
+   * Sets the total size in bytes of the files whose syntax trees are kept. A different capacity
+   * drops all entries; zero disables the cache.
+   */
+  public synchronized void setCapacity(long capacity) {
+    if (capacity == this.capacity) {
+      return;
+    }
+    this.capacity = capacity;
+    cache = capacity <= 0
+        ? null
+        : CacheBuilder.newBuilder()
+            .maximumWeight(capacity)
+            .weigher(FILE_SIZE_WEIGHER)
+            .<Key, BuildFileAST>build();
+  }
+
+  /**
+   * Returns the MD5 digest of a file that was read as {@code contents}. The digest the file system
+   * provided for {@code fileValue} is used if it is an MD5 digest of the same contents; otherwise
+   * the contents are hashed, which saves reading the file again as {@link Path#getMD5Digest} does.
+   */
+  static byte[] md5Digest(Path path, @Nullable FileValue fileValue, byte[] contents)
+      throws IOException {
+    if (fileValue != null && fileValue.isFile() && !fileValue.isSpecialFile()
+        && fileValue.getSize() == contents.length
+        && "MD5".equals(path.getFastDigestFunctionType())) {
+      byte[] digest = fileValue.getDigest();
+      if (digest != null) {
+        return digest;
+      }
+    }
+    return Hashing.md5().hashBytes(contents).asBytes();
+  }
+
+  /** Returns whether the cache currently keeps any files. */
+  boolean isEnabled() {
+    return cache != null;
+  }
+
+  /** Returns the cached syntax tree of the file, or null. */
+  @Nullable
+  BuildFileAST get(Key key) {
+    Cache<Key, BuildFileAST> current = cache;
+    return current == null ? null : current.getIfPresent(key);
+  }
+
+  /** Adds the syntax tree of a file that was parsed without any events. */
+  void put(Key key, BuildFileAST ast) {
+    Cache<Key, BuildFileAST> current = cache;
+    if (current != null && !ast.containsErrors()) {
+      current.put(key, ast);
+    }
+  }
+}
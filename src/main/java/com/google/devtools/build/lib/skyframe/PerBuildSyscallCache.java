@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.vfs.Dirent;
@@ -24,23 +25,39 @@ import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.lib.vfs.UnixGlob;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 
 /**
  * A per-build cache of filesystem operations for Skyframe invocations of legacy package loading.
+ *
+ * <p>The cache may also be kept across builds if it is told about all changes to the file system
+ * through {@link #invalidate}.
  */
 public class PerBuildSyscallCache implements UnixGlob.FilesystemCalls {
 
-  private final LoadingCache<Pair<Path, Symlinks>, FileStatus> statCache;
-  private final LoadingCache<Pair<Path, Symlinks>, Pair<Collection<Dirent>, IOException>>
-      readdirCache;
+  // One cache per Symlinks value, so that lookups need not allocate a compound key.
+  private final LoadingCache<Path, FileStatus> statCache;
+  private final LoadingCache<Path, FileStatus> lstatCache;
+  private final LoadingCache<Path, Pair<Collection<Dirent>, IOException>> readdirCache;
+  private final LoadingCache<Path, Pair<Collection<Dirent>, IOException>> readdirNoFollowCache;
+
+  private CacheStats lastStatStats = new CacheStats(0, 0, 0, 0, 0, 0);
+  private CacheStats lastReaddirStats = new CacheStats(0, 0, 0, 0, 0, 0);
 
   private static final FileStatus NO_STATUS = new FakeFileStatus();
 
-  private PerBuildSyscallCache(LoadingCache<Pair<Path, Symlinks>, FileStatus> statCache,
-      LoadingCache<Pair<Path, Symlinks>, Pair<Collection<Dirent>, IOException>> readdirCache) {
+  private PerBuildSyscallCache(LoadingCache<Path, FileStatus> statCache,
+      LoadingCache<Path, FileStatus> lstatCache,
+      LoadingCache<Path, Pair<Collection<Dirent>, IOException>> readdirCache,
+      LoadingCache<Path, Pair<Collection<Dirent>, IOException>> readdirNoFollowCache) {
     this.statCache = statCache;
+    this.lstatCache = lstatCache;
     this.readdirCache = readdirCache;
+    this.readdirNoFollowCache = readdirNoFollowCache;
   }
 
   public static Builder newBuilder() {
@@ -76,27 +93,29 @@ public class PerBuildSyscallCache implements UnixGlob.FilesystemCalls {
     }
 
     public PerBuildSyscallCache build() {
-      CacheBuilder<Object, Object> statCacheBuilder = CacheBuilder.newBuilder();
-      if (maxStats != UNSET) {
-        statCacheBuilder = statCacheBuilder.maximumSize(maxStats);
-      }
-      CacheBuilder<Object, Object> readdirCacheBuilder = CacheBuilder.newBuilder();
-      if (maxReaddirs != UNSET) {
-        readdirCacheBuilder = readdirCacheBuilder.maximumSize(maxStats);
+      return new PerBuildSyscallCache(
+          newCacheBuilder(maxStats).build(newStatLoader(Symlinks.FOLLOW)),
+          newCacheBuilder(maxStats).build(newStatLoader(Symlinks.NOFOLLOW)),
+          newCacheBuilder(maxReaddirs).build(newReaddirLoader(Symlinks.FOLLOW)),
+          newCacheBuilder(maxReaddirs).build(newReaddirLoader(Symlinks.NOFOLLOW)));
+    }
+
+    private CacheBuilder<Object, Object> newCacheBuilder(int maxSize) {
+      CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder().recordStats();
+      if (maxSize != UNSET) {
+        cacheBuilder = cacheBuilder.maximumSize(maxSize);
       }
       if (concurrencyLevel != UNSET) {
-        statCacheBuilder = statCacheBuilder.concurrencyLevel(concurrencyLevel);
-        readdirCacheBuilder = readdirCacheBuilder.concurrencyLevel(concurrencyLevel);
+        cacheBuilder = cacheBuilder.concurrencyLevel(concurrencyLevel);
       }
-      return new PerBuildSyscallCache(statCacheBuilder.build(newStatLoader()),
-          readdirCacheBuilder.build(newReaddirLoader()));
+      return cacheBuilder;
     }
   }
 
   @Override
   public Collection<Dirent> readdir(Path path, Symlinks symlinks) throws IOException {
     Pair<Collection<Dirent>, IOException> result =
-        readdirCache.getUnchecked(Pair.of(path, symlinks));
+        (symlinks == Symlinks.FOLLOW ? readdirCache : readdirNoFollowCache).getUnchecked(path);
     Collection<Dirent> entries = result.getFirst();
     if (entries != null) {
       return entries;
@@ -106,10 +125,82 @@ public class PerBuildSyscallCache implements UnixGlob.FilesystemCalls {
 
   @Override
   public FileStatus statNullable(Path path, Symlinks symlinks) {
-    FileStatus status = statCache.getUnchecked(Pair.of(path, symlinks));
+    FileStatus status =
+        (symlinks == Symlinks.FOLLOW ? statCache : lstatCache).getUnchecked(path);
     return (status == NO_STATUS) ? null : status;
   }
 
+  /**
+   * Removes the entries that changes to {@code modifiedPaths} may have made stale: the entries for
+   * the modified paths themselves, for their parent directories and for everything below them.
+   * Entries for paths not under any of {@code roots} are removed as well, since the caller has no
+   * diff information for them.
+   */
+  public void invalidate(Iterable<Path> roots, Iterable<Path> modifiedPaths) {
+    Set<Path> rootSet = new HashSet<>();
+    for (Path root : roots) {
+      rootSet.add(root);
+    }
+    Set<Path> modifiedSet = new HashSet<>();
+    Set<Path> parentsOfModified = new HashSet<>();
+    for (Path path : modifiedPaths) {
+      modifiedSet.add(path);
+      parentsOfModified.add(path.getParentDirectory());
+    }
+    for (LoadingCache<Path, ?> cache : caches()) {
+      Iterator<Path> it = cache.asMap().keySet().iterator();
+      while (it.hasNext()) {
+        if (isStale(it.next(), rootSet, modifiedSet, parentsOfModified)) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private static boolean isStale(Path path, Set<Path> roots, Set<Path> modifiedPaths,
+      Set<Path> parentsOfModified) {
+    if (parentsOfModified.contains(path)) {
+      return true;
+    }
+    for (Path ancestor = path; ancestor != null; ancestor = ancestor.getParentDirectory()) {
+      if (modifiedPaths.contains(ancestor)) {
+        return true;
+      }
+      if (roots.contains(ancestor)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Removes all entries. */
+  public void invalidateAll() {
+    for (LoadingCache<Path, ?> cache : caches()) {
+      cache.invalidateAll();
+    }
+  }
+
+  /**
+   * Returns a description of the number of lookups and the hit rates since the last call, or since
+   * the creation of the cache.
+   */
+  public String getAndResetStatistics() {
+    CacheStats statStats = statCache.stats().plus(lstatCache.stats());
+    CacheStats readdirStats = readdirCache.stats().plus(readdirNoFollowCache.stats());
+    CacheStats statDelta = statStats.minus(lastStatStats);
+    CacheStats readdirDelta = readdirStats.minus(lastReaddirStats);
+    lastStatStats = statStats;
+    lastReaddirStats = readdirStats;
+    return String.format("Syscall cache: %d stats (%.1f%% hits), %d readdirs (%.1f%% hits)",
+        statDelta.requestCount(), statDelta.hitRate() * 100,
+        readdirDelta.requestCount(), readdirDelta.hitRate() * 100);
+  }
+
+  private Iterable<LoadingCache<Path, ?>> caches() {
+    return Arrays.<LoadingCache<Path, ?>>asList(
+        statCache, lstatCache, readdirCache, readdirNoFollowCache);
+  }
+
   // This is used because the cache implementations don't allow null.
   private static final class FakeFileStatus implements FileStatus {
     @Override
@@ -155,14 +246,14 @@ public class PerBuildSyscallCache implements UnixGlob.FilesystemCalls {
 
   /**
    * A {@link CacheLoader} for a cache of stat calls.
-   * Input: (path, following_symlinks)
+   * Input: path
    * Output: FileStatus
    */
-  private static CacheLoader<Pair<Path, Symlinks>, FileStatus> newStatLoader() {
-    return new CacheLoader<Pair<Path, Symlinks>, FileStatus>() {
+  private static CacheLoader<Path, FileStatus> newStatLoader(final Symlinks symlinks) {
+    return new CacheLoader<Path, FileStatus>() {
         @Override
-        public FileStatus load(Pair<Path, Symlinks> p) {
-          FileStatus f = p.first.statNullable(p.second);
+        public FileStatus load(Path path) {
+          FileStatus f = path.statNullable(symlinks);
           return (f == null) ? NO_STATUS : f;
         }
       };
@@ -170,18 +261,18 @@ public class PerBuildSyscallCache implements UnixGlob.FilesystemCalls {
 
   /**
    * A {@link CacheLoader} for a cache of readdir calls.
-   * Input: (path, following_symlinks)
+   * Input: path
    * Output: A union of (Dirents, IOException).
    */
-  private static
-  CacheLoader<Pair<Path, Symlinks>, Pair<Collection<Dirent>, IOException>> newReaddirLoader() {
-    return new CacheLoader<Pair<Path, Symlinks>, Pair<Collection<Dirent>, IOException>>() {
+  private static CacheLoader<Path, Pair<Collection<Dirent>, IOException>> newReaddirLoader(
+      final Symlinks symlinks) {
+    return new CacheLoader<Path, Pair<Collection<Dirent>, IOException>>() {
         @Override
-        public Pair<Collection<Dirent>, IOException> load(Pair<Path, Symlinks> p) {
+        public Pair<Collection<Dirent>, IOException> load(Path path) {
           try {
             // TODO(bazel-team): Consider storing the Collection of Dirent values more compactly
             // by reusing DirectoryEntryListingStateValue#CompactSortedDirents.
-            return Pair.of(p.first.readdir(p.second), null);
+            return Pair.of(path.readdir(symlinks), null);
           } catch (IOException e) {
             return Pair.of(null, e);
           }
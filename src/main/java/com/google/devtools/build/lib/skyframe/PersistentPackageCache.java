@@ -0,0 +1,316 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CountingInputStream;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageSerializer;
+import com.google.devtools.build.lib.packages.RuleClassProvider;
+import com.google.devtools.build.lib.packages.RuleVisibility;
+import com.google.devtools.build.lib.syntax.Environment.Extension;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.LruDirectoryStore;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * An on-disk cache of loaded packages, so that a new server can load a package whose inputs did
+ * not change without evaluating its BUILD file.
+ *
+ * <p>Entries are content-addressed: an entry's file name is a fingerprint of the BUILD file
+ * contents and of everything else that is known before the BUILD file's Skylark imports are
+ * loaded (see {@link #key}). Each entry also records the transitive content hash of every import
+ * and a digest of the result of every glob the evaluation requested. An entry is only used if those
+ * are unchanged as well, which the caller checks through {@link Entry#importsMatch} and
+ * {@link Entry#getGlobs}, so that it requests the same Skyframe dependencies as an evaluation
+ * would have.
+ *
+ * <p>The entries are kept in a {@link LruDirectoryStore}, so concurrent servers never see a partial
+ * entry and the least recently used entries are deleted once they take more than the configured
+ * size. Unreadable entries are treated as missing.
+ */
+public final class PersistentPackageCache {
+
+  private static final Logger LOG = Logger.getLogger(PersistentPackageCache.class.getName());
+
+  private static final int MAGIC = 0x50504B43;
+  private static final int FORMAT_VERSION = 1;
+
+  private final LruDirectoryStore store;
+  private final String salt;
+  private final RuleClassProvider ruleClassProvider;
+
+  private final AtomicInteger restoredPackages = new AtomicInteger();
+
+  /**
+   * Creates a cache in {@code directory} that keeps at most about {@code maxSizeBytes} of entries.
+   * Entries written with a different {@code salt}, which should identify the binary and therefore
+   * the rule classes, are never used.
+   */
+  public PersistentPackageCache(Path directory, String salt, RuleClassProvider ruleClassProvider,
+      long maxSizeBytes) {
+    this.store = new LruDirectoryStore(directory, maxSizeBytes);
+    this.salt = salt;
+    this.ruleClassProvider = ruleClassProvider;
+    try {
+      store.loadEntries();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Cannot list package cache " + directory, e);
+    }
+  }
+
+  public Path getDirectory() {
+    return store.getDirectory();
+  }
+
+  public long getMaxSizeBytes() {
+    return store.getMaxSizeBytes();
+  }
+
+  /** Returns how many packages were restored from this cache. */
+  @VisibleForTesting
+  int getRestoredPackages() {
+    return restoredPackages.get();
+  }
+
+  /**
+   * Identifies a cache entry. A key is first created from the BUILD file, and then completed with
+   * the transitive content hashes of its Skylark imports before the package is written.
+   */
+  static final class Key {
+    private final String name;
+    @Nullable private final ImmutableMap<String, String> importHashes;
+
+    private Key(String name, @Nullable ImmutableMap<String, String> importHashes) {
+      this.name = name;
+      this.importHashes = importHashes;
+    }
+
+    Key withImports(Map<String, Extension> importMap) {
+      return new Key(name, importHashes(importMap));
+    }
+  }
+
+  /**
+   * Returns the key of the entry for a package evaluated from the given BUILD file contents and
+   * environment.
+   */
+  Key key(PackageIdentifier packageId, Path buildFile, byte[] buildFileContents,
+      RuleVisibility defaultVisibility, String workspaceName) {
+    Fingerprint fingerprint = new Fingerprint();
+    fingerprint.addInt(FORMAT_VERSION);
+    fingerprint.addString(salt);
+    fingerprint.addString(packageId.toString());
+    fingerprint.addPath(buildFile);
+    fingerprint.addBytes(buildFileContents);
+    for (Label label : defaultVisibility.getDeclaredLabels()) {
+      fingerprint.addString(label.toString());
+    }
+    fingerprint.addString(workspaceName);
+    return new Key(fingerprint.hexDigestAndReset(), null);
+  }
+
+  /** Returns the transitive content hash of each import, keyed by import string. */
+  static ImmutableMap<String, String> importHashes(Map<String, Extension> importMap) {
+    Map<String, String> hashes = new TreeMap<>();
+    for (Map.Entry<String, Extension> entry : importMap.entrySet()) {
+      hashes.put(entry.getKey(), entry.getValue().getTransitiveContentHashCode());
+    }
+    return ImmutableMap.copyOf(hashes);
+  }
+
+  /** Returns a digest of the files matched by a glob. */
+  static byte[] globDigest(GlobValue globValue) {
+    List<String> matches = new ArrayList<>();
+    for (PathFragment match : globValue.getMatches()) {
+      matches.add(match.getPathString());
+    }
+    Collections.sort(matches);
+    return new Fingerprint().addStrings(matches).digestAndReset();
+  }
+
+  /** A glob requested while evaluating a cached package, with a digest of its result. */
+  static final class Glob {
+    final PathFragment subdir;
+    final String pattern;
+    final boolean excludeDirs;
+    private final byte[] digest;
+
+    Glob(PathFragment subdir, String pattern, boolean excludeDirs, byte[] digest) {
+      this.subdir = subdir;
+      this.pattern = pattern;
+      this.excludeDirs = excludeDirs;
+      this.digest = digest;
+    }
+
+    /** Returns whether {@code globValue} has the same matches as when the entry was written. */
+    boolean matches(GlobValue globValue) {
+      return Arrays.equals(digest, globDigest(globValue));
+    }
+  }
+
+  /** A cache entry whose imports and globs have not been checked yet. */
+  final class Entry {
+    private final ImmutableMap<String, String> importHashes;
+    private final ImmutableList<Glob> globs;
+    private final byte[] serializedPackage;
+
+    private Entry(ImmutableMap<String, String> importHashes, ImmutableList<Glob> globs,
+        byte[] serializedPackage) {
+      this.importHashes = importHashes;
+      this.globs = globs;
+      this.serializedPackage = serializedPackage;
+    }
+
+    boolean importsMatch(Map<String, Extension> importMap) {
+      return importHashes.equals(importHashes(importMap));
+    }
+
+    ImmutableList<Glob> getGlobs() {
+      return globs;
+    }
+
+    /**
+     * Restores the package. Returns null if it can no longer be restored, for example because the
+     * rule classes changed in a way the salt did not capture.
+     */
+    @Nullable
+    Package.LegacyBuilder restore(PackageIdentifier packageId, Path buildFile)
+        throws InterruptedException {
+      try {
+        Package.LegacyBuilder pkgBuilder = PackageSerializer.deserialize(
+            new ByteArrayInputStream(serializedPackage), packageId, buildFile, ruleClassProvider);
+        restoredPackages.incrementAndGet();
+        return pkgBuilder;
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Cannot restore cached package " + packageId, e);
+        return null;
+      }
+    }
+  }
+
+  /** Returns the entry stored under {@code key}, or null if there is none or it is unreadable. */
+  @Nullable
+  Entry read(Key key) {
+    Path path = store.getEntryFile(key.name);
+    try (CountingInputStream in = new CountingInputStream(path.getInputStream())) {
+      DataInputStream dataIn = new DataInputStream(in);
+      if (dataIn.readInt() != MAGIC || dataIn.readInt() != FORMAT_VERSION) {
+        return null;
+      }
+      int numImports = dataIn.readInt();
+      ImmutableMap.Builder<String, String> importHashes = ImmutableMap.builder();
+      for (int i = 0; i < numImports; i++) {
+        importHashes.put(dataIn.readUTF(), dataIn.readUTF());
+      }
+      int numGlobs = dataIn.readInt();
+      ImmutableList.Builder<Glob> globs = ImmutableList.builder();
+      for (int i = 0; i < numGlobs; i++) {
+        PathFragment subdir = new PathFragment(dataIn.readUTF());
+        String pattern = dataIn.readUTF();
+        boolean excludeDirs = dataIn.readBoolean();
+        byte[] digest = new byte[dataIn.readInt()];
+        dataIn.readFully(digest);
+        globs.add(new Glob(subdir, pattern, excludeDirs, digest));
+      }
+      byte[] serializedPackage = new byte[dataIn.readInt()];
+      dataIn.readFully(serializedPackage);
+      store.markUsed(key.name, in.getCount());
+      return new Entry(importHashes.build(), globs.build(), serializedPackage);
+    } catch (FileNotFoundException e) {
+      return null;
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.log(Level.WARNING, "Cannot read package cache entry " + path, e);
+      return null;
+    }
+  }
+
+  /**
+   * Stores {@code pkg} under {@code key}, together with the imports and globs its evaluation used.
+   * Packages that {@link PackageSerializer} cannot write are silently skipped.
+   */
+  void write(Key key, Map<GlobDescriptor, GlobValue> globs, Package pkg) {
+    Preconditions.checkNotNull(key.importHashes, key.name);
+    ByteArrayOutputStream serializedPackage = new ByteArrayOutputStream();
+    try {
+      PackageSerializer.serialize(pkg, ruleClassProvider, serializedPackage);
+    } catch (NotSerializableException e) {
+      return;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+
+    Path tmpPath = null;
+    try {
+      tmpPath = store.createTempFile(key.name);
+      long size;
+      try (OutputStream out = tmpPath.getOutputStream()) {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.writeInt(MAGIC);
+        dataOut.writeInt(FORMAT_VERSION);
+        dataOut.writeInt(key.importHashes.size());
+        for (Map.Entry<String, String> entry : key.importHashes.entrySet()) {
+          dataOut.writeUTF(entry.getKey());
+          dataOut.writeUTF(entry.getValue());
+        }
+        dataOut.writeInt(globs.size());
+        for (Map.Entry<GlobDescriptor, GlobValue> entry : globs.entrySet()) {
+          GlobDescriptor glob = entry.getKey();
+          dataOut.writeUTF(glob.getSubdir().getPathString());
+          dataOut.writeUTF(glob.getPattern());
+          dataOut.writeBoolean(glob.excludeDirs());
+          byte[] digest = globDigest(entry.getValue());
+          dataOut.writeInt(digest.length);
+          dataOut.write(digest);
+        }
+        dataOut.writeInt(serializedPackage.size());
+        serializedPackage.writeTo(dataOut);
+        dataOut.flush();
+        size = dataOut.size();
+      }
+      store.commit(tmpPath, key.name, size);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Cannot write package cache entry " + store.getEntryFile(key.name), e);
+      if (tmpPath != null) {
+        store.discard(tmpPath);
+      }
+    }
+  }
+}
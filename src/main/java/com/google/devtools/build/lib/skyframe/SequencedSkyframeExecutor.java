@@ -24,6 +24,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.BuildView;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
@@ -33,6 +34,7 @@ import com.google.devtools.build.lib.analysis.buildinfo.BuildInfoFactory;
 import com.google.devtools.build.lib.analysis.config.BinTools;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.packages.Package;
 import com.google.devtools.build.lib.packages.PackageFactory;
@@ -66,11 +68,17 @@ import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -96,6 +104,12 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
   // store edges, saving memory but making incremental builds impossible.
   private boolean keepGraphEdges = true;
 
+  // Where the graph is saved on a clean shutdown, or null if --experimental_skyframe_graph_snapshot
+  // is not set.
+  private Path graphSnapshot;
+  // Whether the first sync of this executor, the only one that may load a graph snapshot, is over.
+  private boolean graphSnapshotLoadAttempted = false;
+
   private RecordingDifferencer recordingDiffer;
   private final DiffAwarenessManager diffAwarenessManager;
   private final Iterable<SkyValueDirtinessChecker> customDirtinessCheckers;
@@ -252,11 +266,78 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       TimestampGranularityMonitor tsgm)
           throws InterruptedException, AbruptExitException {
     this.valueCacheEvictionLimit = packageCacheOptions.minLoadedPkgCountForCtNodeEviction;
+    if (!graphSnapshotLoadAttempted) {
+      graphSnapshotLoadAttempted = true;
+      maybeLoadGraphSnapshot(eventHandler);
+    }
+    // The package locator of a loaded graph is new to this server, so this invalidates the values
+    // that depend on it, and handleDiffs checks all files of the loaded graph for changes.
     super.sync(eventHandler, packageCacheOptions, outputBase, workingDirectory,
         defaultsPackageContents, commandId, tsgm);
     handleDiffs(eventHandler, packageCacheOptions.checkOutputFiles);
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The graph is saved in the output base, under a file name that contains the install base
+   * key, so a different binary never loads the snapshot.
+   */
+  @Override
+  public void setGraphSnapshotEnabled(boolean enabled) {
+    HashCode installMD5 = getBlazeDirectories().getInstallMD5();
+    if (!enabled || installMD5 == null
+        || !(memoizingEvaluator instanceof InMemoryMemoizingEvaluator)) {
+      graphSnapshot = null;
+    } else {
+      graphSnapshot =
+          getBlazeDirectories().getOutputBase().getRelative("skyframe_graph_" + installMD5);
+    }
+  }
+
+  /**
+   * Loads the graph saved by the previous server, if any. The snapshot is deleted afterwards, so
+   * that it is never loaded again after the graph it was made from moved on.
+   */
+  private void maybeLoadGraphSnapshot(EventHandler eventHandler) {
+    if (graphSnapshot == null || !graphSnapshot.exists()) {
+      return;
+    }
+    if (memoizingEvaluator.getValues().isEmpty()) {
+      try (AutoProfiler p = AutoProfiler.logged("loading Skyframe graph", LOG)) {
+        int nodes = loadGraph(graphSnapshot);
+        LOG.info("Loaded " + nodes + " Skyframe nodes from " + graphSnapshot);
+      } catch (IOException | RuntimeException e) {
+        // A snapshot that cannot be read only costs the time to evaluate everything from scratch.
+        eventHandler.handle(Event.warn(
+            "Cannot load Skyframe graph from " + graphSnapshot + ": " + e.getMessage()));
+      }
+    } else {
+      // Something was evaluated before the first sync. Merging the snapshot into the graph is not
+      // supported.
+      LOG.info("Not loading " + graphSnapshot + " into a graph that is already in use");
+    }
+    try {
+      graphSnapshot.delete();
+    } catch (IOException e) {
+      LOG.warning("Cannot delete " + graphSnapshot + ": " + e.getMessage());
+    }
+  }
+
+  @Override
+  public void prepareForCleanShutdown(EventHandler eventHandler) {
+    if (graphSnapshot == null || !keepGraphEdges) {
+      return;
+    }
+    try (AutoProfiler p = AutoProfiler.logged("saving Skyframe graph", LOG)) {
+      int nodes = saveGraph(graphSnapshot);
+      LOG.info("Saved " + nodes + " Skyframe nodes to " + graphSnapshot);
+    } catch (IOException e) {
+      eventHandler.handle(Event.warn(
+          "Cannot save Skyframe graph to " + graphSnapshot + ": " + e.getMessage()));
+    }
+  }
+
   /**
    * The value types whose builders have direct access to the package locator, rather than accessing
    * it via an explicit Skyframe dependency. They need to be invalidated if the package locator
@@ -335,6 +416,18 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
         modifiedFilesByPathEntry.put(pathEntry, modifiedFileSet);
       }
     }
+    if (pathEntriesWithoutDiffInformation.isEmpty()) {
+      List<Path> modifiedPaths = new ArrayList<>();
+      for (Map.Entry<Path, DiffAwarenessManager.ProcessableModifiedFileSet> entry :
+          modifiedFilesByPathEntry.entrySet()) {
+        for (PathFragment file : entry.getValue().getModifiedFileSet().modifiedSourceFiles()) {
+          modifiedPaths.add(entry.getKey().getRelative(file));
+        }
+      }
+      invalidateSyscallCache(modifiedFilesByPathEntry.keySet(), modifiedPaths);
+    } else {
+      invalidateSyscallCache(ImmutableList.<Path>of(), ImmutableList.<Path>of());
+    }
     handleDiffsWithCompleteDiffInformation(tsgm, modifiedFilesByPathEntry);
     handleDiffsWithMissingDiffInformation(eventHandler, tsgm, pathEntriesWithoutDiffInformation,
         checkOutputFiles);
@@ -656,6 +749,45 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     memoizingEvaluator.deleteDirty(versionWindowForDirtyGc);
   }
 
+  /**
+   * Writes the serializable part of the Skyframe graph to {@code path}, so that a later server can
+   * pick it up with {@link #loadGraph}. The file is replaced atomically. Returns the number of
+   * nodes written.
+   */
+  public int saveGraph(Path path) throws IOException {
+    Preconditions.checkState(keepGraphEdges, "Cannot save a graph without edges");
+    Path tmpPath = path.getParentDirectory().getChild(path.getBaseName() + ".tmp");
+    int nodes;
+    try (OutputStream out = new BufferedOutputStream(tmpPath.getOutputStream())) {
+      nodes = ((InMemoryMemoizingEvaluator) memoizingEvaluator).saveGraph(out);
+    }
+    tmpPath.renameTo(path);
+    return nodes;
+  }
+
+  /**
+   * Restores a graph written by {@link #saveGraph} into this (not yet used) executor and returns
+   * the number of nodes restored.
+   *
+   * <p>No diff information is available for the first build after a restart, so the next
+   * {@link #sync} checks every file value in the graph, including the restored ones, with the
+   * {@link FilesystemValueChecker} and only invalidates those that actually changed. If the file
+   * cannot be read, the graph is left empty and everything is evaluated from scratch.
+   */
+  public int loadGraph(Path path) throws IOException {
+    int nodes;
+    try (InputStream in = new BufferedInputStream(path.getInputStream())) {
+      nodes = ((InMemoryMemoizingEvaluator) memoizingEvaluator).loadGraph(in);
+    } catch (IOException | RuntimeException e) {
+      resetEvaluator();
+      throw e;
+    }
+    // The restored graph may contain external and output files that were never noted by this
+    // server, so make sure the next sync checks them as well.
+    externalFilesHelper.noteAllFileTypesSeen();
+    return nodes;
+  }
+
   @Override
   public void dumpPackages(PrintStream out) {
     Iterable<SkyKey> packageSkyKeys = Iterables.filter(memoizingEvaluator.getValues().keySet(),
@@ -33,6 +33,7 @@ import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Range;
 import com.google.common.eventbus.EventBus;
+import com.google.common.hash.HashCode;
 import com.google.devtools.build.lib.actions.ActionAnalysisMetadata;
 import com.google.devtools.build.lib.actions.ActionCacheChecker;
 import com.google.devtools.build.lib.actions.ActionExecutionContextFactory;
@@ -102,11 +103,14 @@ import com.google.devtools.build.lib.pkgcache.TargetParsingCompleteEvent;
 import com.google.devtools.build.lib.pkgcache.TestFilter;
 import com.google.devtools.build.lib.pkgcache.TransitivePackageLoader;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.skyframe.AspectValue.AspectValueKey;
 import com.google.devtools.build.lib.skyframe.DirtinessCheckerUtils.FileDirtinessChecker;
 import com.google.devtools.build.lib.skyframe.PackageFunction.CacheEntryWithGlobDeps;
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ActionCompletedReceiver;
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ProgressSupplier;
+import com.google.devtools.build.lib.syntax.UserDefinedFunction;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.Preconditions;
@@ -120,14 +124,17 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.lib.vfs.UnixGlob;
 import com.google.devtools.build.skyframe.BuildDriver;
+import com.google.devtools.build.skyframe.ComputeTimePriorityPolicy;
 import com.google.devtools.build.skyframe.CycleInfo;
 import com.google.devtools.build.skyframe.CyclesReporter;
 import com.google.devtools.build.skyframe.Differencer;
 import com.google.devtools.build.skyframe.Differencer.DiffWithDelta.Delta;
 import com.google.devtools.build.skyframe.ErrorInfo;
+import com.google.devtools.build.skyframe.EvaluationPriorityPolicy;
 import com.google.devtools.build.skyframe.EvaluationProgressReceiver;
 import com.google.devtools.build.skyframe.EvaluationResult;
 import com.google.devtools.build.skyframe.ImmutableDiff;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
 import com.google.devtools.build.skyframe.Injectable;
 import com.google.devtools.build.skyframe.MemoizingEvaluator;
 import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
@@ -189,6 +196,11 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
       // performance.
       System.getenv("TEST_TMPDIR") == null ? 200 : 5;
 
+  /** Nodes that computed faster than this are not given a priority by compute time. */
+  private static final long COMPUTE_TIME_PRIORITY_THRESHOLD_MILLIS = 10;
+  /** The maximum number of nodes whose compute time is remembered. */
+  private static final int COMPUTE_TIME_PRIORITY_MAX_NODES = 100000;
+
   // Cache of partially constructed Package instances, stored between reruns of the PackageFunction
   // (because of missing dependencies, within the same evaluate() run) to avoid loading the same
   // package twice (first time loading to find subincludes and declare value dependencies).
@@ -210,6 +222,13 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final AtomicBoolean showLoadingProgress = new AtomicBoolean();
   protected final AtomicReference<UnixGlob.FilesystemCalls> syscalls =
       new AtomicReference<>(UnixGlob.DEFAULT_SYSCALLS);
+  /** Whether the syscall cache is kept across builds rather than recreated for each one. */
+  private boolean keepSyscallCache = false;
+  /** The on-disk package cache, or null if it is disabled. */
+  private final AtomicReference<PersistentPackageCache> persistentPackageCache =
+      new AtomicReference<>();
+  /** The syntax trees of BUILD and Skylark files, kept across re-evaluations of their nodes. */
+  private final ParsedFileCache parsedFileCache = new ParsedFileCache();
   protected final AtomicReference<PathPackageLocator> pkgLocator =
       new AtomicReference<>();
   protected final AtomicReference<ImmutableSet<PackageIdentifier>> deletedPackages =
@@ -245,6 +264,11 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private CompletionReceiver actionExecutionFunction;
   protected SkyframeProgressReceiver progressReceiver;
   private final AtomicReference<CyclesReporter> cyclesReporter = new AtomicReference<>();
+  /**
+   * Orders pending evaluations by the compute times of earlier builds, or null if disabled. Kept
+   * across {@link #resetEvaluator} calls, so that it keeps what it learned.
+   */
+  @Nullable private volatile ComputeTimePriorityPolicy computeTimePriorityPolicy;
 
   private final BinTools binTools;
   private boolean needToInjectEmbeddedArtifacts = true;
@@ -335,7 +359,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     map.put(SkyFunctions.DIRECTORY_LISTING, new DirectoryListingFunction());
     map.put(SkyFunctions.PACKAGE_LOOKUP, new PackageLookupFunction(deletedPackages));
     map.put(SkyFunctions.CONTAINING_PACKAGE_LOOKUP, new ContainingPackageLookupFunction());
-    map.put(SkyFunctions.AST_FILE_LOOKUP, new ASTFileLookupFunction(ruleClassProvider));
+    map.put(SkyFunctions.AST_FILE_LOOKUP,
+        new ASTFileLookupFunction(ruleClassProvider, parsedFileCache));
     map.put(
         SkyFunctions.SKYLARK_IMPORTS_LOOKUP,
         newSkylarkImportLookupFunction(ruleClassProvider, pkgFactory));
@@ -424,7 +449,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         packageFunctionCache,
         astCache,
         numPackagesLoaded,
-        null);
+        null,
+        persistentPackageCache,
+        parsedFileCache);
   }
 
   protected SkyFunction newSkylarkImportLookupFunction(
@@ -436,6 +463,19 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     return PerBuildSyscallCache.newBuilder().setConcurrencyLevel(concurrencyLevel).build();
   }
 
+  /**
+   * Drops the entries of the syscall cache that changes to {@code modifiedPaths} may have made
+   * stale, as well as all entries not under {@code pathEntries}. Only matters if the cache is kept
+   * across builds.
+   */
+  protected void invalidateSyscallCache(Iterable<Path> pathEntries,
+      Iterable<Path> modifiedPaths) {
+    UnixGlob.FilesystemCalls currentSyscalls = syscalls.get();
+    if (currentSyscalls instanceof PerBuildSyscallCache) {
+      ((PerBuildSyscallCache) currentSyscalls).invalidate(pathEntries, modifiedPaths);
+    }
+  }
+
  @ThreadCompatible
   public void setActive(boolean active) {
     this.active = active;
@@ -533,6 +573,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     memoizingEvaluator = evaluatorSupplier.create(
         skyFunctions, evaluatorDiffer(), progressReceiver, emittedEventState,
         hasIncrementalState());
+    applyPriorityPolicy();
     buildDriver = newBuildDriver();
   }
 
@@ -548,6 +589,10 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
    * put in {@link #reinjectConstantValuesLazily}.
    */
   public void resetEvaluator() {
+    ComputeTimePriorityPolicy policy = computeTimePriorityPolicy;
+    if (policy != null) {
+      policy.clear();
+    }
     init();
     emittedEventState.clear();
     skyframeBuildView.clearLegacyData();
@@ -922,7 +967,15 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     setupDefaultPackage(defaultsPackageContents);
     setPackageLocator(pkgLocator);
 
-    syscalls.set(newPerBuildSyscallCache(globbingThreads));
+    UnixGlob.FilesystemCalls oldSyscalls = syscalls.get();
+    if (oldSyscalls instanceof PerBuildSyscallCache) {
+      String statistics = ((PerBuildSyscallCache) oldSyscalls).getAndResetStatistics();
+      LOG.info(statistics + " in the previous command");
+      Profiler.instance().logEvent(ProfilerTask.INFO, statistics + " in the previous command");
+    }
+    if (!keepSyscallCache || !(oldSyscalls instanceof PerBuildSyscallCache)) {
+      syscalls.set(newPerBuildSyscallCache(globbingThreads));
+    }
     this.pkgFactory.setGlobbingThreads(globbingThreads);
     checkPreprocessorFactory();
     emittedEventState.clear();
@@ -1588,10 +1641,28 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   @ThreadCompatible
   public abstract void updateLoadedPackageSet(Set<PackageIdentifier> loadedPackages);
 
+  /**
+   * Called before the server shuts down in response to the shutdown command, i.e. not when it
+   * crashes or is killed.
+   */
+  public void prepareForCleanShutdown(EventHandler eventHandler) {}
+
+  /**
+   * Enables or disables saving the graph on a clean shutdown and loading it in the first command
+   * of the next server. Does nothing if the graph cannot be saved.
+   */
+  public void setGraphSnapshotEnabled(boolean enabled) {}
+
   public void sync(EventHandler eventHandler, PackageCacheOptions packageCacheOptions,
       Path outputBase, Path workingDirectory, String defaultsPackageContents, UUID commandId,
       TimestampGranularityMonitor tsgm)
           throws InterruptedException, AbruptExitException{
+    keepSyscallCache = packageCacheOptions.keepSyscallCache;
+    setPersistentPackageCache(packageCacheOptions.persistentPackageCache,
+        packageCacheOptions.persistentPackageCacheSizeMb * (1L << 20), outputBase);
+    pkgFactory.setPostProcessingThreads(packageCacheOptions.postProcessingThreads);
+    UserDefinedFunction.setCompilationThreshold(packageCacheOptions.skylarkCompilationThreshold);
+    parsedFileCache.setCapacity(packageCacheOptions.parsedFileCacheSizeMb * (1L << 20));
     preparePackageLoading(
         createPackageLocator(
             eventHandler, packageCacheOptions, outputBase, directories.getWorkspace(),
@@ -1604,6 +1675,58 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     invalidateTransientErrors();
   }
 
+  protected BlazeDirectories getBlazeDirectories() {
+    return directories;
+  }
+
+  /**
+   * Enables or disables the on-disk package cache. It lives in the output base and is salted with
+   * the install base key, since the cached packages refer to the binary's rule classes.
+   */
+  private void setPersistentPackageCache(boolean enabled, long maxSizeBytes, Path outputBase) {
+    HashCode installMD5 = directories.getInstallMD5();
+    if (!enabled || installMD5 == null) {
+      persistentPackageCache.set(null);
+      return;
+    }
+    Path directory = outputBase.getRelative("package_cache");
+    PersistentPackageCache current = persistentPackageCache.get();
+    if (current == null || !current.getDirectory().equals(directory)
+        || current.getMaxSizeBytes() != maxSizeBytes) {
+      persistentPackageCache.set(
+          new PersistentPackageCache(
+              directory, installMD5.toString(), pkgFactory.getRuleClassProvider(), maxSizeBytes));
+    }
+  }
+
+  /**
+   * Enables or disables starting the nodes that took longest to compute in earlier builds first.
+   * Compute times are recorded by {@link SkyframeProgressReceiver#computed}.
+   */
+  public void setPriorityByComputeTime(boolean enabled) {
+    if (!enabled) {
+      computeTimePriorityPolicy = null;
+    } else if (computeTimePriorityPolicy == null) {
+      computeTimePriorityPolicy = new ComputeTimePriorityPolicy(
+          COMPUTE_TIME_PRIORITY_THRESHOLD_MILLIS, TimeUnit.MILLISECONDS,
+          COMPUTE_TIME_PRIORITY_MAX_NODES, EvaluationPriorityPolicy.NONE);
+    }
+    applyPriorityPolicy();
+  }
+
+  private void applyPriorityPolicy() {
+    if (memoizingEvaluator instanceof InMemoryMemoizingEvaluator) {
+      ComputeTimePriorityPolicy policy = computeTimePriorityPolicy;
+      ((InMemoryMemoizingEvaluator) memoizingEvaluator).setPriorityPolicy(
+          policy == null ? EvaluationPriorityPolicy.NONE : policy);
+    }
+  }
+
+  @VisibleForTesting
+  void setPersistentPackageCacheForTesting(@Nullable PersistentPackageCache cache) {
+    persistentPackageCache.set(cache);
+  }
+
   protected PathPackageLocator createPackageLocator(EventHandler eventHandler,
       PackageCacheOptions packageCacheOptions, Path outputBase, Path workspace,
       Path workingDirectory) throws AbruptExitException {
@@ -1789,6 +1912,10 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
     @Override
     public void invalidated(SkyKey skyKey, InvalidationState state) {
+      ComputeTimePriorityPolicy policy = computeTimePriorityPolicy;
+      if (policy != null && state == InvalidationState.DELETED) {
+        policy.forget(skyKey);
+      }
       if (ignoreInvalidations) {
         return;
       }
@@ -1810,7 +1937,12 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     }
 
     @Override
-    public void computed(SkyKey skyKey, long elapsedTimeNanos) {}
+    public void computed(SkyKey skyKey, long elapsedTimeNanos) {
+      ComputeTimePriorityPolicy policy = computeTimePriorityPolicy;
+      if (policy != null) {
+        policy.recordComputeTime(skyKey, elapsedTimeNanos);
+      }
+    }
 
     @Override
     public void evaluated(SkyKey skyKey, Supplier<SkyValue> valueSupplier, EvaluationState state) {
@@ -0,0 +1,31 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * Options that affect the order in which Skyframe starts evaluating nodes. They apply to every
+ * command, since every command may evaluate nodes.
+ */
+public class SkyframePriorityOptions extends OptionsBase {
+
+  @Option(name = "experimental_skyframe_priority_by_compute_time",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "When more Skyframe nodes are ready to be evaluated than there are threads, start "
+          + "the ones that took longest to compute in earlier builds of this server first.")
+  public boolean priorityByComputeTime;
+}
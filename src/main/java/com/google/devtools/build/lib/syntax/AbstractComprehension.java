@@ -122,6 +122,7 @@ public abstract class AbstractComprehension extends Expression {
       Location loc = getLocation();
       Iterable<?> listValue = EvalUtils.toIterable(listValueObject, loc);
       for (Object listElement : listValue) {
+        env.countLoopIteration();
         variables.assign(env, loc, listElement);
         evalStep(env, collector, step);
       }
@@ -333,22 +334,20 @@ public abstract class AbstractComprehension extends Expression {
 
   @Override
   ByteCodeAppender compile(VariableScope scope, DebugInfo debugInfo) throws EvalException {
-    // We use a new scope for all comprehensions, as in Python 3 semantics
-    // In Python 2, list comprehensions are in the same scope as the function and the backported
-    // dict comprehensions (2.7) use a new scope
-    VariableScope ourScope = scope.createSubScope();
+    // The loop variables live in the scope of the function, as in the interpreter, which assigns
+    // them to the function's local variables.
     List<ByteCodeAppender> code = new ArrayList<>();
-    InternalVariable collection = compileInitialization(ourScope, code);
+    InternalVariable collection = compileInitialization(scope, code);
     AstAccessors debugAccessors = debugInfo.add(this);
-    ByteCodeAppender collector = compileCollector(ourScope, collection, debugInfo, debugAccessors);
+    ByteCodeAppender collector = compileCollector(scope, collection, debugInfo, debugAccessors);
     for (ListIterator<Clause> clauseIterator = clauses.listIterator(clauses.size());
         clauseIterator.hasPrevious();
         ) {
       Clause clause = clauseIterator.previous();
-      collector = clause.compile(collector, ourScope, debugInfo, this, debugAccessors);
+      collector = clause.compile(collector, scope, debugInfo, this, debugAccessors);
     }
     code.add(collector);
-    code.add(compileBuilding(ourScope, collection));
+    code.add(compileBuilding(scope, collection));
     return ByteCodeUtils.compoundAppender(code);
   }
 
@@ -61,13 +61,14 @@ public class BuildFileAST extends ASTNode {
 
   private BuildFileAST(
       ImmutableList<Statement> stmts,
+      ImmutableList<Comment> comments,
       boolean containsErrors,
       String contentHashCode,
       Location location) {
     this.stmts = stmts;
     this.containsErrors = containsErrors;
     this.contentHashCode = contentHashCode;
-    this.comments = ImmutableList.of();
+    this.comments = comments;
     this.setLocation(location);
   }
 
@@ -78,11 +79,28 @@ public class BuildFileAST extends ASTNode {
   public BuildFileAST subTree(int firstStatement, int lastStatement) {
     return new BuildFileAST(
         stmts.subList(firstStatement, lastStatement),
+        ImmutableList.<Comment>of(),
         containsErrors,
         null,
         stmts.get(firstStatement).getLocation());
   }
 
+  /**
+   * Returns a BuildFileAST with the given statements in front of the statements of this one, as if
+   * it had been parsed with them as prelude statements.
+   */
+  public BuildFileAST withPreludeStatements(List<Statement> preludeStatements) {
+    if (preludeStatements.isEmpty()) {
+      return this;
+    }
+    return new BuildFileAST(
+        ImmutableList.<Statement>builder().addAll(preludeStatements).addAll(stmts).build(),
+        comments,
+        containsErrors,
+        contentHashCode,
+        getLocation());
+  }
+
   /** Collects all load statements */
   private ImmutableList<SkylarkImport> fetchLoads(List<Statement> stmts) {
     ImmutableList.Builder<SkylarkImport> imports = new ImmutableList.Builder<>();
@@ -231,11 +249,30 @@ public class BuildFileAST extends ASTNode {
 
   public static BuildFileAST parseSkylarkFile(Path file, long fileSize, EventHandler eventHandler,
       ValidationEnvironment validationEnvironment) throws IOException {
-    ParserInputSource input = ParserInputSource.create(file, fileSize);
+    return parseSkylarkFile(file, fileSize, file.getMD5Digest(), eventHandler,
+        validationEnvironment);
+  }
+
+  /**
+   * Like {@link #parseSkylarkFile(Path, long, EventHandler, ValidationEnvironment)}, for callers
+   * that already know the MD5 digest of the file.
+   */
+  public static BuildFileAST parseSkylarkFile(Path file, long fileSize, byte[] md5Digest,
+      EventHandler eventHandler, ValidationEnvironment validationEnvironment) throws IOException {
+    return parseSkylarkFile(ParserInputSource.create(file, fileSize), md5Digest, eventHandler,
+        validationEnvironment);
+  }
+
+  /**
+   * Like {@link #parseSkylarkFile(Path, long, byte[], EventHandler, ValidationEnvironment)}, for
+   * callers that already read the file.
+   */
+  public static BuildFileAST parseSkylarkFile(ParserInputSource input, byte[] md5Digest,
+      EventHandler eventHandler, ValidationEnvironment validationEnvironment) {
     Parser.ParseResult result =
         Parser.parseFileForSkylark(input, eventHandler, validationEnvironment);
     return new BuildFileAST(ImmutableList.<Statement>of(), result,
-        HashCode.fromBytes(file.getMD5Digest()).toString());
+        HashCode.fromBytes(md5Digest).toString());
   }
 
   /**
@@ -106,6 +106,12 @@ public final class Environment implements Freezable {
     private final Mutability mutability;
     final Frame parent;
     final Map<String, Object> bindings = new HashMap<>();
+    // The local variables of the function this frame was created for, whose values are kept in
+    // localValues rather than in bindings; null for other frames.
+    @Nullable
+    private final LocalVariables locals;
+    @Nullable
+    private final Object[] localValues;
     // The label for the target this frame is defined in (e.g., //foo:bar.bzl).
     @Nullable
     private Label label;
@@ -114,6 +120,15 @@ public final class Environment implements Freezable {
       this.mutability = mutability;
       this.parent = parent;
       this.label = parent == null ? null : parent.label;
+      this.locals = null;
+      this.localValues = null;
+    }
+
+    private Frame(Mutability mutability, LocalVariables locals) {
+      this.mutability = mutability;
+      this.parent = null;
+      this.locals = locals;
+      this.localValues = new Object[locals.size()];
     }
 
     @Override
@@ -147,6 +162,12 @@ public final class Environment implements Freezable {
      * @return the value bound to variable
      */
     public Object get(String varname) {
+      if (locals != null) {
+        Integer slot = locals.getSlot(varname);
+        if (slot != null && localValues[slot] != null) {
+          return localValues[slot];
+        }
+      }
       if (bindings.containsKey(varname)) {
         return bindings.get(varname);
       }
@@ -168,6 +189,13 @@ public final class Environment implements Freezable {
     public void put(Environment env, String varname, Object value)
         throws MutabilityException {
       Mutability.checkMutable(this, env);
+      if (locals != null) {
+        Integer slot = locals.getSlot(varname);
+        if (slot != null) {
+          localValues[slot] = value;
+          return;
+        }
+      }
       bindings.put(varname, value);
     }
 
@@ -177,6 +205,14 @@ public final class Environment implements Freezable {
      * @param vars the set of visible variables in the Environment, being computed.
      */
     public void addVariableNamesTo(Set<String> vars) {
+      if (locals != null) {
+        int slot = 0;
+        for (String name : locals.getNames()) {
+          if (localValues[slot++] != null) {
+            vars.add(name);
+          }
+        }
+      }
       vars.addAll(bindings.keySet());
       if (parent != null) {
         parent.addVariableNamesTo(vars);
@@ -218,6 +254,9 @@ public final class Environment implements Freezable {
     /** Whether the caller is in Skylark mode. */
     boolean isSkylark;
 
+    /** The number of loop iterations counted in the caller so far. */
+    int loopIterations;
+
     Continuation(
         Continuation continuation,
         BaseFunction function,
@@ -225,13 +264,15 @@ public final class Environment implements Freezable {
         Frame lexicalFrame,
         Frame globalFrame,
         Set<String> knownGlobalVariables,
-        boolean isSkylark) {
+        boolean isSkylark,
+        int loopIterations) {
       this.continuation = continuation;
       this.function = function;
       this.caller = caller;
       this.lexicalFrame = lexicalFrame;
       this.globalFrame = globalFrame;
       this.isSkylark = isSkylark;
+      this.loopIterations = loopIterations;
     }
   }
 
@@ -356,6 +397,12 @@ public final class Environment implements Freezable {
    */
   @Nullable private Continuation continuation;
 
+  /**
+   * The number of loop and comprehension iterations the interpreter ran in the current function
+   * call, not counting the calls it made.
+   */
+  private int loopIterations;
+
   /**
    * Gets the label of the BUILD file that is using this environment. For example, if a target
    * //foo has a dependency on //bar which is a Skylark rule defined in //rules:my_rule.bzl being
@@ -375,12 +422,25 @@ public final class Environment implements Freezable {
    * @param globals the global Frame that this function closes over from its definition Environment
    */
   void enterScope(BaseFunction function, FuncallExpression caller, Frame globals) {
+    enterScope(function, caller, globals, null);
+  }
+
+  /**
+   * Like {@link #enterScope(BaseFunction, FuncallExpression, Frame)}, but keeps the given local
+   * variables of the function in slots of the new lexical Frame.
+   */
+  void enterScope(BaseFunction function, FuncallExpression caller, Frame globals,
+      @Nullable LocalVariables locals) {
     continuation = new Continuation(
-        continuation, function, caller, lexicalFrame, globalFrame, knownGlobalVariables, isSkylark);
-    lexicalFrame = new Frame(mutability(), null);
+        continuation, function, caller, lexicalFrame, globalFrame, knownGlobalVariables, isSkylark,
+        loopIterations);
+    lexicalFrame = locals == null
+        ? new Frame(mutability(), (Frame) null)
+        : new Frame(mutability(), locals);
     globalFrame = globals;
     knownGlobalVariables = new HashSet<String>();
     isSkylark = true;
+    loopIterations = 0;
   }
 
   /**
@@ -392,9 +452,20 @@ public final class Environment implements Freezable {
     globalFrame = continuation.globalFrame;
     knownGlobalVariables = continuation.knownGlobalVariables;
     isSkylark = continuation.isSkylark;
+    loopIterations = continuation.loopIterations;
     continuation = continuation.continuation;
   }
 
+  /** Counts one iteration of a loop or a comprehension run by the interpreter. */
+  void countLoopIteration() {
+    loopIterations++;
+  }
+
+  /** Returns the number of loop iterations counted in the current function call so far. */
+  int getLoopIterations() {
+    return loopIterations;
+  }
+
   /**
    * When evaluating code from a file, this contains a hash of the file.
    */
@@ -590,7 +661,7 @@ public final class Environment implements Freezable {
         Preconditions.checkArgument(!parent.mutability().isMutable());
       }
       Frame globalFrame = new Frame(mutability, parent);
-      Frame dynamicFrame = new Frame(mutability, null);
+      Frame dynamicFrame = new Frame(mutability, (Frame) null);
       if (importedExtensions == null) {
         importedExtensions = ImmutableMap.of();
       }
@@ -753,15 +824,27 @@ public final class Environment implements Freezable {
     if (globalValue == null && dynamicValue == null) {
       throw new NoSuchVariableException(varname);
     }
-    if (knownGlobalVariables != null) {
-      knownGlobalVariables.add(varname);
-    }
+    recordKnownGlobalVariable(varname);
     if (globalValue != null) {
       return globalValue;
     }
     return dynamicValue;
   }
 
+  /**
+   * Like {@link #lookup(String)}, but reads the variable directly from its slot if it is a bound
+   * local variable of the function being executed.
+   */
+  Object lookupLocal(LocalVariables.Slot slot, String varname) throws NoSuchVariableException {
+    if (lexicalFrame != null && lexicalFrame.locals == slot.variables) {
+      Object value = lexicalFrame.localValues[slot.index];
+      if (value != null) {
+        return value;
+      }
+    }
+    return lookup(varname);
+  }
+
   /**
    * Like {@link #lookup(String)}, but instead of throwing an exception in the case
    * where <code>varname</code> is not defined, <code>defaultValue</code> is returned instead.
@@ -775,6 +858,19 @@ public final class Environment implements Freezable {
     }
   }
 
+  private void recordKnownGlobalVariable(String varname) {
+    if (knownGlobalVariables == null) {
+      return;
+    }
+    LocalVariables locals = lexicalFrame.locals;
+    if (locals != null && locals.getSlot(varname) == null) {
+      // The function never assigns to the variable, since every name it assigns to has a slot, so
+      // there is nothing to check.
+      return;
+    }
+    knownGlobalVariables.add(varname);
+  }
+
   /**
    * @return true if varname is a known global variable,
    * because it has been read in the context of the current function.
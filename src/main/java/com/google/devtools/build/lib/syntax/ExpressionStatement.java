@@ -20,6 +20,7 @@ import com.google.devtools.build.lib.syntax.compiler.LoopLabels;
 import com.google.devtools.build.lib.syntax.compiler.VariableScope;
 
 import net.bytebuddy.implementation.bytecode.ByteCodeAppender;
+import net.bytebuddy.implementation.bytecode.Removal;
 
 /**
  * Syntax node for a function call statement. Used for build rules.
@@ -60,6 +61,9 @@ public final class ExpressionStatement extends Statement {
   ByteCodeAppender compile(
       VariableScope scope, Optional<LoopLabels> loopLabels, DebugInfo debugInfo)
       throws EvalException {
-    return expr.compile(scope, debugInfo);
+    // The value of the expression is not used, and must not be left on the stack, where it would
+    // not match the stack at the end of other branches.
+    return new ByteCodeAppender.Compound(
+        expr.compile(scope, debugInfo), new ByteCodeAppender.Simple(Removal.SINGLE));
   }
 }
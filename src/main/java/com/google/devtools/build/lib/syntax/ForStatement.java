@@ -87,6 +87,7 @@ public final class ForStatement extends Statement {
 
     int i = 0;
     for (Object it : ImmutableList.copyOf(col)) {
+      env.countLoopIteration();
       variable.assign(env, getLocation(), it);
 
       try {
@@ -184,9 +185,10 @@ public final class ForStatement extends Statement {
     append(code, ByteCodeMethodCalls.BCIterator.next);
     // store current element into l-value
     code.add(variable.compileAssignment(this, debugAccessors, scope));
+    // count the iteration, which a continue statement does as well
+    append(code, new IntegerVariableIncrease(sizeCounterVariable, 1));
     // compile code for the body
     for (Statement statement : block) {
-      append(code, new IntegerVariableIncrease(sizeCounterVariable, 1));
       code.add(statement.compile(scope, loopLabels, debugInfo));
     }
     // compile code for the loop header
@@ -199,7 +201,6 @@ public final class ForStatement extends Statement {
         Jump.ifIntOperandToZero(PrimitiveComparison.NOT_EQUAL).to(loopBody));
     append(
         code,
-        breakLoop,
         // load arguments for checkConcurrentModification and call it
         originalIterable.load(),
         sizeCounterVariable.load(),
@@ -209,7 +210,9 @@ public final class ForStatement extends Statement {
             "checkConcurrentModification",
             Iterable.class,
             int.class,
-            ASTNode.class));
+            ASTNode.class),
+        // like the interpreter, a break statement skips the check
+        breakLoop);
     return ByteCodeUtils.compoundAppender(code);
   }
 }
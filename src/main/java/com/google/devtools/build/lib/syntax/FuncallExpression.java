@@ -44,7 +44,9 @@ import net.bytebuddy.implementation.bytecode.StackManipulation;
 import net.bytebuddy.implementation.bytecode.assign.TypeCasting;
 import net.bytebuddy.implementation.bytecode.constant.TextConstant;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
@@ -68,6 +70,8 @@ public final class FuncallExpression extends Expression {
   public static final class MethodDescriptor {
     private final Method method;
     private final SkylarkCallable annotation;
+    // Created on first use, since most methods are never called.
+    private volatile MethodHandle invoker;
 
     private MethodDescriptor(Method method, SkylarkCallable annotation) {
       this.method = method;
@@ -78,6 +82,27 @@ public final class FuncallExpression extends Expression {
       return method;
     }
 
+    /**
+     * Returns a handle of type (Object, Object[])Object that calls the method on the receiver with
+     * the elements of the array as arguments. The receiver is ignored for static methods.
+     */
+    MethodHandle getInvoker() throws IllegalAccessException {
+      MethodHandle result = invoker;
+      if (result == null) {
+        // This happens when the interface is public but the implementation classes
+        // have reduced visibility.
+        method.setAccessible(true);
+        result = MethodHandles.lookup().unreflect(method)
+            .asSpreader(Object[].class, method.getParameterTypes().length);
+        if (Modifier.isStatic(method.getModifiers())) {
+          result = MethodHandles.dropArguments(result, 0, Object.class);
+        }
+        result = result.asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+        invoker = result;
+      }
+      return result;
+    }
+
     /**
      * Returns the SkylarkCallable annotation corresponding to this method.
      */
@@ -190,6 +215,9 @@ public final class FuncallExpression extends Expression {
 
   private final int numPositionalArgs;
 
+  // The Java method this call site dispatched to last; see findJavaMethodCached.
+  @Nullable private transient volatile JavaMethodCacheEntry javaMethodCache;
+
   /**
    * Note: the grammar definition restricts the function value in a function
    * call expression to be a global identifier; however, the representation of
@@ -325,48 +353,93 @@ public final class FuncallExpression extends Expression {
 
   static Object callMethod(MethodDescriptor methodDescriptor, String methodName, Object obj,
       Object[] args, Location loc, Environment env) throws EvalException {
+    Method method = methodDescriptor.getMethod();
+    if (obj == null && !Modifier.isStatic(method.getModifiers())) {
+      throw new EvalException(loc, "Method '" + methodName + "' is not static");
+    }
+    Object result;
     try {
-      Method method = methodDescriptor.getMethod();
-      if (obj == null && !Modifier.isStatic(method.getModifiers())) {
-        throw new EvalException(loc, "Method '" + methodName + "' is not static");
-      }
-      // This happens when the interface is public but the implementation classes
-      // have reduced visibility.
-      method.setAccessible(true);
-      Object result = method.invoke(obj, args);
-      if (method.getReturnType().equals(Void.TYPE)) {
-        return Runtime.NONE;
-      }
-      if (result == null) {
-        if (methodDescriptor.getAnnotation().allowReturnNones()) {
-          return Runtime.NONE;
-        } else {
-          throw new EvalException(loc,
-              "Method invocation returned None, please contact Skylark developers: " + methodName
-              + Printer.listString(ImmutableList.copyOf(args), "(", ", ", ")", null));
-        }
-      }
-      // TODO(bazel-team): get rid of this, by having everyone use the Skylark data structures
-      result = SkylarkType.convertToSkylark(result, method, env);
-      if (result != null && !EvalUtils.isSkylarkAcceptable(result.getClass())) {
-        throw new EvalException(loc, Printer.format(
-            "Method '%s' returns an object of invalid type %r", methodName, result.getClass()));
-      }
-      return result;
+      result = (Object) methodDescriptor.getInvoker().invokeExact(obj, args);
     } catch (IllegalAccessException e) {
       // TODO(bazel-team): Print a nice error message. Maybe the method exists
       // and an argument is missing or has the wrong type.
       throw new EvalException(loc, "Method invocation failed: " + e);
-    } catch (InvocationTargetException e) {
-      if (e.getCause() instanceof FuncallException) {
-        throw new EvalException(loc, e.getCause().getMessage());
-      } else if (e.getCause() != null) {
-        throw new EvalExceptionWithJavaCause(loc, e.getCause());
+    } catch (FuncallException e) {
+      throw new EvalException(loc, e.getMessage());
+    } catch (Throwable e) {
+      // Anything else the method threw, just as Method#invoke would have wrapped it.
+      throw new EvalExceptionWithJavaCause(loc, e);
+    }
+    if (method.getReturnType().equals(Void.TYPE)) {
+      return Runtime.NONE;
+    }
+    if (result == null) {
+      if (methodDescriptor.getAnnotation().allowReturnNones()) {
+        return Runtime.NONE;
       } else {
-        // This is unlikely to happen
-        throw new EvalException(loc, "Method invocation failed: " + e);
+        throw new EvalException(loc,
+            "Method invocation returned None, please contact Skylark developers: " + methodName
+            + Printer.listString(ImmutableList.copyOf(args), "(", ", ", ")", null));
+      }
+    }
+    // TODO(bazel-team): get rid of this, by having everyone use the Skylark data structures
+    result = SkylarkType.convertToSkylark(result, method, env);
+    if (result != null && !EvalUtils.isSkylarkAcceptable(result.getClass())) {
+      throw new EvalException(loc, Printer.format(
+          "Method '%s' returns an object of invalid type %r", methodName, result.getClass()));
+    }
+    return result;
+  }
+
+  /**
+   * The result of resolving a Java method call: the method to call on an object of the given class
+   * with arguments of the given classes.
+   */
+  private static final class JavaMethodCacheEntry {
+    private final String methodName;
+    private final Class<?> objClass;
+    private final Class<?>[] argClasses;
+    private final MethodDescriptor method;
+
+    JavaMethodCacheEntry(
+        String methodName, Class<?> objClass, List<Object> args, MethodDescriptor method) {
+      this.methodName = methodName;
+      this.objClass = objClass;
+      this.argClasses = new Class<?>[args.size()];
+      for (int i = 0; i < argClasses.length; i++) {
+        argClasses[i] = args.get(i).getClass();
+      }
+      this.method = method;
+    }
+
+    boolean matches(String methodName, Class<?> objClass, List<Object> args) {
+      if (objClass != this.objClass || args.size() != argClasses.length
+          || !methodName.equals(this.methodName)) {
+        return false;
       }
+      for (int i = 0; i < argClasses.length; i++) {
+        if (args.get(i).getClass() != argClasses[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Like {@link #findJavaMethod}, but reuses the method this call site resolved last time if the
+   * object and the arguments have the same classes, since the resolution only depends on those.
+   * Most call sites always see the same classes, so this skips the overload resolution.
+   */
+  private MethodDescriptor findJavaMethodCached(
+      Class<?> objClass, String methodName, List<Object> args) throws EvalException {
+    JavaMethodCacheEntry entry = javaMethodCache;
+    if (entry != null && entry.matches(methodName, objClass, args)) {
+      return entry.method;
     }
+    MethodDescriptor method = findJavaMethod(objClass, methodName, args);
+    javaMethodCache = new JavaMethodCacheEntry(methodName, objClass, args, method);
+    return method;
   }
 
   // TODO(bazel-team): If there's exactly one usable method, this works. If there are multiple
@@ -624,7 +697,8 @@ public final class FuncallExpression extends Expression {
                 method,
                 EvalUtils.getDataTypeNameFromClass(objClass)));
       }
-      MethodDescriptor methodDescriptor = call.findJavaMethod(objClass, method, positionalArgs);
+      MethodDescriptor methodDescriptor =
+          call.findJavaMethodCached(objClass, method, positionalArgs);
       return callMethod(methodDescriptor, method, obj, positionalArgs.toArray(), location, env);
     }
   }
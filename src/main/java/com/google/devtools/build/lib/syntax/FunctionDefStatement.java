@@ -21,6 +21,8 @@ import com.google.devtools.build.lib.syntax.compiler.VariableScope;
 
 import net.bytebuddy.implementation.bytecode.ByteCodeAppender;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -33,6 +35,9 @@ public class FunctionDefStatement extends Statement {
   private final FunctionSignature.WithValues<Expression, Expression> signature;
   private final ImmutableList<Statement> statements;
   private final ImmutableList<Parameter<Expression, Expression>> parameters;
+  // Resolved when the statement is created or deserialized, since the tree may be executed by
+  // several threads. Not serialized, like the slots of the identifiers that refer to them.
+  private transient LocalVariables locals;
 
   public FunctionDefStatement(Identifier ident,
       Iterable<Parameter<Expression, Expression>> parameters,
@@ -42,6 +47,12 @@ public class FunctionDefStatement extends Statement {
     this.signature = signature;
     this.statements = ImmutableList.copyOf(statements);
     this.parameters = ImmutableList.copyOf(parameters);
+    this.locals = LocalVariables.resolve(signature.getSignature().getNames(), this.statements);
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    locals = LocalVariables.resolve(signature.getSignature().getNames(), statements);
   }
 
   @Override
@@ -63,7 +74,8 @@ public class FunctionDefStatement extends Statement {
             FunctionSignature.WithValues.<Object, SkylarkType>create(
                 signature.getSignature(), defaultValues, types),
             statements,
-            env.getGlobals()));
+            env.getGlobals(),
+            locals));
   }
 
   @Override
@@ -14,6 +14,7 @@
 
 package com.google.devtools.build.lib.syntax;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.devtools.build.lib.syntax.compiler.DebugInfo;
 import com.google.devtools.build.lib.syntax.compiler.Variable.SkylarkVariable;
 import com.google.devtools.build.lib.syntax.compiler.VariableScope;
@@ -26,15 +27,16 @@ import javax.annotation.Nullable;
 // (1) intern the strings, so we can use == to compare, and have .equals use the assumption.
 // Then have Argument and Parameter use Identifier again instead of String as keys.
 // (2) Use Identifier, not String, as keys in the Environment, which will be cleaner.
-// (3) For performance, avoid doing HashMap lookups at runtime, and compile local variable access
-// into array reference with a constant index. Variable lookups are currently a speed bottleneck,
-// as previously measured in an experiment.
+// (3) For performance, avoid doing HashMap lookups at runtime for global variables too; local
+// variables of functions are already read from slots, see LocalVariables.
 /**
  *  Syntax node for an identifier.
  */
 public final class Identifier extends Expression {
 
   private final String name;
+  // The slot of the local variable this identifier refers to, if it is in a function body.
+  @Nullable private transient LocalVariables.Slot localSlot;
 
   public Identifier(String name) {
     this.name = name;
@@ -70,10 +72,21 @@ public final class Identifier extends Expression {
     return name.hashCode();
   }
 
+  void setLocalSlot(LocalVariables.Slot localSlot) {
+    this.localSlot = localSlot;
+  }
+
+  @VisibleForTesting
+  @Nullable
+  LocalVariables.Slot getLocalSlot() {
+    return localSlot;
+  }
+
   @Override
   Object doEval(Environment env) throws EvalException {
     try {
-      return env.lookup(name);
+      LocalVariables.Slot slot = localSlot;
+      return slot == null ? env.lookup(name) : env.lookupLocal(slot, name);
     } catch (Environment.NoSuchVariableException e) {
       throw createInvalidIdentifierException();
     }
@@ -0,0 +1,109 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.devtools.build.lib.util.StringCanonicalizer;
+
+import java.util.Map;
+
+/**
+ * The identifiers a {@link Lexer} has seen so far, looked up by a range of its input buffer, so
+ * that an identifier that occurs many times only becomes a String once, and is only looked up once
+ * among the keywords. New identifiers are canonicalized through {@link StringCanonicalizer}, so all
+ * inputs share the same instances.
+ *
+ * <p>An open-addressing hash table, using the same hash function as {@link String#hashCode}.
+ */
+final class IdentifierTable {
+
+  /** An identifier or keyword, and the kind of token it is. */
+  static final class Entry {
+    final String name;
+    final TokenKind kind;
+    // A copy of the characters of the name, since String.charAt is slower to compare with.
+    private final char[] chars;
+    private final int hash;
+
+    private Entry(String name, TokenKind kind, int hash) {
+      this.name = name;
+      this.kind = kind;
+      this.chars = name.toCharArray();
+      this.hash = hash;
+    }
+  }
+
+  private final Map<String, TokenKind> keywords;
+  private Entry[] table = new Entry[64];
+  private int size = 0;
+
+  /** Creates a table in which the given names are keywords, and all others identifiers. */
+  IdentifierTable(Map<String, TokenKind> keywords) {
+    this.keywords = keywords;
+  }
+
+  /** Returns the entry for the characters of {@code buffer} from start to end. */
+  Entry get(char[] buffer, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + buffer[i];
+    }
+    int mask = table.length - 1;
+    int index = spread(hash) & mask;
+    for (Entry entry = table[index]; entry != null; entry = table[index]) {
+      if (entry.hash == hash && matches(entry.chars, buffer, start, end)) {
+        return entry;
+      }
+      index = (index + 1) & mask;
+    }
+    String name = StringCanonicalizer.intern(new String(buffer, start, end - start));
+    TokenKind kind = keywords.get(name);
+    Entry entry = new Entry(name, kind == null ? TokenKind.IDENTIFIER : kind, hash);
+    table[index] = entry;
+    if (++size * 2 > table.length) {
+      grow();
+    }
+    return entry;
+  }
+
+  private static boolean matches(char[] chars, char[] buffer, int start, int end) {
+    if (chars.length != end - start) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if (chars[i - start] != buffer[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private void grow() {
+    Entry[] oldTable = table;
+    table = new Entry[oldTable.length * 2];
+    int mask = table.length - 1;
+    for (Entry entry : oldTable) {
+      if (entry != null) {
+        int index = spread(entry.hash) & mask;
+        while (table[index] != null) {
+          index = (index + 1) & mask;
+        }
+        table[index] = entry;
+      }
+    }
+  }
+}
@@ -79,6 +79,9 @@ public final class Lexer {
 
   private final List<Token> tokens;
 
+  // The identifiers and keywords seen so far, so that repeated ones do not allocate new Strings.
+  private final IdentifierTable identifiers = new IdentifierTable(keywordMap);
+
   // The number of unclosed open-parens ("(", '{', '[') at the current point in
   // the stream. Whitespace is handled differently when this is nonzero.
   private int openParenStackDepth = 0;
@@ -508,12 +511,7 @@ public final class Lexer {
     keywordMap.put("yield", TokenKind.YIELD);
   }
 
-  private TokenKind getTokenKindForIdentfier(String id) {
-    TokenKind kind = keywordMap.get(id);
-    return kind == null ? TokenKind.IDENTIFIER : kind;
-  }
-
-  private String scanIdentifier() {
+  private IdentifierTable.Entry scanIdentifier() {
     int oldPos = pos - 1;
     while (pos < buffer.length) {
       switch (buffer[pos]) {
@@ -533,10 +531,10 @@ public final class Lexer {
           pos++;
           break;
        default:
-          return bufferSlice(oldPos, pos);
+          return identifiers.get(buffer, oldPos, pos);
       }
     }
-    return bufferSlice(oldPos, pos);
+    return identifiers.get(buffer, oldPos, pos);
   }
 
   /**
@@ -549,10 +547,9 @@ public final class Lexer {
    */
   private Token identifierOrKeyword() {
     int oldPos = pos - 1;
-    String id = scanIdentifier();
-    TokenKind kind = getTokenKindForIdentfier(id);
-    return new Token(kind, oldPos, pos,
-        (kind == TokenKind.IDENTIFIER) ? id : null);
+    IdentifierTable.Entry id = scanIdentifier();
+    return new Token(id.kind, oldPos, pos,
+        (id.kind == TokenKind.IDENTIFIER) ? id.name : null);
   }
 
   private String scanInteger() {
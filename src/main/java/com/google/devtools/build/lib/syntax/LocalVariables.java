@@ -0,0 +1,124 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * The local variables of a user-defined function. Each of them gets a fixed slot in the frames the
+ * function is executed in, so that an {@link Identifier} that refers to one can be evaluated with
+ * an array access instead of hash lookups.
+ *
+ * <p>The local variables are the parameters and every name the body assigns to. Frames still map
+ * every name to the same slot, and an identifier without a slot is looked up by name. However,
+ * {@link Environment} relies on every name the body can assign to having a slot: it only
+ * remembers that a function read a global variable if the name is local to the function, in order
+ * to reject a later assignment to it.
+ */
+final class LocalVariables {
+
+  /** A reference from an identifier to the slot of a local variable. */
+  static final class Slot {
+    final LocalVariables variables;
+    final int index;
+
+    private Slot(LocalVariables variables, int index) {
+      this.variables = variables;
+      this.index = index;
+    }
+  }
+
+  private final ImmutableMap<String, Integer> slots;
+
+  private LocalVariables(ImmutableMap<String, Integer> slots) {
+    this.slots = slots;
+  }
+
+  /** Returns the number of slots a frame needs for these variables. */
+  int size() {
+    return slots.size();
+  }
+
+  /** Returns the slot of the given variable, or null if it is not local. */
+  @Nullable
+  Integer getSlot(String name) {
+    return slots.get(name);
+  }
+
+  /** Returns the names of the variables, in slot order. */
+  Iterable<String> getNames() {
+    return slots.keySet();
+  }
+
+  /**
+   * Determines the local variables of a function with the given parameters and body, and points
+   * the identifiers of the body that refer to them at their slots.
+   */
+  static LocalVariables resolve(List<String> parameterNames, List<Statement> statements) {
+    final Map<String, Integer> slots = new LinkedHashMap<>();
+    for (String name : parameterNames) {
+      addSlot(slots, name);
+    }
+    SyntaxTreeVisitor boundNameCollector = new SyntaxTreeVisitor() {
+      @Override
+      public void visit(LValue node) {
+        collectBoundNames(slots, node.getExpression());
+        super.visit(node);
+      }
+
+      @Override
+      public void visit(ForStatement node) {
+        visit(node.getVariable());
+        visit(node.getCollection());
+        visitAll(node.block());
+      }
+    };
+    boundNameCollector.visitAll(statements);
+
+    final LocalVariables variables = new LocalVariables(ImmutableMap.copyOf(slots));
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(Identifier node) {
+        Integer index = variables.getSlot(node.getName());
+        if (index != null) {
+          node.setLocalSlot(new Slot(variables, index));
+        }
+      }
+    }.visitAll(statements);
+    return variables;
+  }
+
+  private static void addSlot(Map<String, Integer> slots, String name) {
+    if (!slots.containsKey(name)) {
+      slots.put(name, slots.size());
+    }
+  }
+
+  private static void collectBoundNames(Map<String, Integer> slots, Expression lvalue) {
+    if (lvalue instanceof Identifier) {
+      addSlot(slots, ((Identifier) lvalue).getName());
+    } else if (lvalue instanceof ListLiteral) {
+      for (Expression element : ((ListLiteral) lvalue).getElements()) {
+        collectBoundNames(slots, element);
+      }
+    }
+    // Item assignments like "a[x] = y" read "a" and bind nothing.
+  }
+}
@@ -146,6 +146,8 @@ public class SyntaxTreeVisitor {
 
   public void visit(@SuppressWarnings("unused") Comment node) {}
 
+  public void visit(@SuppressWarnings("unused") FlowStatement node) {}
+
   public void visit(ConditionalExpression node) {
     visit(node.getThenCase());
     visit(node.getCondition());
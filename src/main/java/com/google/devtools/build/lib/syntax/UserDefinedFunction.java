@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.syntax;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -20,6 +21,7 @@ import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.events.Location.LineAndColumn;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.syntax.EvalException.EvalExceptionWithJavaCause;
 import com.google.devtools.build.lib.syntax.compiler.ByteCodeUtils;
 import com.google.devtools.build.lib.syntax.compiler.DebugInfo;
 import com.google.devtools.build.lib.syntax.compiler.LoopLabels;
@@ -28,6 +30,7 @@ import com.google.devtools.build.lib.syntax.compiler.VariableScope;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
 import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.ClassFileVersion;
 import net.bytebuddy.asm.ClassVisitorWrapper;
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.description.modifier.MethodManifestation;
@@ -60,6 +63,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
 
 /**
  * The actual function registered in the environment. This function is defined in the
@@ -72,12 +79,44 @@ public class UserDefinedFunction extends BaseFunction {
   // we close over the globals at the time of definition
   private final Environment.Frame definitionGlobals;
 
-  private Optional<Method> method;
+  // The local variables that are kept in slots of the frames this function runs in, if any.
+  @Nullable private final LocalVariables locals;
+
+  // The compiled version of this function, absent if it could not be compiled, or null if
+  // compilation was not attempted yet.
+  private volatile Optional<Method> method;
+  // The number of calls before compilation is attempted, fixed when the function is defined.
+  private final int compilationThreshold;
+  // The number of calls before compilation was attempted.
+  private final AtomicInteger interpretedCalls = new AtomicInteger();
+  // The number of loop iterations run by those calls, not counting the functions they called.
+  private final AtomicLong interpretedLoopIterations = new AtomicLong();
+
+  /**
+   * The number of loop iterations a call has to run on average in the interpreter for the function
+   * to be compiled. The compiled versions of functions that loop less are no faster.
+   */
+  private static final int MIN_LOOP_ITERATIONS_PER_CALL = 100;
+
   // TODO(bazel-team) make this configurable once the compiler is stable
   public static boolean debugCompiler = false;
   public static boolean debugCompilerPrintByteCode = false;
   private static File debugFolder;
-  public static boolean enableCompiler = false;
+  /**
+   * The number of times a function is interpreted before it is compiled, or a negative number if
+   * the compiler is disabled. Read by the threads that define functions while a build sets it.
+   */
+  private static volatile int defaultCompilationThreshold = -1;
+
+  /**
+   * Enables the compiler for functions defined from now on. A negative threshold disables the
+   * compiler, and 0 compiles every function when it is defined. With a positive threshold, a
+   * function is interpreted {@code threshold} times, and then compiled if those calls ran at least
+   * {@link #MIN_LOOP_ITERATIONS_PER_CALL} loop iterations on average.
+   */
+  public static void setCompilationThreshold(int threshold) {
+    defaultCompilationThreshold = threshold;
+  }
 
   protected UserDefinedFunction(
       Identifier function,
@@ -85,10 +124,26 @@ public class UserDefinedFunction extends BaseFunction {
       ImmutableList<Statement> statements,
       Environment.Frame definitionGlobals)
       throws EvalException {
+    this(function, signature, statements, definitionGlobals, null);
+  }
+
+  protected UserDefinedFunction(
+      Identifier function,
+      FunctionSignature.WithValues<Object, SkylarkType> signature,
+      ImmutableList<Statement> statements,
+      Environment.Frame definitionGlobals,
+      @Nullable LocalVariables locals)
+      throws EvalException {
     super(function.getName(), signature, function.getLocation());
     this.statements = statements;
     this.definitionGlobals = definitionGlobals;
-    method = enableCompiler ? buildCompiledFunction() : Optional.<Method>absent();
+    this.locals = locals;
+    this.compilationThreshold = defaultCompilationThreshold;
+    if (compilationThreshold < 0) {
+      method = Optional.absent();
+    } else if (compilationThreshold == 0) {
+      method = buildCompiledFunction();
+    }
   }
 
   public FunctionSignature.WithValues<Object, SkylarkType> getFunctionSignature() {
@@ -111,8 +166,9 @@ public class UserDefinedFunction extends BaseFunction {
               getName(), Iterables.getLast(env.getStackTrace()).getName()));
     }
 
-    if (enableCompiler && method.isPresent()) {
-      Object returnValue = callCompiledFunction(arguments, ast, env);
+    Optional<Method> compiled = getCompiledMethod();
+    if (compiled.isPresent()) {
+      Object returnValue = callCompiledFunction(compiled.get(), arguments, ast, env);
       if (returnValue != null) {
         return returnValue;
       }
@@ -121,7 +177,7 @@ public class UserDefinedFunction extends BaseFunction {
     Profiler.instance().startTask(ProfilerTask.SKYLARK_USER_FN,
         getLocationPathAndLine() + "#" + getName());
     try {
-      env.enterScope(this, ast, definitionGlobals);
+      env.enterScope(this, ast, definitionGlobals, locals);
       ImmutableList<String> names = signature.getSignature().getNames();
 
       // Registering the functions's arguments as variables in the local Environment
@@ -146,28 +202,80 @@ public class UserDefinedFunction extends BaseFunction {
       return Runtime.NONE;
     } finally {
       Profiler.instance().completeTask(ProfilerTask.SKYLARK_USER_FN);
+      if (method == null) {
+        interpretedLoopIterations.addAndGet(env.getLoopIterations());
+      }
       env.exitScope();
     }
   }
 
-  private Object callCompiledFunction(Object[] arguments, FuncallExpression ast, Environment env) {
+  /**
+   * Returns the compiled version of this function, compiling it if it has now been called often
+   * enough and looped enough in those calls. Returns absent while the function is to be
+   * interpreted.
+   */
+  private Optional<Method> getCompiledMethod() {
+    Optional<Method> compiled = method;
+    if (compiled != null) {
+      return compiled;
+    }
+    if (interpretedCalls.incrementAndGet() <= compilationThreshold) {
+      return Optional.absent();
+    }
+    synchronized (this) {
+      if (method == null
+          && interpretedLoopIterations.get()
+              < (long) compilationThreshold * MIN_LOOP_ITERATIONS_PER_CALL) {
+        method = Optional.absent();
+      } else if (method == null) {
+        try {
+          method = buildCompiledFunction();
+        } catch (EvalException e) {
+          // The interpreter reports this error if and when it is reached.
+          reportFallback("compile error: " + e.getMessage());
+          method = Optional.absent();
+        }
+      }
+      return method;
+    }
+  }
+
+  private Object callCompiledFunction(
+      Method compiled, Object[] arguments, FuncallExpression ast, Environment env)
+      throws EvalException, InterruptedException {
     compilerDebug("Calling compiled function " + getLocationPathAndLine() + " " + getName());
     try {
       Profiler.instance().startTask(ProfilerTask.SKYLARK_USER_COMPILED_FN,
           getLocationPathAndLine() + "#" + getName());
       env.enterScope(this, ast, definitionGlobals);
 
-      return method
-          .get()
-          .invoke(null, ImmutableList.builder().add(arguments).add(env).build().toArray());
+      return compiled.invoke(
+          null, ImmutableList.builder().add(arguments).add(env).build().toArray());
 
     } catch (IllegalAccessException e) {
       // this should never happen
       throw new RuntimeException(
           "Compiler created code that could not be accessed reflectively.", e);
-    } catch (InvocationTargetException e) {
-      compilerDebug("Error running compiled version", e.getCause());
+    } catch (IllegalArgumentException e) {
+      // The compiled code was not entered, so the interpreter can still run the function.
+      compilerDebug("Error calling compiled version", e);
+      reportFallback("cannot call: " + e);
+      method = Optional.absent();
       return null;
+    } catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof EvalException) {
+        throw (EvalException) cause;
+      }
+      if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      }
+      // The compiled code may already have had side effects, so the function must not be run
+      // again by the interpreter for this call. Later calls are interpreted.
+      compilerDebug("Error running compiled version", cause);
+      reportFallback("runtime error: " + cause);
+      method = Optional.absent();
+      throw new EvalExceptionWithJavaCause(getLocation(), cause);
     } finally {
       Profiler.instance().completeTask(ProfilerTask.SKYLARK_USER_COMPILED_FN);
       env.exitScope();
@@ -222,7 +330,7 @@ public class UserDefinedFunction extends BaseFunction {
       List<Class<?>> parameterTypes = sig.getShape().toClasses();
       parameterTypes.add(Environment.class);
       Unloaded<CompiledFunction> unloadedImplementation =
-          new ByteBuddy()
+          new ByteBuddy(ClassFileVersion.JAVA_V8)
               .withClassVisitor(new StackMapFrameClassVisitor(debugCompilerPrintByteCode))
               .subclass(CompiledFunction.class)
               .name(compiledFunctionClassName)
@@ -252,6 +360,9 @@ public class UserDefinedFunction extends BaseFunction {
           unloadedImplementation
               .load(getClass().getClassLoader(), ClassLoadingStrategy.Default.WRAPPER)
               .getLoaded();
+      // Verify and initialize the class now, so that invalid byte code makes the function fall
+      // back to the interpreter here rather than fail when it is called.
+      Class.forName(functionClass.getName(), true, functionClass.getClassLoader());
 
       return Optional.of(
           ReflectionUtils.getMethod(
@@ -264,11 +375,24 @@ public class UserDefinedFunction extends BaseFunction {
       throw e;
     } catch (Throwable e) {
       compilerDebug("Error while compiling", e);
-      // TODO(bazel-team) don't capture all throwables? couldn't compile this, log somewhere?
+      // TODO(bazel-team) don't capture all throwables?
+      reportFallback("cannot compile: " + e);
     }
     return Optional.absent();
   }
 
+  @VisibleForTesting
+  boolean isCompiled() {
+    Optional<Method> compiled = method;
+    return compiled != null && compiled.isPresent();
+  }
+
+  /** Records in the profile that this function is interpreted although the compiler is enabled. */
+  private void reportFallback(String reason) {
+    Profiler.instance().logEvent(ProfilerTask.SKYLARK_COMPILER_FALLBACK,
+        getLocationPathAndLine() + "#" + getName() + ": " + reason);
+  }
+
   /**
    * Saves byte code to a temporary directory prefixed with "skylarkbytecode" in the system
    * default temporary directory.
@@ -336,12 +460,16 @@ public class UserDefinedFunction extends BaseFunction {
   }
 
   private void compilerDebug(String message) {
-    System.err.println(message);
+    if (debugCompiler) {
+      System.err.println(message);
+    }
   }
 
   private void compilerDebug(String message, Throwable e) {
-    compilerDebug(message);
-    e.printStackTrace();
+    if (debugCompiler) {
+      compilerDebug(message);
+      e.printStackTrace();
+    }
   }
 
   /**
@@ -20,6 +20,7 @@ import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.collect.CompactHashSet;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -124,6 +125,15 @@ public class GroupedList<T> implements Iterable<Collection<T>> {
 
   private static final Object EMPTY_LIST = new Object();
 
+  /**
+   * Returns a memory-efficient representation of this list, to be passed to {@link #create} or
+   * {@link #compressedToSet}.
+   *
+   * <p>If every group has a single element, the result is just an array of the elements. Otherwise
+   * all groups are flattened into one array, followed by the size of each group, so that no list
+   * object needs to be kept per group. The sizes are a {@code byte[]} of unsigned values if no group
+   * has more than 255 elements, which is almost always the case, and an {@code int[]} otherwise.
+   */
   public Object compress() {
     switch (numElements()) {
       case 0:
@@ -131,10 +141,82 @@ public class GroupedList<T> implements Iterable<Collection<T>> {
       case 1:
         return Iterables.getOnlyElement(elements);
       default:
-        return elements.toArray();
+        if (elements.size() == size) {
+          return elements.toArray();
+        }
+        Object[] result = new Object[size + 1];
+        int[] groupSizes = new int[elements.size()];
+        int maxGroupSize = 1;
+        int index = 0;
+        for (int i = 0; i < elements.size(); i++) {
+          Object obj = elements.get(i);
+          if (obj instanceof List) {
+            for (Object item : (List<?>) obj) {
+              result[index++] = item;
+            }
+            groupSizes[i] = ((List<?>) obj).size();
+            maxGroupSize = Math.max(maxGroupSize, groupSizes[i]);
+          } else {
+            result[index++] = obj;
+            groupSizes[i] = 1;
+          }
+        }
+        if (maxGroupSize <= MAX_BYTE_GROUP_SIZE) {
+          byte[] byteGroupSizes = new byte[groupSizes.length];
+          for (int i = 0; i < groupSizes.length; i++) {
+            byteGroupSizes[i] = (byte) groupSizes[i];
+          }
+          result[size] = byteGroupSizes;
+        } else {
+          result[size] = groupSizes;
+        }
+        return result;
     }
   }
 
+  private static final int MAX_BYTE_GROUP_SIZE = 0xFF;
+
+  /** Returns true if {@code array} was created by {@link #compress} for a list with groups. */
+  private static boolean hasGroupSizes(Object[] array) {
+    Object last = array[array.length - 1];
+    return last instanceof byte[] || last instanceof int[];
+  }
+
+  /** Returns the group sizes stored at the end of an array for which {@link #hasGroupSizes}. */
+  private static int[] getGroupSizes(Object[] array) {
+    Object last = array[array.length - 1];
+    if (last instanceof int[]) {
+      return (int[]) last;
+    }
+    byte[] byteGroupSizes = (byte[]) last;
+    int[] groupSizes = new int[byteGroupSizes.length];
+    for (int i = 0; i < byteGroupSizes.length; i++) {
+      groupSizes[i] = byteGroupSizes[i] & MAX_BYTE_GROUP_SIZE;
+    }
+    return groupSizes;
+  }
+
+  /**
+   * Returns the elements of a compressed list as a set, without constructing the intermediate
+   * {@link GroupedList}. Equivalent to {@code GroupedList.create(compressed).toSet()}.
+   */
+  @SuppressWarnings("unchecked")
+  public static <E> Set<E> compressedToSet(Object compressed) {
+    if (compressed == EMPTY_LIST) {
+      return ImmutableSet.of();
+    }
+    if (compressed.getClass().isArray()) {
+      Object[] array = (Object[]) compressed;
+      int numElements = hasGroupSizes(array) ? array.length - 1 : array.length;
+      ImmutableSet.Builder<E> builder = ImmutableSet.builder();
+      for (int i = 0; i < numElements; i++) {
+        builder.add((E) array[i]);
+      }
+      return builder.build();
+    }
+    return ImmutableSet.of((E) compressed);
+  }
+
   @SuppressWarnings("unchecked")
   public Set<T> toSet() {
     ImmutableSet.Builder<T> builder = ImmutableSet.builder();
@@ -157,9 +239,25 @@ public class GroupedList<T> implements Iterable<Collection<T>> {
       return new GroupedList<>();
     }
     if (compressed.getClass().isArray()) {
+      Object[] array = (Object[]) compressed;
+      if (hasGroupSizes(array)) {
+        int[] groupSizes = getGroupSizes(array);
+        List<Object> elements = new ArrayList<>(groupSizes.length);
+        int index = 0;
+        for (int groupSize : groupSizes) {
+          if (groupSize == 1) {
+            elements.add(array[index]);
+          } else {
+            elements.add(
+                ImmutableList.copyOf(Arrays.asList(array).subList(index, index + groupSize)));
+          }
+          index += groupSize;
+        }
+        return new GroupedList<>(index, elements);
+      }
       List<Object> elements = new ArrayList<>();
       int size = 0;
-      for (Object item : (Object[]) compressed) {
+      for (Object item : array) {
         size += sizeOf(item);
         elements.add(item);
       }
@@ -22,6 +22,7 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Hashtable;
@@ -61,6 +62,12 @@ import java.util.Map;
  * files on disk and checked before reading from disk. Files with an
  * incompatible version number will be ignored. This allows the client code to
  * change the persistence format without polluting the file system name space.
+ * <p>
+ * Sub-classes may choose to append updates to the map file itself instead of
+ * keeping a separate journal, see {@link #appendToMapFile()}. The map file then
+ * only gets rewritten once most of its entries are stale, so that the cost of
+ * {@link #save()} is proportional to the number of updates rather than to the
+ * size of the map.
  */
 public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
 
@@ -93,6 +100,19 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
    */
   private boolean loaded;
 
+  /**
+   * Number of entries in the map file, including entries that were overwritten
+   * or removed by later entries. Only maintained if {@link #appendToMapFile()}.
+   */
+  private long mapFileEntries;
+
+  /**
+   * 'mapFileAppendable' is true when the map file exists, was written using the
+   * current version tag and ends with a complete entry, so that new entries can
+   * be appended to it.
+   */
+  private boolean mapFileAppendable;
+
   private final Map<K, V> delegate;
 
   /**
@@ -183,16 +203,52 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
    * {@link #journalOut} stream and clearing the in memory journal.
    */
   private void writeJournal() {
+    try {
+      if (appendToMapFile()) {
+        appendJournalToMapFile();
+      } else {
+        if (journalOut == null) {
+          journalOut = createMapFile(journalFile);
+        }
+        writeEntries(journalOut, journal);
+        journalOut.flush();
+      }
+      journal.clear();
+    } catch (IOException e) {
+      this.deferredIOFailure = e.getMessage() + " during journal append";
+    }
+  }
+
+  /**
+   * Appends the in memory journal to the map file. If the map file cannot be
+   * appended to, it is rewritten with all entries of the map instead.
+   */
+  private void appendJournalToMapFile() throws IOException {
+    if (!mapFileAppendable) {
+      rewriteMapFile();
+      return;
+    }
     try {
       if (journalOut == null) {
-        journalOut = createMapFile(journalFile);
+        journalOut = new DataOutputStream(
+            new BufferedOutputStream(mapFile.getOutputStream(/*append=*/true)));
       }
       writeEntries(journalOut, journal);
       journalOut.flush();
-      journal.clear();
     } catch (IOException e) {
-      this.deferredIOFailure = e.getMessage() + " during journal append";
+      // The map file may now end with a partial entry, so the next save must rewrite it.
+      mapFileAppendable = false;
+      if (journalOut != null) {
+        try {
+          journalOut.close();
+        } catch (IOException closeException) {
+          // Ignored, the original failure is reported.
+        }
+        journalOut = null;
+      }
+      throw e;
     }
+    mapFileEntries += journal.size();
   }
 
   protected void forceFlush() {
@@ -209,7 +265,9 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
    */
   public void load(boolean failFast) throws IOException {
     if (!loaded) {
-      loadEntries(mapFile, failFast);
+      long entries = loadEntries(mapFile, failFast);
+      mapFileAppendable = entries >= 0;
+      mapFileEntries = Math.max(entries, 0);
       if (journalFile.exists()) {
         try {
           loadEntries(journalFile, failFast);
@@ -242,6 +300,9 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
   @Override
   public void clear() {
     super.clear();
+    // The removed entries are not recorded in the journal, so the map file
+    // must not be appended to.
+    mapFileAppendable = false;
     markAsDirty();
     try {
       save();
@@ -269,32 +330,26 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
    *   previous call since the last save().
    */
   private long save(boolean fullSave) throws IOException {
-    /* Report a previously failing I/O operation. */
-    if (deferredIOFailure != null) {
-      try {
-        throw new IOException(deferredIOFailure);
-      } finally {
-        deferredIOFailure = null;
-      }
-    }
+    reportDeferredIOFailure();
     if (dirty) {
-      if (!fullSave && keepJournal()) {
+      if (!fullSave && appendToMapFile()
+          && mapFileEntries + journal.size() <= 2L * delegate().size()) {
+        forceFlush();
+        reportDeferredIOFailure();
+        if (journalOut != null) {
+          journalOut.close();
+          journalOut = null;
+        }
+        dirty = false;
+        return cacheSize();
+      } else if (!fullSave && keepJournal()) {
         forceFlush();
         journalOut.close();
         journalOut = null;
         return journalSize() + cacheSize();
       } else {
         dirty = false;
-        Path mapTemp =
-            mapFile.getRelative(FileSystemUtils.replaceExtension(mapFile.asFragment(), ".tmp"));
-        try {
-          saveEntries(delegate(), mapTemp);
-          mapTemp.renameTo(mapFile);
-        } finally {
-          mapTemp.delete();
-        }
-        clearJournal();
-        journalFile.delete();
+        rewriteMapFile();
         return cacheSize();
       }
     } else {
@@ -302,6 +357,41 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
     }
   }
 
+  /** Reports a previously failing I/O operation. */
+  private void reportDeferredIOFailure() throws IOException {
+    if (deferredIOFailure != null) {
+      try {
+        throw new IOException(deferredIOFailure);
+      } finally {
+        deferredIOFailure = null;
+      }
+    }
+  }
+
+  /**
+   * Writes all the entries of this map to a new map file and deletes the
+   * journal file.
+   */
+  private void rewriteMapFile() throws IOException {
+    if (appendToMapFile() && journalOut != null) {
+      // Do not let the stream appending to the old map file outlive it.
+      journalOut.close();
+      journalOut = null;
+    }
+    Path mapTemp =
+        mapFile.getRelative(FileSystemUtils.replaceExtension(mapFile.asFragment(), ".tmp"));
+    try {
+      saveEntries(delegate(), mapTemp);
+      mapTemp.renameTo(mapFile);
+    } finally {
+      mapTemp.delete();
+    }
+    clearJournal();
+    journalFile.delete();
+    mapFileEntries = delegate().size();
+    mapFileAppendable = true;
+  }
+
   protected final long journalSize() throws IOException {
     return journalFile.exists() ? journalFile.getFileSize() : 0;
   }
@@ -319,6 +409,22 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
     return false;
   }
 
+  /**
+   * If true, updates are appended to the map file itself rather than to the
+   * journal file, and {@link #save()} only rewrites the map file once more than
+   * half of its entries are stale. Otherwise it just closes the map file. This
+   * makes saving a large map with few changes cheap, at the cost of a map file
+   * that may be up to twice as large as necessary. {@link #keepJournal()} is
+   * not consulted in this mode.
+   *
+   * <p>If the process dies while appending, the incomplete last entry is
+   * ignored by the next {@link #load()} and the map file is rewritten on the
+   * next update.
+   */
+  protected boolean appendToMapFile() {
+    return false;
+  }
+
   private void clearJournal() throws IOException {
     journal.clear();
     if (journalOut != null) {
@@ -327,9 +433,15 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
     }
   }
 
-  private void loadEntries(Path mapFile, boolean failFast) throws IOException {
+  /**
+   * Loads the entries of the specified file into the map.
+   *
+   * @return the number of entries read, or -1 if the file does not exist, has
+   *         an incompatible format or does not end with a complete entry.
+   */
+  private long loadEntries(Path mapFile, boolean failFast) throws IOException {
     if (!mapFile.exists()) {
-      return;
+      return -1;
     }
     DataInputStream in =
       new DataInputStream(new BufferedInputStream(mapFile.getInputStream()));
@@ -339,22 +451,22 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
         if (failFast) {
           throw new IOException(mapFile + " is too short: Only " + fileSize + " bytes");
         } else {
-          return;
+          return -1;
         }
       }
       if (in.readLong() != MAGIC) { // not a PersistentMap
         if (failFast) {
           throw new IOException("Unexpected format");
         }
-        return;
+        return -1;
       }
       if (in.readLong() != version) { // PersistentMap version incompatible
         if (failFast) {
           throw new IOException("Unexpected format");
         }
-        return;
+        return -1;
       }
-      readEntries(in, failFast);
+      return readEntries(in, failFast);
     } finally {
       in.close();
     }
@@ -417,33 +529,44 @@ public abstract class PersistentMap<K, V> extends ForwardingMap<K, V> {
    * @param failFast if true, throw IOException if entries are in an unexpected
    *                 format.
    * @param in the DataInputStream to read the Map entries from.
+   * @return the number of entries read, or -1 if the stream does not end with
+   *         a complete entry.
    * @throws IOException
    */
-  private void readEntries(DataInputStream in, boolean failFast) throws IOException {
+  private long readEntries(DataInputStream in, boolean failFast) throws IOException {
     Map<K, V> map = delegate();
-    while (hasEntries(in, failFast)) {
-      K key = readKey(in);
-      boolean isEntry = in.readBoolean();
+    long entries = 0;
+    while (in.available() > 0) {
+      if (in.readUnsignedByte() != ENTRY_MAGIC) {
+        if (failFast) {
+          throw new IOException("Corrupted entry separator");
+        }
+        return -1;
+      }
+      K key;
+      V value = null;
+      boolean isEntry;
+      try {
+        key = readKey(in);
+        isEntry = in.readBoolean();
+        if (isEntry) {
+          value = readValue(in);
+        }
+      } catch (EOFException e) {
+        // An appended entry may have been cut short by a crash.
+        if (failFast || !appendToMapFile()) {
+          throw e;
+        }
+        return -1;
+      }
       if (isEntry) {
-        V value = readValue(in);
         map.put(key, value);
       } else {
         map.remove(key);
       }
+      entries++;
     }
-  }
-
-  private boolean hasEntries(DataInputStream in, boolean failFast) throws IOException {
-    if (in.available() <= 0) {
-      return false;
-    } else if (in.readUnsignedByte() != ENTRY_MAGIC) {
-      if (failFast) {
-        throw new IOException("Corrupted entry separator");
-      } else {
-        return false;
-      }
-    }
-    return true;
+    return entries;
   }
 
   /**
@@ -0,0 +1,195 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps track of entries stored as files in a directory, and deletes the least recently used ones
+ * once their total size exceeds a limit. Callers read and write the entry files themselves.
+ *
+ * <p>Entries are written to a temporary file that is then renamed, so that readers never see a
+ * partial entry. The last modification time of an entry file is its last use, so that the order
+ * is kept across instances. The directory may be shared by several servers; each instance enforces
+ * the limit only on the entries it knows about: those that existed when it was loaded and those it
+ * used or wrote since.
+ */
+@ThreadSafe
+public final class LruDirectoryStore {
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final Path directory;
+  private final long maxSizeBytes;
+
+  // The sizes of the known entries, from least to most recently used. Guarded by this.
+  private final LinkedHashMap<String, Long> entrySizes =
+      new LinkedHashMap<>(16, 0.75f, /*accessOrder=*/true);
+  // Guarded by this.
+  private long totalSizeBytes;
+
+  /**
+   * Creates a store for {@code directory} that keeps at most about {@code maxSizeBytes} of
+   * entries. Entries left by earlier instances are only known after {@link #loadEntries}.
+   */
+  public LruDirectoryStore(Path directory, long maxSizeBytes) {
+    this.directory = directory;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  public long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  /**
+   * Records the entries left by earlier instances, least recently used first, deletes the
+   * temporary files of interrupted writes, and evicts entries if there are too many.
+   */
+  public void loadEntries() throws IOException {
+    if (!directory.exists()) {
+      return;
+    }
+    final Map<Path, Long> lastUsed = new LinkedHashMap<>();
+    for (Path file : directory.getDirectoryEntries()) {
+      try {
+        if (file.getBaseName().endsWith(TEMP_SUFFIX)) {
+          file.delete();
+        } else {
+          lastUsed.put(file, file.getLastModifiedTime());
+        }
+      } catch (IOException e) {
+        // Deleted in the meantime.
+      }
+    }
+    List<Path> files = new ArrayList<>(lastUsed.keySet());
+    Collections.sort(files, new Comparator<Path>() {
+      @Override
+      public int compare(Path a, Path b) {
+        return Long.compare(lastUsed.get(a), lastUsed.get(b));
+      }
+    });
+    synchronized (this) {
+      for (Path file : files) {
+        try {
+          recordEntry(file.getBaseName(), file.getFileSize());
+        } catch (IOException e) {
+          // Deleted in the meantime.
+        }
+      }
+      evictIfNeeded();
+    }
+  }
+
+  /** Returns the file of the entry with the given name, which must be a valid file name. */
+  public Path getEntryFile(String name) {
+    return directory.getChild(name);
+  }
+
+  /**
+   * Returns a new temporary file to write the entry with the given name to, before passing it to
+   * {@link #commit}.
+   */
+  public Path createTempFile(String name) throws IOException {
+    FileSystemUtils.createDirectoryAndParents(directory);
+    return directory.getChild(name + "." + UUID.randomUUID() + TEMP_SUFFIX);
+  }
+
+  /**
+   * Makes the written temporary file the entry with the given name, and evicts entries if there
+   * are too many now.
+   */
+  public void commit(Path tempFile, String name, long size) throws IOException {
+    tempFile.renameTo(getEntryFile(name));
+    synchronized (this) {
+      recordEntry(name, size);
+      evictIfNeeded();
+    }
+  }
+
+  /** Deletes a temporary file that will not be committed. */
+  public void discard(Path tempFile) {
+    try {
+      tempFile.delete();
+    } catch (IOException e) {
+      // Deleted by the next instance to load the entries.
+    }
+  }
+
+  /** Marks the entry with the given name, which was just read, as the most recently used one. */
+  public void markUsed(String name, long size) {
+    synchronized (this) {
+      // Also marks the entry as most recently used.
+      if (entrySizes.get(name) == null) {
+        recordEntry(name, size);
+        evictIfNeeded();
+      }
+    }
+    try {
+      // Keeps the eviction order across instances.
+      getEntryFile(name).setLastModifiedTime(-1L);
+    } catch (IOException e) {
+      // The order is only a hint.
+    }
+  }
+
+  /** Deletes the entry with the given name. */
+  public synchronized void delete(String name) {
+    Long size = entrySizes.remove(name);
+    if (size != null) {
+      totalSizeBytes -= size;
+    }
+    deleteEntryFile(name);
+  }
+
+  /** Returns the number of entries known to this instance. */
+  public synchronized int size() {
+    return entrySizes.size();
+  }
+
+  private synchronized void recordEntry(String name, long size) {
+    Long previousSize = entrySizes.put(name, size);
+    totalSizeBytes += size - (previousSize == null ? 0 : previousSize);
+  }
+
+  private synchronized void evictIfNeeded() {
+    Iterator<Map.Entry<String, Long>> leastRecentlyUsed = entrySizes.entrySet().iterator();
+    while (totalSizeBytes > maxSizeBytes && leastRecentlyUsed.hasNext()) {
+      Map.Entry<String, Long> entry = leastRecentlyUsed.next();
+      leastRecentlyUsed.remove();
+      totalSizeBytes -= entry.getValue();
+      deleteEntryFile(entry.getKey());
+    }
+  }
+
+  private void deleteEntryFile(String name) {
+    try {
+      getEntryFile(name).delete();
+    } catch (IOException e) {
+      // Retried when the entry is evicted by a later instance.
+    }
+  }
+}
@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.vfs;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -29,12 +30,9 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.IdentityHashMap;
 import java.util.Objects;
 
 /**
@@ -42,7 +40,7 @@ import java.util.Objects;
  * structure to implement sharing of common prefixes (parent directory names).
  * A node in these trees is something like foo, bar, .., ., or /. If the
  * instance is not a root path, it will have a parent path. A path can also
- * have children, which are indexed by name in a map.
+ * have children, which are kept in a small hash table keyed by name.
  *
  * <p>There is some limited support for Windows-style paths. Most importantly, drive identifiers
  * in front of a path (c:/abc) are supported. However, Windows-style backslash separators
@@ -77,63 +75,41 @@ public class Path implements Comparable<Path>, Serializable {
   private int depth;
   private int hashCode;
 
-  private static final ReferenceQueue<Path> REFERENCE_QUEUE = new ReferenceQueue<>();
-
-  private static class PathWeakReferenceForCleanup extends WeakReference<Path> {
-    final Path parent;
-    final String baseName;
-
-    PathWeakReferenceForCleanup(Path referent, ReferenceQueue<Path> referenceQueue) {
-      super(referent, referenceQueue);
-      parent = referent.getParentDirectory();
-      baseName = referent.getBaseName();
-    }
-  }
-
-  private static final Thread PATH_CHILD_CACHE_CLEANUP_THREAD = new Thread("Path cache cleanup") {
-    @Override
-    public void run() {
-      while (true) {
-        try {
-          PathWeakReferenceForCleanup ref = (PathWeakReferenceForCleanup) REFERENCE_QUEUE.remove();
-          Path parent = ref.parent;
-          synchronized (parent) {
-            // It's possible that since this reference was enqueued for deletion, the Path was
-            // recreated with a new entry in the map. We definitely shouldn't delete that entry, so
-            // check to make sure they're the same.
-            Reference<Path> currentRef = ref.parent.children.get(ref.baseName);
-            if (currentRef == ref) {
-              ref.parent.children.remove(ref.baseName);
-            }
-          }
-        } catch (InterruptedException e) {
-          // Ignored.
-        }
-      }
+  /**
+   * A weak reference to a child path. It needs no other fields: the name of
+   * the child is read from the referent, and references whose referent has
+   * been collected are dropped lazily (see {@link ChildTable}).
+   */
+  private static final class ChildReference extends WeakReference<Path> {
+    ChildReference(Path referent) {
+      super(referent);
     }
-  };
-
-  static {
-    PATH_CHILD_CACHE_CLEANUP_THREAD.setDaemon(true);
-    PATH_CHILD_CACHE_CLEANUP_THREAD.start();
   }
 
   /**
-   * A mapping from a child file name to the {@link Path} representing it.
+   * The children of a path, as an open-addressing hash table keyed by the
+   * (interned) name of the referent, using linear probing.
    *
    * <p>File names must be a single path segment.  The strings must be
-   * canonical.  We use IdentityHashMap instead of HashMap for reasons of space
-   * efficiency: instances are smaller by a single word.  Also, since all path
+   * canonical, so that names can be compared by identity.  We use a bare
+   * array of references instead of a map for reasons of space efficiency:
+   * there is no array slot for the key, and no entry object besides the
+   * reference itself, which holds no fields of its own.  Since all path
    * segments are interned, the universe of Paths holds a minimal number of
-   * references to strings.  (It's doubtful that there's any time gain from use
-   * of an IdentityHashMap, since the time saved by avoiding string equality
-   * tests during hash lookups is probably equal to the time spent eagerly
-   * interning strings, unless the collision rate is high.)
+   * references to strings.  The table and its counters are only allocated
+   * for paths that have children, which most paths, being files, don't.
    *
    * <p>The Paths are stored as weak references to ensure that a live
    * Path for a directory does not hold a strong reference to all of its
    * descendants, which would prevent collection of paths we never intend to
-   * use again.  Stale references in the map must be treated as absent.
+   * use again.  Stale references in the table must be treated as absent.
+   * They are not removed when they are cleared, since a cleared slot must
+   * still continue a probe sequence, and a reference queue would need a
+   * pointer back to the table in every reference.  Instead a new child is
+   * stored in the first stale slot of its probe sequence, and all stale
+   * references are dropped whenever the table is rebuilt, which is when it
+   * would otherwise grow, when a lookup meets more stale references than
+   * live ones, or when many stale slots were reused since the last rebuild.
    *
    * <p>A Path may be recycled once there is no Path that refers to it or
    * to one of its descendants.  This means that any data stored in the
@@ -141,15 +117,109 @@ public class Path implements Comparable<Path>, Serializable {
    * store data in Paths as an optimization, but there must be another
    * source for that data in case the Path is recycled.
    *
-   * <p>We intentionally avoid using the existing library classes for reasons of
-   * space efficiency: while ConcurrentHashMap would reduce our locking
-   * overhead, and ReferenceMap would simplify the code a little, both of those
-   * classes have much higher per-instance overheads than IdentityHashMap.
-   *
-   * <p>The Path object must be synchronized while children is being
-   * accessed.
-   */
-  private volatile IdentityHashMap<String, Reference<Path>> children;
+   * <p>All accesses must be synchronized on the Path that owns the table.
+   */
+  private static final class ChildTable {
+    // 66% of Paths have size == 1, 80% <= 2
+    private ChildReference[] slots = new ChildReference[2];
+
+    /** The number of non-null slots, including stale ones. */
+    private int usedSlots;
+
+    /** The number of stale slots that were reused since the last rebuild. */
+    private int reusedSlots;
+
+    /** Returns the child of {@code parent} named {@code childName}, creating it if needed. */
+    Path getOrCreate(Path parent, String childName) {
+      int mask = slots.length - 1;
+      int freeSlot = -1;
+      int staleSlots = 0;
+      int liveSlots = 0;
+      Path child = null;
+      for (int i = slotFor(childName, mask); ; i = (i + 1) & mask) {
+        ChildReference childRef = slots[i];
+        if (childRef == null) {
+          if (freeSlot < 0) {
+            freeSlot = i;
+            usedSlots++;
+          }
+          break;
+        }
+        Path existing = childRef.get();
+        if (existing == null) {
+          staleSlots++;
+          if (freeSlot < 0) {
+            freeSlot = i;
+          }
+        } else if (existing.name == childName) {
+          child = existing;
+          break;
+        } else {
+          liveSlots++;
+        }
+      }
+      if (child == null) {
+        child = parent.createChildPath(childName);
+        if (slots[freeSlot] != null) {
+          staleSlots--;
+          reusedSlots++;
+        }
+        slots[freeSlot] = new ChildReference(child);
+      }
+      // Keep a quarter of the slots null, so that probe sequences stay short and always end. Also
+      // rebuild when collected children make up most of a probe sequence, which shrinks a table
+      // whose children are mostly gone. The collector clears references in batches, and a rebuild
+      // drops all of them, so this happens about once per batch. A lookup that reuses a stale slot
+      // doesn't count it, so that churning a child doesn't rebuild a large table every time;
+      // instead the table is rebuilt once a quarter of its slots were reused, which also shrinks
+      // it when only a few children keep being collected and recreated.
+      if (usedSlots * 4 > slots.length * 3 || staleSlots > liveSlots
+          || reusedSlots * 4 > slots.length) {
+        rebuild();
+      }
+      return child;
+    }
+
+    /**
+     * Rehashes the live children into a new array, sized for them, dropping stale references.
+     */
+    private void rebuild() {
+      int liveChildren = 0;
+      for (ChildReference childRef : slots) {
+        if (childRef != null && childRef.get() != null) {
+          liveChildren++;
+        }
+      }
+      int length = 2;
+      while (liveChildren * 2 > length) {
+        length <<= 1;
+      }
+      ChildReference[] newSlots = new ChildReference[length];
+      int mask = length - 1;
+      usedSlots = 0;
+      reusedSlots = 0;
+      for (ChildReference childRef : slots) {
+        Path child;
+        if (childRef != null && (child = childRef.get()) != null) {
+          int i = slotFor(child.name, mask);
+          while (newSlots[i] != null) {
+            i = (i + 1) & mask;
+          }
+          newSlots[i] = childRef;
+          usedSlots++;
+        }
+      }
+      slots = newSlots;
+    }
+
+    private static int slotFor(String childName, int mask) {
+      int h = childName.hashCode();
+      return (h ^ (h >>> 16)) & mask;
+    }
+  }
+
+  /** The children of this path, or null if none was created yet. Guarded by this. */
+  private ChildTable children;
 
   /**
    * Create a path instance.  Should only be called by {@link #createChildPath}.
@@ -220,31 +290,21 @@ public class Path implements Comparable<Path>, Serializable {
    * if it doesn't already exist.
    */
   private Path getCachedChildPath(String childName) {
-    // We get a canonical instance since 'children' is an IdentityHashMap.
+    // We get a canonical instance since children are compared by name identity.
     childName = StringCanonicalizer.intern(childName);
-    // We use double-checked locking so that we only hold the lock when we might need to mutate the
-    // 'children' variable. 'children' will never become null if it's already non-null, so we only
-    // need to worry about the case where it's currently null and we race with another thread
-    // executing getCachedChildPath(<doesn't matter>) trying to set 'children' to a non-null value.
-    if (children == null) {
-      synchronized (this) {
-        if (children == null) {
-          // 66% of Paths have size == 1, 80% <= 2
-          children = new IdentityHashMap<>(1);
-        }
-      }
-    }
     synchronized (this) {
-      Reference<Path> childRef = children.get(childName);
-      Path child;
-      if (childRef == null || (child = childRef.get()) == null) {
-        child = createChildPath(childName);
-        children.put(childName, new PathWeakReferenceForCleanup(child, REFERENCE_QUEUE));
+      if (children == null) {
+        children = new ChildTable();
       }
-      return child;
+      return children.getOrCreate(this, childName);
     }
   }
 
+  @VisibleForTesting
+  synchronized int getChildSlotsForTesting() {
+    return children == null ? 0 : children.slots.length;
+  }
+
   /**
    * Applies the specified function to each {@link Path} that is an existing direct
    * descendant of this one.  The Predicate is evaluated only for its
@@ -258,8 +318,8 @@ public class Path implements Comparable<Path>, Serializable {
    */
   protected synchronized void applyToChildren(Predicate<Path> function) {
     if (children != null) {
-      for (Reference<Path> childRef : children.values()) {
-        Path child = childRef.get();
+      for (ChildReference childRef : children.slots) {
+        Path child = childRef == null ? null : childRef.get();
         if (child != null) {
           function.apply(child);
         }
@@ -37,9 +37,13 @@ import com.google.devtools.build.lib.util.Preconditions;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -52,7 +56,8 @@ import java.util.regex.Pattern;
  * not [a-z] ranges.
  *
  * <p><code>**</code> gets special treatment in include patterns. If it is used as a complete path
- * segment it matches the filenames in subdirectories recursively.
+ * segment it matches the filenames in subdirectories recursively. An exclude pattern ending in
+ * <code>**</code> excludes the directories it matches and everything below them.
  */
 public final class UnixGlob {
   private UnixGlob() {}
@@ -71,17 +76,14 @@ public final class UnixGlob {
     return visitor.glob(base, patterns, excludePatterns, excludeDirectories, dirPred, syscalls);
   }
 
-  private static Future<List<Path>> globAsyncInternal(Path base, Collection<String> patterns,
-                                                      Collection<String> excludePatterns,
-                                                      boolean excludeDirectories,
-                                                      Predicate<Path> dirPred,
-                                                      FilesystemCalls syscalls,
-                                                      boolean checkForInterruption,
-                                                      ThreadPoolExecutor threadPool) {
+  private static List<ListenableFuture<List<Path>>> globAsyncInternal(Path base,
+      Collection<String> patterns, Collection<String> excludePatterns,
+      boolean excludeDirectories, Predicate<Path> dirPred, FilesystemCalls syscalls,
+      boolean checkForInterruption, ThreadPoolExecutor threadPool, boolean byPattern) {
     Preconditions.checkNotNull(threadPool, "%s %s", base, patterns);
     try {
-      return new GlobVisitor(threadPool, checkForInterruption)
-          .globAsync(base, patterns, excludePatterns, excludeDirectories, dirPred, syscalls);
+      return new GlobVisitor(threadPool, checkForInterruption).start(base, patterns,
+          excludePatterns, excludeDirectories, dirPred, syscalls, byPattern);
     } catch (IOException e) {
       // We are evaluating asynchronously, so no exceptions should be thrown until the future is
       // retrieved.
@@ -142,6 +144,24 @@ public final class UnixGlob {
     return null;
   }
 
+  /**
+   * Returns whether {@code path}, a directory, and everything below it are excluded by one of
+   * {@code excludePatterns} whose last segment is <code>**</code>.
+   *
+   * @param idx index into {@code excludePatterns} for the part of the pattern
+   *        which might match {@code path}
+   */
+  private static boolean excludedSubtree(Path path, List<String[]> excludePatterns,
+                                         int idx, Cache<String, Pattern> cache) {
+    for (String[] excludePattern : excludePatterns) {
+      if (excludePattern.length == idx + 1 && "**".equals(excludePattern[idx])
+          && (idx == 0 || matches(excludePattern[idx - 1], path.getBaseName(), cache))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private static boolean excludedOnMatch(Path path, List<String[]> excludePatterns,
                                          int idx, Cache<String, Pattern> cache) {
     for (String[] excludePattern : excludePatterns) {
@@ -475,7 +495,21 @@ public final class UnixGlob {
      */
     public Future<List<Path>> globAsync(boolean checkForInterrupt) {
       return globAsyncInternal(base, patterns, excludes, excludeDirectories, pathFilter,
-          syscalls.get(), checkForInterrupt, threadPool);
+          syscalls.get(), checkForInterrupt, threadPool, false).get(0);
+    }
+
+    /**
+     * Executes the glob asynchronously, returning a separate result for each pattern, in the
+     * order in which the patterns were added. All patterns are matched during a single traversal
+     * of the file system, so a directory that is relevant to several patterns is only read once.
+     * Canceling any of the returned futures cancels all of them. {@link #setThreadPool} must have
+     * been called already with a non-null argument.
+     *
+     * @param checkForInterrupt if the returned futures may throw InterruptedException.
+     */
+    public List<ListenableFuture<List<Path>>> globAsyncByPattern(boolean checkForInterrupt) {
+      return globAsyncInternal(base, patterns, excludes, excludeDirectories, pathFilter,
+          syscalls.get(), checkForInterrupt, threadPool, true);
     }
   }
 
@@ -522,13 +556,19 @@ public final class UnixGlob {
     }
   }
 
+
   /**
    * GlobVisitor executes a glob using parallelism, which is useful when
    * the glob() requires many readdir() calls on high latency filesystems.
+   *
+   * <p>All include patterns are matched during a single traversal. Each pattern of n segments is
+   * turned into n + 1 states, one per segment still to be matched plus a final one, and every
+   * directory is visited once with the set of states that reached it, so that a directory shared
+   * by several patterns is listed only once.
    */
   private static final class GlobVisitor {
     // These collections are used across workers and must therefore be thread-safe.
-    private final Collection<Path> results = Sets.newConcurrentHashSet();
+    private final List<Collection<Path>> results = new ArrayList<>();
     private final Cache<String, Pattern> cache = CacheBuilder.newBuilder().build(
         new CacheLoader<String, Pattern>() {
             @Override
@@ -537,15 +577,26 @@ public final class UnixGlob {
             }
           });
 
-    private final GlobFuture result;
+    private final List<GlobFuture> futures = new ArrayList<>();
     private final ThreadPoolExecutor executor;
+    private final boolean failFastOnInterrupt;
     private final AtomicLong pendingOps = new AtomicLong(0);
     private final AtomicReference<IOException> failure = new AtomicReference<>();
     private volatile boolean canceled = false;
 
+    // Set up by start() before the traversal begins and not modified afterwards. For each state,
+    // the pattern segment it has yet to match (or null for a final state), whether that segment
+    // has no wildcards, and the collection a path reaching the final state is added to.
+    private String[] stateSegments;
+    private boolean[] stateIsLiteral;
+    private List<Collection<Path>> stateResults;
+    private boolean excludeDirectories;
+    private Predicate<Path> dirPred;
+    private FilesystemCalls syscalls;
+
     public GlobVisitor(ThreadPoolExecutor executor, boolean failFastOnInterrupt) {
       this.executor = executor;
-      this.result = new GlobFuture(this, failFastOnInterrupt);
+      this.failFastOnInterrupt = failFastOnInterrupt;
     }
 
     public GlobVisitor(boolean failFastOnInterrupt) {
@@ -562,21 +613,20 @@ public final class UnixGlob {
      *
      * <p><code>**</code> gets special treatment in include patterns. If it is
      * used as a complete path segment it matches the filenames in
-     * subdirectories recursively.
+     * subdirectories recursively. An exclude pattern whose last segment is
+     * <code>**</code> excludes the directories it matches together with
+     * everything below them, which are then not traversed at all.
      *
      * @throws IllegalArgumentException if any glob or exclude pattern
-     *         {@linkplain #checkPatternForError(String) contains errors} or if
-     *         any exclude pattern segment contains <code>**</code> or if any
-     *         include pattern segment contains <code>**</code> but not equal to
-     *         it.
+     *         {@linkplain #checkPatternForError(String) contains errors}.
      */
     public List<Path> glob(Path base, Collection<String> patterns,
                            Collection<String> excludePatterns, boolean excludeDirectories,
                            Predicate<Path> dirPred, FilesystemCalls syscalls)
         throws IOException, InterruptedException {
       try {
-        return globAsync(base, patterns, excludePatterns, excludeDirectories,
-                         dirPred, syscalls).get();
+        return start(base, patterns, excludePatterns, excludeDirectories,
+                     dirPred, syscalls, false).get(0).get();
       } catch (ExecutionException e) {
         Throwable cause = e.getCause();
         Throwables.propagateIfPossible(cause, IOException.class);
@@ -584,49 +634,68 @@ public final class UnixGlob {
       }
     }
 
-    public Future<List<Path>> globAsync(Path base, Collection<String> patterns,
+    /**
+     * Starts the traversal. If {@code byPattern} is true, the returned list has one future for
+     * each of {@code patterns}, in order; otherwise it has a single future for the union of all
+     * patterns.
+     */
+    public List<ListenableFuture<List<Path>>> start(Path base, Collection<String> patterns,
         Collection<String> excludePatterns, boolean excludeDirectories,
-        Predicate<Path> dirPred, FilesystemCalls syscalls) throws IOException {
-
+        Predicate<Path> dirPred, FilesystemCalls syscalls, boolean byPattern) throws IOException {
+      int numResults = byPattern ? patterns.size() : 1;
       FileStatus baseStat = syscalls.statNullable(base, Symlinks.FOLLOW);
       if (baseStat == null || patterns.isEmpty()) {
-        return Futures.immediateFuture(Collections.<Path>emptyList());
+        return Collections.nCopies(numResults,
+            Futures.immediateFuture(Collections.<Path>emptyList()));
       }
 
       List<String[]> splitPatterns = checkAndSplitPatterns(patterns);
       List<String[]> splitExcludes = checkAndSplitPatterns(excludePatterns);
 
-      // We do a dumb loop, even though it will likely duplicate work
-      // (e.g., readdir calls). In order to optimize, we would need
-      // to keep track of which patterns shared sub-patterns and which did not
-      // (for example consider the glob [*/*.java, sub/*.java, */*.txt]).
+      int numStates = 0;
+      for (String[] splitPattern : splitPatterns) {
+        numStates += splitPattern.length + 1;
+      }
+      stateSegments = new String[numStates];
+      stateIsLiteral = new boolean[numStates];
+      stateResults = new ArrayList<>(numStates);
+      for (int i = 0; i < numResults; i++) {
+        results.add(Sets.<Path>newConcurrentHashSet());
+        futures.add(new GlobFuture(this, failFastOnInterrupt));
+      }
+      BitSet initialStates = new BitSet(numStates);
+      for (int i = 0; i < splitPatterns.size(); i++) {
+        Collection<Path> patternResults = results.get(byPattern ? i : 0);
+        initialStates.set(stateResults.size());
+        for (String segment : splitPatterns.get(i)) {
+          stateSegments[stateResults.size()] = segment;
+          stateIsLiteral[stateResults.size()] = !segment.contains("*") && !segment.contains("?");
+          stateResults.add(patternResults);
+        }
+        stateResults.add(patternResults);
+      }
+      this.excludeDirectories = excludeDirectories;
+      this.dirPred = dirPred;
+      this.syscalls = syscalls;
+
       pendingOps.incrementAndGet();
       try {
-        for (String[] splitPattern : splitPatterns) {
-          queueGlob(base, baseStat.isDirectory(), splitPattern, 0, excludeDirectories,
-                  splitExcludes, 0, results, cache, dirPred, syscalls);
-        }
+        queueGlob(base, baseStat.isDirectory(), initialStates, splitExcludes, 0);
       } finally {
         decrementAndCheckDone();
       }
 
-      return result;
+      return new ArrayList<ListenableFuture<List<Path>>>(futures);
     }
 
-    private void queueGlob(final Path base, final boolean baseIsDir,
-        final String[] patternParts, final int idx,
-        final boolean excludeDirectories,
-        final List<String[]> excludePatterns,
-        final int excludeIdx,
-        final Collection<Path> results, final Cache<String, Pattern> cache,
-        final Predicate<Path> dirPred, final FilesystemCalls syscalls) throws IOException {
+    private void queueGlob(final Path base, final boolean baseIsDir, final BitSet states,
+        final List<String[]> excludePatterns, final int excludeIdx) throws IOException {
       enqueue(new Runnable() {
         @Override
         public void run() {
           Profiler.instance().startTask(ProfilerTask.VFS_GLOB, this);
           try {
-            reallyGlob(base, baseIsDir, patternParts, idx, excludeDirectories,
-                    excludePatterns, excludeIdx, results, cache, dirPred, syscalls);
+            reallyGlob(base, baseIsDir, states, excludePatterns, excludeIdx);
           } catch (IOException e) {
             failure.set(e);
           } finally {
@@ -636,11 +705,23 @@ public final class UnixGlob {
 
         @Override
         public String toString() {
+          List<String> include = new ArrayList<>();
+          for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+            int end = s;
+            while (stateSegments[end] != null) {
+              end++;
+            }
+            include.add(Joiner.on('/').join(Arrays.asList(stateSegments).subList(s, end)));
+          }
+          List<String> exclude = new ArrayList<>();
+          for (String[] excludePattern : excludePatterns) {
+            exclude.add(Joiner.on('/').join(excludePattern));
+          }
           return String.format(
                   "%s glob(include=[%s], exclude=[%s], exclude_directories=%s)",
                   base.getPathString(),
-                  "\"" + Joiner.on("\", \"").join(patternParts) + "\"",
-                  "\"" + Joiner.on("\", \"").join(excludePatterns) + "\"",
+                  "\"" + Joiner.on("\", \"").join(include) + "\"",
+                  "\"" + Joiner.on("\", \"").join(exclude) + "\"",
                   excludeDirectories);
         }
       });
@@ -678,43 +759,46 @@ public final class UnixGlob {
         // We get to 0 iff we are done all the relevant work. This is because we always increment
         // the pending ops count as we're enqueuing, and don't decrement until the task is complete
         // (which includes accounting for any additional tasks that one enqueues).
-        if (canceled) {
-          result.markCanceled();
-        } else if (failure.get() != null) {
-          result.setException(failure.get());
-        } else {
-          result.set(Ordering.<Path>natural().immutableSortedCopy(results));
+        for (int i = 0; i < futures.size(); i++) {
+          if (canceled) {
+            futures.get(i).markCanceled();
+          } else if (failure.get() != null) {
+            futures.get(i).setException(failure.get());
+          } else {
+            futures.get(i).set(Ordering.<Path>natural().immutableSortedCopy(results.get(i)));
+          }
         }
       }
     }
 
     /**
-     * Expressed in Haskell:
+     * Expressed in Haskell, for a single pattern:
      * <pre>
      *  reallyGlob base []     = { base }
      *  reallyGlob base [x:xs] = union { reallyGlob(f, xs) | f results "base/x" }
      * </pre>
+     *
+     * <p>{@code states} holds every pattern position that reached {@code base}; it is owned by
+     * this call and may be modified.
      */
-    private void reallyGlob(Path base, boolean baseIsDir, String[] patternParts, int idx,
-        boolean excludeDirectories,
-        List<String[]> excludePatterns,
-        int excludeIdx,
-        Collection<Path> results, Cache<String, Pattern> cache,
-        Predicate<Path> dirPred,
-        FilesystemCalls syscalls) throws IOException {
-      if (baseIsDir && !dirPred.apply(base)) {
-        return;
-      }
-
-      if (idx == patternParts.length) { // Base case.
-        if (!(excludeDirectories && baseIsDir) &&
-            !excludedOnMatch(base, excludePatterns, excludeIdx, cache)) {
-          results.add(base);
+    private void reallyGlob(Path base, boolean baseIsDir, BitSet states,
+        List<String[]> excludePatterns, int excludeIdx) throws IOException {
+      if (baseIsDir) {
+        if (!dirPred.apply(base) || excludedSubtree(base, excludePatterns, excludeIdx, cache)) {
+          return;
+        }
+        // ** is special: it can match nothing at all.
+        // For example, x/** matches x, **/y matches y, and x/**/y matches x/y.
+        for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+          if ("**".equals(stateSegments[s])) {
+            states.set(s + 1);
+          }
         }
-
-        return;
       }
 
+      // Base case.
+      addIfFinal(base, baseIsDir, states, excludePatterns, excludeIdx);
+
       if (!baseIsDir) {
         // Nothing to find here.
         return;
@@ -722,28 +806,36 @@ public final class UnixGlob {
 
       List<String[]> relevantExcludes
           = getRelevantExcludes(base, excludePatterns, excludeIdx, cache);
-      final String pattern = patternParts[idx];
 
-      // ** is special: it can match nothing at all.
-      // For example, x/** matches x, **/y matches y, and x/**/y matches x/y.
-      if ("**".equals(pattern)) {
-        queueGlob(base, baseIsDir, patternParts, idx + 1, excludeDirectories,
-            excludePatterns, excludeIdx, results, cache, dirPred, syscalls);
+      // If no remaining segment has a wildcard, we do not need a readdir, just a stat per name.
+      Map<String, BitSet> literalChildren = new LinkedHashMap<>();
+      for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+        String segment = stateSegments[s];
+        if (segment == null) {
+          continue;
+        }
+        if (!stateIsLiteral[s]) {
+          literalChildren = null;
+          break;
+        }
+        BitSet childStates = literalChildren.get(segment);
+        if (childStates == null) {
+          childStates = new BitSet(stateSegments.length);
+          literalChildren.put(segment, childStates);
+        }
+        childStates.set(s + 1);
       }
-
-      if (!pattern.contains("*") && !pattern.contains("?")) {
-        // We do not need to do a readdir in this case, just a stat.
-        Path child = base.getChild(pattern);
-        FileStatus status = syscalls.statNullable(child, Symlinks.FOLLOW);
-        if (status == null || (!status.isDirectory() && !status.isFile())) {
-          // The file is a dangling symlink, fifo, does not exist, etc.
-          return;
+      if (literalChildren != null) {
+        for (Map.Entry<String, BitSet> entry : literalChildren.entrySet()) {
+          Path child = base.getChild(entry.getKey());
+          FileStatus status = syscalls.statNullable(child, Symlinks.FOLLOW);
+          if (status == null || (!status.isDirectory() && !status.isFile())) {
+            // The file is a dangling symlink, fifo, does not exist, etc.
+            continue;
+          }
+          globChild(child, status.isDirectory(), entry.getValue(), relevantExcludes,
+              excludeIdx + 1);
         }
-
-        boolean childIsDir = status.isDirectory();
-
-        queueGlob(child, childIsDir, patternParts, idx + 1, excludeDirectories,
-            relevantExcludes, excludeIdx + 1, results, cache, dirPred, syscalls);
         return;
       }
 
@@ -757,28 +849,65 @@ public final class UnixGlob {
         }
         boolean childIsDir = (type == Dirent.Type.DIRECTORY);
         String text = dent.getName();
-        Path child = base.getChild(text);
 
-        if ("**".equals(pattern)) {
-          // Recurse without shifting the pattern.
-          if (childIsDir) {
-            queueGlob(child, childIsDir, patternParts, idx, excludeDirectories,
-                relevantExcludes, excludeIdx + 1, results, cache, dirPred, syscalls);
+        BitSet childStates = null;
+        for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+          String segment = stateSegments[s];
+          if (segment == null) {
+            continue;
           }
-        }
-        if (matches(pattern, text, cache)) {
-          // Recurse and consume one segment of the pattern.
-          if (childIsDir) {
-            queueGlob(child, childIsDir, patternParts, idx + 1, excludeDirectories,
-                relevantExcludes, excludeIdx + 1, results, cache, dirPred, syscalls);
-          } else {
-            // Instead of using an async call, just repeat the base case above.
-            if (idx + 1 == patternParts.length &&
-                !excludedOnMatch(child, relevantExcludes, excludeIdx + 1, cache)) {
-              results.add(child);
+          boolean recurse = childIsDir && "**".equals(segment);
+          boolean consume =
+              stateIsLiteral[s] ? segment.equals(text) : matches(segment, text, cache);
+          if (recurse || consume) {
+            if (childStates == null) {
+              childStates = new BitSet(stateSegments.length);
+            }
+            if (recurse) {
+              // Recurse without shifting the pattern.
+              childStates.set(s);
+            }
+            if (consume) {
+              // Recurse and consume one segment of the pattern.
+              childStates.set(s + 1);
             }
           }
         }
+        if (childStates != null) {
+          globChild(base.getChild(text), childIsDir, childStates, relevantExcludes,
+              excludeIdx + 1);
+        }
+      }
+    }
+
+    private void globChild(Path child, boolean childIsDir, BitSet childStates,
+        List<String[]> excludePatterns, int excludeIdx) throws IOException {
+      if (childIsDir) {
+        queueGlob(child, childIsDir, childStates, excludePatterns, excludeIdx);
+      } else {
+        // Instead of using an async call, just repeat the base case above.
+        addIfFinal(child, childIsDir, childStates, excludePatterns, excludeIdx);
+      }
+    }
+
+    /**
+     * Adds {@code path} to the results of each pattern that has a final state in {@code states},
+     * unless it is excluded.
+     */
+    private void addIfFinal(Path path, boolean isDir, BitSet states,
+        List<String[]> excludePatterns, int excludeIdx) {
+      Boolean excluded = null;
+      for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+        if (stateSegments[s] != null) {
+          continue;
+        }
+        if (excluded == null) {
+          excluded = (excludeDirectories && isDir)
+              || excludedOnMatch(path, excludePatterns, excludeIdx, cache);
+        }
+        if (!excluded) {
+          stateResults.get(s).add(path);
+        }
       }
     }
   }
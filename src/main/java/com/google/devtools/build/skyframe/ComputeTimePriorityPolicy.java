@@ -0,0 +1,80 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link EvaluationPriorityPolicy} that starts the nodes that took longest to compute in
+ * earlier evaluations first. Compute times must be fed to it through {@link #recordComputeTime},
+ * typically from {@link EvaluationProgressReceiver#computed}, and are kept for the lifetime of
+ * this object, so that it learns across builds.
+ *
+ * <p>To bound memory use, only nodes whose compute time reached a threshold are remembered, and at
+ * most a fixed number of them; the least recently used ones are dropped first. Nodes deleted from
+ * the graph should be dropped with {@link #forget}. The priority of a remembered node is the base
+ * 2 logarithm of its compute time in microseconds, so nodes that took about as long get the same
+ * priority. All other nodes get their priority from a fallback policy.
+ */
+public final class ComputeTimePriorityPolicy implements EvaluationPriorityPolicy {
+  private final Cache<SkyKey, Integer> priorities;
+  private final long thresholdNanos;
+  private final EvaluationPriorityPolicy fallback;
+
+  /**
+   * Creates a policy that remembers up to {@code maxNodes} nodes that took at least {@code
+   * threshold} to compute and uses {@code fallback} for all other nodes.
+   */
+  public ComputeTimePriorityPolicy(
+      long threshold, TimeUnit unit, int maxNodes, EvaluationPriorityPolicy fallback) {
+    Preconditions.checkArgument(threshold > 0, threshold);
+    Preconditions.checkArgument(maxNodes > 0, maxNodes);
+    this.thresholdNanos = unit.toNanos(threshold);
+    this.priorities = CacheBuilder.newBuilder().maximumSize(maxNodes).build();
+    this.fallback = Preconditions.checkNotNull(fallback);
+  }
+
+  /**
+   * Notes that a {@link SkyFunction#compute} call for {@code key} took {@code elapsedTimeNanos}.
+   * Calls below the threshold are ignored, since a slow node usually also has quick calls that
+   * only request missing deps and are then restarted.
+   */
+  public void recordComputeTime(SkyKey key, long elapsedTimeNanos) {
+    if (elapsedTimeNanos < thresholdNanos) {
+      return;
+    }
+    long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(elapsedTimeNanos));
+    priorities.put(key, 63 - Long.numberOfLeadingZeros(micros));
+  }
+
+  /** Drops the compute time of {@code key}, for example because it was deleted from the graph. */
+  public void forget(SkyKey key) {
+    priorities.invalidate(key);
+  }
+
+  /** Drops all compute times, for example because the whole graph was dropped. */
+  public void clear() {
+    priorities.invalidateAll();
+  }
+
+  @Override
+  public int getPriority(SkyKey key) {
+    Integer priority = priorities.getIfPresent(key);
+    return priority == null ? fallback.getPriority(key) : priority;
+  }
+}
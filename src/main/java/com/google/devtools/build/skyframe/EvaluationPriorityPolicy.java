@@ -0,0 +1,43 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+/**
+ * Decides which nodes {@link ParallelEvaluator} starts first when more nodes are ready to be
+ * evaluated than there are threads. Starting long-running nodes early shortens the critical path
+ * of wide evaluations.
+ *
+ * <p>Priorities only affect the order in which pending evaluations are started, never the result
+ * of an evaluation. They are ignored when evaluating with a {@link
+ * java.util.concurrent.ForkJoinPool}.
+ */
+@ThreadSafe
+public interface EvaluationPriorityPolicy {
+  /**
+   * Returns the priority of evaluating {@code key}. Nodes with a higher priority are started first.
+   * Called every time an evaluation of {@code key} is enqueued, so it must be cheap.
+   */
+  int getPriority(SkyKey key);
+
+  /** Gives every node the same priority, so that the evaluator's default order is used. */
+  EvaluationPriorityPolicy NONE =
+      new EvaluationPriorityPolicy() {
+        @Override
+        public int getPriority(SkyKey key) {
+          return 0;
+        }
+      };
+}
@@ -0,0 +1,36 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+
+/**
+ * An {@link EvaluationPriorityPolicy} that gives all nodes of a {@link SkyFunctionName} the same
+ * fixed priority. Nodes of unlisted functions get priority 0.
+ */
+public final class FunctionNamePriorityPolicy implements EvaluationPriorityPolicy {
+  private final ImmutableMap<SkyFunctionName, Integer> priorities;
+
+  public FunctionNamePriorityPolicy(Map<SkyFunctionName, Integer> priorities) {
+    this.priorities = ImmutableMap.copyOf(priorities);
+  }
+
+  @Override
+  public int getPriority(SkyKey key) {
+    Integer priority = priorities.get(key.functionName());
+    return priority == null ? 0 : priority;
+  }
+}
@@ -0,0 +1,203 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the done nodes of an {@link InMemoryGraphImpl} to a stream and restores them into a fresh
+ * graph, so that a new server does not have to re-evaluate everything its predecessor knew.
+ *
+ * <p>Only done, error-free nodes whose key and value can be serialized are written. A node is also
+ * dropped if any of its direct deps was dropped: a restored node must be reachable from all of its
+ * inputs, or invalidating one of those inputs would not reach it. Reverse deps are not written;
+ * they are recomputed from the direct deps on restore.
+ *
+ * <p>Restored nodes are treated as if they were evaluated before any version of the new graph, so
+ * any change to one of their deps in a later evaluation is seen as a change. The caller is
+ * responsible for invalidating restored nodes whose inputs changed while no server was running,
+ * for instance by checking all file system values before the first evaluation.
+ */
+final class InMemoryGraphSnapshot {
+
+  private static final int MAGIC = 0x5346474E;
+  private static final int FORMAT_VERSION = 1;
+
+  private InMemoryGraphSnapshot() {}
+
+  /**
+   * Writes the persistable nodes of {@code graph} to {@code out}. The graph must not be modified
+   * concurrently. Returns the number of nodes written.
+   */
+  static int write(InMemoryGraphImpl graph, OutputStream out) throws IOException {
+    Preconditions.checkState(graph.keepsEdges(), "Cannot write a graph without edges");
+    Map<SkyKey, byte[]> serialized = new LinkedHashMap<>();
+    for (Map.Entry<SkyKey, NodeEntry> mapEntry : graph.getNodeMap().entrySet()) {
+      byte[] bytes = maybeSerialize(mapEntry.getKey(), mapEntry.getValue());
+      if (bytes != null) {
+        serialized.put(mapEntry.getKey(), bytes);
+      }
+    }
+    pruneNodesWithMissingDeps(graph, serialized);
+
+    Map<SkyKey, Integer> indices = new HashMap<>();
+    for (SkyKey key : serialized.keySet()) {
+      indices.put(key, indices.size());
+    }
+    DataOutputStream dataOut = new DataOutputStream(out);
+    dataOut.writeInt(MAGIC);
+    dataOut.writeInt(FORMAT_VERSION);
+    dataOut.writeInt(serialized.size());
+    for (byte[] bytes : serialized.values()) {
+      dataOut.writeInt(bytes.length);
+      dataOut.write(bytes);
+    }
+    for (SkyKey key : serialized.keySet()) {
+      GroupedList<SkyKey> directDeps = ((InMemoryNodeEntry) graph.get(key)).getGroupedDirectDeps();
+      dataOut.writeInt(directDeps.listSize());
+      for (Collection<SkyKey> group : directDeps) {
+        dataOut.writeInt(group.size());
+        for (SkyKey dep : group) {
+          dataOut.writeInt(indices.get(dep));
+        }
+      }
+    }
+    dataOut.flush();
+    return serialized.size();
+  }
+
+  /**
+   * Reads nodes written by {@link #write} into {@code graph}, which must be empty. Either all nodes
+   * are restored or, if an exception is thrown, none are. Returns the number of nodes restored.
+   */
+  static int read(InMemoryGraphImpl graph, InputStream in) throws IOException {
+    Preconditions.checkState(graph.keepsEdges(), "Cannot restore into a graph without edges");
+    Preconditions.checkState(graph.getNodeMap().isEmpty(), "Graph is not empty");
+    DataInputStream dataIn = new DataInputStream(in);
+    if (dataIn.readInt() != MAGIC) {
+      throw new IOException("Not a graph snapshot");
+    }
+    int formatVersion = dataIn.readInt();
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IOException("Unsupported graph snapshot version " + formatVersion);
+    }
+    int size = dataIn.readInt();
+    List<SkyKey> keys = new ArrayList<>(size);
+    List<SkyValue> values = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      byte[] bytes = new byte[dataIn.readInt()];
+      dataIn.readFully(bytes);
+      try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+        SkyKey key = (SkyKey) objectIn.readObject();
+        // Re-intern, since deserialization bypasses SkyKey#create.
+        keys.add(SkyKey.create(key.functionName(), key.argument()));
+        values.add((SkyValue) objectIn.readObject());
+      } catch (ClassNotFoundException | ClassCastException e) {
+        throw new IOException("Corrupt graph snapshot entry " + i, e);
+      }
+    }
+    Map<SkyKey, InMemoryNodeEntry> entries = new LinkedHashMap<>();
+    for (int i = 0; i < size; i++) {
+      GroupedList<SkyKey> directDeps = new GroupedList<>();
+      int numGroups = dataIn.readInt();
+      for (int j = 0; j < numGroups; j++) {
+        int groupSize = dataIn.readInt();
+        List<SkyKey> group = new ArrayList<>(groupSize);
+        for (int k = 0; k < groupSize; k++) {
+          int index = dataIn.readInt();
+          if (index < 0 || index >= size) {
+            throw new IOException("Corrupt graph snapshot dep index " + index);
+          }
+          group.add(keys.get(index));
+        }
+        directDeps.appendGroup(group);
+      }
+      entries.put(keys.get(i), InMemoryNodeEntry.createRestored(values.get(i), directDeps));
+    }
+    for (Map.Entry<SkyKey, InMemoryNodeEntry> entry : entries.entrySet()) {
+      for (SkyKey dep : entry.getValue().getDirectDeps()) {
+        entries.get(dep).addReverseDepAndCheckIfDone(entry.getKey());
+      }
+    }
+    graph.getNodeMap().putAll(entries);
+    return size;
+  }
+
+  /**
+   * Returns the serialized key and value of {@code entry}, or null if the entry is not done, is in
+   * error, or is not serializable.
+   */
+  private static byte[] maybeSerialize(SkyKey key, NodeEntry entry) {
+    if (!entry.isDone() || entry.getErrorInfo() != null) {
+      return null;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream objectOut = new ObjectOutputStream(bytes)) {
+      objectOut.writeObject(key);
+      objectOut.writeObject(entry.getValueMaybeWithMetadata());
+    } catch (IOException | RuntimeException e) {
+      // Either a NotSerializableException somewhere in the key or value, or a class that refuses
+      // Java serialization outright. Such nodes are simply re-evaluated by the next server.
+      return null;
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Removes from {@code serialized} every node that transitively depends on a node not in it.
+   */
+  private static void pruneNodesWithMissingDeps(
+      InMemoryGraphImpl graph, Map<SkyKey, byte[]> serialized) {
+    Deque<SkyKey> toRemove = new ArrayDeque<>();
+    for (SkyKey key : serialized.keySet()) {
+      for (SkyKey dep : graph.get(key).getDirectDeps()) {
+        if (!serialized.containsKey(dep)) {
+          toRemove.add(key);
+          break;
+        }
+      }
+    }
+    while (!toRemove.isEmpty()) {
+      SkyKey key = toRemove.pop();
+      if (serialized.remove(key) == null) {
+        continue;
+      }
+      for (SkyKey rdep : ImmutableList.copyOf(graph.get(key).getReverseDeps())) {
+        if (serialized.containsKey(rdep)) {
+          toRemove.add(rdep);
+        }
+      }
+    }
+  }
+}
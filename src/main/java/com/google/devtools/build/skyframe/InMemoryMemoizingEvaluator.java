@@ -30,6 +30,9 @@ import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.InvalidationSt
 import com.google.devtools.build.skyframe.ParallelEvaluator.EventFilter;
 import com.google.devtools.build.skyframe.ParallelEvaluator.Receiver;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.Collection;
 import java.util.HashMap;
@@ -77,6 +80,8 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
 
   private final EmittedEventState emittedEventState;
 
+  private volatile EvaluationPriorityPolicy priorityPolicy;
+
   private final AtomicBoolean evaluating = new AtomicBoolean(false);
 
   public InMemoryMemoizingEvaluator(
@@ -97,12 +102,34 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       @Nullable EvaluationProgressReceiver invalidationReceiver,
       EmittedEventState emittedEventState,
       boolean keepEdges) {
+    this(
+        skyFunctions,
+        differencer,
+        invalidationReceiver,
+        emittedEventState,
+        keepEdges,
+        EvaluationPriorityPolicy.NONE);
+  }
+
+  public InMemoryMemoizingEvaluator(
+      Map<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      Differencer differencer,
+      @Nullable EvaluationProgressReceiver invalidationReceiver,
+      EmittedEventState emittedEventState,
+      boolean keepEdges,
+      EvaluationPriorityPolicy priorityPolicy) {
     this.skyFunctions = ImmutableMap.copyOf(skyFunctions);
     this.differencer = Preconditions.checkNotNull(differencer);
     this.progressReceiver = invalidationReceiver;
     this.graph = new InMemoryGraphImpl(keepEdges);
     this.emittedEventState = emittedEventState;
     this.keepEdges = keepEdges;
+    this.priorityPolicy = Preconditions.checkNotNull(priorityPolicy);
+  }
+
+  /** Sets the policy that orders pending evaluations, starting with the next evaluation. */
+  public void setPriorityPolicy(EvaluationPriorityPolicy priorityPolicy) {
+    this.priorityPolicy = Preconditions.checkNotNull(priorityPolicy);
   }
 
   private void invalidate(Iterable<SkyKey> diff) {
@@ -185,7 +212,8 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
               numThreads,
               progressReceiver,
               dirtyKeyTracker,
-              lazyDeletingReceiver);
+              lazyDeletingReceiver,
+              priorityPolicy);
       EvaluationResult<T> result = evaluator.eval(roots);
       return EvaluationResult.<T>builder()
           .mergeFrom(result)
@@ -251,6 +279,37 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
         "Re-entrant evaluation for request: %s", requestInfo);
   }
 
+  /**
+   * Writes the done nodes of the graph that can be serialized to {@code out}, and returns how many
+   * were written. Must not be called during an evaluation.
+   *
+   * @see InMemoryGraphSnapshot
+   */
+  public int saveGraph(OutputStream out) throws IOException {
+    setAndCheckEvaluateState(true, "saveGraph");
+    try {
+      return InMemoryGraphSnapshot.write((InMemoryGraphImpl) graph, out);
+    } finally {
+      setAndCheckEvaluateState(false, "saveGraph");
+    }
+  }
+
+  /**
+   * Restores nodes written by {@link #saveGraph}, and returns how many were restored. Must be
+   * called before the first evaluation. The restored values are not checked against the outside
+   * world; the caller must invalidate those that may have changed since they were written. If an
+   * exception is thrown, the graph is left empty.
+   */
+  public int loadGraph(InputStream in) throws IOException {
+    Preconditions.checkState(lastGraphVersion == null, "Graph already evaluated");
+    setAndCheckEvaluateState(true, "loadGraph");
+    try {
+      return InMemoryGraphSnapshot.read((InMemoryGraphImpl) graph, in);
+    } finally {
+      setAndCheckEvaluateState(false, "loadGraph");
+    }
+  }
+
   @Override
   public Map<SkyKey, SkyValue> getValues() {
     return graph.getValues();
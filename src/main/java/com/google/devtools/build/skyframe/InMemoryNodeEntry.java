@@ -149,6 +149,19 @@ public class InMemoryNodeEntry implements NodeEntry {
   public InMemoryNodeEntry() {
   }
 
+  /**
+   * Creates a done entry with the given value and direct deps, as if it had been evaluated before
+   * the first version of the graph. The caller must add the reverse deps. Only for use by
+   * {@link InMemoryGraphSnapshot}.
+   */
+  static InMemoryNodeEntry createRestored(SkyValue value, GroupedList<SkyKey> directDeps) {
+    InMemoryNodeEntry nodeEntry = new InMemoryNodeEntry();
+    nodeEntry.value = value;
+    nodeEntry.directDeps = directDeps.compress();
+    nodeEntry.buildingState = null;
+    return nodeEntry;
+  }
+
   @Override
   public boolean keepEdges() {
     return true;
@@ -189,7 +202,7 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized Iterable<SkyKey> getDirectDeps() {
     assertKeepEdges();
     Preconditions.checkState(isDone(), "no deps until done. ValueEntry: %s", this);
-    return GroupedList.<SkyKey>create(directDeps).toSet();
+    return GroupedList.<SkyKey>compressedToSet(directDeps);
   }
 
   /**
@@ -31,6 +31,7 @@ import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor;
 import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
 import com.google.devtools.build.lib.concurrent.ErrorClassifier;
 import com.google.devtools.build.lib.concurrent.ForkJoinQuiescingExecutor;
+import com.google.devtools.build.lib.concurrent.PrioritizedRunnable;
 import com.google.devtools.build.lib.concurrent.QuiescingExecutor;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
 import com.google.devtools.build.lib.events.Event;
@@ -146,6 +147,7 @@ public final class ParallelEvaluator implements Evaluator {
   private final DirtyKeyTracker dirtyKeyTracker;
   private final Receiver<Collection<SkyKey>> inflightKeysReceiver;
   private final EventFilter storedEventFilter;
+  private final EvaluationPriorityPolicy priorityPolicy;
 
   public ParallelEvaluator(
       ProcessableGraph graph,
@@ -159,6 +161,34 @@ public final class ParallelEvaluator implements Evaluator {
       @Nullable EvaluationProgressReceiver progressReceiver,
       DirtyKeyTracker dirtyKeyTracker,
       Receiver<Collection<SkyKey>> inflightKeysReceiver) {
+    this(
+        graph,
+        graphVersion,
+        skyFunctions,
+        reporter,
+        emittedEventState,
+        storedEventFilter,
+        keepGoing,
+        threadCount,
+        progressReceiver,
+        dirtyKeyTracker,
+        inflightKeysReceiver,
+        EvaluationPriorityPolicy.NONE);
+  }
+
+  public ParallelEvaluator(
+      ProcessableGraph graph,
+      Version graphVersion,
+      ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      final EventHandler reporter,
+      EmittedEventState emittedEventState,
+      EventFilter storedEventFilter,
+      boolean keepGoing,
+      int threadCount,
+      @Nullable EvaluationProgressReceiver progressReceiver,
+      DirtyKeyTracker dirtyKeyTracker,
+      Receiver<Collection<SkyKey>> inflightKeysReceiver,
+      EvaluationPriorityPolicy priorityPolicy) {
     this.graph = graph;
     this.skyFunctions = skyFunctions;
     this.graphVersion = graphVersion;
@@ -173,6 +203,7 @@ public final class ParallelEvaluator implements Evaluator {
         new NestedSetVisitor<>(new NestedSetEventReceiver(reporter), emittedEventState);
     this.storedEventFilter = storedEventFilter;
     this.forkJoinPool = null;
+    this.priorityPolicy = Preconditions.checkNotNull(priorityPolicy);
   }
 
   public ParallelEvaluator(
@@ -203,6 +234,8 @@ public final class ParallelEvaluator implements Evaluator {
         new NestedSetVisitor<>(new NestedSetEventReceiver(reporter), emittedEventState);
     this.storedEventFilter = storedEventFilter;
     this.forkJoinPool = Preconditions.checkNotNull(forkJoinPool);
+    // A ForkJoinPool has no shared work queue to order by priority.
+    this.priorityPolicy = EvaluationPriorityPolicy.NONE;
   }
 
   /**
@@ -680,6 +713,9 @@ public final class ParallelEvaluator implements Evaluator {
               /*failFastOnException*/ true,
               /*failFastOnInterrupt*/ true,
               "skyframe-evaluator",
+              priorityPolicy == EvaluationPriorityPolicy.NONE
+                  ? AbstractQueueVisitor.EXECUTOR_FACTORY
+                  : AbstractQueueVisitor.PRIORITY_EXECUTOR_FACTORY,
               VALUE_VISITOR_ERROR_CLASSIFIER);
     }
 
@@ -705,7 +741,7 @@ public final class ParallelEvaluator implements Evaluator {
       if (newlyEnqueued && progressReceiver != null) {
         progressReceiver.enqueueing(key);
       }
-      quiescingExecutor.execute(new Evaluate(this, key));
+      quiescingExecutor.execute(new Evaluate(this, key, priorityPolicy.getPriority(key)));
     }
 
     /**
@@ -775,14 +811,21 @@ public final class ParallelEvaluator implements Evaluator {
   /**
    * An action that evaluates a value.
    */
-  private class Evaluate implements Runnable {
+  private class Evaluate implements PrioritizedRunnable {
     private final ValueVisitor visitor;
     /** The name of the value to be evaluated. */
     private final SkyKey skyKey;
+    private final int priority;
 
-    private Evaluate(ValueVisitor visitor, SkyKey skyKey) {
+    private Evaluate(ValueVisitor visitor, SkyKey skyKey, int priority) {
       this.visitor = visitor;
       this.skyKey = skyKey;
+      this.priority = priority;
+    }
+
+    @Override
+    public int getPriority() {
+      return priority;
     }
 
     private void enqueueChild(SkyKey skyKey, NodeEntry entry, SkyKey child, NodeEntry childEntry,
@@ -36,6 +36,7 @@ import org.junit.runners.JUnit4;
 import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for DigestUtils.
@@ -120,6 +121,115 @@ public class DigestUtilsTest {
     assertMd5CalculationConcurrency(true, false, 1024, 1024);
   }
 
+  @Test
+  public void testMd5CalculationConcurrencyWithMultipleReadPermits() throws Exception {
+    DigestUtils.setMaxConcurrentLargeFileReads(2);
+    try {
+      assertMd5CalculationConcurrency(true, false, 4097, 4097);
+    } finally {
+      DigestUtils.setMaxConcurrentLargeFileReads(1);
+    }
+  }
+
+  @Test
+  public void testDigestCache() throws Exception {
+    final AtomicInteger digestCalls = new AtomicInteger();
+    FileSystem myFS = new InMemoryFileSystem(BlazeClock.instance()) {
+      @Override
+      protected byte[] getMD5Digest(Path path) throws IOException {
+        digestCalls.incrementAndGet();
+        return super.getMD5Digest(path);
+      }
+    };
+    Path path = myFS.getPath("/file");
+    FileSystemUtils.writeContentAsLatin1(path, "a");
+    DigestUtils.configureCache(10);
+    try {
+      byte[] digest = DigestUtils.getDigestOrFail(path, 1);
+      assertArrayEquals(digest, DigestUtils.getDigestOrFail(path, 1));
+      assertEquals(1, digestCalls.get());
+
+      FileSystemUtils.writeContentAsLatin1(path, "bb");
+      assertArrayEquals(path.getMD5Digest(), DigestUtils.getDigestOrFail(path, 2));
+      assertEquals(3, digestCalls.get());
+    } finally {
+      DigestUtils.configureCache(0);
+    }
+  }
+
+  @Test
+  public void testDigestCacheSurvivesReconfigurationWithTheSameSize() throws Exception {
+    final AtomicInteger digestCalls = new AtomicInteger();
+    FileSystem myFS = new InMemoryFileSystem(BlazeClock.instance()) {
+      @Override
+      protected byte[] getMD5Digest(Path path) throws IOException {
+        digestCalls.incrementAndGet();
+        return super.getMD5Digest(path);
+      }
+    };
+    Path path = myFS.getPath("/file");
+    FileSystemUtils.writeContentAsLatin1(path, "a");
+    DigestUtils.configureCache(10);
+    try {
+      byte[] digest = DigestUtils.getDigestOrFail(path, 1);
+      // As at the start of the next build.
+      DigestUtils.configureCache(10);
+      assertArrayEquals(digest, DigestUtils.getDigestOrFail(path, 1));
+      assertEquals(1, digestCalls.get());
+
+      DigestUtils.configureCache(20);
+      assertArrayEquals(digest, DigestUtils.getDigestOrFail(path, 1));
+      assertEquals(2, digestCalls.get());
+    } finally {
+      DigestUtils.configureCache(0);
+    }
+  }
+
+  @Test
+  public void testReadPermitsAreKeptWhileInUse() throws Exception {
+    final AtomicInteger readsInProgress = new AtomicInteger();
+    final CountDownLatch inDigest = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    FileSystem myFS = new InMemoryFileSystem(BlazeClock.instance()) {
+      @Override
+      protected byte[] getMD5Digest(Path path) throws IOException {
+        readsInProgress.incrementAndGet();
+        inDigest.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return super.getMD5Digest(path);
+      }
+    };
+    final Path path1 = myFS.getPath("/file1");
+    final Path path2 = myFS.getPath("/file2");
+    FileSystemUtils.writeContentAsLatin1(path1, Strings.repeat("a", 4097));
+    FileSystemUtils.writeContentAsLatin1(path2, Strings.repeat("b", 4097));
+    TestThread thread1 = new TestThread() {
+      @Override public void runTest() throws Exception {
+        DigestUtils.getDigestOrFail(path1, 4097);
+      }
+    };
+    TestThread thread2 = new TestThread() {
+      @Override public void runTest() throws Exception {
+        DigestUtils.getDigestOrFail(path2, 4097);
+      }
+    };
+    thread1.start();
+    assertTrue(inDigest.await(TestUtils.WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    // As at the start of the next build, while the first read holds the only permit.
+    DigestUtils.setMaxConcurrentLargeFileReads(1);
+    thread2.start();
+    Thread.sleep(200);
+    assertEquals(1, readsInProgress.get());
+    release.countDown();
+    thread1.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+    thread2.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+    assertEquals(2, readsInProgress.get());
+  }
+
   @Test
   public void testRecoverFromMalformedDigest() throws Exception {
     final byte[] malformed = {0, 0, 0};
@@ -124,12 +124,12 @@ public class CompactPersistentActionCacheTest {
     }
     assertFullSave();
 
-    // Add 2 entries to 300. Might as well just leave them in the journal.
+    // Add 2 entries to 300. They are appended to the cache file.
     putKey("abc");
     putKey("123");
     assertIncrementalSave(cache);
 
-    // Make sure we have all the entries, including those in the journal,
+    // Make sure we have all the entries, including the appended ones,
     // after deserializing into a new cache.
     CompactPersistentActionCache newcache =
         new CompactPersistentActionCache(dataRoot, clock);
@@ -141,7 +141,7 @@ public class CompactPersistentActionCacheTest {
     putKey("xyz", newcache, true);
     assertIncrementalSave(newcache);
 
-    // Make sure we can see previous journal values after a second incremental save.
+    // Make sure we can see previously appended values after a second incremental save.
     CompactPersistentActionCache newerCache =
         new CompactPersistentActionCache(dataRoot, clock);
     for (int i = 0; i < 100; i++) {
@@ -152,11 +152,19 @@ public class CompactPersistentActionCacheTest {
     assertNotNull(newerCache.get("xyz"));
     assertNull(newerCache.get("not_a_key"));
 
-    // Add another 10 entries. This should not be incremental.
-    for (int i = 300; i < 310; i++) {
-      putKey(Integer.toString(i));
+    // Remove most entries. The cache file then mostly consists of stale records and is compacted.
+    long sizeBeforeCompaction = mapFile.getFileSize();
+    for (int i = 0; i < 200; i++) {
+      newerCache.remove(Integer.toString(i));
     }
-    assertFullSave();
+    newerCache.save();
+    assertFalse(journalFile.exists());
+    assertThat(mapFile.getFileSize()).isLessThan(sizeBeforeCompaction);
+    CompactPersistentActionCache compactedCache =
+        new CompactPersistentActionCache(dataRoot, clock);
+    assertNull(compactedCache.get("0"));
+    assertKeyEquals(cache, compactedCache, "200");
+    assertNotNull(compactedCache.get("xyz"));
   }
 
   // Regression test to check that CompactActionCacheEntry.toString does not mutate the object.
@@ -203,9 +211,10 @@ public class CompactPersistentActionCacheTest {
   }
 
   private void assertIncrementalSave(ActionCache ac) throws IOException {
+    long sizeBeforeSave = mapFile.getFileSize();
     ac.save();
-    assertTrue(mapFile.exists());
-    assertTrue(journalFile.exists());
+    assertThat(mapFile.getFileSize()).isGreaterThan(sizeBeforeSave);
+    assertFalse(journalFile.exists());
   }
 
   private void putKey(String key) {
@@ -144,6 +144,18 @@ public abstract class ExpanderTestBase  {
     assertSetContents(chainResult(), a);
   }
 
+  @Test
+  public void deepChain() {
+    NestedSet<String> set = prepareBuilder("0").build();
+    for (int i = 1; i < 100000; i++) {
+      set = prepareBuilder(Integer.toString(i)).addTransitive(set).build();
+    }
+
+    List<String> expanded = set.toList();
+    assertEquals(100000, expanded.size());
+    assertEquals(expanded, set.toList());
+  }
+
   @Test
   public void diamond() {
     NestedSet<String> d = prepareBuilder("d").build();
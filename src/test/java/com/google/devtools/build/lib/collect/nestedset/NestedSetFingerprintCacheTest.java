@@ -0,0 +1,96 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests for {@link NestedSetFingerprintCache}. */
+@RunWith(JUnit4.class)
+public class NestedSetFingerprintCacheTest {
+
+  private final NestedSetFingerprintCache<String> cache =
+      new NestedSetFingerprintCache<>(Functions.<String>identity());
+
+  private static NestedSet<String> set(Order order, NestedSet<String> subset, String... members) {
+    return new NestedSetBuilder<String>(order)
+        .addAll(Arrays.asList(members))
+        .addTransitive(subset)
+        .build();
+  }
+
+  @Test
+  public void setsWithTheSameStructureHaveTheSameDigest() {
+    NestedSet<String> a = set(Order.STABLE_ORDER, NestedSetBuilder.create(Order.STABLE_ORDER, "x"),
+        "a", "b");
+    NestedSet<String> b = set(Order.STABLE_ORDER, NestedSetBuilder.create(Order.STABLE_ORDER, "x"),
+        "a", "b");
+    assertThat(cache.digest(a)).isEqualTo(cache.digest(b));
+  }
+
+  @Test
+  public void differentElementsHaveDifferentDigests() {
+    NestedSet<String> subset = NestedSetBuilder.create(Order.STABLE_ORDER, "x");
+    assertThat(cache.digest(set(Order.STABLE_ORDER, subset, "a", "b")))
+        .isNotEqualTo(cache.digest(set(Order.STABLE_ORDER, subset, "a", "c")));
+    assertThat(cache.digest(set(Order.STABLE_ORDER, subset, "ab")))
+        .isNotEqualTo(cache.digest(set(Order.STABLE_ORDER, subset, "a", "b")));
+    assertThat(cache.digest(set(Order.STABLE_ORDER, subset, "a")))
+        .isNotEqualTo(cache.digest(
+            set(Order.STABLE_ORDER, NestedSetBuilder.create(Order.STABLE_ORDER, "y"), "a")));
+  }
+
+  @Test
+  public void orderIsPartOfTheDigest() {
+    NestedSet<String> stable = NestedSetBuilder.create(Order.STABLE_ORDER, "a", "b");
+    NestedSet<String> link = NestedSetBuilder.create(Order.LINK_ORDER, "a", "b");
+    assertThat(cache.digest(stable)).isNotEqualTo(cache.digest(link));
+  }
+
+  @Test
+  public void sharedSubsetsAreOnlyHashedOnce() {
+    final AtomicInteger conversions = new AtomicInteger();
+    NestedSetFingerprintCache<String> countingCache = new NestedSetFingerprintCache<>(
+        new Function<String, String>() {
+          @Override
+          public String apply(String input) {
+            conversions.incrementAndGet();
+            return input;
+          }
+        });
+    NestedSet<String> shared = NestedSetBuilder.create(Order.STABLE_ORDER, "x", "y", "z");
+    countingCache.digest(set(Order.STABLE_ORDER, shared, "a"));
+    assertThat(conversions.get()).isEqualTo(4);
+    countingCache.digest(set(Order.STABLE_ORDER, shared, "b"));
+    assertThat(conversions.get()).isEqualTo(5);
+  }
+
+  @Test
+  public void deepChain() {
+    NestedSet<String> set = NestedSetBuilder.create(Order.STABLE_ORDER, "0");
+    for (int i = 1; i < 100000; i++) {
+      set = set(Order.STABLE_ORDER, set, Integer.toString(i));
+    }
+    assertThat(cache.digest(set)).hasLength(16);
+  }
+}
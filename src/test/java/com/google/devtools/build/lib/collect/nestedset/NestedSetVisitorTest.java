@@ -0,0 +1,80 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor.VisitedState;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Tests for {@link NestedSetVisitor}. */
+@RunWith(JUnit4.class)
+public class NestedSetVisitorTest {
+
+  private final List<String> received = new ArrayList<>();
+  private final VisitedState<String> visited = new VisitedState<>();
+  private final NestedSetVisitor<String> visitor =
+      new NestedSetVisitor<>(new NestedSetVisitor.Receiver<String>() {
+        @Override
+        public void accept(String arg) {
+          received.add(arg);
+        }
+      }, visited);
+
+  private static NestedSetBuilder<String> builder(String... members) {
+    NestedSetBuilder<String> builder = NestedSetBuilder.stableOrder();
+    for (String member : members) {
+      builder.add(member);
+    }
+    return builder;
+  }
+
+  @Test
+  public void subsetsAreVisitedBeforeDirectMembers() {
+    NestedSet<String> d = builder("d").build();
+    NestedSet<String> b = builder("b").addTransitive(d).build();
+    NestedSet<String> c = builder("c", "b").addTransitive(d).build();
+    visitor.visit(builder("a").addTransitive(b).addTransitive(c).build());
+
+    assertThat(received).containsExactly("d", "b", "c", "a").inOrder();
+  }
+
+  @Test
+  public void visitedSetsAndMembersAreSkipped() {
+    NestedSet<String> shared = builder("x", "y").build();
+    visitor.visit(builder("a").addTransitive(shared).build());
+    visitor.visit(builder("b", "x").addTransitive(shared).build());
+
+    assertThat(received).containsExactly("x", "y", "a", "b").inOrder();
+  }
+
+  @Test
+  public void deepChain() {
+    NestedSet<String> set = builder("0").build();
+    for (int i = 1; i < 100000; i++) {
+      set = builder(Integer.toString(i)).addTransitive(set).build();
+    }
+    visitor.visit(set);
+
+    assertThat(received).hasSize(100000);
+    assertThat(received.get(0)).isEqualTo("0");
+    assertThat(received.get(99999)).isEqualTo("99999");
+  }
+}
@@ -18,6 +18,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
@@ -25,8 +26,12 @@ import com.google.devtools.build.lib.packages.Globber.BadGlobException;
 import com.google.devtools.build.lib.testutil.Scratch;
 import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.UnixGlob;
 
 import org.junit.After;
 import org.junit.Before;
@@ -34,11 +39,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Tests for {@link GlobCache}
@@ -230,6 +237,42 @@ public class GlobCacheTest {
     assertTrue(cache.globsUpToDate());
   }
 
+  @Test
+  public void testGlobsOfOneCallShareOneTraversal() throws Exception {
+    final List<Path> readdirs = Collections.synchronizedList(new ArrayList<Path>());
+    UnixGlob.FilesystemCalls syscalls = new UnixGlob.FilesystemCalls() {
+      @Override
+      public FileStatus statNullable(Path path, Symlinks symlinks) {
+        return UnixGlob.DEFAULT_SYSCALLS.statNullable(path, symlinks);
+      }
+
+      @Override
+      public Collection<Dirent> readdir(Path path, Symlinks symlinks) throws IOException {
+        readdirs.add(path);
+        return UnixGlob.DEFAULT_SYSCALLS.readdir(path, symlinks);
+      }
+    };
+    cache = new GlobCache(packageDirectory, PackageIdentifier.createInMainRepo("isolated"),
+        new CachingPackageLocator() {
+          @Override
+          public Path getBuildFileForPackage(PackageIdentifier packageId) {
+            return null;
+          }
+        }, new AtomicReference<>(syscalls), TestUtils.getPool());
+
+    cache.getGlobsAsync(ImmutableList.of("*.js", "*.txt"), false);
+    // The traversal starts right away, before any result is asked for.
+    long deadline = System.currentTimeMillis() + 10000;
+    while (readdirs.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(readdirs).containsExactly(packageDirectory);
+
+    assertThat(cache.getGlob("*.js")).containsExactly("first.js", "second.js");
+    assertThat(cache.getGlob("*.txt")).containsExactly("first.txt", "second.txt");
+    assertThat(readdirs).containsExactly(packageDirectory);
+  }
+
   @Test
   public void testRecursiveGlobDoesNotMatchSubpackage() throws Exception {
     List<String> glob = cache.getGlob("**/*.js");
@@ -28,20 +28,28 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
 import com.google.devtools.build.lib.packages.util.PackageFactoryTestBase;
 import com.google.devtools.build.lib.syntax.GlobList;
 import com.google.devtools.build.lib.syntax.Type;
 import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.UnixGlob;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -49,6 +57,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -541,6 +550,80 @@ public class PackageFactoryTest extends PackageFactoryTestBase {
         .isEmpty();
   }
 
+  @Test
+  public void testLargePackageDoesNotDependOnPostProcessingThreads() throws Exception {
+    // Enough rules for the post-processing to be split across threads. Sources are shared by
+    // rules in different chunks, so the location of an input file depends on the rule order.
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) {
+      switch (i % 5) {
+        case 0:
+          lines.add(String.format("java_test(name='t%d', srcs=['s%d.java', 'common%d.java'])",
+              i, i, i % 7));
+          break;
+        case 1:
+          lines.add(String.format("cc_test(name='t%d', srcs=['s%d.cc'], tags=['manual'])", i, i));
+          break;
+        case 2:
+          lines.add(String.format("genrule(name='g%d', srcs=['common%d.java', ':t%d'], "
+              + "outs=['o%d'], cmd='')", i, i % 11, i - 2, i));
+          break;
+        case 3:
+          lines.add(String.format("test_suite(name='suite%d')", i));
+          break;
+        default:
+          // A few of these rules are erroneous, some of them only found by the deferred checks.
+          lines.add(String.format("cc_test(name='t%d', srcs=['s%d.cc', 'o%d'], data=[%s], "
+              + "size='%s')", i, i, i - 2,
+              i % 1000 == 4 ? "1" : i % 1000 == 9 ? "'d', 'd'" : "",
+              i % 700 == 9 ? "huge" : "small"));
+      }
+    }
+    Path file = scratch.file("/large/BUILD", lines.toArray(new String[0]));
+    events.setFailFast(false);
+
+    packages.factory().setPostProcessingThreads(1);
+    Package sequential = packages.createPackage("large", file);
+    List<String> sequentialErrors = errorMessages();
+    events.clear();
+    packages.factory().setPostProcessingThreads(4);
+    Package parallel = packages.createPackage("large", file);
+    List<String> parallelErrors = errorMessages();
+
+    assertThat(sequentialErrors).isNotEmpty();
+    assertEquals(sequentialErrors, parallelErrors);
+    assertTrue(sequential.containsErrors());
+    assertTrue(parallel.containsErrors());
+    assertThat(describeTargets(sequential)).hasSize(sequential.getTargets().size());
+    assertEquals(describeTargets(sequential), describeTargets(parallel));
+    Label suite = Label.parseAbsolute("//large:suite3");
+    assertThat(attributes(sequential.getRule(suite.getName()))
+        .get("$implicit_tests", BuildType.LABEL_LIST)).hasSize(1200);
+  }
+
+  private List<String> errorMessages() {
+    List<String> messages = new ArrayList<>();
+    for (Event event : events.errors()) {
+      messages.add(event.getLocation() + ": " + event.getMessage());
+    }
+    return messages;
+  }
+
+  /** Describes each target of {@code pkg}, with the location and implicit tests of its rules. */
+  private static List<String> describeTargets(Package pkg) {
+    List<String> descriptions = new ArrayList<>();
+    for (Target target : pkg.getTargets()) {
+      String description = target.getTargetKind() + " " + target.getLabel() + " "
+          + target.getLocation();
+      if (target instanceof Rule && ((Rule) target).getRuleClass().equals("test_suite")) {
+        description += " " + attributes((Rule) target).get("$implicit_tests",
+            BuildType.LABEL_LIST);
+      }
+      descriptions.add(description);
+    }
+    return descriptions;
+  }
+
   @Test
   public void testGlobDirectoryExclusion() throws Exception {
     emptyFile("/fruit/data/apple");
@@ -567,6 +650,72 @@ public class PackageFactoryTest extends PackageFactoryTestBase {
         Label.parseAbsolute("@//fruit:data/berry"));
   }
 
+  /** Returns a glob cache for {@code directory} that records each directory it reads. */
+  private static GlobCache createRecordingGlobCache(Path directory, final List<Path> readdirs) {
+    UnixGlob.FilesystemCalls syscalls = new UnixGlob.FilesystemCalls() {
+      @Override
+      public FileStatus statNullable(Path path, Symlinks symlinks) {
+        return UnixGlob.DEFAULT_SYSCALLS.statNullable(path, symlinks);
+      }
+
+      @Override
+      public Collection<Dirent> readdir(Path path, Symlinks symlinks) throws IOException {
+        readdirs.add(path);
+        return UnixGlob.DEFAULT_SYSCALLS.readdir(path, symlinks);
+      }
+    };
+    return new GlobCache(directory, PackageIdentifier.createInMainRepo("pf"),
+        new CachingPackageLocator() {
+          @Override
+          public Path getBuildFileForPackage(PackageIdentifier packageId) {
+            return null;
+          }
+        }, new AtomicReference<>(syscalls), TestUtils.getPool());
+  }
+
+  @Test
+  public void testPrefetchedGlobsShareOneTraversal() throws Exception {
+    emptyFile("/pf/a.cc");
+    emptyFile("/pf/b.h");
+    emptyFile("/pf/sub/c.cc");
+    Path directory = scratch.resolve("/pf");
+    List<Path> readdirs = Collections.synchronizedList(new ArrayList<Path>());
+    GlobCache globCache = createRecordingGlobCache(directory, readdirs);
+    PackageFactory.PrefetchGlobber globber =
+        new PackageFactory.PrefetchGlobber(new PackageFactory.LegacyGlobber(globCache));
+
+    globber.runAsync(ImmutableList.of("*.cc"), ImmutableList.<String>of(), false);
+    globber.runAsync(ImmutableList.of("**/*.cc"), ImmutableList.of("sub/**"), false);
+    globber.runAsync(ImmutableList.of("*.h"), ImmutableList.<String>of(), false);
+    assertThat(globCache.getKeySet()).isEmpty();
+    globber.startRecordedGlobs();
+
+    assertThat(globCache.getKeySet()).containsExactly(Pair.of("*.cc", false),
+        Pair.of("**/*.cc", false), Pair.of("sub/**", false), Pair.of("*.h", false));
+    // Later glob() calls reuse the prefetched results.
+    assertThat(globCache.glob(ImmutableList.of("**/*.cc"), ImmutableList.of("sub/**"), false))
+        .containsExactly("a.cc");
+    assertThat(globCache.glob(ImmutableList.of("*.h"), ImmutableList.<String>of(), false))
+        .containsExactly("b.h");
+    // A single traversal read each directory once.
+    assertThat(readdirs).containsExactly(directory, directory.getChild("sub"));
+  }
+
+  @Test
+  public void testPrefetchedGlobsWithBadPatternStillStartValidGlobs() throws Exception {
+    emptyFile("/pf/a.cc");
+    GlobCache globCache =
+        createRecordingGlobCache(scratch.resolve("/pf"), new ArrayList<Path>());
+    PackageFactory.PrefetchGlobber globber =
+        new PackageFactory.PrefetchGlobber(new PackageFactory.LegacyGlobber(globCache));
+
+    globber.runAsync(ImmutableList.of("*.cc"), ImmutableList.<String>of(), false);
+    globber.runAsync(ImmutableList.of("a?"), ImmutableList.<String>of(), false);
+    globber.startRecordedGlobs();
+
+    assertThat(globCache.getKeySet()).containsExactly(Pair.of("*.cc", false));
+  }
+
   // TODO(bazel-team): This is really a test for GlobCache.
   @Test
   public void testRecursiveGlob() throws Exception {
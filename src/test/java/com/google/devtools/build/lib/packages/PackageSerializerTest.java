@@ -0,0 +1,146 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.syntax.Type;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.testutil.TestRuleClassProvider;
+import com.google.devtools.build.lib.vfs.Path;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link PackageSerializer}.
+ */
+@RunWith(JUnit4.class)
+public class PackageSerializerTest {
+
+  private Scratch scratch = new Scratch("/workspace");
+  private EventCollectionApparatus events = new EventCollectionApparatus();
+  private PackageFactoryApparatus packages = new PackageFactoryApparatus(events.reporter());
+  private RuleClassProvider ruleClassProvider = TestRuleClassProvider.getRuleClassProvider();
+
+  private byte[] serialize(Package pkg) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PackageSerializer.serialize(pkg, ruleClassProvider, out);
+    return out.toByteArray();
+  }
+
+  private Package deserialize(byte[] serialized, Package original) throws Exception {
+    return PackageSerializer.deserialize(new ByteArrayInputStream(serialized),
+        original.getPackageIdentifier(), original.getFilename(), ruleClassProvider).build();
+  }
+
+  private Package roundTrip(Package pkg) throws Exception {
+    byte[] serialized = serialize(pkg);
+    Package restored = deserialize(serialized, pkg);
+    // Equal packages have equal serializations.
+    assertArrayEquals(serialized, serialize(restored));
+    return restored;
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    scratch.file("pkg/a.h");
+    scratch.file("pkg/b.h");
+    Path buildFile = scratch.file("pkg/BUILD",
+        "package(default_visibility = ['//visibility:public'], features = ['f'])",
+        "licenses(['notice'])",
+        "exports_files(['data.txt'])",
+        "package_group(name = 'group', packages = ['//pkg/...'])",
+        "cc_library(name = 'lib',",
+        "           srcs = ['lib.cc'],",
+        "           hdrs = glob(['*.h']),",
+        "           copts = ['-O2'],",
+        "           linkstatic = 1,",
+        "           deps = select({'//conditions:default': []}))",
+        "genrule(name = 'gen', srcs = [':lib'], outs = ['out.txt'], cmd = 'echo')",
+        "testing_dummy_rule(name = 'dummy', dummyinteger = 42, dummystrings = ['x', 'y'])");
+    Package pkg = packages.createPackage("pkg", buildFile);
+    Package restored = roundTrip(pkg);
+
+    assertEquals(pkg.getName(), restored.getName());
+    assertEquals(pkg.getDefaultVisibility(), restored.getDefaultVisibility());
+    assertEquals(pkg.getFeatures(), restored.getFeatures());
+    assertThat(restored.getTargets()).hasSize(pkg.getTargets().size());
+    for (Target target : pkg.getTargets()) {
+      Target restoredTarget = restored.getTarget(target.getName());
+      assertEquals(target.getLabel(), restoredTarget.getLabel());
+      assertEquals(target.getTargetKind(), restoredTarget.getTargetKind());
+    }
+
+    Rule lib = restored.getRule("lib");
+    assertThat(RawAttributeMapper.of(lib).get("hdrs", BuildType.LABEL_LIST)).containsExactly(
+        Label.parseAbsolute("//pkg:a.h"), Label.parseAbsolute("//pkg:b.h"));
+    assertThat(RawAttributeMapper.of(lib).isConfigurable("deps", BuildType.LABEL_LIST)).isTrue();
+    Rule dummy = restored.getRule("dummy");
+    assertEquals(42, (int) RawAttributeMapper.of(dummy).get("dummyinteger", Type.INTEGER));
+    assertEquals(Arrays.asList("x", "y"),
+        RawAttributeMapper.of(dummy).get("dummystrings", Type.STRING_LIST));
+    assertEquals(restored.getRule("gen"),
+        ((OutputFile) restored.getTarget("out.txt")).getGeneratingRule());
+  }
+
+  @Test
+  public void testPackageWithErrorsIsNotSerialized() throws Exception {
+    events.setFailFast(false);
+    Path buildFile = scratch.file("bad/BUILD", "cc_library(name = 3)");
+    Package pkg = packages.createPackage("bad", buildFile);
+    try {
+      serialize(pkg);
+      fail();
+    } catch (NotSerializableException e) {
+      assertThat(e.getMessage()).contains("contains errors");
+    }
+  }
+
+  @Test
+  public void testCorruptInputIsRejected() throws Exception {
+    Path buildFile = scratch.file("pkg/BUILD",
+        "genrule(name = 'gen', outs = ['out.txt'], cmd = 'echo')");
+    Package pkg = packages.createPackage("pkg", buildFile);
+    byte[] serialized = serialize(pkg);
+    byte[] truncated = Arrays.copyOf(serialized, serialized.length / 2);
+    try {
+      deserialize(truncated, pkg);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+    try {
+      PackageSerializer.deserialize(new ByteArrayInputStream(new byte[] {1, 2, 3, 4}),
+          PackageIdentifier.createInMainRepo("pkg"), buildFile, ruleClassProvider);
+      fail();
+    } catch (IOException e) {
+      assertThat(e).hasMessage("Not a serialized package");
+    }
+  }
+}
@@ -0,0 +1,225 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for {@link DiskCacheMap}.
+ */
+@RunWith(JUnit4.class)
+public class DiskCacheMapTest {
+
+  private static final int ENTRY_SIZE = 10;
+
+  private ManualClock clock;
+  private Path root;
+
+  @Before
+  public final void createRoot() throws Exception {
+    clock = new ManualClock();
+    root = new InMemoryFileSystem(clock).getPath("/cache");
+  }
+
+  /** Returns a map that has room for {@code entries} entries of {@link #ENTRY_SIZE}. */
+  private DiskCacheMap createMap(int entries) throws Exception {
+    return new DiskCacheMap(root, entries * ENTRY_SIZE);
+  }
+
+  private static byte[] value(int i) {
+    byte[] value = new byte[ENTRY_SIZE];
+    Arrays.fill(value, (byte) i);
+    return value;
+  }
+
+  /** Puts {@code key}, with the clock advanced so that it is the most recently used entry. */
+  private void put(DiskCacheMap map, String key, int i) {
+    clock.advanceMillis(1000);
+    map.put(key, value(i));
+  }
+
+  private byte[] get(DiskCacheMap map, String key) {
+    clock.advanceMillis(1000);
+    return map.get(key);
+  }
+
+  @Test
+  public void testPutAndGet() throws Exception {
+    DiskCacheMap map = createMap(10);
+    put(map, "a", 1);
+
+    assertArrayEquals(value(1), get(map, "a"));
+    assertTrue(map.containsKey("a"));
+    assertNull(get(map, "b"));
+    assertFalse(map.containsKey("b"));
+    assertEquals(1, map.size());
+  }
+
+  @Test
+  public void testObjectMethodsDoNotEnumerateEntries() throws Exception {
+    DiskCacheMap map = createMap(10);
+    assertTrue(map.isEmpty());
+    put(map, "a", 1);
+    DiskCacheMap other = createMap(10);
+
+    assertFalse(map.isEmpty());
+    assertEquals("DiskCacheMap(/cache, 1 entries)", map.toString());
+    assertTrue(map.equals(map));
+    assertFalse(map.equals(other));
+    assertEquals(System.identityHashCode(map), map.hashCode());
+  }
+
+  @Test
+  public void testEnumerationIsRejected() throws Exception {
+    DiskCacheMap map = createMap(10);
+    put(map, "a", 1);
+
+    try {
+      map.entrySet();
+      fail();
+    } catch (UnsupportedOperationException e) {
+      assertThat(e).hasMessage("The entries of a disk cache cannot be enumerated");
+    }
+    try {
+      map.keySet();
+      fail();
+    } catch (UnsupportedOperationException e) {
+      assertThat(e).hasMessage("The keys of a disk cache cannot be enumerated");
+    }
+    try {
+      map.containsValue(value(1));
+      fail();
+    } catch (UnsupportedOperationException e) {
+      assertThat(e).hasMessage("A disk cache can only be searched by key");
+    }
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntryIsEvictedAtSizeLimit() throws Exception {
+    DiskCacheMap map = createMap(2);
+    put(map, "a", 1);
+    put(map, "b", 2);
+    get(map, "a");
+    put(map, "c", 3);
+
+    assertNull(get(map, "b"));
+    assertArrayEquals(value(1), get(map, "a"));
+    assertArrayEquals(value(3), get(map, "c"));
+    assertEquals(2, map.size());
+    assertThat(root.getDirectoryEntries()).hasSize(2);
+  }
+
+  @Test
+  public void testEvictionOrderIsKeptAcrossInstances() throws Exception {
+    DiskCacheMap first = createMap(10);
+    put(first, "a", 1);
+    put(first, "b", 2);
+    put(first, "c", 3);
+    get(first, "a");
+
+    // Loading the entries left by the first instance evicts the least recently used one.
+    DiskCacheMap second = createMap(2);
+
+    assertEquals(2, second.size());
+    assertFalse(second.containsKey("b"));
+    assertArrayEquals(value(1), get(second, "a"));
+    assertArrayEquals(value(3), get(second, "c"));
+  }
+
+  @Test
+  public void testEntryEvictedByAnotherInstanceIsMissing() throws Exception {
+    DiskCacheMap first = createMap(10);
+    put(first, "a", 1);
+    DiskCacheMap second = createMap(1);
+    put(second, "b", 2);
+
+    assertNull(get(first, "a"));
+    assertFalse(first.containsKey("a"));
+    put(first, "a", 3);
+    assertArrayEquals(value(3), get(first, "a"));
+  }
+
+  @Test
+  public void testLeftoverTempFilesAreDeleted() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(root);
+    FileSystemUtils.writeContent(root.getChild("a.1234.tmp"), value(1));
+    DiskCacheMap map = createMap(10);
+
+    assertThat(root.getDirectoryEntries()).isEmpty();
+    assertEquals(0, map.size());
+    put(map, "a", 2);
+    assertThat(root.getDirectoryEntries()).containsExactly(root.getChild("a"));
+  }
+
+  @Test
+  public void testConcurrentPutsAndGetsKeepSizeLimit() throws Exception {
+    final DiskCacheMap map = createMap(5);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      final int thread = t;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          for (int i = 0; i < 200; i++) {
+            int key = (thread * 7 + i) % 20;
+            map.put("key" + key, value(key));
+            byte[] value = map.get("key" + ((key + 3) % 20));
+            // Entries may be evicted at any time, but are never seen partially written.
+            if (value != null) {
+              assertArrayEquals(value((key + 3) % 20), value);
+            }
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    assertThat(map.size()).isAtMost(5);
+    long totalSize = 0;
+    for (Path file : root.getDirectoryEntries()) {
+      assertFalse(file.getBaseName().endsWith(".tmp"));
+      totalSize += file.getFileSize();
+    }
+    assertThat(totalSize).isAtMost(5L * ENTRY_SIZE);
+  }
+}
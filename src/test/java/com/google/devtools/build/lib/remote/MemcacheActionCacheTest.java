@@ -0,0 +1,393 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.remote.RemoteProtocol.CacheEntry;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.common.options.Options;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tests for {@link MemcacheActionCache}.
+ */
+@RunWith(JUnit4.class)
+public class MemcacheActionCacheTest {
+
+  /** A cache that records the keys put to it and the lookups made. */
+  private static class RecordingCache extends ConcurrentHashMap<String, byte[]> {
+    final List<String> putKeys = new ArrayList<>();
+    int containsKeyCalls;
+
+    @Override
+    public synchronized byte[] put(String key, byte[] value) {
+      putKeys.add(key);
+      return super.put(key, value);
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+      containsKeyCalls++;
+      return super.containsKey(key);
+    }
+  }
+
+  /** A cache that finds missing keys in a single request. */
+  private static class BatchLookupCache extends RecordingCache implements MissingKeysFinder {
+    final List<Collection<String>> findMissingKeysCalls = new ArrayList<>();
+
+    @Override
+    public synchronized Set<String> findMissingKeys(Collection<String> keys) {
+      findMissingKeysCalls.add(new ArrayList<>(keys));
+      Set<String> missing = newKeySet();
+      for (String key : keys) {
+        if (get(key) == null) {
+          missing.add(key);
+        }
+      }
+      return missing;
+    }
+  }
+
+  private Scratch scratch;
+  private Path execRoot;
+  private MemcacheActionCache actionCache;
+
+  @Before
+  public final void createExecRoot() throws Exception {
+    scratch = new Scratch(new InMemoryFileSystem(BlazeClock.instance()));
+    execRoot = scratch.dir("/exec/root");
+  }
+
+  @After
+  public final void shutdownCache() {
+    if (actionCache != null) {
+      actionCache.shutdown();
+    }
+  }
+
+  private MemcacheActionCache createActionCache(RecordingCache cache) {
+    actionCache =
+        new MemcacheActionCache(execRoot, Options.getDefaults(RemoteOptions.class), cache);
+    return actionCache;
+  }
+
+  private static String contentKey(String content) {
+    return Hashing.md5().hashString(content, StandardCharsets.UTF_8).toString();
+  }
+
+  /** Creates {@code count} files with different contents, returning them in order. */
+  private List<Path> createFiles(int count) throws Exception {
+    List<Path> files = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      files.add(scratch.file("/exec/root/in/file" + i, content(i).getBytes(StandardCharsets.UTF_8)));
+    }
+    return files;
+  }
+
+  private static String content(int i) {
+    return "content of file " + i;
+  }
+
+  @Test
+  public void testPutFilesIfNotExistUploadsOnlyMissingFiles() throws Exception {
+    BatchLookupCache cache = new BatchLookupCache();
+    List<Path> files = createFiles(10);
+    List<String> expectedKeys = new ArrayList<>();
+    List<String> missingKeys = new ArrayList<>();
+    for (int i = 0; i < files.size(); i++) {
+      String key = contentKey(content(i));
+      expectedKeys.add(key);
+      if (i % 3 == 0) {
+        cache.put(key, new byte[0]);
+      } else {
+        missingKeys.add(key);
+      }
+    }
+    cache.putKeys.clear();
+    createActionCache(cache);
+
+    assertEquals(expectedKeys, actionCache.putFilesIfNotExist(files));
+
+    assertThat(cache.putKeys).containsExactlyElementsIn(missingKeys);
+    assertThat(cache.findMissingKeysCalls).hasSize(1);
+    assertThat(cache.findMissingKeysCalls.get(0)).containsExactlyElementsIn(expectedKeys);
+    assertEquals(0, cache.containsKeyCalls);
+    RemoteCacheStatistics statistics = actionCache.getAndResetStatistics();
+    assertEquals(4, statistics.getCacheHits());
+    assertEquals(6, statistics.getCacheMisses());
+    assertEquals(0, statistics.getKnownKeys());
+    assertEquals(1, statistics.getLookupRequests());
+    assertEquals(contentLength(1, 2, 4, 5, 7, 8), statistics.getBytesUploaded());
+  }
+
+  private static long contentLength(int... files) {
+    long length = 0;
+    for (int i : files) {
+      length += content(i).length();
+    }
+    return length;
+  }
+
+  @Test
+  public void testPutFilesIfNotExistOnlyLooksUpUnknownKeys() throws Exception {
+    BatchLookupCache cache = new BatchLookupCache();
+    List<Path> files = createFiles(5);
+    createActionCache(cache);
+    actionCache.putFilesIfNotExist(files.subList(0, 3));
+    actionCache.getAndResetStatistics();
+    cache.putKeys.clear();
+    cache.findMissingKeysCalls.clear();
+
+    // Keys are only remembered during a command, since the cache may evict them.
+    actionCache.putFilesIfNotExist(files.subList(0, 3));
+    assertThat(cache.findMissingKeysCalls).hasSize(1);
+    cache.findMissingKeysCalls.clear();
+    actionCache.putFilesIfNotExist(files);
+
+    assertThat(cache.findMissingKeysCalls).containsExactly(
+        ImmutableList.of(contentKey(content(3)), contentKey(content(4))));
+    assertThat(cache.putKeys).containsExactly(contentKey(content(3)), contentKey(content(4)));
+    RemoteCacheStatistics statistics = actionCache.getAndResetStatistics();
+    assertEquals(3, statistics.getCacheHits());
+    assertEquals(2, statistics.getCacheMisses());
+    assertEquals(3, statistics.getKnownKeys());
+    assertEquals(2, statistics.getLookupRequests());
+    assertThat(statistics.toString()).startsWith(
+        "Remote cache: 3 hits, 2 misses, 3 files already seen, 2 lookup requests, ");
+  }
+
+  @Test
+  public void testPutFilesIfNotExistUploadsSameContentOnce() throws Exception {
+    BatchLookupCache cache = new BatchLookupCache();
+    Path a = scratch.file("/exec/root/a", "same");
+    Path b = scratch.file("/exec/root/b", "same");
+    createActionCache(cache);
+
+    List<String> keys = actionCache.putFilesIfNotExist(ImmutableList.of(a, b));
+
+    assertEquals(keys.get(0), keys.get(1));
+    assertThat(cache.putKeys).containsExactly(keys.get(0));
+    assertThat(cache.findMissingKeysCalls).containsExactly(ImmutableList.of(keys.get(0)));
+  }
+
+  @Test
+  public void testPutFilesIfNotExistChecksEachKeyWithoutBatchLookup() throws Exception {
+    RecordingCache cache = new RecordingCache();
+    List<Path> files = createFiles(4);
+    cache.put(contentKey(content(2)), new byte[0]);
+    cache.putKeys.clear();
+    createActionCache(cache);
+
+    actionCache.putFilesIfNotExist(files);
+
+    assertEquals(4, cache.containsKeyCalls);
+    assertThat(cache.putKeys).containsExactly(
+        contentKey(content(0)), contentKey(content(1)), contentKey(content(3)));
+    RemoteCacheStatistics statistics = actionCache.getAndResetStatistics();
+    assertEquals(1, statistics.getCacheHits());
+    assertEquals(3, statistics.getCacheMisses());
+    assertEquals(4, statistics.getLookupRequests());
+  }
+
+  @Test
+  public void testPutActionOutputLooksUpOutputsInOneRequest() throws Exception {
+    BatchLookupCache cache = new BatchLookupCache();
+    List<Path> outputs = createFiles(6);
+    cache.put(contentKey(content(0)), new byte[0]);
+    cache.putKeys.clear();
+    createActionCache(cache);
+
+    actionCache.putActionOutput("action", execRoot, outputs);
+
+    assertThat(cache.findMissingKeysCalls).hasSize(1);
+    // The five missing files and the action output entry.
+    assertThat(cache.putKeys).hasSize(6);
+    assertThat(cache.putKeys).doesNotContain(contentKey(content(0)));
+    assertThat(cache.putKeys).contains("action");
+  }
+
+  /** Creates an output directory with nested, empty and executable entries. */
+  private Path createOutputDirectory() throws Exception {
+    Path dir = scratch.dir("/exec/root/out/dir");
+    scratch.file("/exec/root/out/dir/a", "a");
+    scratch.file("/exec/root/out/dir/nested/deeper/b", "b");
+    scratch.file("/exec/root/out/dir/nested/tool", "#!/bin/sh").setExecutable(true);
+    scratch.dir("/exec/root/out/dir/nested/empty");
+    return dir;
+  }
+
+  @Test
+  public void testActionOutputDirectoryRoundTrip() throws Exception {
+    createActionCache(new BatchLookupCache());
+    Path dir = createOutputDirectory();
+    Path file = scratch.file("/exec/root/out/file", "file");
+    actionCache.putActionOutput("action", execRoot, ImmutableList.of(dir, file));
+    FileSystemUtils.deleteTree(execRoot.getRelative("out"));
+    scratch.dir("/exec/root/out");
+
+    actionCache.writeActionOutput("action", execRoot);
+
+    assertEquals("a\n", readContent(dir.getRelative("a")));
+    assertEquals("b\n", readContent(dir.getRelative("nested/deeper/b")));
+    assertEquals("#!/bin/sh\n", readContent(dir.getRelative("nested/tool")));
+    assertEquals("file\n", readContent(file));
+    assertTrue(dir.getRelative("nested/tool").isExecutable());
+    assertFalse(dir.getRelative("a").isExecutable());
+    assertTrue(dir.getRelative("nested/empty").isDirectory());
+    assertThat(dir.getRelative("nested/empty").getDirectoryEntries()).isEmpty();
+  }
+
+  @Test
+  public void testWriteActionOutputReplacesExistingDirectory() throws Exception {
+    createActionCache(new BatchLookupCache());
+    Path dir = createOutputDirectory();
+    actionCache.putActionOutput("action", execRoot, ImmutableList.of(dir));
+    scratch.file("/exec/root/out/dir/stale", "stale");
+    scratch.file("/exec/root/out/dir/nested/empty/stale", "stale");
+    FileSystemUtils.writeContentAsLatin1(dir.getRelative("a"), "changed");
+
+    actionCache.writeActionOutput("action", execRoot);
+
+    assertFalse(dir.getRelative("stale").exists());
+    assertThat(dir.getRelative("nested/empty").getDirectoryEntries()).isEmpty();
+    assertEquals("a\n", readContent(dir.getRelative("a")));
+  }
+
+  @Test
+  public void testSymbolicLinksAreStoredAsLinks() throws Exception {
+    BatchLookupCache cache = new BatchLookupCache();
+    createActionCache(cache);
+    Path dir = scratch.dir("/exec/root/out/dir");
+    scratch.file("/outside/secret", "secret");
+    dir.getRelative("loop").createSymbolicLink(new PathFragment("."));
+    dir.getRelative("escape").createSymbolicLink(new PathFragment("/outside"));
+    actionCache.putActionOutput("action", execRoot, ImmutableList.of(dir));
+
+    assertThat(cache.putKeys).doesNotContain(contentKey("secret\n"));
+
+    FileSystemUtils.deleteTree(dir);
+    // A file at the destination of a link must not be written through.
+    dir.createDirectory();
+    dir.getRelative("escape").createSymbolicLink(new PathFragment("/outside/secret"));
+    actionCache.writeActionOutput("action", execRoot);
+
+    assertEquals(new PathFragment("."), dir.getRelative("loop").readSymbolicLink());
+    assertEquals(new PathFragment("/outside"), dir.getRelative("escape").readSymbolicLink());
+    assertEquals("secret\n", readContent(scratch.resolve("/outside/secret")));
+  }
+
+  private static String readContent(Path file) throws Exception {
+    return new String(FileSystemUtils.readContentAsLatin1(file));
+  }
+
+  /** Creates a file of {@code size} bytes in which every chunk has different content. */
+  private Path createChunkedFile(String name, int size) throws Exception {
+    byte[] content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) (i / MemcacheActionCache.CHUNK_SIZE_BYTES * 7 + i);
+    }
+    return scratch.file("/exec/root/" + name, content);
+  }
+
+  /** Puts the file, restores it to a new path, and returns the stored cache entry. */
+  private CacheEntry roundTrip(RecordingCache cache, Path file) throws Exception {
+    String key = actionCache.putFileIfNotExist(file);
+    Path dest = execRoot.getRelative("restored");
+    actionCache.writeFile(key, dest, true);
+    assertArrayEquals(FileSystemUtils.readContent(file), FileSystemUtils.readContent(dest));
+    assertTrue(dest.isExecutable());
+    return CacheEntry.parseFrom(cache.get(key));
+  }
+
+  @Test
+  public void testFileOfChunkSizeIsStoredWhole() throws Exception {
+    RecordingCache cache = new RecordingCache();
+    createActionCache(cache);
+    CacheEntry entry =
+        roundTrip(cache, createChunkedFile("file", MemcacheActionCache.CHUNK_SIZE_BYTES));
+
+    assertEquals(0, entry.getChunkKeysCount());
+    assertEquals(MemcacheActionCache.CHUNK_SIZE_BYTES, entry.getFileContent().size());
+  }
+
+  @Test
+  public void testFileOfExactMultipleOfChunkSize() throws Exception {
+    RecordingCache cache = new RecordingCache();
+    createActionCache(cache);
+    CacheEntry entry =
+        roundTrip(cache, createChunkedFile("file", 2 * MemcacheActionCache.CHUNK_SIZE_BYTES));
+
+    assertEquals(2, entry.getChunkKeysCount());
+    assertTrue(entry.getFileContent().isEmpty());
+    for (String chunkKey : entry.getChunkKeysList()) {
+      assertEquals(MemcacheActionCache.CHUNK_SIZE_BYTES,
+          CacheEntry.parseFrom(cache.get(chunkKey)).getFileContent().size());
+    }
+  }
+
+  @Test
+  public void testFileOneByteOverChunkSize() throws Exception {
+    RecordingCache cache = new RecordingCache();
+    createActionCache(cache);
+    CacheEntry entry =
+        roundTrip(cache, createChunkedFile("file", MemcacheActionCache.CHUNK_SIZE_BYTES + 1));
+
+    assertEquals(2, entry.getChunkKeysCount());
+    assertEquals(1, CacheEntry.parseFrom(cache.get(entry.getChunkKeys(1))).getFileContent().size());
+  }
+
+  @Test
+  public void testMissingMiddleChunkLeavesNoPartialFile() throws Exception {
+    RecordingCache cache = new RecordingCache();
+    createActionCache(cache);
+    String key = actionCache.putFileIfNotExist(
+        createChunkedFile("file", 3 * MemcacheActionCache.CHUNK_SIZE_BYTES));
+    cache.remove(CacheEntry.parseFrom(cache.get(key)).getChunkKeys(1));
+    Path dest = execRoot.getRelative("restored");
+
+    try {
+      actionCache.writeFile(key, dest, false);
+      fail();
+    } catch (CacheNotFoundException expected) {
+      // Expected.
+    }
+    assertFalse(dest.exists());
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.base.Function;
+import com.google.devtools.common.options.Options;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that {@link RemoteModule} keeps a single connection to the distributed cache.
+ */
+@RunWith(JUnit4.class)
+public class RemoteModuleTest {
+
+  private final List<HazelcastInstance> instances = new ArrayList<>();
+  private RemoteModule module;
+
+  @Before
+  public final void createModule() {
+    module = new RemoteModule(new Function<RemoteOptions, HazelcastCacheMap>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public HazelcastCacheMap apply(RemoteOptions options) {
+        HazelcastInstance instance = mock(HazelcastInstance.class);
+        instances.add(instance);
+        return new HazelcastCacheMap(instance, mock(IMap.class));
+      }
+    });
+  }
+
+  private static RemoteOptions options(String hazelcastNode) {
+    RemoteOptions options = Options.getDefaults(RemoteOptions.class);
+    options.hazelcastNode = hazelcastNode;
+    return options;
+  }
+
+  @Test
+  public void testConnectionIsKeptForSameNode() {
+    HazelcastCacheMap cache = module.connectHazelcastCache(options("host:1"));
+
+    assertSame(cache, module.connectHazelcastCache(options("host:1")));
+    assertEquals(1, instances.size());
+    verify(instances.get(0), never()).shutdown();
+  }
+
+  @Test
+  public void testConnectionToOtherNodeIsShutDown() {
+    HazelcastCacheMap cache = module.connectHazelcastCache(options("host:1"));
+
+    assertNotSame(cache, module.connectHazelcastCache(options("host:2")));
+    assertEquals(2, instances.size());
+    verify(instances.get(0)).shutdown();
+    verify(instances.get(1), never()).shutdown();
+  }
+
+  @Test
+  public void testConnectionIsShutDownWhenNodeIsUnset() {
+    module.connectHazelcastCache(options("host:1"));
+
+    assertNull(module.connectHazelcastCache(options(null)));
+    verify(instances.get(0)).shutdown();
+  }
+
+  @Test
+  public void testConnectionIsShutDownWithServer() {
+    module.connectHazelcastCache(options("host:1"));
+    module.blazeShutdown();
+
+    verify(instances.get(0)).shutdown();
+    module.connectHazelcastCache(options("host:1"));
+    assertEquals(2, instances.size());
+  }
+}
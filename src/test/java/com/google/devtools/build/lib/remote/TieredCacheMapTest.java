@@ -0,0 +1,112 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tests for {@link TieredCacheMap}, with a disk cache in front of an in-memory map that stands in
+ * for the distributed cache.
+ */
+@RunWith(JUnit4.class)
+public class TieredCacheMapTest {
+
+  private DiskCacheMap local;
+  private ConcurrentHashMap<String, byte[]> remote;
+  private TieredCacheMap cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    local = new DiskCacheMap(
+        new InMemoryFileSystem(new ManualClock()).getPath("/cache"), Long.MAX_VALUE);
+    remote = new ConcurrentHashMap<>();
+    cache = new TieredCacheMap(local, remote);
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testPutWritesThroughToBothTiers() throws Exception {
+    cache.put("a", bytes("a"));
+
+    assertArrayEquals(bytes("a"), local.get("a"));
+    assertArrayEquals(bytes("a"), remote.get("a"));
+  }
+
+  @Test
+  public void testGetPrefersLocalTier() throws Exception {
+    local.put("a", bytes("local"));
+    remote.put("a", bytes("remote"));
+
+    assertArrayEquals(bytes("local"), cache.get("a"));
+  }
+
+  @Test
+  public void testGetFallsBackToRemoteTierAndKeepsValueLocally() throws Exception {
+    remote.put("a", bytes("a"));
+
+    assertArrayEquals(bytes("a"), cache.get("a"));
+    assertArrayEquals(bytes("a"), local.get("a"));
+    remote.remove("a");
+    assertArrayEquals(bytes("a"), cache.get("a"));
+  }
+
+  @Test
+  public void testGetMissingFromBothTiers() throws Exception {
+    assertNull(cache.get("a"));
+    assertFalse(local.containsKey("a"));
+  }
+
+  @Test
+  public void testExistenceChecksOnlyUseRemoteTier() throws Exception {
+    // A value only present locally, for instance after the distributed cache evicted it, must be
+    // uploaded again, so it counts as missing.
+    local.put("local", bytes("local"));
+    cache.put("both", bytes("both"));
+
+    assertFalse(cache.containsKey("local"));
+    assertTrue(cache.containsKey("both"));
+    assertThat(cache.findMissingKeys(ImmutableList.of("local", "both", "none")))
+        .containsExactly("local", "none");
+  }
+
+  @Test
+  public void testRemoveRemovesFromBothTiers() throws Exception {
+    cache.put("a", bytes("a"));
+
+    assertArrayEquals(bytes("a"), cache.remove("a"));
+    assertFalse(local.containsKey("a"));
+    assertFalse(remote.containsKey("a"));
+    assertEquals(0, remote.size());
+  }
+}
@@ -13,12 +13,18 @@
 // limitations under the License.
 package com.google.devtools.build.lib.shell;
 
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.Files;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.PrintWriter;
@@ -62,6 +68,7 @@ public class LoadTest {
   @After
   public final void deleteTempFile() throws Exception  {
     tempFile.delete();
+    Consumers.setOutputPollers(0);
   }
 
   @Test
@@ -87,6 +94,87 @@ public class LoadTest {
     }
   }
 
+  @Test
+  public void testThousandsOfConcurrentCommandsWithOutputPollers() throws Exception {
+    Consumers.setOutputPollers(2);
+    byte[] expected = Files.toByteArray(tempFile);
+    Command command = new Command(new String[] {"/bin/sh", "-c",
+        "/bin/cat " + tempFile.getAbsolutePath() + "; /bin/cat "  + tempFile.getAbsolutePath()
+            + " >&2"});
+    for (int batch = 0; batch < 10; batch++) {
+      List<FutureCommandResult> results = new ArrayList<>();
+      List<ByteArrayOutputStream> outs = new ArrayList<>();
+      List<ByteArrayOutputStream> errs = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        results.add(command.executeAsynchronously(
+            new ByteArrayInputStream(new byte[0]), Command.NO_OBSERVER, out, err));
+        outs.add(out);
+        errs.add(err);
+      }
+      for (int i = 0; i < results.size(); i++) {
+        assertThat(results.get(i).get().getTerminationStatus().success()).isTrue();
+        assertThat(outs.get(i).toByteArray()).isEqualTo(expected);
+        assertThat(errs.get(i).toByteArray()).isEqualTo(expected);
+      }
+    }
+  }
+
+  @Test
+  public void testOutputPollersCopyOutputLargerThanThePipeBuffer() throws Exception {
+    Consumers.setOutputPollers(1);
+    try (PrintWriter out = new PrintWriter(new FileWriter(tempFile))) {
+      for (int i = 0; i < 100000; i++) {
+        out.println(i);
+      }
+    }
+    byte[] expected = Files.toByteArray(tempFile);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new Command(new String[] {"/bin/cat", tempFile.getAbsolutePath()})
+        .execute(Command.NO_INPUT, Command.NO_OBSERVER, out, new ByteArrayOutputStream());
+    assertThat(out.toByteArray()).isEqualTo(expected);
+  }
+
+  @Test
+  public void testOutputOfExitedCommandIsReadByWaitingThread() throws Exception {
+    Consumers.setOutputPollers(1);
+    // The poller has backed off by the time the command writes its output and exits.
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    new Command(new String[] {"/bin/sh", "-c",
+        "sleep 0.1; /bin/cat " + tempFile.getAbsolutePath() + "; echo err >&2"})
+        .execute(Command.NO_INPUT, Command.NO_OBSERVER, out, err);
+    assertThat(out.toByteArray()).isEqualTo(Files.toByteArray(tempFile));
+    assertThat(err.toString()).isEqualTo("err\n");
+  }
+
+  @Test
+  public void testReplacedOutputPollersExit() throws Exception {
+    Consumers.setOutputPollers(2);
+    Consumers.setOutputPollers(1);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new Command(new String[] {"/bin/cat", tempFile.getAbsolutePath()})
+        .execute(Command.NO_INPUT, Command.NO_OBSERVER, out, new ByteArrayOutputStream());
+    assertThat(out.toByteArray()).isEqualTo(Files.toByteArray(tempFile));
+    Consumers.setOutputPollers(0);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (countOutputPollerThreads() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(countOutputPollerThreads()).isEqualTo(0);
+  }
+
+  private static int countOutputPollerThreads() {
+    int count = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.isAlive() && thread.getName().startsWith("Command-Output-Poller-")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
   private static final class LoadThread implements Runnable {
     private final Command command;
     private final List<Throwable> exception;
@@ -0,0 +1,93 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.skyframe.DiffAwareness.View;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+
+/** Tests for {@link LocalDiffAwareness}. */
+@RunWith(JUnit4.class)
+public class LocalDiffAwarenessTest {
+
+  private Path root;
+  private DiffAwareness diffAwareness;
+
+  @Before
+  public final void createDiffAwareness() throws Exception {
+    root = new JavaIoFileSystem().getPath(new File(TestUtils.tmpDir()).getCanonicalPath())
+        .getRelative("watched");
+    FileSystemUtils.deleteTree(root);
+    root.createDirectory();
+    diffAwareness = new LocalDiffAwareness.Factory(ImmutableList.<String>of()).maybeCreate(root);
+  }
+
+  @After
+  public final void closeDiffAwareness() {
+    diffAwareness.close();
+  }
+
+  /**
+   * Returns the diff between {@code baseline} and the current view, once the watch service has
+   * had time to deliver the events for the changes made so far.
+   */
+  private ModifiedFileSet diffSince(View baseline) throws Exception {
+    // The watch service delivers events asynchronously.
+    Thread.sleep(1000);
+    return diffAwareness.getDiff(baseline, diffAwareness.getCurrentView());
+  }
+
+  @Test
+  public void reportsModifiedFiles() throws Exception {
+    View view = diffAwareness.getCurrentView();
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("file"), "contents");
+
+    ModifiedFileSet diff = diffSince(view);
+
+    assertThat(diff.treatEverythingAsModified()).isFalse();
+    assertThat(diff.modifiedSourceFiles()).containsExactly(new PathFragment("file"));
+  }
+
+  @Test
+  public void recoversFromOverflow() throws Exception {
+    View view = diffAwareness.getCurrentView();
+    // More events for a single directory than the watch service queues.
+    for (int i = 0; i < 1000; i++) {
+      FileSystemUtils.createEmptyFile(root.getRelative("file" + i));
+    }
+    assertThat(diffSince(view).treatEverythingAsModified()).isTrue();
+
+    view = diffAwareness.getCurrentView();
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("file0"), "contents");
+    ModifiedFileSet diff = diffSince(view);
+
+    assertThat(diff.treatEverythingAsModified()).isFalse();
+    assertThat(diff.modifiedSourceFiles()).containsExactly(new PathFragment("file0"));
+  }
+}
@@ -0,0 +1,103 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.lib.syntax.Statement;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParsedFileCache}. */
+@RunWith(JUnit4.class)
+public class ParsedFileCacheTest {
+
+  private Path path;
+  private BuildFileAST ast;
+  private ParsedFileCache cache;
+
+  @Before
+  public final void createCache() {
+    path = new InMemoryFileSystem().getPath("/pkg/BUILD");
+    ast = BuildFileAST.parseBuildFile(
+        ParserInputSource.create("x = 1", path.asFragment()), new Reporter(), false);
+    cache = new ParsedFileCache();
+  }
+
+  private ParsedFileCache.Key key(byte[] digest, long size) {
+    return new ParsedFileCache.Key(path, digest, /*skylark=*/false, size);
+  }
+
+  @Test
+  public void disabledByDefault() {
+    assertThat(cache.isEnabled()).isFalse();
+    cache.put(key(new byte[] {1}, 5), ast);
+    assertThat(cache.get(key(new byte[] {1}, 5))).isNull();
+  }
+
+  @Test
+  public void entriesAreKeyedByDigest() {
+    cache.setCapacity(1000);
+    cache.put(key(new byte[] {1}, 5), ast);
+    assertThat(cache.get(key(new byte[] {1}, 5))).isSameAs(ast);
+    assertThat(cache.get(key(new byte[] {2}, 5))).isNull();
+  }
+
+  @Test
+  public void filesLargerThanTheCapacityAreNotKept() {
+    cache.setCapacity(10);
+    cache.put(key(new byte[] {1}, 100), ast);
+    assertThat(cache.get(key(new byte[] {1}, 100))).isNull();
+  }
+
+  @Test
+  public void changingTheCapacityDropsEntries() {
+    cache.setCapacity(1000);
+    cache.put(key(new byte[] {1}, 5), ast);
+    cache.setCapacity(2000);
+    assertThat(cache.get(key(new byte[] {1}, 5))).isNull();
+    cache.setCapacity(0);
+    assertThat(cache.isEnabled()).isFalse();
+  }
+
+  @Test
+  public void preludeIsAddedToCachedTreeWithoutChangingIt() {
+    cache.setCapacity(1000);
+    cache.put(key(new byte[] {1}, 5), ast);
+    BuildFileAST prelude = BuildFileAST.parseBuildFile(
+        ParserInputSource.create("y = 2", path.asFragment()), new Reporter(), false);
+
+    BuildFileAST cached = cache.get(key(new byte[] {1}, 5));
+    BuildFileAST withPrelude = cached.withPreludeStatements(prelude.getStatements());
+    BuildFileAST parsedWithPrelude = BuildFileAST.parseBuildFile(
+        ParserInputSource.create("x = 1", path.asFragment()), prelude.getStatements(),
+        new Reporter(), false);
+    assertThat(withPrelude.getStatements().toString())
+        .isEqualTo(parsedWithPrelude.getStatements().toString());
+    assertThat(withPrelude.getStatements().get(0)).isSameAs(prelude.getStatements().get(0));
+
+    // The next hit gets the tree without the prelude again.
+    assertThat(cache.get(key(new byte[] {1}, 5)).getStatements()).hasSize(1);
+    assertThat(cached.withPreludeStatements(ImmutableList.<Statement>of())).isSameAs(cached);
+  }
+}
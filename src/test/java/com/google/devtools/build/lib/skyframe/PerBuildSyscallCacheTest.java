@@ -0,0 +1,99 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PerBuildSyscallCache}. */
+@RunWith(JUnit4.class)
+public class PerBuildSyscallCacheTest {
+
+  private Path root;
+  private PerBuildSyscallCache cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    root = new InMemoryFileSystem(BlazeClock.instance()).getPath("/root");
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("pkg"));
+    cache = PerBuildSyscallCache.newBuilder().build();
+  }
+
+  @Test
+  public void invalidateDropsModifiedFilesAndTheirParents() throws Exception {
+    Path file = root.getRelative("pkg/file");
+    Path other = root.getRelative("other");
+    FileSystemUtils.createEmptyFile(file);
+    FileSystemUtils.createEmptyFile(other);
+    assertThat(cache.statNullable(file, Symlinks.FOLLOW)).isNotNull();
+    assertThat(cache.statNullable(other, Symlinks.NOFOLLOW)).isNotNull();
+    assertThat(cache.readdir(file.getParentDirectory(), Symlinks.FOLLOW)).hasSize(1);
+
+    file.delete();
+    other.delete();
+    // Still cached.
+    assertThat(cache.statNullable(file, Symlinks.FOLLOW)).isNotNull();
+
+    cache.invalidate(ImmutableList.of(root), ImmutableList.of(file));
+    assertThat(cache.statNullable(file, Symlinks.FOLLOW)).isNull();
+    assertThat(cache.readdir(file.getParentDirectory(), Symlinks.FOLLOW)).isEmpty();
+    // Not reported as modified, so still cached.
+    assertThat(cache.statNullable(other, Symlinks.NOFOLLOW)).isNotNull();
+  }
+
+  @Test
+  public void invalidateDropsEverythingBelowModifiedDirectories() throws Exception {
+    Path file = root.getRelative("pkg/file");
+    FileSystemUtils.createEmptyFile(file);
+    assertThat(cache.statNullable(file, Symlinks.NOFOLLOW)).isNotNull();
+
+    FileSystemUtils.deleteTree(root.getRelative("pkg"));
+    cache.invalidate(ImmutableList.of(root), ImmutableList.of(root.getRelative("pkg")));
+    assertThat(cache.statNullable(file, Symlinks.NOFOLLOW)).isNull();
+  }
+
+  @Test
+  public void invalidateDropsPathsOutsideRoots() throws Exception {
+    Path outside = root.getFileSystem().getPath("/outside");
+    FileSystemUtils.createEmptyFile(outside);
+    assertThat(cache.statNullable(outside, Symlinks.FOLLOW)).isNotNull();
+
+    outside.delete();
+    cache.invalidate(ImmutableList.of(root), ImmutableList.<Path>of());
+    assertThat(cache.statNullable(outside, Symlinks.FOLLOW)).isNull();
+  }
+
+  @Test
+  public void statisticsAreReset() throws Exception {
+    Path pkg = root.getRelative("pkg");
+    cache.statNullable(pkg, Symlinks.FOLLOW);
+    cache.statNullable(pkg, Symlinks.FOLLOW);
+    assertThat(cache.getAndResetStatistics())
+        .isEqualTo("Syscall cache: 2 stats (50.0% hits), 0 readdirs (100.0% hits)");
+    cache.statNullable(pkg, Symlinks.FOLLOW);
+    assertThat(cache.getAndResetStatistics())
+        .isEqualTo("Syscall cache: 1 stats (100.0% hits), 0 readdirs (100.0% hits)");
+  }
+}
@@ -0,0 +1,157 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.packages.ConstantRuleVisibility;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.skyframe.util.SkyframeExecutorTestUtils;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.SkyKey;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * Tests that {@link PackageFunction} uses the {@link PersistentPackageCache} only while the inputs
+ * of a package are unchanged.
+ */
+@RunWith(JUnit4.class)
+public class PersistentPackageCacheTest extends BuildViewTestCase {
+
+  private static final SkyKey PKG_KEY = PackageValue.key(PackageIdentifier.createInMainRepo("pkg"));
+
+  private Path cacheDirectory;
+
+  @Before
+  public final void setUpCacheDirectory() throws Exception {
+    cacheDirectory = outputBase.getRelative("package_cache");
+  }
+
+  private PersistentPackageCache useCache(long maxSizeBytes) {
+    PersistentPackageCache cache =
+        new PersistentPackageCache(cacheDirectory, "salt", ruleClassProvider, maxSizeBytes);
+    getSkyframeExecutor().setPersistentPackageCacheForTesting(cache);
+    return cache;
+  }
+
+  /**
+   * Evaluates the package with a fresh evaluator, as a new server would, and returns it.
+   */
+  private Package loadPackageInNewEvaluator() throws Exception {
+    getSkyframeExecutor().resetEvaluator();
+    getSkyframeExecutor().preparePackageLoading(
+        new PathPackageLocator(outputBase, ImmutableList.of(rootDirectory)),
+        ConstantRuleVisibility.PUBLIC, true,
+        7, "", UUID.randomUUID(), new TimestampGranularityMonitor(BlazeClock.instance()));
+    EvaluationResult<PackageValue> result = SkyframeExecutorTestUtils.evaluate(
+        getSkyframeExecutor(), PKG_KEY, /*keepGoing=*/false, reporter);
+    if (result.hasError()) {
+      fail(result.getError(PKG_KEY).getException().getMessage());
+    }
+    Package pkg = result.get(PKG_KEY).getPackage();
+    assertFalse(pkg.containsErrors());
+    return pkg;
+  }
+
+  @Test
+  public void testPackageIsRestoredWhileInputsAreUnchanged() throws Exception {
+    PersistentPackageCache cache = useCache(Long.MAX_VALUE);
+    scratch.file("pkg/BUILD",
+        "load('/ext/ext', 'name')",
+        "exports_files(glob(['*.txt']))",
+        "genrule(name = name, outs = ['out'], cmd = 'echo')");
+    scratch.file("pkg/a.txt");
+    scratch.file("ext/BUILD");
+    scratch.file("ext/ext.bzl", "name = 'gen'");
+
+    loadPackageInNewEvaluator();
+    assertEquals(0, cache.getRestoredPackages());
+    Package pkg = loadPackageInNewEvaluator();
+    assertEquals(1, cache.getRestoredPackages());
+    assertEquals("genrule", pkg.getRule("gen").getRuleClass());
+    pkg.getTarget("a.txt");
+
+    // A glob with a different result misses, and the package is evaluated and stored again.
+    scratch.file("pkg/b.txt");
+    pkg = loadPackageInNewEvaluator();
+    assertEquals(1, cache.getRestoredPackages());
+    pkg.getTarget("b.txt");
+    loadPackageInNewEvaluator();
+    assertEquals(2, cache.getRestoredPackages());
+
+    // So does a changed import.
+    scratch.overwriteFile("ext/ext.bzl", "name = 'other'");
+    pkg = loadPackageInNewEvaluator();
+    assertEquals(2, cache.getRestoredPackages());
+    assertEquals("genrule", pkg.getRule("other").getRuleClass());
+    loadPackageInNewEvaluator();
+    assertEquals(3, cache.getRestoredPackages());
+  }
+
+  @Test
+  public void testCorruptEntryIsIgnored() throws Exception {
+    PersistentPackageCache cache = useCache(Long.MAX_VALUE);
+    scratch.file("pkg/BUILD", "genrule(name = 'gen', outs = ['out'], cmd = 'echo')");
+    loadPackageInNewEvaluator();
+
+    Collection<Path> entries = cacheDirectory.getDirectoryEntries();
+    assertThat(entries).hasSize(1);
+    for (Path entry : entries) {
+      byte[] content = FileSystemUtils.readContent(entry);
+      FileSystemUtils.writeContent(entry, Arrays.copyOf(content, content.length - 10));
+    }
+    Package pkg = loadPackageInNewEvaluator();
+    assertEquals(0, cache.getRestoredPackages());
+    assertEquals("genrule", pkg.getRule("gen").getRuleClass());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+    useCache(0);
+    scratch.file("pkg/BUILD", "genrule(name = 'gen', outs = ['out'], cmd = 'echo')");
+    loadPackageInNewEvaluator();
+    assertThat(cacheDirectory.getDirectoryEntries()).isEmpty();
+
+    PersistentPackageCache cache = useCache(Long.MAX_VALUE);
+    loadPackageInNewEvaluator();
+    long entrySize = Iterables.getOnlyElement(cacheDirectory.getDirectoryEntries()).getFileSize();
+    // Leaves room for one entry only, so storing a second one evicts the older one.
+    cache = useCache(entrySize * 3 / 2);
+    loadPackageInNewEvaluator();
+    assertEquals(1, cache.getRestoredPackages());
+    scratch.overwriteFile("pkg/BUILD", "genrule(name = 'gen2', outs = ['out'], cmd = 'echo')");
+    loadPackageInNewEvaluator();
+    assertThat(cacheDirectory.getDirectoryEntries()).hasSize(1);
+  }
+}
@@ -18,6 +18,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.syntax.util.EvaluationTestCase;
 
@@ -202,4 +203,24 @@ public class EnvironmentTest extends EvaluationTestCase {
           + "The variable is defined in the global scope.");
     }
   }
+
+  @Test
+  public void testLocalVariablesOfFunctionFrame() throws Exception {
+    Environment env = getEnvironment().update("x", "global");
+    LocalVariables locals =
+        LocalVariables.resolve(ImmutableList.of("x", "y"), ImmutableList.<Statement>of());
+    env.enterScope(new BaseFunction("f") {}, null, env.getGlobals(), locals);
+    try {
+      // Only bound local variables are visible.
+      assertThat(env.getVariableNames()).doesNotContain("y");
+      env.update("x", 1);
+      env.update("z", 2);
+      assertEquals(1, env.lookup("x"));
+      assertEquals(2, env.lookup("z"));
+      assertThat(env.getVariableNames()).containsAllOf("x", "z");
+    } finally {
+      env.exitScope();
+    }
+    assertEquals("global", env.lookup("x"));
+  }
 }
@@ -15,16 +15,31 @@ package com.google.devtools.build.lib.syntax;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.profiler.ProfileInfo;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.syntax.util.EvaluationTestCase;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 
+import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -34,6 +49,11 @@ import java.util.Map;
 @RunWith(JUnit4.class)
 public class FunctionTest extends EvaluationTestCase {
 
+  @After
+  public final void disableCompiler() throws Exception {
+    UserDefinedFunction.setCompilationThreshold(-1);
+  }
+
   @Test
   public void testFunctionDef() throws Exception {
     eval("def func(a,b,c):",
@@ -131,6 +151,103 @@ public class FunctionTest extends EvaluationTestCase {
     assertEquals(2, lookup("c"));
   }
 
+  @Test
+  public void testLocalVariablesAreResolvedWhenParsed() throws Exception {
+    FunctionDefStatement def = (FunctionDefStatement) parseFile(
+        "def func(a):",
+        "  b = len(a)",
+        "  return b").get(0);
+    final Map<String, LocalVariables.Slot> slots = new HashMap<>();
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(Identifier node) {
+        slots.put(node.getName(), node.getLocalSlot());
+      }
+    }.visitAll(def.getStatements());
+
+    assertThat(slots.keySet()).containsExactly("a", "b", "len");
+    assertNotNull(slots.get("a"));
+    assertNotNull(slots.get("b"));
+    assertSame(slots.get("a").variables, slots.get("b").variables);
+    assertNull(slots.get("len"));
+  }
+
+  @Test
+  public void testLocalVariablesAreResolvedWhenDeserialized() throws Exception {
+    FunctionDefStatement def = (FunctionDefStatement) TestUtils.deserializeObject(
+        TestUtils.serializeObject(parseFile(
+            "def func(a):",
+            "  b = len(a)",
+            "  return b").get(0)));
+    final Map<String, LocalVariables.Slot> slots = new HashMap<>();
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(Identifier node) {
+        slots.put(node.getName(), node.getLocalSlot());
+      }
+    }.visitAll(def.getStatements());
+
+    assertNotNull(slots.get("a"));
+    assertSame(slots.get("a").variables, slots.get("b").variables);
+    assertNull(slots.get("len"));
+    def.exec(env);
+    eval("x = func([1, 2])");
+    assertEquals(2, lookup("x"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testTupleAssignmentBindsLocalVariables() throws Exception {
+    eval("a = 'global'",
+        "def func():",
+        "  a, b = 1, 2",
+        "  [c, d] = [a, b]",
+        "  c += d",
+        "  return [a, b, c, d]",
+        "x = func()\n");
+    assertThat((Iterable<Object>) lookup("x")).containsExactly(1, 2, 3, 2).inOrder();
+    assertEquals("global", lookup("a"));
+  }
+
+  @Test
+  public void testForLoopVariableIsLocal() throws Exception {
+    eval("i = 'global'",
+        "def func():",
+        "  r = 0",
+        "  for i in [1, 2, 3]:",
+        "    r += i",
+        "  return r * 10 + i",
+        "x = func()\n");
+    assertEquals(63, lookup("x"));
+    assertEquals("global", lookup("i"));
+  }
+
+  @Test
+  public void testForLoopWithBreakAndContinue() throws Exception {
+    eval("def func():",
+        "  r = []",
+        "  for i in [1, 2, 3, 4]:",
+        "    if i == 2:",
+        "      continue",
+        "    if i == 4:",
+        "      break",
+        "    r += [i]",
+        "  return r",
+        "x = func()\n");
+    assertEquals("[1, 3]", Printer.repr(lookup("x")));
+  }
+
+  @Test
+  public void testUnassignedLocalVariableIsNotDefined() throws Exception {
+    eval("def func(a):",
+        "  if a:",
+        "    b = 1",
+        "  return b",
+        "x = func(True)\n");
+    assertEquals(1, lookup("x"));
+    checkEvalErrorContains("name 'b' is not defined", "func(False)");
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void testSkylarkGlobalComprehensionIsAllowed() throws Exception {
@@ -388,4 +505,149 @@ public class FunctionTest extends EvaluationTestCase {
     assertEquals("abc2|", lookup("v4"));
     assertEquals("abfg|cde", lookup("v5"));
   }
+
+  @Test
+  public void testFunctionIsCompiledAfterThreshold() throws Exception {
+    UserDefinedFunction.setCompilationThreshold(2);
+    eval("def func(n):",
+        "  r = 0",
+        "  for i in range(n):",
+        "    r += i",
+        "  return r",
+        "v1 = func(100)",
+        "v2 = func(101)");
+    UserDefinedFunction func = (UserDefinedFunction) lookup("func");
+    assertFalse(func.isCompiled());
+    eval("v3 = func(4)");
+    assertTrue(func.isCompiled());
+    assertEquals(4950, lookup("v1"));
+    assertEquals(5050, lookup("v2"));
+    assertEquals(6, lookup("v3"));
+  }
+
+  @Test
+  public void testFunctionWithoutLoopIsNotCompiledAfterThreshold() throws Exception {
+    UserDefinedFunction.setCompilationThreshold(2);
+    eval("def func(a): return a + 1",
+        "v = [func(1), func(2), func(3)]");
+    assertFalse(((UserDefinedFunction) lookup("func")).isCompiled());
+  }
+
+  @Test
+  public void testFunctionWithShortLoopsIsNotCompiledAfterThreshold() throws Exception {
+    UserDefinedFunction.setCompilationThreshold(2);
+    eval("def func(n):",
+        "  return [i for i in range(n)]",
+        "v = [func(150), func(40), func(1000)]");
+    assertFalse(((UserDefinedFunction) lookup("func")).isCompiled());
+  }
+
+  @Test
+  public void testLoopsOfCalledFunctionsAreNotCounted() throws Exception {
+    UserDefinedFunction.setCompilationThreshold(2);
+    eval("def inner(n):",
+        "  r = 0",
+        "  for i in range(n):",
+        "    r += i",
+        "  return r",
+        "def outer(n):",
+        "  for i in range(2):",
+        "    r = inner(n)",
+        "  return r",
+        "v = [outer(200), outer(200), outer(200)]");
+    assertFalse(((UserDefinedFunction) lookup("outer")).isCompiled());
+    assertTrue(((UserDefinedFunction) lookup("inner")).isCompiled());
+  }
+
+  private static final String[] COMPILER_TEST_PROGRAM = {
+      "def func(n, s = 'x'):",
+      "  r = []",
+      "  for i in range(n):",
+      "    if i == 7:",
+      "      break",
+      "    if i == 5:",
+      "      continue",
+      "    if i % 2 == 0:",
+      "      r += [s * i]",
+      "    else:",
+      "      a, b = i, str(i)",
+      "      r.append(b + s)",
+      "  return {'list': r, 'len': len(r), 'comp': [x + '!' for x in r if x]}",
+      "v = [func(5), func(3, 'ab'), func(0), func(10)]"};
+
+  @Test
+  public void testCompiledFunctionBehavesLikeInterpretedOne() throws Exception {
+    eval(COMPILER_TEST_PROGRAM);
+    Object interpreted = lookup("v");
+    assertFalse(((UserDefinedFunction) lookup("func")).isCompiled());
+
+    UserDefinedFunction.setCompilationThreshold(0);
+    env = newEnvironment();
+    eval(COMPILER_TEST_PROGRAM);
+    assertTrue(((UserDefinedFunction) lookup("func")).isCompiled());
+    assertEquals(interpreted, lookup("v"));
+  }
+
+  @Test
+  public void testCompiledFunctionErrorIsNotRetriedByInterpreter() throws Exception {
+    UserDefinedFunction.setCompilationThreshold(0);
+    checkEvalErrorContains("unsupported operand type(s) for +: 'int' and 'string'",
+        "calls = []",
+        "def func():",
+        "  calls.append(1)",
+        "  return 1 + 'a'",
+        "func()");
+    assertEquals(1, ((SkylarkList<?>) lookup("calls")).size());
+  }
+
+  /** A statement that the compiler does not support. */
+  private static final class UncompilableStatement extends Statement {
+    @Override
+    void doExec(Environment env) {}
+
+    @Override
+    void validate(ValidationEnvironment env) {}
+
+    @Override
+    public String toString() {
+      return "uncompilable\n";
+    }
+
+    @Override
+    public void accept(SyntaxTreeVisitor visitor) {}
+  }
+
+  @Test
+  public void testCompilerFallbackIsReportedInProfile() throws Exception {
+    // Parse outside of the profile, since the lexer cannot profile input without a file.
+    List<Statement> statements = parseFile("def func(): return 'x'", "v = func()");
+    FunctionDefStatement def = (FunctionDefStatement) statements.get(0);
+    def = new FunctionDefStatement(def.getIdent(), def.getParameters(), def.getSignature(),
+        ImmutableList.<Statement>builder()
+            .add(new UncompilableStatement())
+            .addAll(def.getStatements())
+            .build());
+    Path profile = new InMemoryFileSystem(BlazeClock.instance()).getPath("/profile.dat");
+    Profiler profiler = Profiler.instance();
+    profiler.start(ProfiledTaskKinds.ALL, profile.getOutputStream(), "compiler fallback", false,
+        BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    try {
+      UserDefinedFunction.setCompilationThreshold(0);
+      def.exec(env);
+      statements.get(1).exec(env);
+    } finally {
+      profiler.stop();
+    }
+    assertEquals("x", lookup("v"));
+    assertFalse(((UserDefinedFunction) lookup("func")).isCompiled());
+
+    List<String> fallbacks = new ArrayList<>();
+    for (ProfileInfo.Task task : ProfileInfo.loadProfile(profile).allTasksById) {
+      if (task.type == ProfilerTask.SKYLARK_COMPILER_FALLBACK) {
+        fallbacks.add(task.getDescription());
+      }
+    }
+    assertThat(fallbacks).hasSize(1);
+    assertThat(fallbacks.get(0)).contains("func: cannot compile");
+  }
 }
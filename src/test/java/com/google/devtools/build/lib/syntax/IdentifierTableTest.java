@@ -0,0 +1,79 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link IdentifierTable}. */
+@RunWith(JUnit4.class)
+public class IdentifierTableTest {
+
+  private static IdentifierTable newTable() {
+    return new IdentifierTable(ImmutableMap.of("if", TokenKind.IF));
+  }
+
+  private static String get(IdentifierTable table, char[] buffer, int start, int end) {
+    return table.get(buffer, start, end).name;
+  }
+
+  @Test
+  public void repeatedIdentifiersAreTheSameInstance() {
+    char[] buffer = "foo bar foo".toCharArray();
+    IdentifierTable table = newTable();
+    String first = get(table, buffer, 0, 3);
+    assertThat(first).isEqualTo("foo");
+    assertThat(get(table, buffer, 4, 7)).isEqualTo("bar");
+    assertThat(get(table, buffer, 8, 11)).isSameAs(first);
+  }
+
+  @Test
+  public void identifiersAreSharedAcrossTables() {
+    char[] buffer = "cc_library".toCharArray();
+    assertThat(get(newTable(), buffer, 0, buffer.length))
+        .isSameAs(get(newTable(), buffer, 0, buffer.length));
+  }
+
+  @Test
+  public void manyIdentifiers() {
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      input.append("x").append(i).append(' ');
+    }
+    char[] buffer = input.toString().toCharArray();
+    IdentifierTable table = newTable();
+    int start = 0;
+    for (int i = 0; i < 1000; i++) {
+      int end = input.indexOf(" ", start);
+      assertThat(get(table, buffer, start, end)).isEqualTo("x" + i);
+      start = end + 1;
+    }
+    assertThat(get(table, buffer, 0, 2)).isEqualTo("x0");
+    assertThat(get(table, buffer, 0, 1)).isEqualTo("x");
+  }
+
+  @Test
+  public void keywordsHaveTheirTokenKind() {
+    char[] buffer = "if iff if".toCharArray();
+    IdentifierTable table = newTable();
+    assertThat(table.get(buffer, 0, 2).kind).isEqualTo(TokenKind.IF);
+    assertThat(table.get(buffer, 3, 6).kind).isEqualTo(TokenKind.IDENTIFIER);
+    assertThat(table.get(buffer, 7, 9).kind).isEqualTo(TokenKind.IF);
+  }
+}
@@ -164,6 +164,26 @@ public class SkylarkEvaluationTest extends EvaluationTest {
     public void method(String i) {}
   }
 
+  @SkylarkModule(name = "MockOverloadedClass", doc = "")
+  static final class MockOverloadedClass {
+    @SkylarkCallable(doc = "")
+    public String describe(String s) {
+      return "string " + s;
+    }
+    @SkylarkCallable(doc = "")
+    public String describe(Integer i) {
+      return "int " + i;
+    }
+  }
+
+  @SkylarkModule(name = "MockOtherDescribeClass", doc = "")
+  static final class MockOtherDescribeClass {
+    @SkylarkCallable(doc = "")
+    public String describe(String s) {
+      return "other " + s;
+    }
+  }
+
   @Test
   public void testSimpleIf() throws Exception {
     new SkylarkTest().setUp("def foo():",
@@ -547,6 +567,39 @@ public class SkylarkEvaluationTest extends EvaluationTest {
             "s = mock.method('string')");
   }
 
+  @Test
+  public void testJavaCallSiteWithDifferentReceiverClasses() throws Exception {
+    new SkylarkTest()
+        .update("a", new MockOverloadedClass())
+        .update("b", new MockOtherDescribeClass())
+        .setUp("def describe(x):",
+            "  return x.describe('s')",
+            "r = [describe(a), describe(b), describe(a), describe(b)]")
+        .testExactOrder("r", "string s", "other s", "string s", "other s");
+  }
+
+  @Test
+  public void testJavaCallSiteWithDifferentArgumentClasses() throws Exception {
+    new SkylarkTest()
+        .update("a", new MockOverloadedClass())
+        .setUp("def describe(v):",
+            "  return a.describe(v)",
+            "r = [describe('s'), describe(1), describe('t'), describe(2)]")
+        .testExactOrder("r", "string s", "int 1", "string t", "int 2");
+  }
+
+  @Test
+  public void testJavaCallSiteReportsMissingOverload() throws Exception {
+    new SkylarkTest()
+        .update("b", new MockOtherDescribeClass())
+        .setUp("def describe(v):",
+            "  return b.describe(v)",
+            "r = describe('s')")
+        .testLookup("r", "other s")
+        .testIfErrorContains(
+            "Type MockOtherDescribeClass has no function describe(int)", "describe(1)");
+  }
+
   @Test
   public void testJavaCallWithKwargs() throws Exception {
     new SkylarkTest()
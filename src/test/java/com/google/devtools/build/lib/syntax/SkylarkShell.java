@@ -82,7 +82,7 @@ class SkylarkShell {
 
   public static void main(String[] args) {
     if (args.length > 0 && args[0].equals("--compiler-debug")) {
-      UserDefinedFunction.enableCompiler = true;
+      UserDefinedFunction.setCompilationThreshold(0);
       UserDefinedFunction.debugCompiler = true;
       UserDefinedFunction.debugCompilerPrintByteCode = true;
     }
@@ -99,6 +99,22 @@ public class NativePosixFilesTest {
     }
   }
 
+  @Test
+  public void errnoStatReportsTheErrorOfTheFailedCall() throws Exception {
+    Path file = workingDir.getRelative("errno");
+    ErrnoFileStatus missing = NativePosixFiles.errnoLstat(file.getPathString());
+    assertThat(missing.hasError()).isTrue();
+    assertThat(missing.getErrno()).isEqualTo(ErrnoFileStatus.ENOENT);
+
+    FileSystemUtils.createEmptyFile(file);
+    ErrnoFileStatus notDirectory =
+        NativePosixFiles.errnoStat(file.getRelative("child").getPathString());
+    assertThat(notDirectory.hasError()).isTrue();
+    assertThat(notDirectory.getErrno()).isEqualTo(ErrnoFileStatus.ENOTDIR);
+
+    assertThat(NativePosixFiles.errnoLstat(file.getPathString()).hasError()).isFalse();
+  }
+
   @Test
   public void throwsFilePermissionException() throws Exception {
     File foo = new File("/bin");
@@ -129,6 +129,54 @@ public class GroupedListTest {
     assertElementsEqualInGroups(groupedList, elements);
   }
 
+  @Test
+  public void compressedGroupsAreFlattened() {
+    GroupedList<String> groupedList = new GroupedList<>();
+    groupedList.appendGroup(ImmutableList.of("1"));
+    groupedList.appendGroup(ImmutableList.of("2a", "2b", "2c"));
+    groupedList.appendGroup(ImmutableList.of("3"));
+    Object compressed = groupedList.compress();
+    assertThat(compressed).isInstanceOf(Object[].class);
+    for (Object item : (Object[]) compressed) {
+      assertThat(item).isNotInstanceOf(List.class);
+    }
+    assertThat(GroupedList.<String>compressedToSet(compressed))
+        .containsExactly("1", "2a", "2b", "2c", "3").inOrder();
+    assertEquals(groupedList, GroupedList.<String>create(compressed));
+    assertEquals(5, GroupedList.<String>create(compressed).numElements());
+  }
+
+  @Test
+  public void compressedLargeGroups() {
+    for (int groupSize : new int[] {255, 256, 1000}) {
+      List<String> group = new ArrayList<>();
+      for (int i = 0; i < groupSize; i++) {
+        group.add("test" + i);
+      }
+      GroupedList<String> groupedList = new GroupedList<>();
+      groupedList.appendGroup(ImmutableList.of("first"));
+      groupedList.appendGroup(group);
+      Object compressed = groupedList.compress();
+      assertEquals(groupedList, GroupedList.<String>create(compressed));
+      assertEquals(groupSize + 1, GroupedList.<String>create(compressed).numElements());
+      assertThat(GroupedList.<String>compressedToSet(compressed)).hasSize(groupSize + 1);
+    }
+  }
+
+  @Test
+  public void compressedToSetMatchesToSet() {
+    for (int size = 0; size < 5; size++) {
+      List<String> list = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        list.add("test" + i);
+      }
+      Object compressed = createAndCompress(list);
+      assertThat(GroupedList.<String>compressedToSet(compressed))
+          .containsExactlyElementsIn(GroupedList.<String>create(compressed).toSet())
+          .inOrder();
+    }
+  }
+
   @Test
   public void singletonAndEmptyGroups() {
     GroupedList<String> groupedList = new GroupedList<>();
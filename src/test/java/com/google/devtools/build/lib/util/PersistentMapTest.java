@@ -17,6 +17,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.google.devtools.build.lib.testutil.Scratch;
 import com.google.devtools.build.lib.vfs.Path;
@@ -29,6 +30,7 @@ import org.junit.runners.JUnit4;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -40,10 +42,18 @@ public class PersistentMapTest {
   public static class PersistentStringMap extends PersistentMap<String, String> {
     boolean updateJournal = true;
     boolean keepJournal = false;
+    String failOnWrite = null;
+    final boolean appendToMapFile;
 
     public PersistentStringMap(Map<String, String> map, Path mapFile,
         Path journalFile) throws IOException {
+      this(map, mapFile, journalFile, false);
+    }
+
+    public PersistentStringMap(Map<String, String> map, Path mapFile,
+        Path journalFile, boolean appendToMapFile) throws IOException {
       super(0x0, map, mapFile, journalFile);
+      this.appendToMapFile = appendToMapFile;
       load();
     }
 
@@ -63,6 +73,9 @@ public class PersistentMapTest {
     @Override
     protected void writeValue(String value, DataOutputStream out)
         throws IOException {
+      if (value.equals(failOnWrite)) {
+        throw new IOException("cannot write " + value);
+      }
       out.writeUTF(value);
     }
     @Override
@@ -73,6 +86,10 @@ public class PersistentMapTest {
     protected boolean keepJournal() {
       return keepJournal;
     }
+    @Override
+    protected boolean appendToMapFile() {
+      return appendToMapFile;
+    }
   }
 
   private Scratch scratch = new Scratch();
@@ -89,8 +106,12 @@ public class PersistentMapTest {
   }
 
   private void createMap() throws Exception {
+    createMap(false);
+  }
+
+  private void createMap(boolean appendToMapFile) throws Exception {
     Map<String, String> map = new HashMap<>();
-    this.map = new PersistentStringMap(map, mapFile, journalFile);
+    this.map = new PersistentStringMap(map, mapFile, journalFile, appendToMapFile);
   }
 
   @Test
@@ -223,4 +244,88 @@ public class PersistentMapTest {
     // all three entries are still in the map on disk
     assertThat(map).hasSize(3);
   }
+
+  @Test
+  public void appendToMapFile() throws Exception {
+    createMap(/*appendToMapFile=*/true);
+    map.put("foo", "bar");
+    map.put("baz", "bang");
+    map.put("qux", "quux");
+    map.put("abc", "def");
+    map.save();
+    long fullSize = mapFile.getFileSize();
+
+    map.remove("foo");
+    map.put("baz", "boom");
+    // Updates are appended to the map file instead of the journal.
+    assertFalse(journalFile.exists());
+    long size = map.save();
+    assertEquals(mapFile.getFileSize(), size);
+    assertThat(size).isGreaterThan(fullSize);
+
+    createMap(/*appendToMapFile=*/true);
+    assertThat(map).containsExactly("baz", "boom", "qux", "quux", "abc", "def");
+  }
+
+  @Test
+  public void appendToMapFileCompactsStaleEntries() throws Exception {
+    createMap(/*appendToMapFile=*/true);
+    map.put("foo", "bar");
+    map.put("baz", "bang");
+    map.save();
+    long fullSize = mapFile.getFileSize();
+
+    map.updateJournal = false;
+    map.remove("foo");
+    map.put("baz", "boom");
+    // Four entries on disk for a single live one: the map file is rewritten.
+    map.save();
+    assertThat(mapFile.getFileSize()).isLessThan(fullSize);
+
+    createMap();
+    assertThat(map).containsExactly("baz", "boom");
+  }
+
+  @Test
+  public void appendToMapFileIgnoresIncompleteEntry() throws Exception {
+    createMap(/*appendToMapFile=*/true);
+    map.put("foo", "bar");
+    map.put("baz", "bang");
+    map.save();
+    // Simulate a crash in the middle of appending an entry.
+    try (OutputStream out = mapFile.getOutputStream(/*append=*/true)) {
+      out.write(new byte[] {(byte) 0xfe, 0, 10, 'b'});
+    }
+
+    createMap(/*appendToMapFile=*/true);
+    assertThat(map).containsExactly("foo", "bar", "baz", "bang");
+    // The next update rewrites the map file without the incomplete entry.
+    map.put("qux", "quux");
+    createMap(/*appendToMapFile=*/true);
+    assertThat(map).containsExactly("foo", "bar", "baz", "bang", "qux", "quux");
+  }
+
+  @Test
+  public void appendToMapFileRewritesMapFileAfterFailure() throws Exception {
+    createMap(/*appendToMapFile=*/true);
+    map.put("foo", "bar");
+    map.put("baz", "bang");
+    map.save();
+
+    // The key of the entry is written before the value fails.
+    map.failOnWrite = "boom";
+    map.put("baz", "boom");
+    try {
+      map.save();
+      fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("cannot write boom");
+    }
+
+    map.failOnWrite = null;
+    map.put("qux", "quux");
+    map.save();
+    createMap(/*appendToMapFile=*/true);
+    assertThat(map).containsExactly("foo", "bar", "baz", "boom", "qux", "quux");
+  }
 }
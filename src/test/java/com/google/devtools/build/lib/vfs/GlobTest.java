@@ -22,6 +22,7 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
@@ -269,6 +270,43 @@ public class GlobTest {
         .containsExactlyElementsIn(ImmutableList.of(tmpPath.getRelative("foo/bar/wiz/file")));
   }
 
+  @Test
+  public void testGlobByPatternReadsEachDirectoryOnce() throws Exception {
+    final List<Path> readdirs = Collections.synchronizedList(new ArrayList<Path>());
+    UnixGlob.FilesystemCalls syscalls = new UnixGlob.FilesystemCalls() {
+      @Override
+      public FileStatus statNullable(Path path, Symlinks symlinks) {
+        return UnixGlob.DEFAULT_SYSCALLS.statNullable(path, symlinks);
+      }
+
+      @Override
+      public Collection<Dirent> readdir(Path path, Symlinks symlinks) throws IOException {
+        readdirs.add(path);
+        return UnixGlob.DEFAULT_SYSCALLS.readdir(path, symlinks);
+      }
+    };
+    ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
+
+    List<ListenableFuture<List<Path>>> results = new UnixGlob.Builder(tmpPath)
+        .addPatterns("foo/*", "*/barnacle", "foo/bar/**", "food")
+        .setFilesystemCalls(new AtomicReference<>(syscalls))
+        .setThreadPool(executor)
+        .globAsyncByPattern(true);
+
+    assertThat(results).hasSize(4);
+    assertThat(results.get(0).get())
+        .containsExactlyElementsIn(resolvePaths("foo/bar", "foo/barnacle"));
+    assertThat(results.get(1).get())
+        .containsExactlyElementsIn(resolvePaths("foo/barnacle", "food/barnacle", "fool/barnacle"));
+    assertThat(results.get(2).get())
+        .containsExactlyElementsIn(resolvePaths("foo/bar", "foo/bar/wiz", "foo/bar/wiz/file"));
+    assertThat(results.get(3).get()).containsExactlyElementsIn(resolvePaths("food"));
+    assertThat(readdirs).containsNoDuplicates();
+
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(TestUtils.WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
   @Test
   public void testIllegalPatterns() throws Exception {
     assertIllegalPattern("(illegal) pattern");
@@ -36,6 +36,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -258,6 +259,80 @@ public class PathTest {
     assertEquals(childHashCode1, childHashCode2);
   }
 
+  @Test
+  public void testManyChildrenAreInterned() {
+    Path parent = filesystem.getPath("/a");
+    List<Path> children = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      children.add(parent.getChild("child" + i));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertSame(children.get(i), parent.getChild(new String("child" + i)));
+    }
+  }
+
+  @Test
+  public void testCollectedChildIsRecreated() {
+    Path parent = filesystem.getPath("/a");
+    Path kept = parent.getChild("kept");
+    WeakReference<Path> childRef = new WeakReference<>(parent.getChild("collected"));
+    GcFinalization.awaitClear(childRef);
+    // Fill the table, so that it is rebuilt without the stale reference.
+    List<Path> children = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      children.add(parent.getChild("child" + i));
+    }
+    Path recreated = parent.getChild("collected");
+    assertSame(recreated, parent.getChild("collected"));
+    assertSame(kept, parent.getChild("kept"));
+    assertEquals("/a/collected", recreated.getPathString());
+  }
+
+  @Test
+  public void testTableShrinksWhenChildrenAreCollected() {
+    Path parent = filesystem.getPath("/a");
+    List<WeakReference<Path>> childRefs = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      childRefs.add(new WeakReference<>(parent.getChild("child" + i)));
+    }
+    int slots = parent.getChildSlotsForTesting();
+    for (WeakReference<Path> childRef : childRefs) {
+      GcFinalization.awaitClear(childRef);
+    }
+    // No new slot is used, but the stale references dominate the probe sequences.
+    Path recreated = parent.getChild("child0");
+    assertThat(parent.getChildSlotsForTesting()).isLessThan(slots);
+    assertSame(recreated, parent.getChild("child0"));
+  }
+
+  @Test
+  public void testTableShrinksWhenOneChildKeepsBeingCollected() {
+    Path parent = filesystem.getPath("/a");
+    List<Path> kept = new ArrayList<>();
+    List<WeakReference<Path>> childRefs = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      Path child = parent.getChild("child" + i);
+      if (i % 10 == 0) {
+        kept.add(child);
+      } else {
+        childRefs.add(new WeakReference<>(child));
+      }
+    }
+    int slots = parent.getChildSlotsForTesting();
+    for (WeakReference<Path> childRef : childRefs) {
+      GcFinalization.awaitClear(childRef);
+    }
+    // Each lookup reuses the stale slot of the previous incarnation of the child, but the table
+    // must still drop the other stale slots eventually.
+    for (int i = 0; i < slots; i++) {
+      GcFinalization.awaitClear(new WeakReference<>(parent.getChild("churned")));
+    }
+    assertThat(parent.getChildSlotsForTesting()).isLessThan(slots);
+    for (Path child : kept) {
+      assertSame(child, parent.getChild(child.getBaseName()));
+    }
+  }
+
   @Test
   public void testSerialization() throws Exception {
     FileSystem oldFileSystem = Path.getFileSystemForSerialization();
@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.vfs;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
@@ -27,6 +28,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -158,6 +160,26 @@ public class RecursiveGlobTest {
                                   Lists.newArrayList("foo", "foo/*", "foo/*/*", "foo/*/*/*"));
   }
 
+  @Test
+  public void testDoubleStarExcludePrunesSubtree() throws Exception {
+    final List<Path> visited = new ArrayList<>();
+    List<Path> result = new UnixGlob.Builder(tmpPath)
+        .addPattern("**")
+        .addExcludes("foo/**", "*/baz/**")
+        .setDirectoryFilter(new Predicate<Path>() {
+          @Override
+          public boolean apply(Path directory) {
+            visited.add(directory);
+            return true;
+          }
+        })
+        .globInterruptible();
+
+    assertThat(result).containsExactlyElementsIn(resolvePaths(".", "food", "fool"));
+    assertThat(visited).containsExactlyElementsIn(
+        resolvePaths(".", "foo", "food", "food/baz", "fool", "fool/baz"));
+  }
+
   private void assertGlobMatches(String pattern, String... expecteds)
       throws Exception {
     assertGlobWithExcludesMatches(
@@ -0,0 +1,141 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.CONCATENATE;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests for {@link InMemoryGraphSnapshot}. */
+@RunWith(JUnit4.class)
+public class InMemoryGraphSnapshotTest {
+
+  private static final SkyKey LEAF = GraphTester.toSkyKey("leaf");
+  private static final SkyKey TOP = GraphTester.toSkyKey("top");
+
+  private GraphTester tester;
+  private RecordingDifferencer differencer;
+  private AtomicInteger topEvaluations;
+
+  @Before
+  public final void createTester() {
+    tester = new GraphTester();
+    differencer = new RecordingDifferencer();
+    topEvaluations = new AtomicInteger();
+    tester.set(LEAF, new StringValue("leaf"));
+    tester.getOrCreate(TOP).addDependency(LEAF).setComputedValue(
+        new GraphTester.ValueComputer() {
+          @Override
+          public SkyValue compute(Map<SkyKey, SkyValue> deps, SkyFunction.Environment env)
+              throws InterruptedException {
+            topEvaluations.incrementAndGet();
+            return CONCATENATE.compute(deps, env);
+          }
+        });
+  }
+
+  private InMemoryMemoizingEvaluator newEvaluator() {
+    return new InMemoryMemoizingEvaluator(tester.getSkyFunctionMap(), differencer);
+  }
+
+  private static SkyValue eval(InMemoryMemoizingEvaluator evaluator, int version, SkyKey key)
+      throws InterruptedException {
+    EvaluationResult<SkyValue> result = evaluator.evaluate(ImmutableList.of(key),
+        IntVersion.of(version), /*keepGoing=*/false, 1, new Reporter());
+    return result.get(key);
+  }
+
+  private static byte[] save(InMemoryMemoizingEvaluator evaluator) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    evaluator.saveGraph(out);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void restoredNodesAreNotReevaluated() throws Exception {
+    InMemoryMemoizingEvaluator evaluator = newEvaluator();
+    assertThat(eval(evaluator, 0, TOP)).isEqualTo(new StringValue("leaf"));
+    byte[] snapshot = save(evaluator);
+
+    InMemoryMemoizingEvaluator restored = newEvaluator();
+    assertThat(restored.loadGraph(new ByteArrayInputStream(snapshot))).isEqualTo(2);
+    assertThat(eval(restored, 0, TOP)).isEqualTo(new StringValue("leaf"));
+    assertThat(topEvaluations.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void restoredNodesAreInvalidatedThroughRestoredEdges() throws Exception {
+    InMemoryMemoizingEvaluator evaluator = newEvaluator();
+    eval(evaluator, 0, TOP);
+    byte[] snapshot = save(evaluator);
+
+    InMemoryMemoizingEvaluator restored = newEvaluator();
+    restored.loadGraph(new ByteArrayInputStream(snapshot));
+    tester.set(LEAF, new StringValue("changed"));
+    differencer.invalidate(ImmutableList.of(LEAF));
+    assertThat(eval(restored, 0, TOP)).isEqualTo(new StringValue("changed"));
+    assertThat(topEvaluations.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void unserializableNodesAndTheirParentsAreDropped() throws Exception {
+    SkyKey parent = GraphTester.toSkyKey("parent");
+    tester.set(LEAF, new UnserializableValue());
+    tester.getOrCreate(parent).addDependency(LEAF).setComputedValue(
+        new GraphTester.ValueComputer() {
+          @Override
+          public SkyValue compute(Map<SkyKey, SkyValue> deps, SkyFunction.Environment env) {
+            return new StringValue("parent");
+          }
+        });
+    InMemoryMemoizingEvaluator evaluator = newEvaluator();
+    eval(evaluator, 0, parent);
+    byte[] snapshot = save(evaluator);
+
+    InMemoryMemoizingEvaluator restored = newEvaluator();
+    assertThat(restored.loadGraph(new ByteArrayInputStream(snapshot))).isEqualTo(0);
+    assertThat(restored.getValues()).isEmpty();
+  }
+
+  @Test
+  public void corruptSnapshotIsRejected() throws Exception {
+    InMemoryMemoizingEvaluator restored = newEvaluator();
+    try {
+      restored.loadGraph(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}));
+      fail();
+    } catch (IOException expected) {
+      assertThat(restored.getValues()).isEmpty();
+    }
+  }
+
+  private static class UnserializableValue implements SkyValue {
+    @SuppressWarnings("unused")
+    private final Object notSerializable = new Object();
+  }
+}
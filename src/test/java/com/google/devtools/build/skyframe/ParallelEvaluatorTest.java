@@ -59,6 +59,7 @@ import org.junit.runners.JUnit4;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -2151,4 +2152,93 @@ public class ParallelEvaluatorTest {
       throws Exception {
     runUnhandledTransitiveErrors(/*keepGoing=*/true, /*explicitlyPropagateError=*/true);
   }
+
+  @Test
+  public void pendingEvaluationsAreStartedInPriorityOrder() throws Exception {
+    graph = new InMemoryGraphImpl();
+    final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+    SkyKey top = GraphTester.toSkyKey("top");
+    GraphTester.TestFunction topFunction = tester.getOrCreate(top);
+    for (final String child : ImmutableList.of("low", "high", "medium", "none")) {
+      tester.getOrCreate(GraphTester.toSkyKey(child)).setComputedValue(
+          new GraphTester.ValueComputer() {
+            @Override
+            public SkyValue compute(Map<SkyKey, SkyValue> deps, SkyFunction.Environment env) {
+              started.add(child);
+              return new StringValue(child);
+            }
+          });
+      topFunction.addDependency(child);
+    }
+    topFunction.setComputedValue(CONCATENATE);
+    final Map<String, Integer> priorities = ImmutableMap.of("low", 1, "medium", 2, "high", 3);
+    EvaluationPriorityPolicy policy = new EvaluationPriorityPolicy() {
+      @Override
+      public int getPriority(SkyKey key) {
+        Integer priority = priorities.get(key.argument());
+        return priority == null ? 0 : priority;
+      }
+    };
+    // With a single thread, all four children are queued while "top" is still being evaluated.
+    ParallelEvaluator evaluator = new ParallelEvaluator(graph,
+        graphVersion,
+        tester.getSkyFunctionMap(),
+        eventCollector,
+        new MemoizingEvaluator.EmittedEventState(),
+        InMemoryMemoizingEvaluator.DEFAULT_STORED_EVENT_FILTER,
+        /*keepGoing=*/false,
+        /*threadCount=*/1,
+        revalidationReceiver,
+        new DirtyKeyTrackerImpl(),
+        new ParallelEvaluator.Receiver<Collection<SkyKey>>() {
+          @Override
+          public void accept(Collection<SkyKey> object) {
+            // ignore
+          }
+        },
+        policy);
+    EvaluationResult<StringValue> result = evaluator.eval(ImmutableList.of(top));
+    assertEquals(new StringValue("lowhighmediumnone"), result.get(top));
+    assertThat(started).containsExactly("high", "medium", "low", "none").inOrder();
+  }
+
+  @Test
+  public void computeTimePriorityPolicyStartsSlowNodesFirst() {
+    SkyKey slow = GraphTester.toSkyKey("slow");
+    SkyKey medium = GraphTester.toSkyKey("medium");
+    SkyKey fast = GraphTester.toSkyKey("fast");
+    SkyKey unknown = GraphTester.toSkyKey("unknown");
+    ComputeTimePriorityPolicy policy = new ComputeTimePriorityPolicy(
+        1, TimeUnit.MILLISECONDS, 10, new FunctionNamePriorityPolicy(
+            ImmutableMap.of(GraphTester.NODE_TYPE, -1)));
+    policy.recordComputeTime(slow, TimeUnit.MILLISECONDS.toNanos(100));
+    policy.recordComputeTime(medium, TimeUnit.MILLISECONDS.toNanos(2));
+    policy.recordComputeTime(fast, TimeUnit.MICROSECONDS.toNanos(10));
+    assertThat(policy.getPriority(slow)).isGreaterThan(policy.getPriority(medium));
+    assertThat(policy.getPriority(medium)).isGreaterThan(0);
+    // Nodes below the threshold and unknown nodes get the fallback's priority.
+    assertEquals(-1, policy.getPriority(fast));
+    assertEquals(-1, policy.getPriority(unknown));
+    policy.forget(slow);
+    assertEquals(-1, policy.getPriority(slow));
+    policy.clear();
+    assertEquals(-1, policy.getPriority(medium));
+  }
+
+  @Test
+  public void computeTimePriorityPolicyIsBounded() {
+    ComputeTimePriorityPolicy policy = new ComputeTimePriorityPolicy(
+        1, TimeUnit.MILLISECONDS, 10, EvaluationPriorityPolicy.NONE);
+    for (int i = 0; i < 1000; i++) {
+      policy.recordComputeTime(GraphTester.toSkyKey("node" + i), TimeUnit.SECONDS.toNanos(1));
+    }
+    int remembered = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (policy.getPriority(GraphTester.toSkyKey("node" + i)) != 0) {
+        remembered++;
+      }
+    }
+    assertThat(remembered).isAtMost(10);
+    assertThat(policy.getPriority(GraphTester.toSkyKey("node999"))).isGreaterThan(0);
+  }
 }